@@ -0,0 +1,128 @@
+import java.util.HashMap;
+
+/**
+ * Uses a Profile to move the bodies of if statements which are rarely
+ * entered to the end of the function, so that the common path no longer
+ * jumps over them.
+ * The code generated for if (c) { ... } without an else clause is
+ *   c; if-goto T; goto F; label T; ...; label F
+ * which executes two jumps whenever the body is skipped. If the profile
+ * shows that the if-goto is taken at most COLD_FRACTION of the times it
+ * is executed, this becomes
+ *   c; if-goto T; label F; ... return; label T; ...; goto F
+ * so skipping the body takes a single if-goto which falls through.
+ * Must run before any other pass, so that the function has the shape it
+ * had when it was profiled.
+ */
+public class BranchLayoutPass implements OptimizationPass {
+	
+	public static final double COLD_FRACTION = 0.25;
+	
+	private Profile profile;
+	
+	public BranchLayoutPass(Profile profile) {
+		this.profile = profile;
+	}
+	
+	public String getName() {
+		return "branch-layout";
+	}
+	
+	public void run(VMFunction function) {
+		int size = function.size();
+		if (size == 0 || !function.opcode(size - 1).isJump()) {
+			return;
+		}
+		
+		// look up the branch counts before the function changes shape
+		HashMap<Integer, long[]> counts = new HashMap<Integer, long[]>();
+		for (int i = 0; i < size; i++) {
+			if (function.opcode(i) == Opcode.IF_GOTO) {
+				long[] branch = profile.getBranch(function, function.symbol(i));
+				if (branch != null) {
+					counts.put(i, branch);
+				}
+			}
+		}
+		
+		VMFunction moved = new VMFunction(function.getName(), function.getNumLocals());
+		VMFunction cold = new VMFunction(function.getName(), 0);
+		
+		for (int i = 0; i < size; i++) {
+			moved.add(function, i);
+			
+			long[] branch = counts.get(i);
+			if (branch == null || branch[0] == 0 || branch[1] > branch[0] * COLD_FRACTION) {
+				continue;
+			}
+			
+			int end = coldBodyEnd(function, i);
+			if (end < 0) {
+				continue;
+			}
+			
+			// skip the goto, and move the body from its label to the end
+			for (int j = i + 2; j < end; j++) {
+				cold.add(function, j);
+			}
+			if (!function.opcode(end - 1).isJump()) {
+				cold.add(Opcode.GOTO, 0, 0, function.symbol(i + 1));
+			}
+			i = end - 1;
+		}
+		
+		if (cold.size() > 0) {
+			for (int i = 0; i < cold.size(); i++) {
+				moved.add(cold, i);
+			}
+			function.replaceBody(moved);
+		}
+	}
+	
+	/**
+	 * Returns the index of the label F ending the body of the if statement
+	 * whose if-goto is at i, if the commands match the pattern above and
+	 * no other jump enters the body, otherwise returns -1.
+	 */
+	private int coldBodyEnd(VMFunction function, int i) {
+		if (i + 2 >= function.size()
+				|| function.opcode(i + 1) != Opcode.GOTO
+				|| function.opcode(i + 2) != Opcode.LABEL
+				|| !function.symbol(i + 2).equals(function.symbol(i))) {
+			return -1;
+		}
+		
+		String falseLabel = function.symbol(i + 1);
+		int end = i + 3;
+		while (end < function.size()
+				&& !(function.opcode(end) == Opcode.LABEL
+					&& function.symbol(end).equals(falseLabel))) {
+			end++;
+		}
+		if (end == function.size()) {
+			return -1;
+		}
+		
+		// only the if-goto at i may jump into the body
+		for (int j = 0; j < function.size(); j++) {
+			Opcode opcode = function.opcode(j);
+			if (j != i && (opcode == Opcode.GOTO || opcode == Opcode.IF_GOTO)
+					&& (j < i + 2 || j >= end)
+					&& labelWithin(function, function.symbol(j), i + 2, end)) {
+				return -1;
+			}
+		}
+		
+		return end;
+	}
+	
+	private boolean labelWithin(VMFunction function, String label, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (function.opcode(i) == Opcode.LABEL && function.symbol(i).equals(label)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+}
@@ -0,0 +1,39 @@
+import java.util.ArrayList;
+
+/**
+ * The abstract syntax tree of a complete jack class.
+ * Variables are resolved to their segment and index while the class is
+ * parsed, so only the number of fields is needed from the class level
+ * declarations. Each subroutine has its own SubroutineAst.
+ */
+public class ClassAst {
+	
+	private String name;
+	private int numFields;
+	private ArrayList<SubroutineAst> subroutines = new ArrayList<SubroutineAst>();
+	
+	public ClassAst(String name) {
+		this.name = name;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getNumFields() {
+		return numFields;
+	}
+	
+	public void setNumFields(int numFields) {
+		this.numFields = numFields;
+	}
+	
+	public ArrayList<SubroutineAst> getSubroutines() {
+		return subroutines;
+	}
+	
+	public void addSubroutine(SubroutineAst subroutine) {
+		subroutines.add(subroutine);
+	}
+	
+}
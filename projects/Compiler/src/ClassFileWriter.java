@@ -0,0 +1,161 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Builds a JVM class file: a constant pool, in which each constant is
+ * added once, and a list of methods, each with a Code attribute.
+ * Classes are written as version 49, so the verifier infers the types of
+ * the stack and locals itself, and methods need no stack map frames.
+ */
+public class ClassFileWriter {
+	
+	public static final int VERSION = 49;
+	
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_STATIC = 0x0008;
+	public static final int ACC_FINAL = 0x0010;
+	public static final int ACC_SUPER = 0x0020;
+	
+	private ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private DataOutputStream poolOut = new DataOutputStream(pool);
+	private int poolCount = 1;
+	private HashMap<String, Integer> constants = new HashMap<String, Integer>();
+	
+	private ByteArrayOutputStream methods = new ByteArrayOutputStream();
+	private DataOutputStream methodsOut = new DataOutputStream(methods);
+	private int methodCount = 0;
+	
+	/**
+	 * Returns the index of the given constant, adding it with the given tag
+	 * and contents if it is not in the pool yet.
+	 */
+	private int constant(String key, int tag, String utf8, int first, int second) {
+		Integer index = constants.get(key);
+		if (index != null) {
+			return index;
+		}
+		
+		try {
+			poolOut.writeByte(tag);
+			switch (tag) {
+				case 1:		poolOut.writeUTF(utf8);			break;
+				case 3:		poolOut.writeInt(first);			break;
+				case 7:		poolOut.writeShort(first);			break;
+				default:
+					poolOut.writeShort(first);
+					poolOut.writeShort(second);
+					break;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		constants.put(key, poolCount);
+		return poolCount++;
+	}
+	
+	public int utf8(String value) {
+		return constant("utf8 " + value, 1, value, 0, 0);
+	}
+	
+	public int integer(int value) {
+		return constant("int " + value, 3, null, value, 0);
+	}
+	
+	/**
+	 * Returns the index of the class with the given internal name, such
+	 * as java/lang/Object.
+	 */
+	public int classRef(String name) {
+		return constant("class " + name, 7, null, utf8(name), 0);
+	}
+	
+	public int nameAndType(String name, String descriptor) {
+		return constant("nat " + name + " " + descriptor, 12, null, utf8(name), utf8(descriptor));
+	}
+	
+	public int fieldRef(String owner, String name, String descriptor) {
+		return constant("field " + owner + " " + name + " " + descriptor, 9, null,
+						classRef(owner), nameAndType(name, descriptor));
+	}
+	
+	public int methodRef(String owner, String name, String descriptor) {
+		return constant("method " + owner + " " + name + " " + descriptor, 10, null,
+						classRef(owner), nameAndType(name, descriptor));
+	}
+	
+	/**
+	 * Adds a method with the given code.
+	 * Throws an exception if the code is longer than a method may be.
+	 * @param access		The access flags of the method.
+	 * @param name			The name of the method.
+	 * @param descriptor	The descriptor of the method, e.g. (II)I.
+	 * @param maxStack		The most values on the operand stack at once.
+	 * @param maxLocals		The number of local variable slots.
+	 * @param code			The bytecode.
+	 */
+	public void addMethod(int access, String name, String descriptor,
+							int maxStack, int maxLocals, byte[] code) {
+		if (code.length >= 65536) {
+			throw new RuntimeException("Method " + name + " is too large");
+		}
+		
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		int codeIndex = utf8("Code");
+		
+		try {
+			methodsOut.writeShort(access);
+			methodsOut.writeShort(nameIndex);
+			methodsOut.writeShort(descriptorIndex);
+			methodsOut.writeShort(1);
+			methodsOut.writeShort(codeIndex);
+			methodsOut.writeInt(12 + code.length);
+			methodsOut.writeShort(maxStack);
+			methodsOut.writeShort(maxLocals);
+			methodsOut.writeInt(code.length);
+			methodsOut.write(code);
+			methodsOut.writeShort(0);
+			methodsOut.writeShort(0);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		methodCount++;
+	}
+	
+	/**
+	 * Returns the bytes of a class file for a class with the methods added,
+	 * which extends java.lang.Object and has no fields.
+	 * @param name		The internal name of the class.
+	 * @param access	The access flags of the class.
+	 * @return			The class file.
+	 */
+	public byte[] toByteArray(String name, int access) {
+		int thisClass = classRef(name);
+		int superClass = classRef("java/lang/Object");
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(VERSION);
+			out.writeShort(poolCount);
+			pool.writeTo(out);
+			out.writeShort(access);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0);
+			out.writeShort(0);
+			out.writeShort(methodCount);
+			methods.writeTo(out);
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+	
+}
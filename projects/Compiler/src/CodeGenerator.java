@@ -0,0 +1,762 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Lowers the abstract syntax tree of a jack class, as built by the
+ * CompilationEngine, into VM code written by a VMWriter.
+ * Has a generate method for each kind of statement and expression node.
+ * Before writing the code for a node, the position of the node in the
+ * source code is passed on to the VMWriter, so that each VM command
+ * records the construct it was generated for.
+ */
+public class CodeGenerator {
+	
+	/**
+	 * The subroutines which the code generator knows how to expand
+	 * inline rather than emitting a call to the OS.
+	 */
+	public static final ArrayList<String> INTRINSICS = new ArrayList<String>(
+												Arrays.asList(
+					"Math.multiply", "Math.divide", "Memory.peek", "Memory.poke"));
+	
+	/**
+	 * The largest power of two (as an exponent) which is multiplied by
+	 * inline using repeated doubling rather than calling Math.multiply.
+	 */
+	public static final int MAX_INLINE_SHIFT = 4;
+	
+	/**
+	 * The label at the start of a subroutine which self tail calls jump
+	 * back to, which is only written if the subroutine has any.
+	 */
+	private static final String ENTRY_LABEL = "ENTRY";
+	
+	private static final int INITIAL_PENDING = 16;
+	
+	private static final Segment[] SEGMENTS = Segment.values();
+	private static final Keyword[] KEYWORDS = Keyword.values();
+	
+	private VMWriter writer;
+	
+	private String className;
+	private SubroutineAst ast;
+	
+	private int ifCounter;
+	private int whileCounter;
+	
+	private int[] pendingNodes = new int[INITIAL_PENDING];
+	private int[] pendingStates = new int[INITIAL_PENDING];
+	private int numPending = 0;
+	
+	private HashSet<String> enabledIntrinsics = new HashSet<String>(INTRINSICS);
+	
+	/**
+	 * Creates a new code generator which writes the VM code
+	 * it generates using the given VMWriter.
+	 * @param writer	The VMWriter used to write the generated code.
+	 */
+	public CodeGenerator(VMWriter writer) {
+		this.writer = writer;
+	}
+	
+	/**
+	 * Returns a new code generator with the same intrinsics enabled as
+	 * this one, which writes the code it generates using the given
+	 * VMWriter. Each has its own label counters, so the two can be used
+	 * by different threads.
+	 * @param writer	The VMWriter used by the new code generator.
+	 * @return			The new code generator.
+	 */
+	public CodeGenerator copy(VMWriter writer) {
+		CodeGenerator generator = new CodeGenerator(writer);
+		generator.enabledIntrinsics = new HashSet<String>(enabledIntrinsics);
+		return generator;
+	}
+	
+	public VMWriter getWriter() {
+		return writer;
+	}
+	
+	/**
+	 * Enables or disables inline expansion of the given intrinsic
+	 * subroutine, which must be one of the names in INTRINSICS.
+	 * All intrinsics are enabled by default. The OS classes can disable
+	 * them so that their own implementations are always called.
+	 * @param name		The full name of the intrinsic, e.g. Math.multiply.
+	 * @param enabled	Whether calls to the intrinsic should be expanded inline.
+	 */
+	public void setIntrinsicEnabled(String name, boolean enabled) {
+		if (!INTRINSICS.contains(name)) {
+			throw new RuntimeException("Unknown intrinsic " + name);
+		}
+		
+		if (enabled) {
+			enabledIntrinsics.add(name);
+		} else {
+			enabledIntrinsics.remove(name);
+		}
+	}
+	
+	/**
+	 * Enables or disables inline expansion of all the intrinsics.
+	 * @param enabled	Whether intrinsics should be expanded inline.
+	 */
+	public void setIntrinsicsEnabled(boolean enabled) {
+		for (String name: INTRINSICS) {
+			setIntrinsicEnabled(name, enabled);
+		}
+	}
+	
+	/**
+	 * Takes a binary operator character and returns the
+	 * corresponding VM command.
+	 * @param operator	The binary operator, other than * and /.
+	 */
+	private Command commandBinary(int operator) {
+		switch (operator) {
+			case '+':		return Command.ADD;
+			case '-': 		return Command.SUB;
+			case '=':		return Command.EQ;
+			case '<':		return Command.LT;
+			case '>':		return Command.GT;
+			case '&':		return Command.AND;
+			case '|':		return Command.OR;
+			default:
+				throw new RuntimeException("Invalid binary operator");
+		}
+	}
+	
+	/**
+	 * Takes a unary operator character and returns the
+	 * corresponding VM command.
+	 * @param operator	The unary operator.
+	 */
+	private Command commandUnary(int operator) {
+		switch (operator) {
+			case '-': 		return Command.NEG;
+			case '~':		return Command.NOT;
+			default:
+				throw new RuntimeException("Invalid unary operator");
+		}
+	}
+	
+	/**
+	 * Returns the value of the given expression if it is an integer
+	 * constant or a (possibly repeatedly) negated integer constant,
+	 * otherwise returns null.
+	 * @param node	The expression of interest.
+	 * @return		The constant value of the expression, or null.
+	 */
+	private Integer constantValue(int node) {
+		boolean negated = false;
+		while (ast.kind(node) == NodeKind.UNARY && ast.value(node) == '-') {
+			negated = !negated;
+			node = ast.first(node);
+		}
+		
+		if (ast.kind(node) != NodeKind.INT_CONST) {
+			return null;
+		}
+		return negated ? -ast.value(node) : ast.value(node);
+	}
+	
+	/**
+	 * Writes the VM commands to push the given integer constant, which
+	 * may be negative, to the stack.
+	 * @param value		The value to push to the stack.
+	 */
+	private void pushConstant(int value) {
+		if (value < 0) {
+			writer.writePush(Segment.CONSTANT, -value);
+			writer.writeArithmetic(Command.NEG);
+		} else {
+			writer.writePush(Segment.CONSTANT, value);
+		}
+	}
+	
+	/**
+	 * Writes the appropriate VM commands to push a new string
+	 * with the value of the given string constant to the stack.
+	 * @param string	The string value to push to the stack.
+	 */
+	private void pushStringConstant(String string) {
+		writer.writePush(Segment.CONSTANT, string.length());
+		writer.writeCall("String.new", 1);
+		for (int c: string.toCharArray()) {
+			writer.writePush(Segment.CONSTANT, c);
+			writer.writeCall("String.appendChar", 2);
+		}
+	}
+	
+	/**
+	 * Returns the base two logarithm of the given value if it is a
+	 * power of two which is small enough to be multiplied by inline,
+	 * otherwise returns -1.
+	 * @param value		The value of interest.
+	 * @return			The number of doublings needed to multiply by value,
+	 * 					or -1 if value is not a small power of two.
+	 */
+	private int inlineShift(int value) {
+		for (int shift = 1; shift <= MAX_INLINE_SHIFT; shift++) {
+			if (value == 1 << shift) {
+				return shift;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns true if multiplying by the given constant can be expanded
+	 * inline, and the Math.multiply intrinsic is enabled.
+	 * @param value		The constant multiplier.
+	 * @return			true if the multiplication can be expanded inline.
+	 */
+	private boolean canMultiplyInline(int value) {
+		return enabledIntrinsics.contains("Math.multiply")
+				&& (value == 0 || value == 1 || value == -1
+					|| inlineShift(Math.abs(value)) != -1);
+	}
+	
+	/**
+	 * Returns true if dividing by the given constant can be expanded
+	 * inline, and the Math.divide intrinsic is enabled.
+	 * @param value		The constant divisor.
+	 * @return			true if the division can be expanded inline.
+	 */
+	private boolean canDivideInline(int value) {
+		return enabledIntrinsics.contains("Math.divide")
+				&& (value == 1 || value == -1);
+	}
+	
+	/**
+	 * Writes the VM commands to multiply the value on top of the stack
+	 * by the given constant, which must satisfy canMultiplyInline.
+	 * Doubling uses temp 0, which is never live across an expression.
+	 * @param value		The constant multiplier.
+	 */
+	private void writeMultiplyInline(int value) {
+		if (value == 0) {
+			// the operand is still evaluated, as it may contain calls
+			writer.writePop(Segment.TEMP, 0);
+			writer.writePush(Segment.CONSTANT, 0);
+			return;
+		}
+		
+		int shift = Math.abs(value) == 1 ? 0 : inlineShift(Math.abs(value));
+		for (int i = 0; i < shift; i++) {
+			writer.writePop(Segment.TEMP, 0);
+			writer.writePush(Segment.TEMP, 0);
+			writer.writePush(Segment.TEMP, 0);
+			writer.writeArithmetic(Command.ADD);
+		}
+		
+		if (value < 0) {
+			writer.writeArithmetic(Command.NEG);
+		}
+	}
+	
+	/**
+	 * Writes the VM commands for a call to the given subroutine, whose
+	 * arguments have already been pushed to the stack.
+	 * If the subroutine is an enabled intrinsic it is expanded inline
+	 * instead, otherwise a normal VM call command is written.
+	 * @param name			The full name of the subroutine being called.
+	 * @param numArgs		The number of arguments pushed for the call.
+	 * @param valueUsed		false if the return value of the call will be
+	 * 						discarded, as in a do statement. In this case
+	 * 						intrinsics which leave no value on the stack
+	 * 						return true without pushing a dummy value.
+	 * @return				true if the call was expanded inline and left
+	 * 						no value on the stack, otherwise false.
+	 */
+	private boolean writeCall(String name, int numArgs, boolean valueUsed) {
+		if (!enabledIntrinsics.contains(name)) {
+			writer.writeCall(name, numArgs);
+			return false;
+		}
+		
+		if (name.equals("Memory.peek") && numArgs == 1) {
+			writer.writePop(Segment.POINTER, 1);
+			writer.writePush(Segment.THAT, 0);
+			return false;
+			
+		} else if (name.equals("Memory.poke") && numArgs == 2) {
+			writer.writePop(Segment.TEMP, 0);
+			writer.writePop(Segment.POINTER, 1);
+			writer.writePush(Segment.TEMP, 0);
+			writer.writePop(Segment.THAT, 0);
+			if (valueUsed) {
+				writer.writePush(Segment.CONSTANT, 0);
+				return false;
+			}
+			return true;
+			
+		} else {
+			writer.writeCall(name, numArgs);
+			return false;
+		}
+	}
+	
+	/**
+	 * Writes the VM code for every subroutine of the given class.
+	 * @param classAst	The class to generate code for.
+	 */
+	public void generateClass(ClassAst classAst) {
+		for (SubroutineAst subroutine: classAst.getSubroutines()) {
+			generateSubroutine(classAst, subroutine);
+		}
+	}
+	
+	/**
+	 * Writes the VM code for a complete method, function or constructor.
+	 * @param classAst		The class the subroutine belongs to.
+	 * @param subroutine	The subroutine to generate code for.
+	 */
+	public void generateSubroutine(ClassAst classAst, SubroutineAst subroutine) {
+		this.className = classAst.getName();
+		this.ast = subroutine;
+		ifCounter = 0;
+		whileCounter = 0;
+		
+		writer.writeFunction(className + "." + subroutine.getName(),
+								subroutine.getNumLocals());
+		writer.setPosition(subroutine.getDeclarationLine(), subroutine.getDeclarationColumn());
+		
+		if (hasTailCall()) {
+			writer.writeLabel(ENTRY_LABEL);
+		}
+		
+		if (subroutine.getSubroutineType() == Keyword.METHOD) {
+			writer.writePush(Segment.ARGUMENT, 0);
+			writer.writePop(Segment.POINTER, 0);
+			
+		} else if (subroutine.getSubroutineType() == Keyword.CONSTRUCTOR) {
+			writer.writePush(Segment.CONSTANT, classAst.getNumFields());
+			writer.writeCall("Memory.alloc", 1);
+			writer.writePop(Segment.POINTER, 0);
+		}
+		
+		generateStatements(subroutine.getBody());
+	}
+	
+	/**
+	 * Sets the source position of the commands written next to that of
+	 * the given node.
+	 * @param node	The node whose code is written next.
+	 */
+	private void at(int node) {
+		writer.setPosition(ast.line(node), ast.column(node));
+	}
+	
+	/**
+	 * Returns true if the current subroutine has a return statement which
+	 * is a self tail call.
+	 */
+	private boolean hasTailCall() {
+		for (int node = 0; node < ast.size(); node++) {
+			if (ast.kind(node) == NodeKind.RETURN && isTailCall(node)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns true if the given return statement returns the value of a
+	 * call to the current subroutine with the same number of arguments it
+	 * takes, such as return gcd(b, a - b) in the function gcd, or return
+	 * next.find(x) in a method find.
+	 * Constructors are never tail called, since each call allocates a
+	 * new object.
+	 * @param statement		The RETURN node.
+	 */
+	private boolean isTailCall(int statement) {
+		int call = ast.first(statement);
+		return call != SubroutineAst.NONE
+				&& ast.kind(call) == NodeKind.CALL
+				&& ast.getSubroutineType() != Keyword.CONSTRUCTOR
+				&& ast.second(call) == ast.getNumArgs()
+				&& ast.string(ast.value(call)).equals(className + "." + ast.getName());
+	}
+	
+	/**
+	 * Writes the VM code for a list of zero or more statements.
+	 * @param statement		The first statement in the list, or NONE.
+	 */
+	private void generateStatements(int statement) {
+		while (statement != SubroutineAst.NONE) {
+			at(statement);
+			switch (ast.kind(statement)) {
+				case LET:		generateLet(statement);		break;
+				case IF:		generateIf(statement);		break;
+				case WHILE:		generateWhile(statement);	break;
+				case DO:		generateDo(statement);		break;
+				case RETURN:	generateReturn(statement);	break;
+				default:
+					throw new RuntimeException("Expected statement, got "
+												+ ast.kind(statement));
+			}
+			statement = ast.next(statement);
+		}
+	}
+	
+	/**
+	 * Writes the VM code for a let statement.
+	 * @param statement		The LET node.
+	 */
+	private void generateLet(int statement) {
+		int target = ast.first(statement);
+		
+		if (ast.kind(target) == NodeKind.ARRAY_ENTRY) {
+			generateVariable(ast.first(target), true);
+			generateExpression(ast.second(target));
+			at(target);
+			writer.writeArithmetic(Command.ADD);
+			
+			generateExpression(ast.second(statement));
+			
+			at(statement);
+			writer.writePop(Segment.TEMP, 0);
+			writer.writePop(Segment.POINTER, 1);
+			writer.writePush(Segment.TEMP, 0);
+			writer.writePop(Segment.THAT, 0);
+			
+		} else {
+			generateExpression(ast.second(statement));
+			at(statement);
+			generateVariable(target, false);
+		}
+	}
+	
+	/**
+	 * Writes the VM code for an if statement, possibly including an
+	 * else clause.
+	 * @param statement		The IF node.
+	 */
+	private void generateIf(int statement) {
+		String trueLabel = "IF_TRUE" + ifCounter;
+		String falseLabel = "IF_FALSE" + ifCounter;
+		String endLabel = "IF_END" + ifCounter;
+		ifCounter++;
+		
+		generateExpression(ast.first(statement));
+		
+		at(statement);
+		writer.writeIf(trueLabel);
+		writer.writeGoto(falseLabel);
+		writer.writeLabel(trueLabel);
+		
+		generateStatements(ast.second(statement));
+		
+		at(statement);
+		if (ast.value(statement) == 1) {
+			writer.writeGoto(endLabel);
+			writer.writeLabel(falseLabel);
+			
+			generateStatements(ast.third(statement));
+			
+			at(statement);
+			writer.writeLabel(endLabel);
+			
+		} else {
+			writer.writeLabel(falseLabel);
+		}
+	}
+	
+	/**
+	 * Writes the VM code for a while statement.
+	 * @param statement		The WHILE node.
+	 */
+	private void generateWhile(int statement) {
+		String expLabel = "WHILE_EXP" + whileCounter;
+		String endLabel = "WHILE_END" + whileCounter;
+		whileCounter++;
+		
+		writer.writeLabel(expLabel);
+		
+		generateExpression(ast.first(statement));
+		
+		at(statement);
+		writer.writeArithmetic(Command.NOT);
+		writer.writeIf(endLabel);
+		
+		generateStatements(ast.second(statement));
+		
+		at(statement);
+		writer.writeGoto(expLabel);
+		writer.writeLabel(endLabel);
+	}
+	
+	/**
+	 * Writes the VM code for a do statement, discarding the value
+	 * returned by the subroutine called.
+	 * @param statement		The DO node.
+	 */
+	private void generateDo(int statement) {
+		if (!generateCall(ast.first(statement), false)) {
+			at(statement);
+			writer.writePop(Segment.TEMP, 0);
+		}
+	}
+	
+	/**
+	 * Writes the VM code for a return statement.
+	 * @param statement		The RETURN node.
+	 */
+	private void generateReturn(int statement) {
+		if (isTailCall(statement)) {
+			generateTailCall(ast.first(statement));
+			return;
+		}
+		
+		if (ast.first(statement) != SubroutineAst.NONE) {
+			generateExpression(ast.first(statement));
+			at(statement);
+			
+		} else {
+			// void subroutine
+			writer.writePush(Segment.CONSTANT, 0);
+		}
+		
+		writer.writeReturn();
+	}
+	
+	/**
+	 * Writes the VM code for a self tail call, which reuses the frame of
+	 * the current call rather than making a new one, so that tail
+	 * recursion runs in constant stack space. The new arguments are
+	 * pushed and popped into the argument segment, the locals are set back
+	 * to 0 as on a new call, and control jumps back to the start of the
+	 * subroutine.
+	 * @param call	The CALL node.
+	 */
+	private void generateTailCall(int call) {
+		for (int arg = ast.first(call); arg != SubroutineAst.NONE; arg = ast.next(arg)) {
+			generateExpression(arg);
+		}
+		
+		at(call);
+		for (int arg = ast.second(call) - 1; arg >= 0; arg--) {
+			writer.writePop(Segment.ARGUMENT, arg);
+		}
+		
+		for (int local = 0; local < ast.getNumLocals(); local++) {
+			writer.writePush(Segment.CONSTANT, 0);
+			writer.writePop(Segment.LOCAL, local);
+		}
+		
+		writer.writeGoto(ENTRY_LABEL);
+	}
+	
+	/**
+	 * Writes the VM code to push or pop the given variable.
+	 * @param variable	The VARIABLE node.
+	 * @param push		true to push the variable, false to pop into it.
+	 */
+	private void generateVariable(int variable, boolean push) {
+		Segment segment = SEGMENTS[ast.value(variable)];
+		if (push) {
+			writer.writePush(segment, ast.first(variable));
+		} else {
+			writer.writePop(segment, ast.first(variable));
+		}
+	}
+	
+	/**
+	 * Writes the VM code for a subroutine call, including pushing its
+	 * arguments.
+	 * @param call			The CALL node.
+	 * @param valueUsed		false if the value returned will be discarded.
+	 * @return				true if no value was left on the stack.
+	 */
+	private boolean generateCall(int call, boolean valueUsed) {
+		for (int arg = ast.first(call); arg != SubroutineAst.NONE; arg = ast.next(arg)) {
+			generateExpression(arg);
+		}
+		
+		at(call);
+		return writeCall(ast.string(ast.value(call)), ast.second(call), valueUsed);
+	}
+	
+	/**
+	 * Writes the VM code to push the value of the given expression.
+	 * The expression tree is walked using an explicit stack of the nodes
+	 * being generated rather than recursion, so that the Java stack used
+	 * does not grow with the depth of the expression. Each entry holds a
+	 * node and its state, 0 until its first step has been taken, and
+	 * then the number of its operands generated so far, or for a CALL
+	 * node the next argument to generate.
+	 * Multiplication and division by suitable constants are expanded
+	 * inline, in which case the constant operand is never pushed.
+	 * @param root	The root node of the expression.
+	 */
+	private void generateExpression(int root) {
+		int base = numPending;
+		pushPending(root, 0);
+		
+		while (numPending > base) {
+			int top = numPending - 1;
+			int node = pendingNodes[top];
+			int state = pendingStates[top];
+			at(node);
+			
+			if (state == 0) {
+				Integer constant = constantValue(node);
+				if (constant != null) {
+					pushConstant(constant);
+					numPending--;
+					continue;
+				}
+			}
+			
+			switch (ast.kind(node)) {
+				case STRING_CONST:
+					pushStringConstant(ast.string(ast.value(node)));
+					numPending--;
+					break;
+				
+				case KEYWORD_CONST:
+					Keyword keyword = KEYWORDS[ast.value(node)];
+					if (keyword == Keyword.THIS) {
+						writer.writePush(Segment.POINTER, 0);
+						
+					} else if (keyword == Keyword.TRUE) {
+						writer.writePush(Segment.CONSTANT, 0);
+						writer.writeArithmetic(Command.NOT);
+						
+					} else {
+						writer.writePush(Segment.CONSTANT, 0);
+					}
+					numPending--;
+					break;
+				
+				case VARIABLE:
+					generateVariable(node, true);
+					numPending--;
+					break;
+				
+				case ARRAY_ENTRY:
+					if (state == 0) {
+						generateVariable(ast.first(node), true);
+						pendingStates[top] = 1;
+						pushPending(ast.second(node), 0);
+					} else {
+						writer.writeArithmetic(Command.ADD);
+						writer.writePop(Segment.POINTER, 1);
+						writer.writePush(Segment.THAT, 0);
+						numPending--;
+					}
+					break;
+				
+				case CALL:
+					// after the first step, the state is two more than the
+					// next argument, which may be NONE
+					int arg = state == 0 ? ast.first(node) : state - 2;
+					if (arg != SubroutineAst.NONE) {
+						pendingStates[top] = ast.next(arg) + 2;
+						pushPending(arg, 0);
+					} else {
+						writeCall(ast.string(ast.value(node)), ast.second(node), true);
+						numPending--;
+					}
+					break;
+				
+				case BINARY:
+					generateBinary(node, state, top);
+					break;
+				
+				case UNARY:
+					if (state == 0) {
+						pendingStates[top] = 1;
+						pushPending(ast.first(node), 0);
+					} else {
+						writer.writeArithmetic(commandUnary(ast.value(node)));
+						numPending--;
+					}
+					break;
+				
+				default:
+					throw new RuntimeException("Expected expression, got "
+												+ ast.kind(node));
+			}
+		}
+	}
+	
+	/**
+	 * Takes the next step in writing the VM code for a binary operation
+	 * on the stack of generateExpression. The states are
+	 *  - 0		nothing generated yet
+	 *  - 1		the left operand has been pushed
+	 *  - 2		both operands have been pushed
+	 *  - 3		the right operand has been pushed, and is to be multiplied
+	 *  		by the constant left operand inline
+	 * @param node	The BINARY node.
+	 * @param state	The state of the node.
+	 * @param top	The position of the node on the stack.
+	 */
+	private void generateBinary(int node, int state, int top) {
+		int operator = ast.value(node);
+		Integer left = constantValue(ast.first(node));
+		Integer right = constantValue(ast.second(node));
+		
+		if (state == 0 && operator == '*' && left != null && canMultiplyInline(left)) {
+			// multiplication is commutative, and the constant has no side
+			// effects, so only the right operand needs evaluating
+			pendingStates[top] = 3;
+			pushPending(ast.second(node), 0);
+			
+		} else if (state == 0) {
+			pendingStates[top] = 1;
+			pushPending(ast.first(node), 0);
+			
+		} else if (state == 1 && operator == '*' && right != null && canMultiplyInline(right)) {
+			writeMultiplyInline(right);
+			numPending--;
+			
+		} else if (state == 1 && operator == '/' && right != null && canDivideInline(right)) {
+			if (right < 0) {
+				writer.writeArithmetic(Command.NEG);
+			}
+			numPending--;
+			
+		} else if (state == 1) {
+			pendingStates[top] = 2;
+			pushPending(ast.second(node), 0);
+			
+		} else if (state == 3) {
+			writeMultiplyInline(left);
+			numPending--;
+			
+		} else {
+			if (operator == '*') {
+				writer.writeCall("Math.multiply", 2);
+				
+			} else if (operator == '/') {
+				writer.writeCall("Math.divide", 2);
+				
+			} else {
+				writer.writeArithmetic(commandBinary(operator));
+			}
+			numPending--;
+		}
+	}
+	
+	/**
+	 * Pushes a node onto the stack of generateExpression, which only
+	 * grows when it is full.
+	 * @param node	The node to generate.
+	 * @param state	The state of the node.
+	 */
+	private void pushPending(int node, int state) {
+		if (numPending == pendingNodes.length) {
+			pendingNodes = Arrays.copyOf(pendingNodes, numPending * 2);
+			pendingStates = Arrays.copyOf(pendingStates, numPending * 2);
+		}
+		
+		pendingNodes[numPending] = node;
+		pendingStates[numPending] = state;
+		numPending++;
+	}
+	
+}
@@ -0,0 +1,347 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Finds values computed more than once within a basic block, such as the
+ * address a+i and the entry a[i] in let a[i] = a[i] + 1, and computes them
+ * only once, saving the value in a new local which later uses push.
+ *
+ * Each value pushed onto the stack is given a value number, which is the
+ * same for two values only if they are certain to be equal: a push of a
+ * variable is numbered by the variable and the number of times it, or
+ * memory it may alias, has been written so far in the block, and an
+ * arithmetic command by its command and the numbers of its operands.
+ * Calls and writes to this, that and static are assumed to change any
+ * this, that or static variable, and writes to that are assumed to
+ * change locals and arguments as well, since that may point anywhere.
+ *
+ * A value is only reused if the commands computing it are contiguous and
+ * have no side effects other than setting pointer 1 for an array entry,
+ * and if saving it in a local takes fewer commands than computing it
+ * again. As in the rest of the compiler, pointer 1 is assumed not to hold
+ * a value past the end of a block.
+ * The LocalAllocationPass later lets the new locals share slots.
+ */
+public class CommonSubexpressionPass implements OptimizationPass {
+	
+	/**
+	 * The value number of a value whose origin is unknown, such as one
+	 * pushed before the start of the block.
+	 */
+	private static final int UNKNOWN = -1;
+	
+	private VMFunction function;
+	
+	/** The value number of the value pushed by each command. */
+	private int[] valueNumbers;
+	
+	/**
+	 * The first command computing the value pushed by each command,
+	 * or -1 if these commands are not contiguous or have side effects.
+	 */
+	private int[] starts;
+	
+	private int nextValueNumber;
+	
+	public String getName() {
+		return "common-subexpression-elimination";
+	}
+	
+	public void run(VMFunction function) {
+		this.function = function;
+		int size = function.size();
+		valueNumbers = new int[size];
+		starts = new int[size];
+		nextValueNumber = 0;
+		
+		int[] replaceEnds = new int[size];
+		int[] replaceLocals = new int[size];
+		int[] spillLocals = new int[size];
+		for (int i = 0; i < size; i++) {
+			replaceLocals[i] = -1;
+			spillLocals[i] = -1;
+		}
+		boolean[] removed = new boolean[size];
+		boolean changed = false;
+		
+		ControlFlowGraph cfg = new ControlFlowGraph(function);
+		for (int block = 0; block < cfg.numBlocks(); block++) {
+			int first = cfg.firstCommand(block);
+			int last = cfg.lastCommand(block);
+			numberValues(first, last);
+			
+			for (ArrayList<Integer> occurrences: findRepeatedValues(first, last)) {
+				ArrayList<Integer> kept = new ArrayList<Integer>();
+				for (int end: occurrences) {
+					if (!overlapsRemoved(removed, starts[end], end)
+							&& (kept.isEmpty() || pointerDeadAfter(starts[end], end, last))) {
+						kept.add(end);
+					}
+				}
+				
+				if ((kept.size() - 1) * (length(occurrences.get(0)) - 1) <= 2) {
+					continue;
+				}
+				
+				int local = function.getNumLocals();
+				function.setNumLocals(local + 1);
+				spillLocals[kept.get(0)] = local;
+				
+				for (int k = 1; k < kept.size(); k++) {
+					int end = kept.get(k);
+					for (int j = starts[end]; j <= end; j++) {
+						removed[j] = true;
+					}
+					replaceLocals[starts[end]] = local;
+					replaceEnds[starts[end]] = end;
+				}
+				changed = true;
+			}
+		}
+		
+		if (!changed) {
+			return;
+		}
+		
+		VMFunction optimized = new VMFunction(function.getName(), function.getNumLocals());
+		for (int i = 0; i < size; i++) {
+			if (replaceLocals[i] >= 0) {
+				optimized.addPush(Segment.LOCAL, replaceLocals[i]);
+				i = replaceEnds[i];
+				continue;
+			}
+			
+			optimized.add(function, i);
+			if (spillLocals[i] >= 0) {
+				optimized.addPop(Segment.LOCAL, spillLocals[i]);
+				optimized.addPush(Segment.LOCAL, spillLocals[i]);
+			}
+		}
+		function.replaceBody(optimized);
+	}
+	
+	/**
+	 * Gives a value number to the value pushed by each command of the
+	 * block, and finds the first command computing it.
+	 * @param first		The first command of the block.
+	 * @param last		The last command of the block.
+	 */
+	private void numberValues(int first, int last) {
+		HashMap<String, Integer> numbers = new HashMap<String, Integer>();
+		HashMap<String, Integer> versions = new HashMap<String, Integer>();
+		ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+		
+		int memoryVersion = 0;
+		int frameVersion = 0;
+		int pointer1 = UNKNOWN;
+		
+		for (int i = first; i <= last; i++) {
+			valueNumbers[i] = UNKNOWN;
+			starts[i] = -1;
+			Opcode opcode = function.opcode(i);
+			String key = null;
+			
+			if (opcode == Opcode.PUSH) {
+				Segment segment = function.segment(i);
+				String variable = segment + " " + function.index(i);
+				starts[i] = i;
+				
+				switch (segment) {
+					case CONSTANT:
+						key = variable;
+						break;
+					case LOCAL:
+					case ARGUMENT:
+						key = variable + " " + versions.get(variable) + " " + frameVersion;
+						break;
+					case STATIC:
+						key = variable + " " + memoryVersion;
+						break;
+					case THIS:
+						key = variable + " " + versions.get("pointer 0") + " " + memoryVersion;
+						break;
+					case THAT:
+						// an array entry, whose address was popped by the previous command
+						if (pointer1 >= 0 && pointer1 == i - 2 && starts[pointer1] >= 0
+								&& function.accesses(i - 1, Segment.POINTER, 1)) {
+							key = variable + " " + valueNumbers[pointer1] + " " + memoryVersion;
+							starts[i] = starts[pointer1];
+						} else {
+							starts[i] = -1;
+						}
+						break;
+					default:
+						starts[i] = -1;
+				}
+				stack.push(i);
+				
+			} else if (opcode == Opcode.POP) {
+				int value = pop(stack);
+				Segment segment = function.segment(i);
+				String variable = segment + " " + function.index(i);
+				
+				switch (segment) {
+					case LOCAL:
+					case ARGUMENT:
+						versions.put(variable, i);
+						break;
+					case THAT:
+						frameVersion++;
+						memoryVersion++;
+						break;
+					case STATIC:
+					case THIS:
+						memoryVersion++;
+						break;
+					case POINTER:
+						if (function.index(i) == 0) {
+							versions.put(variable, i);
+						} else {
+							pointer1 = value;
+						}
+						break;
+					default:
+				}
+				
+			} else if (opcode == Opcode.ARITHMETIC) {
+				Command command = function.command(i);
+				
+				if (command == Command.NEG || command == Command.NOT) {
+					int operand = pop(stack);
+					if (operand == i - 1 && starts[operand] >= 0) {
+						key = command + " " + valueNumbers[operand];
+						starts[i] = starts[operand];
+					}
+					
+				} else {
+					int right = pop(stack);
+					int left = pop(stack);
+					if (right == i - 1 && left >= 0 && starts[right] == left + 1
+							&& starts[left] >= 0) {
+						int a = valueNumbers[left];
+						int b = valueNumbers[right];
+						if (b < a && command != Command.SUB
+								&& command != Command.GT && command != Command.LT) {
+							a = valueNumbers[right];
+							b = valueNumbers[left];
+						}
+						key = command + " " + a + " " + b;
+						starts[i] = starts[left];
+					}
+				}
+				stack.push(i);
+				
+			} else if (opcode == Opcode.CALL) {
+				for (int arg = 0; arg < function.index(i); arg++) {
+					pop(stack);
+				}
+				memoryVersion++;
+				stack.push(i);
+				
+			} else if (opcode == Opcode.IF_GOTO) {
+				pop(stack);
+			}
+			
+			if (key != null) {
+				Integer number = numbers.get(key);
+				if (number == null) {
+					number = nextValueNumber++;
+					numbers.put(key, number);
+				}
+				valueNumbers[i] = number;
+			} else {
+				valueNumbers[i] = nextValueNumber++;
+				starts[i] = -1;
+			}
+		}
+	}
+	
+	/**
+	 * Pops the index of the command which pushed the top value of the
+	 * stack, or returns UNKNOWN if the value was pushed before the block.
+	 */
+	private int pop(ArrayDeque<Integer> stack) {
+		return stack.isEmpty() ? UNKNOWN : stack.pop();
+	}
+	
+	/**
+	 * Returns the commands of the block which push a value computed by
+	 * at least one other command of the block, grouped by value number.
+	 * The groups are ordered from the longest computation to the shortest,
+	 * so that the largest values are reused first, and each group is in
+	 * the order of the commands.
+	 */
+	private ArrayList<ArrayList<Integer>> findRepeatedValues(int first, int last) {
+		HashMap<Integer, ArrayList<Integer>> groups = new HashMap<Integer, ArrayList<Integer>>();
+		ArrayList<ArrayList<Integer>> repeated = new ArrayList<ArrayList<Integer>>();
+		
+		for (int i = first; i <= last; i++) {
+			if (starts[i] < 0 || starts[i] == i) {
+				continue;
+			}
+			
+			ArrayList<Integer> group = groups.get(valueNumbers[i]);
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				groups.put(valueNumbers[i], group);
+			} else if (group.size() == 1) {
+				repeated.add(group);
+			}
+			group.add(i);
+		}
+		
+		Collections.sort(repeated, new Comparator<ArrayList<Integer>>() {
+			public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+				return length(b.get(0)) - length(a.get(0));
+			}
+		});
+		return repeated;
+	}
+	
+	/**
+	 * Returns the number of commands computing the value pushed by the
+	 * given command.
+	 */
+	private int length(int end) {
+		return end - starts[end] + 1;
+	}
+	
+	private boolean overlapsRemoved(boolean[] removed, int start, int end) {
+		for (int i = start; i <= end; i++) {
+			if (removed[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns true if the commands from start to end can be removed without
+	 * changing the value of pointer 1 seen by a later command of the block.
+	 */
+	private boolean pointerDeadAfter(int start, int end, int last) {
+		boolean setsPointer = false;
+		for (int i = start; i <= end; i++) {
+			setsPointer |= function.accesses(i, Segment.POINTER, 1);
+		}
+		if (!setsPointer) {
+			return true;
+		}
+		
+		for (int i = end + 1; i <= last; i++) {
+			if (function.opcode(i) == Opcode.POP
+					&& function.accesses(i, Segment.POINTER, 1)) {
+				return true;
+			}
+			if (function.accesses(i, Segment.THAT)
+					|| function.accesses(i, Segment.POINTER, 1)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+}
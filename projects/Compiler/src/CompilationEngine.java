@@ -2,6 +2,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
 
 
 /**
@@ -13,6 +14,25 @@ import java.util.Arrays;
  *  - varName
  *  - statement
  *  - subroutineCall
+ * 
+ * The compile methods build the abstract syntax tree of the class,
+ * resolving variables with the SymbolTable as they go. The statement
+ * and expression methods return the index of the node they build.
+ * Once the class has been parsed it is lowered to VM code by
+ * a CodeGenerator.
+ *
+ * compileClass compiles the subroutines of a class in parallel: once the
+ * class level declarations have been parsed, the rest of the class is
+ * split into the source code of each subroutine, and each is parsed and
+ * lowered by a SubroutineUnit on the fork-join common pool. A unit has its
+ * own tokenizer, subroutine scope, code generator and VMWriter, and only
+ * reads the class scope. The functions generated are then optimized and
+ * written in source order, so the output does not depend on the order in
+ * which the units finish.
+ *
+ * Each node is given the source position of the token which starts it,
+ * or of its operator for a binary operation, so that the code generated
+ * for it can be traced back to the source.
  */
 public class CompilationEngine {
 	
@@ -28,70 +48,145 @@ public class CompilationEngine {
 												Arrays.asList(
 					Keyword.TRUE, Keyword.FALSE, Keyword.NULL, Keyword.THIS));
 	
+	private static final int NONE = SubroutineAst.NONE;
+	
+	private static final int INITIAL_FRAMES = 16;
+	
+	/**
+	 * The kinds of frame on the stack of partly parsed terms and
+	 * expressions:
+	 *  - EXPRESSION	a complete expression is being parsed
+	 *  - TERM			a single term is being parsed, such as the call of
+	 *  				a do statement
+	 *  - PAREN			an expression in brackets
+	 *  - UNARY			the operand of a unary operator
+	 *  - BINARY		the right operand of a binary operator
+	 *  - ARRAY			the index of an array entry
+	 *  - CALL			an argument of a subroutine call
+	 */
+	private enum Frame { EXPRESSION, TERM, PAREN, UNARY, BINARY, ARRAY, CALL }
+	
 	private JackTokenizer tokenizer;
 	private SymbolTable table;
 	private VMWriter writer;
+	private CodeGenerator generator;
 	
 	private String className;
 	private String currentSubroutineName;
 	
-	private int ifCounter;
-	private int whileCounter;
+	private ClassAst classAst;
+	private SubroutineAst ast;
+	
+	private Frame[] frames = new Frame[INITIAL_FRAMES];
+	private int[] frameValues = new int[INITIAL_FRAMES];
+	private int[] frameFirsts = new int[INITIAL_FRAMES];
+	private int[] frameSeconds = new int[INITIAL_FRAMES];
+	private int[] frameLines = new int[INITIAL_FRAMES];
+	private int[] frameColumns = new int[INITIAL_FRAMES];
+	private int numFrames = 0;
+	
+	/** The source position of the term or operator being parsed. */
+	private int line;
+	private int column;
 	
 	/**
 	 * Creates a new compilation engine which uses input
-	 * from the given JackTokeniser, and writes output to
-	 * the given .xml file.
-	 * Each compilexxx method writes the appropriate xml for that construct
-	 * to the output file.
+	 * from the given JackTokeniser, and writes VM code to
+	 * the given .vm file.
 	 * @param tokenizer		The JackTokenizer to read input from.
-	 * @param outputFile	The xml file to write the parsed output to.
+	 * @param outputFile	The vm file to write the compiled output to.
 	 * @throws FileNotFoundException
 	 */
 	public CompilationEngine(JackTokenizer tokenizer, File outputFile) throws FileNotFoundException {
 		this.tokenizer = tokenizer;
 		this.table = new SymbolTable();
 		this.writer = new VMWriter(outputFile);
+		this.generator = new CodeGenerator(writer);
 	}
 	
 	/**
-	 * Closes the VMWriter used to write output to the vm file.
-	 * Should be called once the compilation is finished.
+	 * Creates a compilation engine for a single subroutine of a class,
+	 * which writes its output to the writer of the given code generator.
+	 * @param tokenizer		The JackTokenizer for the subroutine's source code.
+	 * @param table			The SymbolTable for the subroutine, whose class
+	 * 						scope has been filled in.
+	 * @param generator		The code generator to lower the subroutine with.
+	 * @param classAst		The class the subroutine belongs to.
 	 */
-	public void close() {
-		writer.closeOutputFile();
+	private CompilationEngine(JackTokenizer tokenizer, SymbolTable table,
+								CodeGenerator generator, ClassAst classAst) {
+		this.tokenizer = tokenizer;
+		this.table = table;
+		this.generator = generator;
+		this.className = classAst.getName();
+		this.classAst = classAst;
 	}
 	
 	/**
-	 * Takes a string representation of a binary operator
-	 * and returns the corresponding VM command.
-	 * @param operator	A String representation of the binary operator.
+	 * Enables or disables inline expansion of the given intrinsic
+	 * subroutine by the code generator.
+	 * @param name		The full name of the intrinsic, e.g. Math.multiply.
+	 * @param enabled	Whether calls to the intrinsic should be expanded inline.
 	 */
-	private Command commandBinary(String operator) {
-		switch (operator) {
-			case "+":		return Command.ADD;
-			case "-": 		return Command.SUB;
-			case "=":		return Command.EQ;
-			case "&lt;":	return Command.LT;
-			case "&gt;":	return Command.GT;
-			case "&amp;":	return Command.AND;
-			case "|":		return Command.OR;
-			default:
-				throw new RuntimeException("Invalid binary operator");
-		}
+	public void setIntrinsicEnabled(String name, boolean enabled) {
+		generator.setIntrinsicEnabled(name, enabled);
+	}
+	
+	/**
+	 * Enables or disables inline expansion of all the intrinsics.
+	 * @param enabled	Whether intrinsics should be expanded inline.
+	 */
+	public void setIntrinsicsEnabled(boolean enabled) {
+		generator.setIntrinsicsEnabled(enabled);
+	}
+	
+	/**
+	 * Sets the pass manager used to optimize each VM function
+	 * before it is written to the vm file.
+	 * @param passManager	The pass manager to use, or null for none.
+	 */
+	public void setPassManager(PassManager passManager) {
+		writer.setPassManager(passManager);
+	}
+	
+	/**
+	 * Sets the translator used to translate each VM function to Hack
+	 * assembly as soon as it has been written.
+	 * @param translator	The translator to use, or null for none.
+	 */
+	public void setTranslator(VMTranslator translator) {
+		writer.setTranslator(translator);
+	}
+	
+	/**
+	 * Sets the source map which records the source positions of the
+	 * commands of each VM function as it is written.
+	 * @param sourceMap		The source map to use, or null for none.
+	 */
+	public void setSourceMap(SourceMap sourceMap) {
+		writer.setSourceMap(sourceMap);
 	}
 	
 	/**
-	 * Takes a string representation of a unary operator
-	 * and returns the corresponding VM command.
-	 * @param operator	A String representation of the unary operator.
+	 * Closes the VMWriter used to write output to the vm file.
+	 * Should be called once the compilation is finished.
+	 */
+	public void close() {
+		writer.closeOutputFile();
+	}
+	
+	/**
+	 * Takes a string representation of an operator, using the string
+	 * representation for special characters, and returns the operator
+	 * character stored in BINARY and UNARY nodes.
+	 * @param operator	A String representation of the operator.
 	 */
-	private Command commandUnary(String operator) {
+	private int operatorChar(String operator) {
 		switch (operator) {
-			case "-": 		return Command.NEG;
-			case "~":		return Command.NOT;
-			default:
-				throw new RuntimeException("Invalid unary operator");
+			case "&amp;":	return '&';
+			case "&lt;":	return '<';
+			case "&gt;":	return '>';
+			default:		return operator.charAt(0);
 		}
 	}
 	
@@ -113,17 +208,37 @@ public class CompilationEngine {
 	}
 	
 	/**
-	 * Writes the appropriate VM commands to push a new string
-	 * with the value of the given string constant to the stack.
-	 * @param string	The string value to push to the stack.
+	 * Returns a VARIABLE node for the variable with the given name,
+	 * which must be defined in the current scope.
+	 * @param name	The name of the variable.
+	 * @return		The index of the new node.
 	 */
-	private void pushStringConstant(String string) {
-		writer.writePush(Segment.CONSTANT, string.length());
-		writer.writeCall("String.new", 1);
-		for (int c: string.toCharArray()) {
-			writer.writePush(Segment.CONSTANT, c);
-			writer.writeCall("String.appendChar", 2);
+	private int variableNode(String name) {
+		Kind kind = table.kindOf(name);
+		if (kind == null) {
+			throw new RuntimeException(String.format(
+						"%s not defined in current scope",
+						name));
 		}
+		
+		return ast.addNode(NodeKind.VARIABLE, segmentFromKind(kind).ordinal(),
+							table.indexOf(name), NONE, NONE);
+	}
+	
+	/**
+	 * Returns a CALL node for a call to the given subroutine.
+	 * @param name		The full name of the subroutine called.
+	 * @param firstArg	The first argument, or NONE if there are none.
+	 * @return			The index of the new node.
+	 */
+	private int callNode(String name, int firstArg) {
+		int numArgs = 0;
+		for (int arg = firstArg; arg != NONE; arg = ast.next(arg)) {
+			numArgs++;
+		}
+		
+		return ast.addNode(NodeKind.CALL, ast.addString(name),
+							firstArg, numArgs, NONE);
 	}
 	
 	/**
@@ -144,29 +259,21 @@ public class CompilationEngine {
 	}
 	
 	/**
-	 * Consumes one of the four keyword constants, writing the VM command
-	 * to push the appropriate value and advancing the tokenizer past
-	 * the keyword.
+	 * Consumes one of the four keyword constants, advancing the tokenizer
+	 * past the keyword, and returns a KEYWORD_CONST node for it.
+	 * @return	The index of the new node.
 	 */
-	private void consumeKeywordConstant() {		
+	private int consumeKeywordConstant() {		
 		Keyword keyword = tokenizer.keyword();
 		
-		if (keyword == Keyword.THIS) {
-			writer.writePush(Segment.POINTER, 0);
-			
-		} else if (keyword == Keyword.NULL || keyword == Keyword.FALSE) {
-			writer.writePush(Segment.CONSTANT, 0);
-			
-		} else if (keyword == Keyword.TRUE) {
-			writer.writePush(Segment.CONSTANT, 0);
-			writer.writeArithmetic(Command.NOT);
-			
-		} else {
+		if (!KEYWORD_CONSTANTS.contains(keyword)) {
 			throw new RuntimeException("Expected keyword constant, got "
 										+ keyword.toString());
 		}
 		
 		tokenizer.advance();
+		return ast.addNode(NodeKind.KEYWORD_CONST, keyword.ordinal(),
+							NONE, NONE, NONE);
 	}
 	
 	/**
@@ -277,17 +384,60 @@ public class CompilationEngine {
 	}
 	
 	/**
-	 * Compiles a complete class.
+	 * Compiles a complete class, compiling its subroutines in parallel.
 	 * Should be called to start the compilation process once the
 	 * compilation engine has been created.
 	 */
 	public void compileClass() {
+		parseClassVarDecs();
+		
+		if (!atSubroutineDec()) {
+			return;
+		}
+		
+		ArrayList<SubroutineUnit> units = new ArrayList<SubroutineUnit>();
+		for (JackTokenizer subroutine: tokenizer.splitSubroutines()) {
+			SubroutineUnit unit = new SubroutineUnit(subroutine, table.subroutineScope(),
+														generator.copy(new VMWriter()));
+			unit.fork();
+			units.add(unit);
+		}
+		
+		for (SubroutineUnit unit: units) {
+			writer.writeFunctions(unit.join());
+		}
+	}
+	
+	/**
+	 * Parses a complete class, returning its abstract syntax tree
+	 * without generating any code.
+	 * @return	The abstract syntax tree of the class.
+	 */
+	public ClassAst parseClass() {
+		parseClassVarDecs();
+		
+		while (atSubroutineDec()) {
+			classAst.addSubroutine(compileSubroutineDec());
+		}
+
+//		consumeSymbol("}");
+		return classAst;
+	}
+	
+	/**
+	 * Parses the start of a class up to its first subroutine declaration,
+	 * creating its ClassAst and adding its static and field variables to
+	 * the symbol table.
+	 */
+	private void parseClassVarDecs() {
 		tokenizer.advance();
 		
 		consumeKeyword(Keyword.CLASS);
 		consumeClassName();
 		consumeSymbol("{");
 		
+		classAst = new ClassAst(className);
+		
 		while (tokenizer.tokenType() == TokenType.KEYWORD
 				&& (tokenizer.keyword() == Keyword.STATIC
 				|| tokenizer.keyword() == Keyword.FIELD)) {
@@ -295,16 +445,52 @@ public class CompilationEngine {
 			compileClassVarDec();
 		}
 		
-		while (tokenizer.tokenType() == TokenType.KEYWORD
+		classAst.setNumFields(table.varCount(Kind.FIELD));
+	}
+	
+	/**
+	 * Returns true if the current token starts a subroutine declaration.
+	 */
+	private boolean atSubroutineDec() {
+		return tokenizer.tokenType() == TokenType.KEYWORD
 				&& (tokenizer.keyword() == Keyword.CONSTRUCTOR
 				|| tokenizer.keyword() == Keyword.FUNCTION
-				|| tokenizer.keyword() == Keyword.METHOD)) {
-			
-			compileSubroutineDec();
+				|| tokenizer.keyword() == Keyword.METHOD);
+	}
+	
+	/**
+	 * Parses and lowers a single subroutine of the class, with its own
+	 * compilation engine, and returns the functions generated.
+	 */
+	private class SubroutineUnit extends RecursiveTask<ArrayList<VMFunction>> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private JackTokenizer tokenizer;
+		private SymbolTable table;
+		private CodeGenerator generator;
+		
+		/**
+		 * @param tokenizer		The tokenizer for the subroutine declaration.
+		 * @param table			The SymbolTable for the subroutine.
+		 * @param generator		The code generator for the subroutine, which
+		 * 						writes to a VMWriter which keeps its output
+		 * 						in memory.
+		 */
+		public SubroutineUnit(JackTokenizer tokenizer, SymbolTable table, CodeGenerator generator) {
+			this.tokenizer = tokenizer;
+			this.table = table;
+			this.generator = generator;
 		}
 		
-//		consumeSymbol("}");
+		protected ArrayList<VMFunction> compute() {
+			CompilationEngine engine = new CompilationEngine(tokenizer, table, generator, classAst);
+			engine.tokenizer.advance();
+			generator.generateSubroutine(classAst, engine.compileSubroutineDec());
+			return generator.getWriter().getFunctions();
 		}
+		
+	}
 	
 	/**
 	 * Compiles a single static variable declaration
@@ -337,12 +523,12 @@ public class CompilationEngine {
 	/**
 	 * Compiles a complete method, function or constructor,
 	 * including header and body.
+	 * @return	The SubroutineAst of the subroutine.
 	 */
-	private void compileSubroutineDec() {		
+	private SubroutineAst compileSubroutineDec() {		
 		table.startSubroutine();
-		ifCounter = 0;
-		whileCounter = 0;
-				
+		
+		mark();
 		Keyword subroutineType = tokenizer.keyword();
 		tokenizer.advance();
 		
@@ -358,11 +544,18 @@ public class CompilationEngine {
 		}
 		
 		consumeSubroutineName();
+		ast = new SubroutineAst(currentSubroutineName, subroutineType);
+		ast.setDeclarationPosition(line, column);
+		
 		consumeSymbol("(");
 		compileParameterList();
 		consumeSymbol(")");
+		ast.setNumArgs(table.varCount(Kind.ARG));
+		
+		compileSubroutineBody();
 		
-		compileSubroutineBody(subroutineType);
+		ast.trim();
+		return ast;
 	}
 	
 	/**
@@ -391,9 +584,8 @@ public class CompilationEngine {
 	
 	/**
 	 * Compiles the body of a subroutine.
-	 * @param One of FUNCTION, METHOD or CONSTRUCTOR.
 	 */
-	private void compileSubroutineBody(Keyword subroutineType) {		
+	private void compileSubroutineBody() {		
 		consumeSymbol("{");
 		
 		while (tokenizer.tokenType() == TokenType.KEYWORD
@@ -401,20 +593,8 @@ public class CompilationEngine {
 			compileVarDec();
 		}
 		
-		writer.writeFunction(className + "." + currentSubroutineName,
-								table.varCount(Kind.VAR));
-		
-		if (subroutineType == Keyword.METHOD) {			
-			writer.writePush(Segment.ARGUMENT, 0);
-			writer.writePop(Segment.POINTER, 0);
-			
-		} else if (subroutineType == Keyword.CONSTRUCTOR) {
-			writer.writePush(Segment.CONSTANT, table.varCount(Kind.FIELD));
-			writer.writeCall("Memory.alloc", 1);
-			writer.writePop(Segment.POINTER, 0);
-		}
-		
-		compileStatements();
+		ast.setNumLocals(table.varCount(Kind.VAR));
+		ast.setBody(compileStatements());
 		consumeSymbol("}");
 	}
 	
@@ -440,8 +620,11 @@ public class CompilationEngine {
 	/**
 	 * Compiles a sequence of zero or more statements,
 	 * not including the enclosing curly braces.
+	 * @return	The first statement of the sequence, or NONE if it is empty.
 	 */
-	private void compileStatements() {
+	private int compileStatements() {
+		int first = NONE;
+		int last = NONE;
 		
 		while (tokenizer.tokenType() == TokenType.KEYWORD
 				&& (tokenizer.keyword() == Keyword.LET
@@ -450,267 +633,286 @@ public class CompilationEngine {
 					|| tokenizer.keyword() == Keyword.DO
 					|| tokenizer.keyword() == Keyword.RETURN)) {
 			
+			mark();
+			int statementLine = line;
+			int statementColumn = column;
+			
+			int statement;
 			if (tokenizer.keyword() == Keyword.LET) {
-				compileLet();
+				statement = compileLet();
 			} else if (tokenizer.keyword() == Keyword.IF) {
-				compileIf();
+				statement = compileIf();
 			} else if (tokenizer.keyword() == Keyword.WHILE) {
-				compileWhile();
+				statement = compileWhile();
 			} else if (tokenizer.keyword() == Keyword.DO) {
-				compileDo();
-			} else if (tokenizer.keyword() == Keyword.RETURN) {
-				compileReturn();
+				statement = compileDo();
+			} else {
+				statement = compileReturn();
+			}
+			ast.setNodePosition(statement, statementLine, statementColumn);
+			
+			if (first == NONE) {
+				first = statement;
 			}
+			ast.setNext(last, statement);
+			last = statement;
 		}
 		
+		return first;
 	}
 	
 	/**
 	 * Compiles a let statement.
+	 * @return	The LET node.
 	 */
-	private void compileLet() {
+	private int compileLet() {
 		consumeKeyword(Keyword.LET);
 		
 		String variableName = tokenizer.identifier();
 		tokenizer.advance();
 		
+		int target = variableNode(variableName);
+		
 		if (tokenizer.tokenType() == TokenType.SYMBOL
 				&& tokenizer.symbol().equals("[")) {
 			// variableName is an array reference
-			
-			writer.writePush(segmentFromKind(table.kindOf(variableName)),
-								table.indexOf(variableName));
-			
 			consumeSymbol("[");
-			compileExpression();
+			int index = compileExpression();
 			consumeSymbol("]");
 			
-			writer.writeArithmetic(Command.ADD);
-			
-			consumeSymbol("=");
-			compileExpression();
-			consumeSymbol(";");
-			
-			writer.writePop(Segment.TEMP, 0);
-			writer.writePop(Segment.POINTER, 1);
-			writer.writePush(Segment.TEMP, 0);
-			writer.writePop(Segment.THAT, 0);
-			
-		} else {
-			consumeSymbol("=");
-			compileExpression();
-			consumeSymbol(";");
-			
-			writer.writePop(segmentFromKind(table.kindOf(variableName)),
-							table.indexOf(variableName));
+			target = ast.addNode(NodeKind.ARRAY_ENTRY, 0, target, index, NONE);
 		}
+		
+		consumeSymbol("=");
+		int value = compileExpression();
+		consumeSymbol(";");
+		
+		return ast.addNode(NodeKind.LET, 0, target, value, NONE);
 	}
 	
 	/**
 	 * Compiles an if statement, possibly including an
 	 * else clause.
+	 * @return	The IF node.
 	 */
-	private void compileIf() {		
-		String trueLabel = "IF_TRUE" + ifCounter;
-		String falseLabel = "IF_FALSE" + ifCounter;
-		String endLabel = "IF_END" + ifCounter;
-		ifCounter++;
-		
+	private int compileIf() {		
 		consumeKeyword(Keyword.IF);
 		
 		consumeSymbol("(");
-		compileExpression();		
+		int condition = compileExpression();		
 		consumeSymbol(")");
 		
-		writer.writeIf(trueLabel);
-		writer.writeGoto(falseLabel);
-		writer.writeLabel(trueLabel);
-		
 		consumeSymbol("{");
-		compileStatements();
+		int ifClause = compileStatements();
 		consumeSymbol("}");
 		
 		if (tokenizer.tokenType() == TokenType.KEYWORD
 				&& tokenizer.keyword() == Keyword.ELSE) {
 			
-			writer.writeGoto(endLabel);
-			writer.writeLabel(falseLabel);
-			
 			consumeKeyword(Keyword.ELSE);
 			consumeSymbol("{");
-			compileStatements();
+			int elseClause = compileStatements();
 			consumeSymbol("}");
 			
-			writer.writeLabel(endLabel);
+			return ast.addNode(NodeKind.IF, 1, condition, ifClause, elseClause);
 			
 		} else {
-			writer.writeLabel(falseLabel);
+			return ast.addNode(NodeKind.IF, 0, condition, ifClause, NONE);
 		}
 		
 	}
 	
 	/**
 	 * Compiles a while statement.
+	 * @return	The WHILE node.
 	 */
-	private void compileWhile() {
-		String expLabel = "WHILE_EXP" + whileCounter;
-		String endLabel = "WHILE_END" + whileCounter;
-		whileCounter++;
-		
+	private int compileWhile() {
 		consumeKeyword(Keyword.WHILE);
 		
-		writer.writeLabel(expLabel);
-		
 		consumeSymbol("(");
-		compileExpression();
+		int condition = compileExpression();
 		consumeSymbol(")");
 		
-		writer.writeArithmetic(Command.NOT);
-		writer.writeIf(endLabel);
-		
 		consumeSymbol("{");
-		compileStatements();
+		int body = compileStatements();
 		consumeSymbol("}");
 		
-		writer.writeGoto(expLabel);
-		writer.writeLabel(endLabel);
+		return ast.addNode(NodeKind.WHILE, 0, condition, body, NONE);
 	}
 	
 	/**
 	 * Compiles a do statement.
+	 * @return	The DO node.
 	 */
-	private void compileDo() {
+	private int compileDo() {
 		consumeKeyword(Keyword.DO);
 		
+		mark();
 		String identifier = tokenizer.identifier();
 		tokenizer.advance();
 		
-		String className;
-		String subroutineName;
-		int numArgs = 0;
-		
-		if (tokenizer.symbol().equals(".")) {
-			if (table.kindOf(identifier) == null) {
-				// identifier is a class name, so subroutine is a function or
-				// constructor in this class or another
-				className = identifier;
-
-			} else {
-				// identifier is an object name (some type of variable)
-				// so subroutine must be a method
-				className = table.typeOf(identifier);
-				writer.writePush(segmentFromKind(table.kindOf(identifier)),
-									table.indexOf(identifier));
-				numArgs++;
-			}
-			
-			consumeSymbol(".");
-			
-			subroutineName = tokenizer.identifier();
-			tokenizer.advance();
-			
-		} else {
-			// identifier is the name of a method in the current class
-			// method is called on this
-			className = this.className;
-			subroutineName = identifier;
-			
-			writer.writePush(Segment.POINTER, 0);
-			numArgs++;
-		}
-		
-		consumeSymbol("(");
-		numArgs += compileExpressionList();
-		consumeSymbol(")");
+		pushFrame(Frame.TERM, NONE, NONE, NONE);
+		int call = parse(startSubroutineCall(identifier));
 		consumeSymbol(";");
 		
-		writer.writeCall(className + "." + subroutineName, numArgs);
-		writer.writePop(Segment.TEMP, 0);
+		return ast.addNode(NodeKind.DO, 0, call, NONE, NONE);
 	}
 	
 	/**
 	 * Compiles a return statement.
+	 * @return	The RETURN node.
 	 */
-	private void compileReturn() {		
+	private int compileReturn() {		
 		consumeKeyword(Keyword.RETURN);
 		
+		int value = NONE;
 		if (!(tokenizer.tokenType() == TokenType.SYMBOL
 				&& tokenizer.symbol().equals(";"))) {
 			// not a void subroutine
-			compileExpression();
-			
-		} else {
-			// void subroutine
-			writer.writePush(Segment.CONSTANT, 0);
+			value = compileExpression();
 		}
 		
-		writer.writeReturn();
-		
 		consumeSymbol(";");
+		
+		return ast.addNode(NodeKind.RETURN, 0, value, NONE, NONE);
 	}
 	
 	/**
-	 * Compiles an expression.
+	 * Compiles an expression. Operators are applied strictly from left
+	 * to right, so the tree built leans to the left.
+	 * @return	The root node of the expression.
 	 */
-	private void compileExpression() {
-		compileTerm();
-		
-		while (tokenizer.tokenType() == TokenType.SYMBOL
-				&& OPS.contains(tokenizer.symbol())) {
+	private int compileExpression() {
+		pushFrame(Frame.EXPRESSION, NONE, NONE, NONE);
+		return parse(NONE);
+	}
+	
+	/**
+	 * Parses terms and expressions until the innermost EXPRESSION or TERM
+	 * frame is complete, using the frame stack in place of recursion, so
+	 * that the Java stack used does not grow with the nesting of the
+	 * expression.
+	 * @param term	A term which has just been parsed, or NONE to start by
+	 * 				parsing a term.
+	 * @return		The root node of the expression or term.
+	 */
+	private int parse(int term) {
+		while (true) {
+			if (term == NONE) {
+				term = startTerm();
+				continue;
+			}
 			
-			String operator = tokenizer.symbol();
-			tokenizer.advance();
+			// a term is complete, so apply any unary operators before it
+			// and the binary operator before those
+			while (frames[numFrames - 1] == Frame.UNARY) {
+				restorePosition(numFrames - 1);
+				term = ast.addNode(NodeKind.UNARY, popFrame(), term, NONE, NONE);
+			}
 			
-			compileTerm();
+			if (frames[numFrames - 1] == Frame.TERM) {
+				popFrame();
+				return term;
+			}
+			
+			if (frames[numFrames - 1] == Frame.BINARY) {
+				int operator = frameValues[numFrames - 1];
+				int left = frameFirsts[numFrames - 1];
+				restorePosition(numFrames - 1);
+				popFrame();
+				term = ast.addNode(NodeKind.BINARY, operator, left, term, NONE);
+			}
+			
+			if (tokenizer.tokenType() == TokenType.SYMBOL
+					&& OPS.contains(tokenizer.symbol())) {
+				mark();
+				pushFrame(Frame.BINARY, operatorChar(tokenizer.symbol()), term, NONE);
+				tokenizer.advance();
+				term = NONE;
+				continue;
+			}
 			
-			if (operator.equals("*")) {
-				writer.writeCall("Math.multiply", 2);
+			// the expression is complete, so finish what it is part of
+			int top = numFrames - 1;
+			switch (frames[top]) {
+				case EXPRESSION:
+					popFrame();
+					return term;
 				
-			} else if (operator.equals("/")) {
-				writer.writeCall("Math.divide", 2);
+				case PAREN:
+					popFrame();
+					consumeSymbol(")");
+					break;
 				
-			} else {
-				writer.writeArithmetic(commandBinary(operator));
+				case ARRAY:
+					consumeSymbol("]");
+					restorePosition(top);
+					term = ast.addNode(NodeKind.ARRAY_ENTRY, 0, popFrame(), term, NONE);
+					break;
+				
+				case CALL:
+					if (frameFirsts[top] == NONE) {
+						frameFirsts[top] = term;
+					}
+					ast.setNext(frameSeconds[top], term);
+					frameSeconds[top] = term;
+					
+					if (tokenizer.tokenType() == TokenType.SYMBOL
+							&& tokenizer.symbol().equals(",")) {
+						consumeSymbol(",");
+						term = NONE;
+					} else {
+						consumeSymbol(")");
+						int firstArg = frameFirsts[top];
+						restorePosition(top);
+						term = callNode(ast.string(popFrame()), firstArg);
+					}
+					break;
+				
+				default:
+					throw new RuntimeException("Invalid expression frame " + frames[top]);
 			}
-			
 		}
-		
 	}
 	
-	
 	/**
-	 * Compiles a term of an expression.
+	 * Starts parsing a term of an expression.
 	 * If the current token is an identifier, it distinguishes
 	 * between a variable, an array entry, or a subroutine call.
 	 * This is done by checking if the next token is "[", "(", or ".".
 	 * Any other token is not part of this term, and should not
 	 * be advanced over.
+	 * @return	The root node of the term if it is complete, or NONE if a
+	 * 			frame has been pushed for a term which contains an
+	 * 			expression or another term, which should be parsed next.
 	 */
-	private void compileTerm() {		
+	private int startTerm() {
+		mark();
 		if (tokenizer.tokenType() == TokenType.INT_CONSTANT) {
-			writer.writePush(Segment.CONSTANT, tokenizer.intValue());
+			int value = tokenizer.intValue();
 			tokenizer.advance();
+			return ast.addNode(NodeKind.INT_CONST, value, NONE, NONE, NONE);
 			
 		} else if (tokenizer.tokenType() == TokenType.STRING_CONSTANT) {
-			pushStringConstant(tokenizer.stringValue());
+			int string = ast.addString(tokenizer.stringValue());
 			tokenizer.advance();
+			return ast.addNode(NodeKind.STRING_CONST, string, NONE, NONE, NONE);
 			
 		} else if (tokenizer.tokenType() == TokenType.KEYWORD
 				&& KEYWORD_CONSTANTS.contains(tokenizer.keyword())) {
-			consumeKeywordConstant();
+			return consumeKeywordConstant();
 			
 		} else if (tokenizer.tokenType() == TokenType.SYMBOL
 				&& tokenizer.symbol().equals("(")) {
 			consumeSymbol("(");
-			compileExpression();
-			consumeSymbol(")");
+			pushFrame(Frame.PAREN, NONE, NONE, NONE);
+			return NONE;
 			
 		} else if (tokenizer.tokenType() == TokenType.SYMBOL
 				&& UNARY_OPS.contains(tokenizer.symbol())) {
-			String operator = tokenizer.symbol();
+			pushFrame(Frame.UNARY, operatorChar(tokenizer.symbol()), NONE, NONE);
 			tokenizer.advance();
-			compileTerm();
-			writer.writeArithmetic(commandUnary(operator));
+			return NONE;
 			
 		} else if (tokenizer.tokenType() == TokenType.IDENTIFIER) {
 			String identifier = tokenizer.identifier();
@@ -719,96 +921,148 @@ public class CompilationEngine {
 			if (tokenizer.tokenType() == TokenType.SYMBOL
 				&& tokenizer.symbol().equals("[")) {
 				// identifier is an array reference
-				writer.writePush(segmentFromKind(table.kindOf(identifier)),
-									table.indexOf(identifier));				
+				int array = variableNode(identifier);
 				consumeSymbol("[");
-				compileExpression();
-				consumeSymbol("]");
-				
-				writer.writeArithmetic(Command.ADD);
-				writer.writePop(Segment.POINTER, 1);
-				writer.writePush(Segment.THAT, 0);
+				pushFrame(Frame.ARRAY, array, NONE, NONE);
+				return NONE;
 				
 			} else if (tokenizer.tokenType() == TokenType.SYMBOL
-				&& tokenizer.symbol().equals("(")) {
-				// identifier is the name of a method in the current class,
-				// so the object it is called on is this.
-				writer.writePush(Segment.POINTER, 0);
-				consumeSymbol("(");
-				int numArgs = compileExpressionList() + 1;
-				consumeSymbol(")");
-				
-				writer.writeCall(className + "." + identifier, numArgs);
-				
-			} else if (tokenizer.tokenType() == TokenType.SYMBOL
-					&& tokenizer.symbol().equals(".")) {
-				
-				if (table.kindOf(identifier) == null) {
-					//identifier is a class name
-					consumeSymbol(".");
-					String subroutineName = tokenizer.identifier();
-					tokenizer.advance();
-					consumeSymbol("(");
-					int numArgs = compileExpressionList();
-					consumeSymbol(")");
-					
-					writer.writeCall(identifier + "." + subroutineName, numArgs);
-					
-				} else {
-					//identifier is an object name
-					String className = table.typeOf(identifier);
-					writer.writePush(segmentFromKind(table.kindOf(identifier)),
-							table.indexOf(identifier));
-					
-					consumeSymbol(".");
-					
-					String subroutineName = tokenizer.identifier();
-					tokenizer.advance();
-					
-					consumeSymbol("(");
-					int numArgs = compileExpressionList() + 1;
-					consumeSymbol(")");
-					
-					writer.writeCall(className + "." + subroutineName, numArgs);
-				}
+				&& (tokenizer.symbol().equals("(")
+					|| tokenizer.symbol().equals("."))) {
+				return startSubroutineCall(identifier);
 				
 			} else {
 				// identifier just a single variable name
-				writer.writePush(segmentFromKind(table.kindOf(identifier)),
-									table.indexOf(identifier));
+				return variableNode(identifier);
 			}
+			
+		} else {
+			throw new RuntimeException("Invalid syntax, expected term got "
+										+ tokenizer.tokenValue());
 		}
 		
 	}
 	
 	/**
-	 * Compiles a (possibly empty) comma-separated list of
-	 * expressions.
-	 * Returns the number of expressions in the list, to be used
-	 * when determined how many arguments are passed to a subroutine call.
-	 * Produces vm code which will result in the results of each expression
-	 * being placed on the stack in the order in which they occur in the list.
-	 * @return The number of expressions in the list.
+	 * Starts parsing a subroutine call, whose first identifier has
+	 * already been consumed, up to and including the opening bracket of
+	 * its argument list.
+	 * If the call is of a method, the object it is called on is
+	 * included as the first argument of the CALL node.
+	 * @param identifier	The first identifier of the call, which is
+	 * 						either the subroutine name, or the name of a
+	 * 						class or object.
+	 * @return				The CALL node if the call has no arguments,
+	 * 						otherwise NONE, having pushed a CALL frame for
+	 * 						the arguments to be parsed next.
 	 */
-	private int compileExpressionList() {
-		int numExpressions = 0;
+	private int startSubroutineCall(String identifier) {
+		String className;
+		String subroutineName;
+		int object = NONE;
 		
-		if (!(tokenizer.tokenType() == TokenType.SYMBOL
-				&& tokenizer.symbol().equals(")"))) {
-			
-			compileExpression();
-			numExpressions++;
-			
-			while (tokenizer.tokenType() == TokenType.SYMBOL
-					&& tokenizer.symbol().equals(",")) {
+		if (tokenizer.symbol().equals(".")) {
+			if (table.kindOf(identifier) == null) {
+				// identifier is a class name, so subroutine is a function or
+				// constructor in this class or another
+				className = identifier;
 				
-				consumeSymbol(",");
-				compileExpression();
-				numExpressions++;
+			} else {
+				// identifier is an object name (some type of variable)
+				// so subroutine must be a method
+				className = table.typeOf(identifier);
+				object = variableNode(identifier);
 			}
+			
+			consumeSymbol(".");
+			
+			subroutineName = tokenizer.identifier();
+			tokenizer.advance();
+			
+		} else {
+			// identifier is the name of a method in the current class
+			// method is called on this
+			className = this.className;
+			subroutineName = identifier;
+			
+			object = ast.addNode(NodeKind.KEYWORD_CONST, Keyword.THIS.ordinal(),
+									NONE, NONE, NONE);
+		}
+		
+		String name = className + "." + subroutineName;
+		consumeSymbol("(");
+		
+		if (tokenizer.tokenType() == TokenType.SYMBOL
+				&& tokenizer.symbol().equals(")")) {
+			consumeSymbol(")");
+			return callNode(name, object);
 		}
 		
-		return numExpressions;
+		pushFrame(Frame.CALL, ast.addString(name), object, object);
+		return NONE;
+	}
+	
+	/**
+	 * Takes the position of the current token as the position of the
+	 * nodes added next.
+	 */
+	private void mark() {
+		line = tokenizer.line();
+		column = tokenizer.column();
+		if (ast != null) {
+			ast.setPosition(line, column);
+		}
+	}
+	
+	/**
+	 * Goes back to the position of the given frame, which was current
+	 * when the frame was pushed, to add the node which completes it.
+	 * @param frame		The position of the frame on the stack.
+	 */
+	private void restorePosition(int frame) {
+		line = frameLines[frame];
+		column = frameColumns[frame];
+		ast.setPosition(line, column);
+	}
+	
+	/**
+	 * Pushes a frame for a partly parsed term or expression, at the
+	 * current position.
+	 * The frame stack only grows when it is full, so parsing does not
+	 * allocate anything per level of nesting.
+	 * @param frame		The kind of the frame.
+	 * @param value		The operator, array or subroutine name string of
+	 * 					the frame.
+	 * @param first		The left operand of a BINARY frame, or the first
+	 * 					argument of a CALL frame.
+	 * @param second	The last argument of a CALL frame.
+	 */
+	private void pushFrame(Frame frame, int value, int first, int second) {
+		if (numFrames == frames.length) {
+			frames = Arrays.copyOf(frames, numFrames * 2);
+			frameValues = Arrays.copyOf(frameValues, numFrames * 2);
+			frameFirsts = Arrays.copyOf(frameFirsts, numFrames * 2);
+			frameSeconds = Arrays.copyOf(frameSeconds, numFrames * 2);
+			frameLines = Arrays.copyOf(frameLines, numFrames * 2);
+			frameColumns = Arrays.copyOf(frameColumns, numFrames * 2);
+		}
+		
+		frames[numFrames] = frame;
+		frameValues[numFrames] = value;
+		frameFirsts[numFrames] = first;
+		frameSeconds[numFrames] = second;
+		frameLines[numFrames] = line;
+		frameColumns[numFrames] = column;
+		numFrames++;
+	}
+	
+	/**
+	 * Pops the innermost frame.
+	 * @return	The value of the frame.
+	 */
+	private int popFrame() {
+		numFrames--;
+		return frameValues[numFrames];
 	}
 	
 	
@@ -0,0 +1,308 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Evaluates arithmetic on constants at compile time, and expands calls
+ * to Math.multiply and Math.divide with a constant operand inline, as the
+ * CodeGenerator does for the multiply and divide intrinsics. Calls to
+ * an intrinsic which is disabled, as when compiling the OS classes, are
+ * left alone, so that the OS implementation is always called.
+ * These patterns rarely occur in the VM code generated for a single
+ * class, but appear once other passes, such as the
+ * StaticConstantPropagationPass, replace variables with constants.
+ *
+ * Within each basic block, a value is constant if it is pushed by push
+ * constant, or computed by contiguous commands from constant operands.
+ * A constant value is written as push constant n for non-negative n, or
+ * as push constant ~n followed by not for negative n, whenever this takes
+ * fewer commands than computing it.
+ * Arithmetic wraps around to 16 bits, as on the Hack computer.
+ */
+public class ConstantFoldingPass implements OptimizationPass {
+	
+	private HashSet<String> enabledIntrinsics = new HashSet<String>(CodeGenerator.INTRINSICS);
+	
+	private VMFunction function;
+	
+	private boolean[] constant;
+	private int[] values;
+	
+	/** The first command computing each constant value. */
+	private int[] starts;
+	
+	/** Whether each constant value is the operand of a larger constant. */
+	private boolean[] absorbed;
+	
+	/**
+	 * The commands to write in place of a range of commands, by the
+	 * first command of the range.
+	 */
+	private HashMap<Integer, VMFunction> replacements;
+	private int[] replacementEnds;
+	
+	public String getName() {
+		return "constant-folding";
+	}
+	
+	/**
+	 * Enables or disables folding and inline expansion of calls to the
+	 * given intrinsic, as for the CodeGenerator.
+	 * @param name		The full name of the intrinsic, e.g. Math.multiply.
+	 * @param enabled	Whether calls to the intrinsic may be folded.
+	 */
+	public void setIntrinsicEnabled(String name, boolean enabled) {
+		if (!CodeGenerator.INTRINSICS.contains(name)) {
+			throw new RuntimeException("Unknown intrinsic " + name);
+		}
+		
+		if (enabled) {
+			enabledIntrinsics.add(name);
+		} else {
+			enabledIntrinsics.remove(name);
+		}
+	}
+	
+	public void run(VMFunction function) {
+		this.function = function;
+		int size = function.size();
+		constant = new boolean[size];
+		values = new int[size];
+		starts = new int[size];
+		absorbed = new boolean[size];
+		replacements = new HashMap<Integer, VMFunction>();
+		replacementEnds = new int[size];
+		
+		ControlFlowGraph cfg = new ControlFlowGraph(function);
+		for (int block = 0; block < cfg.numBlocks(); block++) {
+			foldBlock(cfg.firstCommand(block), cfg.lastCommand(block));
+		}
+		
+		if (replacements.isEmpty()) {
+			return;
+		}
+		
+		VMFunction folded = new VMFunction(function.getName(), function.getNumLocals());
+		for (int i = 0; i < size; i++) {
+			VMFunction replacement = replacements.get(i);
+			if (replacement != null) {
+				for (int j = 0; j < replacement.size(); j++) {
+					folded.add(replacement, j);
+				}
+				i = replacementEnds[i];
+			} else {
+				folded.add(function, i);
+			}
+		}
+		function.replaceBody(folded);
+	}
+	
+	/**
+	 * Finds the constant values of the given block, and the calls to
+	 * Math.multiply and Math.divide which can be expanded inline.
+	 * @param first		The first command of the block.
+	 * @param last		The last command of the block.
+	 */
+	private void foldBlock(int first, int last) {
+		ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+		
+		for (int i = first; i <= last; i++) {
+			Opcode opcode = function.opcode(i);
+			
+			if (opcode == Opcode.PUSH) {
+				if (function.accesses(i, Segment.CONSTANT)) {
+					setConstant(i, i, function.index(i));
+				}
+				stack.push(i);
+				
+			} else if (opcode == Opcode.POP || opcode == Opcode.IF_GOTO) {
+				pop(stack);
+				
+			} else if (opcode == Opcode.ARITHMETIC) {
+				Command command = function.command(i);
+				
+				if (command == Command.NEG || command == Command.NOT) {
+					int operand = pop(stack);
+					if (isConstant(operand) && operand == i - 1) {
+						int value = values[operand];
+						setConstant(i, starts[operand], command == Command.NEG ? -value : ~value);
+						absorbed[operand] = true;
+					}
+					
+				} else {
+					int right = pop(stack);
+					int left = pop(stack);
+					if (areConstant(i, left, right)) {
+						setConstant(i, starts[left], evaluate(command, values[left], values[right]));
+					}
+				}
+				stack.push(i);
+				
+			} else if (opcode == Opcode.CALL) {
+				int numArgs = function.index(i);
+				int right = numArgs > 0 ? pop(stack) : -1;
+				int left = numArgs > 1 ? pop(stack) : -1;
+				for (int arg = 2; arg < numArgs; arg++) {
+					pop(stack);
+				}
+				
+				if (numArgs == 2) {
+					foldCall(i, function.symbol(i), left, right);
+				}
+				stack.push(i);
+			}
+		}
+		
+		for (int i = first; i <= last; i++) {
+			if (constant[i] && !absorbed[i]
+					&& i - starts[i] + 1 > (values[i] < 0 ? 2 : 1)) {
+				VMFunction replacement = new VMFunction(function.getName(), 0);
+				pushConstant(replacement, values[i]);
+				replace(starts[i], i, replacement);
+			}
+		}
+	}
+	
+	/**
+	 * Folds or expands inline the call at i, if it is to Math.multiply
+	 * or Math.divide, the intrinsic is enabled, and the call has suitable
+	 * constant operands.
+	 * @param i			The index of the call.
+	 * @param name		The name of the function called.
+	 * @param left		The index of the command which pushed the first argument.
+	 * @param right		The index of the command which pushed the second argument.
+	 */
+	private void foldCall(int i, String name, int left, int right) {
+		boolean multiply = name.equals("Math.multiply") && enabledIntrinsics.contains(name);
+		boolean divide = name.equals("Math.divide") && enabledIntrinsics.contains(name);
+		
+		if (multiply && areConstant(i, left, right)) {
+			setConstant(i, starts[left], values[left] * values[right]);
+			
+		} else if (divide && areConstant(i, left, right) && values[right] != 0) {
+			setConstant(i, starts[left], values[left] / values[right]);
+			
+		} else if (isConstant(right) && right == i - 1
+				&& ((multiply && canMultiplyInline(values[right]))
+					|| (divide && Math.abs(values[right]) == 1))) {
+			absorbed[right] = true;
+			VMFunction replacement = new VMFunction(function.getName(), 0);
+			if (multiply) {
+				writeMultiplyInline(replacement, values[right]);
+			} else if (values[right] < 0) {
+				replacement.addArithmetic(Command.NEG);
+			}
+			replace(starts[right], i, replacement);
+			
+		} else if (multiply && isConstant(left) && canMultiplyInline(values[left])) {
+			// multiplication is commutative, so the constant need not be pushed
+			absorbed[left] = true;
+			replace(starts[left], left, new VMFunction(function.getName(), 0));
+			VMFunction replacement = new VMFunction(function.getName(), 0);
+			writeMultiplyInline(replacement, values[left]);
+			replace(i, i, replacement);
+		}
+	}
+	
+	private void setConstant(int i, int start, int value) {
+		constant[i] = true;
+		starts[i] = start;
+		values[i] = (short) value;
+	}
+	
+	private boolean isConstant(int i) {
+		return i >= 0 && constant[i];
+	}
+	
+	/**
+	 * Returns true if both operands of the command at i are constant, and
+	 * computed by the commands just before it, in which case they are
+	 * marked as part of the value of the command.
+	 */
+	private boolean areConstant(int i, int left, int right) {
+		if (isConstant(left) && isConstant(right)
+				&& right == i - 1 && starts[right] == left + 1) {
+			absorbed[left] = true;
+			absorbed[right] = true;
+			return true;
+		}
+		return false;
+	}
+	
+	private int evaluate(Command command, int left, int right) {
+		switch (command) {
+			case ADD:	return left + right;
+			case SUB:	return left - right;
+			case AND:	return left & right;
+			case OR:	return left | right;
+			case EQ:	return left == right ? -1 : 0;
+			case GT:	return left > right ? -1 : 0;
+			case LT:	return left < right ? -1 : 0;
+			default:
+				throw new RuntimeException("Invalid binary command " + command);
+		}
+	}
+	
+	private void replace(int start, int end, VMFunction replacement) {
+		replacements.put(start, replacement);
+		replacementEnds[start] = end;
+	}
+	
+	/**
+	 * Pops the index of the command which pushed the top value of the
+	 * stack, or returns -1 if the value was pushed before the block.
+	 */
+	private int pop(ArrayDeque<Integer> stack) {
+		return stack.isEmpty() ? -1 : stack.pop();
+	}
+	
+	/**
+	 * Adds the commands to push the given 16 bit value to the function.
+	 */
+	public static void pushConstant(VMFunction function, int value) {
+		if (value < 0) {
+			function.addPush(Segment.CONSTANT, ~value);
+			function.addArithmetic(Command.NOT);
+		} else {
+			function.addPush(Segment.CONSTANT, value);
+		}
+	}
+	
+	private boolean canMultiplyInline(int value) {
+		return value == 0 || Math.abs(value) == 1 || inlineShift(Math.abs(value)) != -1;
+	}
+	
+	private int inlineShift(int value) {
+		for (int shift = 1; shift <= CodeGenerator.MAX_INLINE_SHIFT; shift++) {
+			if (value == 1 << shift) {
+				return shift;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Adds the commands to multiply the value on top of the stack by the
+	 * given constant to the function, in the same way as the CodeGenerator.
+	 */
+	private void writeMultiplyInline(VMFunction function, int value) {
+		if (value == 0) {
+			function.addPop(Segment.TEMP, 0);
+			function.addPush(Segment.CONSTANT, 0);
+			return;
+		}
+		
+		int shift = Math.abs(value) == 1 ? 0 : inlineShift(Math.abs(value));
+		for (int i = 0; i < shift; i++) {
+			function.addPop(Segment.TEMP, 0);
+			function.addPush(Segment.TEMP, 0);
+			function.addPush(Segment.TEMP, 0);
+			function.addArithmetic(Command.ADD);
+		}
+		
+		if (value < 0) {
+			function.addArithmetic(Command.NEG);
+		}
+	}
+	
+}
@@ -0,0 +1,196 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The control flow graph of a single VMFunction.
+ * The commands of the function are split into basic blocks, each a
+ * consecutive range of commands which starts at the beginning of the
+ * function, at a label, or after a goto, if-goto or return, and only
+ * transfers control elsewhere at its last command.
+ * Blocks are numbered in the order in which they occur in the function,
+ * so block 0 is always the entry block.
+ */
+public class ControlFlowGraph {
+	
+	private VMFunction function;
+	
+	private int numBlocks;
+	private int[] blockStarts;
+	private int[] blockOf;
+	private int[][] successors;
+	private int[][] predecessors;
+	
+	private HashMap<String, Integer> labelBlocks = new HashMap<String, Integer>();
+	
+	/**
+	 * Builds the control flow graph of the given function.
+	 * Throws an exception if the function jumps to a label it does
+	 * not define.
+	 * @param function	The function to build the graph of.
+	 */
+	public ControlFlowGraph(VMFunction function) {
+		this.function = function;
+		int size = function.size();
+		
+		// find the first command of each block
+		ArrayList<Integer> starts = new ArrayList<Integer>();
+		for (int i = 0; i < size; i++) {
+			if (i == 0
+					|| function.opcode(i) == Opcode.LABEL
+					|| function.opcode(i - 1).isJump()) {
+				starts.add(i);
+			}
+		}
+		if (starts.isEmpty()) {
+			starts.add(0);
+		}
+		
+		numBlocks = starts.size();
+		blockStarts = new int[numBlocks + 1];
+		blockOf = new int[size];
+		for (int block = 0; block < numBlocks; block++) {
+			blockStarts[block] = starts.get(block);
+		}
+		blockStarts[numBlocks] = size;
+		
+		for (int block = 0; block < numBlocks; block++) {
+			for (int i = blockStarts[block]; i < blockStarts[block + 1]; i++) {
+				blockOf[i] = block;
+				if (function.opcode(i) == Opcode.LABEL) {
+					labelBlocks.put(function.symbol(i), block);
+				}
+			}
+		}
+		
+		// add an edge for every way control can leave each block
+		ArrayList<ArrayList<Integer>> succs = new ArrayList<ArrayList<Integer>>();
+		ArrayList<ArrayList<Integer>> preds = new ArrayList<ArrayList<Integer>>();
+		for (int block = 0; block < numBlocks; block++) {
+			succs.add(new ArrayList<Integer>());
+			preds.add(new ArrayList<Integer>());
+		}
+		
+		for (int block = 0; block < numBlocks; block++) {
+			int last = lastCommand(block);
+			Opcode opcode = last < blockStarts[block] ? null : function.opcode(last);
+			
+			if (opcode == Opcode.GOTO || opcode == Opcode.IF_GOTO) {
+				addEdge(succs, preds, block, blockOfLabel(function.symbol(last)));
+			}
+			
+			if (opcode != Opcode.GOTO && opcode != Opcode.RETURN
+					&& block + 1 < numBlocks) {
+				addEdge(succs, preds, block, block + 1);
+			}
+		}
+		
+		successors = toArrays(succs);
+		predecessors = toArrays(preds);
+	}
+	
+	/**
+	 * Adds an edge between two blocks, unless there already is one,
+	 * as happens when an if-goto jumps to the following block.
+	 */
+	private void addEdge(ArrayList<ArrayList<Integer>> succs,
+							ArrayList<ArrayList<Integer>> preds,
+							int from, int to) {
+		if (!succs.get(from).contains(to)) {
+			succs.get(from).add(to);
+			preds.get(to).add(from);
+		}
+	}
+	
+	private int[][] toArrays(ArrayList<ArrayList<Integer>> lists) {
+		int[][] arrays = new int[lists.size()][];
+		for (int i = 0; i < arrays.length; i++) {
+			ArrayList<Integer> list = lists.get(i);
+			arrays[i] = new int[list.size()];
+			for (int j = 0; j < list.size(); j++) {
+				arrays[i][j] = list.get(j);
+			}
+		}
+		return arrays;
+	}
+	
+	/**
+	 * Returns the block which starts with the given label.
+	 * Throws an exception if the label is not defined in the function.
+	 * @param label		The label of interest.
+	 * @return			The block containing the label.
+	 */
+	public int blockOfLabel(String label) {
+		Integer block = labelBlocks.get(label);
+		if (block == null) {
+			throw new RuntimeException(String.format(
+						"Label %s not defined in function %s",
+						label,
+						function.getName()));
+		}
+		return block;
+	}
+	
+	/**
+	 * Returns an array containing, for each block, whether it can be
+	 * reached from the entry block.
+	 * @return	The reachability of each block.
+	 */
+	public boolean[] reachableBlocks() {
+		boolean[] reachable = new boolean[numBlocks];
+		int[] stack = new int[numBlocks];
+		int top = 0;
+		
+		reachable[0] = true;
+		stack[top++] = 0;
+		while (top > 0) {
+			int block = stack[--top];
+			for (int successor: successors[block]) {
+				if (!reachable[successor]) {
+					reachable[successor] = true;
+					stack[top++] = successor;
+				}
+			}
+		}
+		
+		return reachable;
+	}
+	
+	public VMFunction getFunction() {
+		return function;
+	}
+	
+	public int numBlocks() {
+		return numBlocks;
+	}
+	
+	/**
+	 * Returns the index of the first command of the given block.
+	 */
+	public int firstCommand(int block) {
+		return blockStarts[block];
+	}
+	
+	/**
+	 * Returns the index of the last command of the given block, which
+	 * is one less than its first command if the block is empty.
+	 */
+	public int lastCommand(int block) {
+		return blockStarts[block + 1] - 1;
+	}
+	
+	/**
+	 * Returns the block containing the given command.
+	 */
+	public int blockOf(int command) {
+		return blockOf[command];
+	}
+	
+	public int[] successors(int block) {
+		return successors[block];
+	}
+	
+	public int[] predecessors(int block) {
+		return predecessors[block];
+	}
+	
+}
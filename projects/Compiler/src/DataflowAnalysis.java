@@ -0,0 +1,160 @@
+import java.util.ArrayDeque;
+import java.util.BitSet;
+
+/**
+ * A dataflow analysis over the basic blocks of a ControlFlowGraph,
+ * whose facts are sets of bits, solved with a worklist algorithm.
+ * Subclasses give the direction of the analysis, whether paths are met
+ * by union or intersection, and the transfer function of a block.
+ * After solve() has been called, getIn and getOut give the facts which
+ * hold at the start and end of each block respectively, whichever
+ * direction the analysis runs in.
+ */
+public abstract class DataflowAnalysis {
+	
+	protected final ControlFlowGraph cfg;
+	
+	private final boolean forward;
+	private final boolean union;
+	
+	private BitSet[] in;
+	private BitSet[] out;
+	
+	/**
+	 * Creates a new analysis over the given control flow graph.
+	 * @param cfg		The graph to analyze.
+	 * @param forward	true if facts flow from the start of a block to its end,
+	 * 					false if they flow from the end to the start.
+	 * @param union		true if facts from different paths are met by union
+	 * 					(may analyses), false for intersection (must analyses).
+	 */
+	protected DataflowAnalysis(ControlFlowGraph cfg, boolean forward, boolean union) {
+		this.cfg = cfg;
+		this.forward = forward;
+		this.union = union;
+	}
+	
+	/**
+	 * Returns the facts which hold on entry to the function for a forward
+	 * analysis, or on exit from it for a backward analysis.
+	 */
+	protected abstract BitSet boundary();
+	
+	/**
+	 * Returns the facts initially assumed for every block before the
+	 * analysis starts. This is normally the empty set for a union
+	 * analysis and the full set for an intersection analysis.
+	 */
+	protected abstract BitSet initial();
+	
+	/**
+	 * Returns the facts which hold after the given block, given the facts
+	 * which hold before it, in the direction of the analysis. Must not
+	 * modify input.
+	 * @param block		The block of interest.
+	 * @param input		The facts at the start of the block for a forward
+	 * 					analysis, or at its end for a backward analysis.
+	 * @return			The facts at the other end of the block.
+	 */
+	protected abstract BitSet transfer(int block, BitSet input);
+	
+	/**
+	 * Solves the analysis, iterating until the facts for every block
+	 * reach a fixed point.
+	 */
+	public void solve() {
+		int numBlocks = cfg.numBlocks();
+		in = new BitSet[numBlocks];
+		out = new BitSet[numBlocks];
+		
+		for (int block = 0; block < numBlocks; block++) {
+			in[block] = initial();
+			out[block] = initial();
+		}
+		
+		// visit blocks roughly in the direction of flow first
+		ArrayDeque<Integer> worklist = new ArrayDeque<Integer>();
+		boolean[] queued = new boolean[numBlocks];
+		for (int i = 0; i < numBlocks; i++) {
+			int block = forward ? i : numBlocks - 1 - i;
+			worklist.add(block);
+			queued[block] = true;
+		}
+		
+		while (!worklist.isEmpty()) {
+			int block = worklist.poll();
+			queued[block] = false;
+			
+			int[] sources = forward ? cfg.predecessors(block) : cfg.successors(block);
+			BitSet input = meet(block, sources);
+			BitSet output = transfer(block, input);
+			
+			if (forward) {
+				in[block] = input;
+			} else {
+				out[block] = input;
+			}
+			
+			BitSet previous = forward ? out[block] : in[block];
+			if (!output.equals(previous)) {
+				if (forward) {
+					out[block] = output;
+				} else {
+					in[block] = output;
+				}
+				
+				int[] targets = forward ? cfg.successors(block) : cfg.predecessors(block);
+				for (int target: targets) {
+					if (!queued[target]) {
+						worklist.add(target);
+						queued[target] = true;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Meets the facts flowing into the given block from the given
+	 * neighbouring blocks, including the boundary facts if the block
+	 * is the entry block (forward) or has no successors (backward).
+	 */
+	private BitSet meet(int block, int[] sources) {
+		BitSet result = null;
+		
+		boolean atBoundary = forward ? block == 0 : sources.length == 0;
+		if (atBoundary) {
+			result = boundary();
+		}
+		
+		for (int source: sources) {
+			BitSet facts = forward ? out[source] : in[source];
+			if (result == null) {
+				result = (BitSet) facts.clone();
+			} else if (union) {
+				result.or(facts);
+			} else {
+				result.and(facts);
+			}
+		}
+		
+		return result == null ? initial() : result;
+	}
+	
+	/**
+	 * Returns the facts which hold at the start of the given block.
+	 * Should only be called after solve().
+	 */
+	public BitSet getIn(int block) {
+		return in[block];
+	}
+	
+	/**
+	 * Returns the facts which hold at the end of the given block.
+	 * Should only be called after solve().
+	 */
+	public BitSet getOut(int block) {
+		return out[block];
+	}
+	
+}
@@ -0,0 +1,231 @@
+import java.util.BitSet;
+import java.util.HashSet;
+
+/**
+ * Removes commands which can never be executed, or whose results are
+ * never used. Repeatedly, until nothing more can be removed:
+ *  - if-gotos on a constant condition, as in if (false) or while (true),
+ *    become gotos or are removed
+ *  - basic blocks which cannot be reached from the start of the function,
+ *    such as code after a return, are removed
+ *  - gotos to the label directly following them are removed
+ *  - labels which are never jumped to are removed
+ *  - computations without calls whose value is only popped to temp 0,
+ *    where temp 0 is not read again before it is overwritten, are removed
+ */
+public class DeadCodeEliminationPass implements OptimizationPass {
+	
+	public String getName() {
+		return "dead-code-elimination";
+	}
+	
+	public void run(VMFunction function) {
+		boolean changed = true;
+		while (changed) {
+			changed = foldConstantBranches(function);
+			changed |= removeUnreachableBlocks(function);
+			changed |= removeRedundantGotos(function);
+			changed |= removeUnusedLabels(function);
+			changed |= removeUnusedValues(function);
+		}
+	}
+	
+	/**
+	 * Replaces each if-goto whose condition is a constant, possibly
+	 * followed by not and neg commands, with a goto if the condition is
+	 * true, or removes it if the condition is false.
+	 * @return	true if any commands were changed.
+	 */
+	private boolean foldConstantBranches(VMFunction function) {
+		boolean[] keep = new boolean[function.size()];
+		boolean changed = false;
+		
+		for (int i = 0; i < function.size(); i++) {
+			keep[i] = true;
+			if (function.opcode(i) != Opcode.IF_GOTO) {
+				continue;
+			}
+			
+			int start = i - 1;
+			while (start >= 0 && function.opcode(start) == Opcode.ARITHMETIC
+					&& (function.command(start) == Command.NOT
+						|| function.command(start) == Command.NEG)) {
+				start--;
+			}
+			
+			if (start < 0 || !function.accesses(start, Segment.CONSTANT)
+					|| function.opcode(start) != Opcode.PUSH) {
+				continue;
+			}
+			
+			int value = function.index(start);
+			for (int j = start + 1; j < i; j++) {
+				value = function.command(j) == Command.NOT ? ~value : -value;
+			}
+			
+			for (int j = start; j < i; j++) {
+				keep[j] = false;
+			}
+			if (value != 0) {
+				function.set(i, Opcode.GOTO, 0, 0, function.symbol(i));
+			} else {
+				keep[i] = false;
+			}
+			changed = true;
+		}
+		
+		function.retain(keep);
+		return changed;
+	}
+	
+	/**
+	 * Removes every basic block which cannot be reached from the
+	 * start of the function.
+	 * @return	true if any commands were removed.
+	 */
+	private boolean removeUnreachableBlocks(VMFunction function) {
+		ControlFlowGraph cfg = new ControlFlowGraph(function);
+		boolean[] reachable = cfg.reachableBlocks();
+		
+		boolean[] keep = new boolean[function.size()];
+		for (int i = 0; i < function.size(); i++) {
+			keep[i] = reachable[cfg.blockOf(i)];
+		}
+		
+		return function.retain(keep) > 0;
+	}
+	
+	/**
+	 * Removes each goto which jumps to a label defined directly after it.
+	 * @return	true if any commands were removed.
+	 */
+	private boolean removeRedundantGotos(VMFunction function) {
+		boolean[] keep = new boolean[function.size()];
+		for (int i = 0; i < function.size(); i++) {
+			keep[i] = true;
+			if (function.opcode(i) == Opcode.GOTO) {
+				for (int j = i + 1; j < function.size()
+						&& function.opcode(j) == Opcode.LABEL; j++) {
+					if (function.symbol(j).equals(function.symbol(i))) {
+						keep[i] = false;
+					}
+				}
+			}
+		}
+		
+		return function.retain(keep) > 0;
+	}
+	
+	/**
+	 * Removes each label which no goto or if-goto jumps to.
+	 * @return	true if any commands were removed.
+	 */
+	private boolean removeUnusedLabels(VMFunction function) {
+		HashSet<String> used = new HashSet<String>();
+		for (int i = 0; i < function.size(); i++) {
+			if (function.opcode(i) == Opcode.GOTO
+					|| function.opcode(i) == Opcode.IF_GOTO) {
+				used.add(function.symbol(i));
+			}
+		}
+		
+		boolean[] keep = new boolean[function.size()];
+		for (int i = 0; i < function.size(); i++) {
+			keep[i] = function.opcode(i) != Opcode.LABEL
+						|| used.contains(function.symbol(i));
+		}
+		
+		return function.retain(keep) > 0;
+	}
+	
+	/**
+	 * Removes each pop to temp 0 whose value is never read, together
+	 * with the commands computing the value popped, provided that these
+	 * have no side effects.
+	 * @return	true if any commands were removed.
+	 */
+	private boolean removeUnusedValues(VMFunction function) {
+		ControlFlowGraph cfg = new ControlFlowGraph(function);
+		LivenessAnalysis liveness = new LivenessAnalysis(cfg, Segment.TEMP);
+		liveness.solve();
+		
+		boolean[] keep = new boolean[function.size()];
+		for (int i = 0; i < function.size(); i++) {
+			keep[i] = true;
+		}
+		
+		boolean changed = false;
+		for (int block = 0; block < cfg.numBlocks(); block++) {
+			BitSet live = (BitSet) liveness.getOut(block).clone();
+			
+			for (int i = cfg.lastCommand(block); i >= cfg.firstCommand(block); i--) {
+				if (function.opcode(i) == Opcode.POP
+						&& function.accesses(i, Segment.TEMP, 0)
+						&& !live.get(0)) {
+					
+					int start = pureValueStart(function, i, cfg.firstCommand(block));
+					if (start >= 0) {
+						for (int j = start; j <= i; j++) {
+							keep[j] = false;
+						}
+						changed = true;
+					}
+				}
+				LivenessAnalysis.step(function, i, Segment.TEMP, live);
+			}
+		}
+		
+		function.retain(keep);
+		return changed;
+	}
+	
+	/**
+	 * Finds the commands which compute the value popped by the i'th
+	 * command, by working back until exactly one value has been pushed.
+	 * Returns the index of the first of these commands, or -1 if they
+	 * include a command with side effects, or start before the given
+	 * first command of the block.
+	 * Popping to pointer 1 is allowed if directly followed by pushing
+	 * that 0, as for an array entry, as is popping to temp 0, as for an
+	 * inline multiplication, since both only hold values temporarily.
+	 * @param function	The function containing the commands.
+	 * @param i			The index of the pop command.
+	 * @param first		The index of the first command of the block.
+	 * @return			The index of the first command computing the
+	 * 					value, or -1.
+	 */
+	private int pureValueStart(VMFunction function, int i, int first) {
+		int needed = 1;
+		
+		for (int j = i - 1; j >= first; j--) {
+			Opcode opcode = function.opcode(j);
+			
+			if (opcode == Opcode.PUSH) {
+				needed--;
+				
+			} else if (opcode == Opcode.ARITHMETIC) {
+				Command command = function.command(j);
+				if (command != Command.NEG && command != Command.NOT) {
+					needed++;
+				}
+				
+			} else if (opcode == Opcode.POP
+					&& ((function.accesses(j, Segment.POINTER, 1)
+						&& function.accesses(j + 1, Segment.THAT, 0)
+						&& function.opcode(j + 1) == Opcode.PUSH)
+					|| function.accesses(j, Segment.TEMP, 0))) {
+				needed++;
+				
+			} else {
+				return -1;
+			}
+			
+			if (needed == 0) {
+				return j;
+			}
+		}
+		
+		return -1;
+	}
+	
+}
@@ -0,0 +1,52 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Uses a Profile to order the functions of a program from the most
+ * called to the least called, so that hot functions are placed together
+ * at the start of the program and cold ones at the end. Functions with
+ * the same number of calls, or which are not in the profile, keep their
+ * order. The first function, which is the entry function for a program
+ * linked by the VMLinker, stays first.
+ */
+public class FunctionOrderingPass implements ProgramPass {
+	
+	private Profile profile;
+	
+	public FunctionOrderingPass(Profile profile) {
+		this.profile = profile;
+	}
+	
+	public String getName() {
+		return "function-ordering";
+	}
+	
+	public void run(ArrayList<VMFunction> program, PrintStream log) {
+		if (program.size() < 2) {
+			return;
+		}
+		
+		ArrayList<VMFunction> rest = new ArrayList<VMFunction>(program.subList(1, program.size()));
+		Collections.sort(rest, new Comparator<VMFunction>() {
+			public int compare(VMFunction a, VMFunction b) {
+				return Long.compare(Math.max(profile.getCalls(b.getName()), 0),
+									Math.max(profile.getCalls(a.getName()), 0));
+			}
+		});
+		
+		VMFunction entry = program.get(0);
+		program.clear();
+		program.add(entry);
+		program.addAll(rest);
+		
+		if (log != null) {
+			for (VMFunction function: program) {
+				log.println(String.format("%s: %d calls", function.getName(),
+											Math.max(profile.getCalls(function.getName()), 0)));
+			}
+		}
+	}
+	
+}
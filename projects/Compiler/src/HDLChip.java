@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * A chip read from a .hdl file: its input and output pins, with their
+ * widths, and the parts it is built from, or for a chip which the
+ * simulator implements itself, just that it is built in.
+ */
+public class HDLChip {
+	
+	private String name;
+	private LinkedHashMap<String, Integer> inputs = new LinkedHashMap<String, Integer>();
+	private LinkedHashMap<String, Integer> outputs = new LinkedHashMap<String, Integer>();
+	private ArrayList<Part> parts = new ArrayList<Part>();
+	private boolean builtin = false;
+	
+	/**
+	 * A part of a chip, e.g. Mux16 (a=x, b=y, sel=load, out=out).
+	 */
+	public static class Part {
+		
+		final String chipName;
+		final ArrayList<Connection> connections = new ArrayList<Connection>();
+		
+		Part(String chipName) {
+			this.chipName = chipName;
+		}
+		
+	}
+	
+	/**
+	 * A connection of a pin of a part to a pin or internal pin of the chip,
+	 * or to true or false, e.g. out[0..7]=low. The ranges are inclusive,
+	 * and are -1 where the whole pin is connected.
+	 */
+	public static class Connection {
+		
+		final String pin;
+		final int pinFrom;
+		final int pinTo;
+		final String wire;
+		final int wireFrom;
+		final int wireTo;
+		
+		Connection(String pin, int pinFrom, int pinTo, String wire, int wireFrom, int wireTo) {
+			this.pin = pin;
+			this.pinFrom = pinFrom;
+			this.pinTo = pinTo;
+			this.wire = wire;
+			this.wireFrom = wireFrom;
+			this.wireTo = wireTo;
+		}
+		
+	}
+	
+	public HDLChip(String name) {
+		this.name = name;
+	}
+	
+	public void addInput(String pin, int width) {
+		inputs.put(pin, width);
+	}
+	
+	public void addOutput(String pin, int width) {
+		outputs.put(pin, width);
+	}
+	
+	public void addPart(Part part) {
+		parts.add(part);
+	}
+	
+	public void setBuiltin() {
+		builtin = true;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public LinkedHashMap<String, Integer> getInputs() {
+		return inputs;
+	}
+	
+	public LinkedHashMap<String, Integer> getOutputs() {
+		return outputs;
+	}
+	
+	public ArrayList<Part> getParts() {
+		return parts;
+	}
+	
+	public boolean isBuiltin() {
+		return builtin;
+	}
+	
+	/**
+	 * Returns the width of the given input or output pin, or 0 if the
+	 * chip has no such pin.
+	 */
+	public int width(String pin) {
+		Integer width = inputs.get(pin);
+		if (width == null) {
+			width = outputs.get(pin);
+		}
+		return width == null ? 0 : width;
+	}
+	
+}
@@ -0,0 +1,208 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a chip from the HDL of the hardware simulator, e.g.
+ * CHIP Or { IN a, b; OUT out; PARTS: Nand (a=nota, b=notb, out=out); ... }
+ * Chips which the simulator implements are written with BUILTIN instead
+ * of PARTS, and may list the pins which only take effect on the clock
+ * with CLOCKED, which is ignored.
+ */
+public class HDLParser {
+	
+	private static final Pattern TOKEN = Pattern.compile(
+			"(?s)(//[^\n]*|/\\*.*?\\*/)|([A-Za-z_]\\w*|\\d+|\\.\\.|\\S)");
+	
+	private final String sourceName;
+	private ArrayList<String> tokens = new ArrayList<String>();
+	private ArrayList<Integer> lines = new ArrayList<Integer>();
+	private int position = 0;
+	
+	private HDLParser(String source, String sourceName) {
+		this.sourceName = sourceName;
+		
+		Matcher matcher = TOKEN.matcher(source);
+		int line = 1;
+		int lineCounted = 0;
+		while (matcher.find()) {
+			for (int i = lineCounted; i < matcher.start(); i++) {
+				if (source.charAt(i) == '\n') {
+					line++;
+				}
+			}
+			lineCounted = matcher.start();
+			if (matcher.group(2) != null) {
+				tokens.add(matcher.group(2));
+				lines.add(line);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the chip in the given .hdl file.
+	 * Throws an exception if the file is not valid HDL.
+	 * @param hdlFile	The .hdl file to read.
+	 * @return			The chip.
+	 * @throws IOException
+	 */
+	public static HDLChip parse(File hdlFile) throws IOException {
+		StringBuilder source = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(hdlFile));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				source.append(line).append('\n');
+			}
+		} finally {
+			reader.close();
+		}
+		return parse(source.toString(), hdlFile.getName());
+	}
+	
+	/**
+	 * Reads the chip in the given HDL.
+	 * @param source		The HDL.
+	 * @param sourceName	The name of the file, for error messages.
+	 * @return				The chip.
+	 */
+	public static HDLChip parse(String source, String sourceName) {
+		return new HDLParser(source, sourceName).parseChip();
+	}
+	
+	private HDLChip parseChip() {
+		expect("CHIP");
+		HDLChip chip = new HDLChip(next());
+		expect("{");
+		
+		if (accept("IN")) {
+			do {
+				String pin = next();
+				chip.addInput(pin, parseWidth());
+			} while (accept(","));
+			expect(";");
+		}
+		
+		if (accept("OUT")) {
+			do {
+				String pin = next();
+				chip.addOutput(pin, parseWidth());
+			} while (accept(","));
+			expect(";");
+		}
+		
+		if (accept("BUILTIN")) {
+			chip.setBuiltin();
+			while (!accept(";")) {
+				next();
+			}
+			if (accept("CLOCKED")) {
+				while (!accept(";")) {
+					next();
+				}
+			}
+			
+		} else {
+			expect("PARTS");
+			expect(":");
+			while (!peek().equals("}")) {
+				chip.addPart(parsePart());
+			}
+		}
+		
+		expect("}");
+		return chip;
+	}
+	
+	/**
+	 * Reads the width of a pin declaration, e.g. [16], which is 1 if it
+	 * has none.
+	 */
+	private int parseWidth() {
+		if (!accept("[")) {
+			return 1;
+		}
+		int width = parseNumber();
+		expect("]");
+		return width;
+	}
+	
+	private HDLChip.Part parsePart() {
+		HDLChip.Part part = new HDLChip.Part(next());
+		expect("(");
+		do {
+			String pin = next();
+			int[] pinRange = parseRange();
+			expect("=");
+			String wire = next();
+			int[] wireRange = parseRange();
+			part.connections.add(new HDLChip.Connection(pin, pinRange[0], pinRange[1],
+															wire, wireRange[0], wireRange[1]));
+		} while (accept(","));
+		expect(")");
+		expect(";");
+		return part;
+	}
+	
+	/**
+	 * Reads an optional sub bus, e.g. [3] or [0..7], returning its first
+	 * and last bits, or -1 for both if there is none.
+	 */
+	private int[] parseRange() {
+		if (!accept("[")) {
+			return new int[] {-1, -1};
+		}
+		int from = parseNumber();
+		int to = accept("..") ? parseNumber() : from;
+		expect("]");
+		if (to < from) {
+			throw error("invalid sub bus " + from + ".." + to);
+		}
+		return new int[] {from, to};
+	}
+	
+	private int parseNumber() {
+		String token = next();
+		try {
+			return Integer.parseInt(token);
+		} catch (NumberFormatException e) {
+			throw error("expected a number but found " + token);
+		}
+	}
+	
+	private String peek() {
+		if (position >= tokens.size()) {
+			throw error("unexpected end of file");
+		}
+		return tokens.get(position);
+	}
+	
+	private String next() {
+		String token = peek();
+		position++;
+		return token;
+	}
+	
+	private boolean accept(String token) {
+		if (position < tokens.size() && tokens.get(position).equals(token)) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+	
+	private void expect(String token) {
+		if (!accept(token)) {
+			throw error("expected " + token + " but found " + peek());
+		}
+	}
+	
+	private RuntimeException error(String message) {
+		int line = lines.isEmpty() ? 1 : lines.get(Math.min(position, lines.size() - 1));
+		return new RuntimeException(String.format("%s:%d: %s", sourceName, line, message));
+	}
+	
+}
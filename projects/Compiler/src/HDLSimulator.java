@@ -0,0 +1,1009 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+/**
+ * Simulates a chip written in HDL, by flattening its parts down to Nand
+ * gates, DFFs and built in memory chips, and evaluating the gates in order
+ * of their depth, so that each is evaluated once per step.
+ *
+ * Every wire holds a long, so that 64 sets of inputs, or lanes, are
+ * evaluated at once, one in each bit; a Nand gate is then a single ~(a & b).
+ * The DFFs keep their state in every lane, but the built in memory chips,
+ * such as RAM16K, only read lane 0, so chips with these parts should only
+ * be given one set of inputs at a time.
+ *
+ * The parts of a chip are taken from the .hdl files in its directory if
+ * there, and otherwise from the built in chips, and otherwise from the
+ * .hdl files in the library directories, in turn. The built in chips are
+ * Nand, DFF and the chips of projects 03 and 05 which have memory, so
+ * that the test scripts can read and set their contents.
+ */
+public class HDLSimulator {
+	
+	public static final int LANES = 64;
+	
+	private static final int FALSE = 0;
+	private static final int TRUE = 1;
+	
+	private static final String[] BUILTIN_SOURCES = {
+		"CHIP Nand { IN a, b; OUT out; BUILTIN Nand; }",
+		"CHIP DFF { IN in; OUT out; BUILTIN DFF; CLOCKED in; }",
+		"CHIP Bit { IN in, load; OUT out; BUILTIN Bit; CLOCKED in, load; }",
+		"CHIP Register { IN in[16], load; OUT out[16]; BUILTIN Register; CLOCKED in, load; }",
+		"CHIP ARegister { IN in[16], load; OUT out[16]; BUILTIN ARegister; CLOCKED in, load; }",
+		"CHIP DRegister { IN in[16], load; OUT out[16]; BUILTIN DRegister; CLOCKED in, load; }",
+		"CHIP PC { IN in[16], load, inc, reset; OUT out[16]; BUILTIN PC; CLOCKED in, load, inc, reset; }",
+		"CHIP RAM8 { IN in[16], load, address[3]; OUT out[16]; BUILTIN RAM8; CLOCKED in, load; }",
+		"CHIP RAM64 { IN in[16], load, address[6]; OUT out[16]; BUILTIN RAM64; CLOCKED in, load; }",
+		"CHIP RAM512 { IN in[16], load, address[9]; OUT out[16]; BUILTIN RAM512; CLOCKED in, load; }",
+		"CHIP RAM4K { IN in[16], load, address[12]; OUT out[16]; BUILTIN RAM4K; CLOCKED in, load; }",
+		"CHIP RAM16K { IN in[16], load, address[14]; OUT out[16]; BUILTIN RAM16K; CLOCKED in, load; }",
+		"CHIP Screen { IN in[16], load, address[13]; OUT out[16]; BUILTIN Screen; CLOCKED in, load; }",
+		"CHIP Keyboard { OUT out[16]; BUILTIN Keyboard; }",
+		"CHIP ROM32K { IN address[15]; OUT out[16]; BUILTIN ROM32K; }"
+	};
+	
+	private static final HashMap<String, HDLChip> BUILTINS = new HashMap<String, HDLChip>();
+	
+	static {
+		for (String source: BUILTIN_SOURCES) {
+			HDLChip chip = HDLParser.parse(source, "builtin");
+			BUILTINS.put(chip.getName(), chip);
+		}
+	}
+	
+	/**
+	 * A built in chip with memory: a register, RAM, ROM, the screen or the
+	 * keyboard. Its output is the word at its address, and a word loaded is
+	 * written on the tick, as in the hardware simulator, so that the
+	 * contents of a register change on the tick but its output on the tock.
+	 */
+	private static class BuiltinChip {
+		
+		final String chipName;
+		final int[] words;
+		int[] in;
+		int[] load;
+		int[] address;
+		int[] out;
+		
+		BuiltinChip(String chipName, HashMap<String, int[]> pins) {
+			this.chipName = chipName;
+			in = pins.get("in");
+			load = pins.get("load");
+			address = pins.containsKey("address") ? pins.get("address") : new int[0];
+			out = pins.get("out");
+			words = new int[1 << address.length];
+		}
+		
+		/**
+		 * Replaces the wires of the pins with those they map to.
+		 */
+		void remap(int[] drivers) {
+			in = remap(in, drivers);
+			load = remap(load, drivers);
+			address = remap(address, drivers);
+			out = remap(out, drivers);
+		}
+		
+		static int[] remap(int[] bits, int[] drivers) {
+			if (bits == null) {
+				return null;
+			}
+			int[] remapped = new int[bits.length];
+			for (int i = 0; i < bits.length; i++) {
+				remapped[i] = drivers[bits[i]];
+			}
+			return remapped;
+		}
+		
+		void evaluate(long[] values) {
+			int word = words[read(values, address)];
+			for (int i = 0; i < out.length; i++) {
+				values[out[i]] = -(long) (word >> i & 1);
+			}
+		}
+		
+		void tick(long[] values) {
+			if (load != null && (values[load[0]] & 1) != 0) {
+				words[read(values, address)] = read(values, in);
+			}
+		}
+		
+		/**
+		 * Returns the value of the given wires in lane 0.
+		 */
+		static int read(long[] values, int[] bits) {
+			int value = 0;
+			for (int i = 0; i < bits.length; i++) {
+				value |= (int) (values[bits[i]] & 1) << i;
+			}
+			return value;
+		}
+		
+	}
+	
+	/**
+	 * The built in PC, which also counts and resets.
+	 */
+	private static class ProgramCounter extends BuiltinChip {
+		
+		int[] inc;
+		int[] reset;
+		
+		ProgramCounter(HashMap<String, int[]> pins) {
+			super("PC", pins);
+			inc = pins.get("inc");
+			reset = pins.get("reset");
+		}
+		
+		void remap(int[] drivers) {
+			super.remap(drivers);
+			inc = remap(inc, drivers);
+			reset = remap(reset, drivers);
+		}
+		
+		void tick(long[] values) {
+			if ((values[reset[0]] & 1) != 0) {
+				words[0] = 0;
+			} else if ((values[load[0]] & 1) != 0) {
+				words[0] = read(values, in);
+			} else if ((values[inc[0]] & 1) != 0) {
+				words[0] = (words[0] + 1) & 0xFFFF;
+			}
+		}
+		
+	}
+	
+	/**
+	 * A list of ints, which grows as they are added.
+	 */
+	private static class IntList {
+		
+		int[] values = new int[16];
+		int size = 0;
+		
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+		
+		/**
+		 * Adds the wires in another list, with all but false and true
+		 * moved up by the given offset.
+		 */
+		void addWires(IntList wires, int offset) {
+			if (size + wires.size > values.length) {
+				values = Arrays.copyOf(values, Math.max(values.length * 2, size + wires.size));
+			}
+			for (int i = 0; i < wires.size; i++) {
+				int wire = wires.values[i];
+				values[size++] = wire < 2 ? wire : wire + offset;
+			}
+		}
+		
+	}
+	
+	/**
+	 * The flattened netlist of a chip. Its wires are numbered from false
+	 * and true, then the bits of its pins in order, then the wires inside
+	 * it, so that each chip is only flattened once however often it is
+	 * used, and each use of it is a copy with the wires renumbered.
+	 */
+	private static class Netlist {
+		
+		int numWires = 2;
+		final HashMap<String, Integer> pinStarts = new HashMap<String, Integer>();
+		
+		/** The inputs and output of each Nand gate. */
+		final IntList gates = new IntList();
+		
+		/** The input and output of each DFF. */
+		final IntList dffs = new IntList();
+		
+		/** The pairs of wires which are connected. */
+		final IntList links = new IntList();
+		
+		/** The built in chips with memory, and the first wire of each. */
+		final ArrayList<HDLChip> builtins = new ArrayList<HDLChip>();
+		final IntList builtinStarts = new IntList();
+		
+		Netlist(HDLChip chip) {
+			for (String pin: chip.getInputs().keySet()) {
+				pinStarts.put(pin, numWires);
+				numWires += chip.width(pin);
+			}
+			for (String pin: chip.getOutputs().keySet()) {
+				pinStarts.put(pin, numWires);
+				numWires += chip.width(pin);
+			}
+		}
+		
+		/**
+		 * Adds a copy of the given netlist, returning how far its wires
+		 * are moved up.
+		 */
+		int add(Netlist part) {
+			int offset = numWires - 2;
+			numWires += part.numWires - 2;
+			gates.addWires(part.gates, offset);
+			dffs.addWires(part.dffs, offset);
+			links.addWires(part.links, offset);
+			builtins.addAll(part.builtins);
+			builtinStarts.addWires(part.builtinStarts, offset);
+			return offset;
+		}
+		
+	}
+	
+	/** The chips read, and the directory of each. */
+	private HashMap<String, HDLChip> parsed = new HashMap<String, HDLChip>();
+	private HashMap<HDLChip, File> directories = new HashMap<HDLChip, File>();
+	
+	/** The chip each name resolves to in each directory. */
+	private HashMap<String, HDLChip> resolved = new HashMap<String, HDLChip>();
+	private File[] library;
+	
+	/** The netlists of the chips flattened so far, and those being flattened. */
+	private HashMap<HDLChip, Netlist> netlists = new HashMap<HDLChip, Netlist>();
+	private HashSet<HDLChip> flattening = new HashSet<HDLChip>();
+	
+	/** The sets of wires which are connected, as a union find forest. */
+	private int[] parents;
+	private int numWires;
+	
+	private int[] gateA;
+	private int[] gateB;
+	private int[] gateOut;
+	private int numGates;
+	
+	private int[] dffIn;
+	private int[] dffOut;
+	private long[] dffNext;
+	private int numDffs;
+	
+	private ArrayList<BuiltinChip> builtins = new ArrayList<BuiltinChip>();
+	
+	/** The number of gates evaluated before each built in chip. */
+	private int[] builtinPositions;
+	private int depth;
+	
+	private HDLChip chip;
+	private LinkedHashMap<String, int[]> pins = new LinkedHashMap<String, int[]>();
+	private long[] values;
+	
+	/** Whether the inputs have changed since the gates were evaluated. */
+	private boolean changed = true;
+	
+	/**
+	 * Builds the netlist of the chip in the given .hdl file.
+	 * Throws an exception if the HDL is invalid, a part cannot be found,
+	 * or the chip has a loop without a DFF in it.
+	 * @param hdlFile	The .hdl file of the chip.
+	 * @param library	The directories to search for the parts which are
+	 * 					not in the chip's directory or built in.
+	 * @throws IOException
+	 */
+	public HDLSimulator(File hdlFile, File[] library) throws IOException {
+		this.library = library;
+		chip = HDLParser.parse(hdlFile);
+		directories.put(chip, hdlFile.getAbsoluteFile().getParentFile());
+		
+		Netlist netlist = netlist(chip);
+		numWires = netlist.numWires;
+		for (String pin: netlist.pinStarts.keySet()) {
+			pins.put(pin, range(netlist.pinStarts.get(pin), chip.width(pin)));
+		}
+		
+		parents = new int[numWires];
+		Arrays.fill(parents, -1);
+		for (int i = 0; i < netlist.links.size; i += 2) {
+			union(netlist.links.values[i], netlist.links.values[i + 1]);
+		}
+		
+		numGates = netlist.gates.size / 3;
+		gateA = new int[numGates];
+		gateB = new int[numGates];
+		gateOut = new int[numGates];
+		for (int g = 0; g < numGates; g++) {
+			gateA[g] = netlist.gates.values[3 * g];
+			gateB[g] = netlist.gates.values[3 * g + 1];
+			gateOut[g] = netlist.gates.values[3 * g + 2];
+		}
+		
+		numDffs = netlist.dffs.size / 2;
+		dffIn = new int[numDffs];
+		dffOut = new int[numDffs];
+		for (int d = 0; d < numDffs; d++) {
+			dffIn[d] = netlist.dffs.values[2 * d];
+			dffOut[d] = netlist.dffs.values[2 * d + 1];
+		}
+		
+		for (int b = 0; b < netlist.builtins.size(); b++) {
+			HDLChip builtin = netlist.builtins.get(b);
+			HashMap<String, int[]> builtinPins = new HashMap<String, int[]>();
+			int start = netlist.builtinStarts.values[b];
+			for (String pin: builtin.getInputs().keySet()) {
+				builtinPins.put(pin, range(start, builtin.width(pin)));
+				start += builtin.width(pin);
+			}
+			for (String pin: builtin.getOutputs().keySet()) {
+				builtinPins.put(pin, range(start, builtin.width(pin)));
+				start += builtin.width(pin);
+			}
+			builtins.add(builtin.getName().equals("PC") ? new ProgramCounter(builtinPins)
+							: new BuiltinChip(builtin.getName(), builtinPins));
+		}
+		
+		int[] drivers = findDrivers();
+		for (int g = 0; g < numGates; g++) {
+			gateA[g] = drivers[gateA[g]];
+			gateB[g] = drivers[gateB[g]];
+		}
+		for (int d = 0; d < numDffs; d++) {
+			dffIn[d] = drivers[dffIn[d]];
+		}
+		for (BuiltinChip builtin: builtins) {
+			builtin.remap(drivers);
+		}
+		for (String pin: chip.getOutputs().keySet()) {
+			pins.put(pin, BuiltinChip.remap(pins.get(pin), drivers));
+		}
+		
+		levelize();
+		renumber();
+		values = new long[numWires];
+		values[TRUE] = -1L;
+		dffNext = new long[numDffs];
+		evaluate();
+	}
+	
+	private static int[] range(int start, int width) {
+		int[] wires = new int[width];
+		for (int i = 0; i < width; i++) {
+			wires[i] = start + i;
+		}
+		return wires;
+	}
+	
+	/**
+	 * Returns the chip with the given name, as used by a chip in the given
+	 * directory.
+	 */
+	private HDLChip resolve(String name, File directory) throws IOException {
+		String key = directory + File.separator + name;
+		HDLChip chip = resolved.get(key);
+		if (chip == null) {
+			chip = find(name, directory);
+			resolved.put(key, chip);
+		}
+		return chip;
+	}
+	
+	private HDLChip find(String name, File directory) throws IOException {
+		ArrayList<File> candidates = new ArrayList<File>();
+		File local = new File(directory, name + ".hdl");
+		if (local.exists()) {
+			candidates.add(local);
+		} else if (BUILTINS.containsKey(name)) {
+			return BUILTINS.get(name);
+		}
+		for (File libraryDirectory: library) {
+			candidates.add(new File(libraryDirectory, name + ".hdl"));
+		}
+		
+		for (File hdlFile: candidates) {
+			String path = hdlFile.getAbsolutePath();
+			if (parsed.containsKey(path)) {
+				return parsed.get(path);
+			}
+			if (hdlFile.exists()) {
+				HDLChip part = HDLParser.parse(hdlFile);
+				if (!part.getName().equals(name)) {
+					throw new RuntimeException(hdlFile + " defines " + part.getName() + ", not " + name);
+				}
+				parsed.put(path, part);
+				directories.put(part, hdlFile.getAbsoluteFile().getParentFile());
+				return part;
+			}
+		}
+		throw new RuntimeException("Chip " + name + " not found");
+	}
+	
+	/**
+	 * Returns the netlist of the given chip, flattening it if it has not
+	 * been already.
+	 */
+	private Netlist netlist(HDLChip chip) throws IOException {
+		Netlist netlist = netlists.get(chip);
+		if (netlist != null) {
+			return netlist;
+		}
+		if (!flattening.add(chip)) {
+			throw error(chip, "is a part of itself");
+		}
+		
+		netlist = new Netlist(chip);
+		if (chip.isBuiltin()) {
+			addBuiltin(chip, netlist);
+		} else {
+			flatten(chip, netlist);
+		}
+		
+		flattening.remove(chip);
+		netlists.put(chip, netlist);
+		return netlist;
+	}
+	
+	/**
+	 * Adds the parts of the given chip to its netlist.
+	 */
+	private void flatten(HDLChip chip, Netlist netlist) throws IOException {
+		HashMap<String, int[]> wires = new HashMap<String, int[]>();
+		for (String pin: netlist.pinStarts.keySet()) {
+			wires.put(pin, range(netlist.pinStarts.get(pin), chip.width(pin)));
+		}
+		HashSet<String> sourced = new HashSet<String>();
+		HashSet<String> used = new HashSet<String>();
+		
+		for (HDLChip.Part part: chip.getParts()) {
+			HDLChip partChip = resolve(part.chipName, directories.get(chip));
+			Netlist partNetlist = netlist(partChip);
+			int offset = netlist.add(partNetlist);
+			
+			HashMap<String, boolean[]> connected = new HashMap<String, boolean[]>();
+			for (String pin: partChip.getInputs().keySet()) {
+				connected.put(pin, new boolean[partChip.width(pin)]);
+			}
+			
+			for (HDLChip.Connection connection: part.connections) {
+				Integer pinStart = partNetlist.pinStarts.get(connection.pin);
+				if (pinStart == null) {
+					throw error(chip, part.chipName + " has no pin " + connection.pin);
+				}
+				boolean output = !connected.containsKey(connection.pin);
+				int[] partWires = select(chip, range(pinStart + offset, partChip.width(connection.pin)),
+											connection.pinFrom, connection.pinTo, connection.pin);
+				int[] chipWires = chipWires(chip, netlist, wires, connection, partWires.length, output);
+				
+				if (chip.width(connection.wire) == 0 && !connection.wire.equals("true")
+						&& !connection.wire.equals("false")) {
+					(output ? sourced : used).add(connection.wire);
+				}
+				for (int i = 0; i < partWires.length; i++) {
+					netlist.links.add(partWires[i]);
+					netlist.links.add(chipWires[i]);
+				}
+				if (!output) {
+					int from = Math.max(connection.pinFrom, 0);
+					Arrays.fill(connected.get(connection.pin), from, from + partWires.length, true);
+				}
+			}
+			
+			for (String pin: connected.keySet()) {
+				boolean[] pinConnected = connected.get(pin);
+				int pinStart = partNetlist.pinStarts.get(pin) + offset;
+				for (int i = 0; i < pinConnected.length; i++) {
+					if (!pinConnected[i]) {
+						netlist.links.add(pinStart + i);
+						netlist.links.add(FALSE);
+					}
+				}
+			}
+		}
+		
+		used.removeAll(sourced);
+		if (!used.isEmpty()) {
+			throw error(chip, "internal pin " + used.iterator().next() + " has no source");
+		}
+	}
+	
+	/**
+	 * Returns the wires of the chip which the given connection is to,
+	 * adding an internal pin if it is the first connection to it.
+	 */
+	private static int[] chipWires(HDLChip chip, Netlist netlist, HashMap<String, int[]> wires,
+									HDLChip.Connection connection, int width, boolean output) {
+		String wire = connection.wire;
+		if (wire.equals("true") || wire.equals("false")) {
+			if (output || connection.wireFrom >= 0) {
+				throw error(chip, "invalid connection to " + wire);
+			}
+			int[] constant = new int[width];
+			Arrays.fill(constant, wire.equals("true") ? TRUE : FALSE);
+			return constant;
+		}
+		
+		if (chip.getInputs().containsKey(wire) && output) {
+			throw error(chip, "input pin " + wire + " cannot be an output of a part");
+		} else if (chip.getOutputs().containsKey(wire) && !output) {
+			throw error(chip, "output pin " + wire + " cannot be an input of a part");
+		}
+		
+		int[] bits = wires.get(wire);
+		if (chip.width(wire) == 0 && connection.wireFrom >= 0) {
+			throw error(chip, "internal pin " + wire + " cannot be subscripted");
+		} else if (bits == null) {
+			bits = range(netlist.numWires, width);
+			netlist.numWires += width;
+			wires.put(wire, bits);
+		}
+		
+		bits = select(chip, bits, connection.wireFrom, connection.wireTo, wire);
+		if (bits.length != width) {
+			throw error(chip, "the widths of " + connection.pin + " and " + wire + " differ");
+		}
+		return bits;
+	}
+	
+	/**
+	 * Returns the given bits of a pin, or all of them if from is -1.
+	 */
+	private static int[] select(HDLChip chip, int[] bits, int from, int to, String pin) {
+		if (from < 0) {
+			return bits;
+		} else if (to >= bits.length) {
+			throw error(chip, "sub bus " + pin + "[" + from + ".." + to + "] is out of range");
+		}
+		return Arrays.copyOfRange(bits, from, to + 1);
+	}
+	
+	private static RuntimeException error(HDLChip chip, String message) {
+		return new RuntimeException(chip.getName() + ".hdl: " + message);
+	}
+	
+	private void addBuiltin(HDLChip chip, Netlist netlist) {
+		String name = chip.getName();
+		if (name.equals("Nand")) {
+			netlist.gates.add(netlist.pinStarts.get("a"));
+			netlist.gates.add(netlist.pinStarts.get("b"));
+			netlist.gates.add(netlist.pinStarts.get("out"));
+			
+		} else if (name.equals("DFF")) {
+			netlist.dffs.add(netlist.pinStarts.get("in"));
+			netlist.dffs.add(netlist.pinStarts.get("out"));
+			
+		} else {
+			netlist.builtins.add(chip);
+			netlist.builtinStarts.add(2);
+		}
+	}
+	
+	private int find(int wire) {
+		int root = wire;
+		while (parents[root] >= 0) {
+			root = parents[root];
+		}
+		while (parents[wire] >= 0) {
+			int parent = parents[wire];
+			parents[wire] = root;
+			wire = parent;
+		}
+		return root;
+	}
+	
+	private void union(int a, int b) {
+		a = find(a);
+		b = find(b);
+		if (a != b) {
+			parents[a] = b;
+		}
+	}
+	
+	/**
+	 * Returns the wire driving each wire, i.e. the gate or DFF output,
+	 * input pin or constant it is connected to, or false if none is.
+	 */
+	private int[] findDrivers() {
+		boolean[] driven = new boolean[numWires];
+		driven[FALSE] = true;
+		driven[TRUE] = true;
+		for (String pin: chip.getInputs().keySet()) {
+			for (int wire: pins.get(pin)) {
+				driven[wire] = true;
+			}
+		}
+		for (int g = 0; g < numGates; g++) {
+			driven[gateOut[g]] = true;
+		}
+		for (int d = 0; d < numDffs; d++) {
+			driven[dffOut[d]] = true;
+		}
+		for (BuiltinChip builtin: builtins) {
+			for (int wire: builtin.out) {
+				driven[wire] = true;
+			}
+		}
+		
+		int[] rootDrivers = new int[numWires];
+		Arrays.fill(rootDrivers, -1);
+		for (int wire = 0; wire < numWires; wire++) {
+			if (driven[wire]) {
+				int root = find(wire);
+				if (rootDrivers[root] >= 0) {
+					throw new RuntimeException(chip.getName() + ".hdl: a pin has more than one source");
+				}
+				rootDrivers[root] = wire;
+			}
+		}
+		
+		int[] drivers = new int[numWires];
+		for (int wire = 0; wire < numWires; wire++) {
+			int driver = rootDrivers[find(wire)];
+			drivers[wire] = driver >= 0 ? driver : FALSE;
+		}
+		return drivers;
+	}
+	
+	/**
+	 * Sorts the gates and built in chips by their depth, the length of
+	 * the longest path to them from an input, DFF or constant.
+	 */
+	private void levelize() {
+		int numNodes = numGates + builtins.size();
+		int[] nodeOf = new int[numWires];
+		Arrays.fill(nodeOf, -1);
+		for (int g = 0; g < numGates; g++) {
+			nodeOf[gateOut[g]] = g;
+		}
+		for (int b = 0; b < builtins.size(); b++) {
+			for (int bit: builtins.get(b).out) {
+				nodeOf[bit] = numGates + b;
+			}
+		}
+		
+		// the nodes each node drives, as a compressed adjacency list
+		int[][] inputs = new int[numNodes][];
+		int[] counts = new int[numNodes + 1];
+		int[] remaining = new int[numNodes];
+		for (int n = 0; n < numNodes; n++) {
+			inputs[n] = n < numGates ? new int[] {gateA[n], gateB[n]}
+									: builtins.get(n - numGates).address;
+			for (int bit: inputs[n]) {
+				if (nodeOf[bit] >= 0) {
+					counts[nodeOf[bit] + 1]++;
+					remaining[n]++;
+				}
+			}
+		}
+		for (int n = 0; n < numNodes; n++) {
+			counts[n + 1] += counts[n];
+		}
+		int[] targets = new int[counts[numNodes]];
+		int[] filled = Arrays.copyOf(counts, numNodes);
+		for (int n = 0; n < numNodes; n++) {
+			for (int bit: inputs[n]) {
+				if (nodeOf[bit] >= 0) {
+					targets[filled[nodeOf[bit]]++] = n;
+				}
+			}
+		}
+		
+		int[] order = new int[numNodes];
+		int ordered = 0;
+		for (int n = 0; n < numNodes; n++) {
+			if (remaining[n] == 0) {
+				order[ordered++] = n;
+			}
+		}
+		depth = 0;
+		for (int levelStart = 0; levelStart < ordered; depth++) {
+			int levelEnd = ordered;
+			for (int i = levelStart; i < levelEnd; i++) {
+				int n = order[i];
+				for (int e = counts[n]; e < counts[n + 1]; e++) {
+					if (--remaining[targets[e]] == 0) {
+						order[ordered++] = targets[e];
+					}
+				}
+			}
+			levelStart = levelEnd;
+		}
+		if (ordered < numNodes) {
+			throw new RuntimeException(chip.getName() + ".hdl: has a loop without a DFF in it");
+		}
+		
+		int[] a = new int[numGates];
+		int[] b = new int[numGates];
+		int[] out = new int[numGates];
+		ArrayList<BuiltinChip> builtinOrder = new ArrayList<BuiltinChip>();
+		builtinPositions = new int[builtins.size()];
+		int g = 0;
+		for (int n: order) {
+			if (n < numGates) {
+				a[g] = gateA[n];
+				b[g] = gateB[n];
+				out[g++] = gateOut[n];
+			} else {
+				builtinPositions[builtinOrder.size()] = g;
+				builtinOrder.add(builtins.get(n - numGates));
+			}
+		}
+		gateA = a;
+		gateB = b;
+		gateOut = out;
+		builtins = builtinOrder;
+	}
+	
+	/**
+	 * Numbers the wires which are driven from 2 up, in the order they are
+	 * evaluated, so that few cache lines are read between one gate and the
+	 * gates it drives. The other wires are not read once they have been
+	 * replaced by their drivers.
+	 */
+	private void renumber() {
+		int[] numbers = new int[numWires];
+		int count = 2;
+		for (String pin: chip.getInputs().keySet()) {
+			for (int wire: pins.get(pin)) {
+				numbers[wire] = count++;
+			}
+		}
+		for (int d = 0; d < numDffs; d++) {
+			numbers[dffOut[d]] = count++;
+		}
+		int g = 0;
+		for (int b = 0; b <= builtins.size(); b++) {
+			int end = b < builtins.size() ? builtinPositions[b] : numGates;
+			for (; g < end; g++) {
+				numbers[gateOut[g]] = count++;
+			}
+			if (b < builtins.size()) {
+				for (int wire: builtins.get(b).out) {
+					numbers[wire] = count++;
+				}
+			}
+		}
+		numbers[TRUE] = TRUE;
+		
+		gateA = BuiltinChip.remap(gateA, numbers);
+		gateB = BuiltinChip.remap(gateB, numbers);
+		gateOut = BuiltinChip.remap(gateOut, numbers);
+		dffIn = BuiltinChip.remap(dffIn, numbers);
+		dffOut = BuiltinChip.remap(dffOut, numbers);
+		for (BuiltinChip builtin: builtins) {
+			builtin.remap(numbers);
+		}
+		for (String pin: pins.keySet()) {
+			pins.put(pin, BuiltinChip.remap(pins.get(pin), numbers));
+		}
+		numWires = count;
+	}
+	
+	/**
+	 * Evaluates every gate in every lane from the current inputs, unless
+	 * nothing has changed since they were last evaluated.
+	 */
+	public void evaluate() {
+		if (!changed) {
+			return;
+		}
+		
+		long[] values = this.values;
+		int[] gateA = this.gateA;
+		int[] gateB = this.gateB;
+		int[] gateOut = this.gateOut;
+		
+		changed = false;
+		int g = 0;
+		for (int b = 0; b <= builtins.size(); b++) {
+			int end = b < builtins.size() ? builtinPositions[b] : numGates;
+			for (; g < end; g++) {
+				values[gateOut[g]] = ~(values[gateA[g]] & values[gateB[g]]);
+			}
+			if (b < builtins.size()) {
+				builtins.get(b).evaluate(values);
+			}
+		}
+	}
+	
+	/**
+	 * Starts a clock cycle: the DFFs and built in chips take their inputs,
+	 * but their outputs do not change until the tock.
+	 */
+	public void tick() {
+		evaluate();
+		for (int d = 0; d < numDffs; d++) {
+			dffNext[d] = values[dffIn[d]];
+		}
+		for (BuiltinChip builtin: builtins) {
+			builtin.tick(values);
+		}
+	}
+	
+	/**
+	 * Ends a clock cycle, updating the outputs of the DFFs and built in
+	 * chips, and so the rest of the chip.
+	 */
+	public void tock() {
+		for (int d = 0; d < numDffs; d++) {
+			values[dffOut[d]] = dffNext[d];
+		}
+		changed = true;
+		evaluate();
+	}
+	
+	/**
+	 * Returns true if the chip has any DFFs or built in chips, so that its
+	 * outputs depend on more than its inputs.
+	 */
+	public boolean isClocked() {
+		return numDffs > 0 || !builtins.isEmpty();
+	}
+	
+	public boolean hasPin(String pin) {
+		return pins.containsKey(pin);
+	}
+	
+	public boolean isInput(String pin) {
+		return chip.getInputs().containsKey(pin);
+	}
+	
+	/**
+	 * Sets an input pin in one lane.
+	 * @param pin	The name of the pin.
+	 * @param lane	The lane, from 0 to 63.
+	 * @param value	The value, of which the low bits up to the width of the
+	 * 				pin are used.
+	 */
+	public void set(String pin, int lane, int value) {
+		if (!isInput(pin)) {
+			throw new RuntimeException(chip.getName() + " has no input pin " + pin);
+		}
+		changed = true;
+		int[] bits = pins.get(pin);
+		for (int i = 0; i < bits.length; i++) {
+			if ((value >> i & 1) != 0) {
+				values[bits[i]] |= 1L << lane;
+			} else {
+				values[bits[i]] &= ~(1L << lane);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the value of a pin in one lane, as a signed number if it is
+	 * 16 bits wide.
+	 */
+	public int get(String pin, int lane) {
+		int[] bits = pins.get(pin);
+		if (bits == null) {
+			throw new RuntimeException(chip.getName() + " has no pin " + pin);
+		}
+		int value = 0;
+		for (int i = 0; i < bits.length; i++) {
+			value |= (int) (values[bits[i]] >>> lane & 1) << i;
+		}
+		return bits.length == 16 ? (short) value : value;
+	}
+	
+	/**
+	 * Copies every wire in one lane to another, or only the input pins.
+	 */
+	public void copyLane(int from, int to, boolean inputsOnly) {
+		changed = true;
+		if (!inputsOnly) {
+			for (int wire = 0; wire < numWires; wire++) {
+				values[wire] = values[wire] & ~(1L << to) | (values[wire] >>> from & 1) << to;
+			}
+			return;
+		}
+		
+		for (String pin: chip.getInputs().keySet()) {
+			for (int wire: pins.get(pin)) {
+				values[wire] = values[wire] & ~(1L << to) | (values[wire] >>> from & 1) << to;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the first built in chip with the given name.
+	 */
+	private BuiltinChip builtin(String chipName) {
+		for (BuiltinChip builtin: builtins) {
+			if (builtin.chipName.equals(chipName)) {
+				return builtin;
+			}
+		}
+		throw new RuntimeException(chip.getName() + " has no built in part " + chipName);
+	}
+	
+	/**
+	 * Returns a word of a built in part, e.g. RAM16K[3] or DRegister[].
+	 * @param chipName	The name of the part's chip.
+	 * @param index		The address of the word, or 0 for a register.
+	 */
+	public int getWord(String chipName, int index) {
+		BuiltinChip builtin = builtin(chipName);
+		int word = builtin.words[index];
+		return builtin.out.length == 16 ? (short) word : word;
+	}
+	
+	public void setWord(String chipName, int index, int value) {
+		BuiltinChip builtin = builtin(chipName);
+		builtin.words[index] = value & (1 << builtin.out.length) - 1;
+		changed = true;
+	}
+	
+	/**
+	 * Loads a program into a built in ROM32K part.
+	 */
+	public void loadRom(String chipName, short[] program) {
+		BuiltinChip builtin = builtin(chipName);
+		Arrays.fill(builtin.words, 0);
+		for (int i = 0; i < program.length; i++) {
+			builtin.words[i] = program[i] & 0xFFFF;
+		}
+		changed = true;
+	}
+	
+	public int getNumGates() {
+		return numGates;
+	}
+	
+	public int getNumDffs() {
+		return numDffs;
+	}
+	
+	public int getDepth() {
+		return depth;
+	}
+	
+	/**
+	 * Takes a .hdl file, followed by any directories to search for its
+	 * parts, and prints the size of its netlist. For a chip without a
+	 * clock, it then times evaluating it for random inputs.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			throw new RuntimeException("Arguments must be a .hdl file and any library directories");
+		}
+		
+		File[] library = new File[args.length - 1];
+		for (int i = 1; i < args.length; i++) {
+			library[i - 1] = new File(args[i]);
+		}
+		
+		HDLSimulator simulator;
+		try {
+			simulator = new HDLSimulator(new File(args[0]), library);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		System.out.println(String.format("%d Nand gates, %d DFFs, %d built in parts, depth %d",
+											simulator.numGates, simulator.numDffs,
+											simulator.builtins.size(), simulator.depth));
+		if (simulator.isClocked()) {
+			return;
+		}
+		
+		Random random = new Random(0);
+		int batches = Math.max(1, (int) (1e9 / LANES / Math.max(1, simulator.numGates) / 10));
+		long start = System.nanoTime();
+		for (int batch = 0; batch < batches; batch++) {
+			for (String pin: simulator.chip.getInputs().keySet()) {
+				for (int wire: simulator.pins.get(pin)) {
+					simulator.values[wire] = random.nextLong();
+				}
+			}
+			simulator.changed = true;
+			simulator.evaluate();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%d input vectors in %.3f s, %.1f million vectors/s",
+											batches * LANES, seconds,
+											batches * LANES / seconds / 1e6));
+	}
+	
+}
@@ -0,0 +1,354 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Assembles Hack assembly into the 16-bit words of a Hack ROM, in the same
+ * process as the VMTranslator which produces the assembly.
+ *
+ * Instructions and labels are added one at a time, either directly by a
+ * VMTranslator or as lines of a .asm file. The first pass happens as they
+ * are added: each label is given the ROM address of the next instruction.
+ * assemble is the second pass, which gives each other symbol the next
+ * free RAM address from 16, and encodes the instructions.
+ * The symbols and the tables of dest, comp and jump codes are kept in
+ * HackSymbolMaps. Each distinct C instruction is only decoded once, as
+ * the words of those already seen are kept in another map.
+ *
+ * The program can then be written in the textual .hack format, one word
+ * per line in binary, or as a raw ROM image of big-endian 16-bit words.
+ */
+public class HackAssembler {
+	
+	public static final int ROM_SIZE = 32768;
+	
+	/** The RAM address of the first variable. */
+	public static final int FIRST_VARIABLE = 16;
+	
+	/** The first RAM address which is not free for variables. */
+	public static final int SCREEN = 16384;
+	
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	private static final String[] COMPS = {
+		"0", "1", "-1", "D", "A", "!D", "!A", "-D", "-A", "D+1", "A+1", "D-1", "A-1",
+		"D+A", "A+D", "D-A", "A-D", "D&A", "A&D", "D|A", "A|D"
+	};
+	
+	private static final int[] COMP_CODES = {
+		0b101010, 0b111111, 0b111010, 0b001100, 0b110000, 0b001101, 0b110001, 0b001111,
+		0b110011, 0b011111, 0b110111, 0b001110, 0b110010,
+		0b000010, 0b000010, 0b010011, 0b000111, 0b000000, 0b000000, 0b010101, 0b010101
+	};
+	
+	private static final String[] DESTS = { "", "M", "D", "MD", "A", "AM", "AD", "AMD" };
+	
+	private static final String[] JUMPS = { "", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP" };
+	
+	private static final HackSymbolMap COMP_TABLE = new HackSymbolMap();
+	private static final HackSymbolMap DEST_TABLE = new HackSymbolMap();
+	private static final HackSymbolMap JUMP_TABLE = new HackSymbolMap();
+	
+	static {
+		for (int i = 0; i < COMPS.length; i++) {
+			COMP_TABLE.put(COMPS[i], COMP_CODES[i]);
+			if (COMPS[i].contains("A")) {
+				// the same computation on M sets the a bit
+				COMP_TABLE.put(COMPS[i].replace('A', 'M'), COMP_CODES[i] | 1 << 6);
+			}
+		}
+		for (int i = 0; i < DESTS.length; i++) {
+			DEST_TABLE.put(DESTS[i], i);
+			JUMP_TABLE.put(JUMPS[i], i);
+		}
+		DEST_TABLE.put("null", 0);
+		JUMP_TABLE.put("null", 0);
+	}
+	
+	private String[] instructions = new String[INITIAL_CAPACITY];
+	private int numInstructions = 0;
+	
+	private HackSymbolMap symbols = new HackSymbolMap();
+	private HackSymbolMap words = new HackSymbolMap();
+	private int nextVariable = FIRST_VARIABLE;
+	
+	private short[] rom;
+	
+	private long nanos = 0;
+	
+	/**
+	 * Creates a new assembler, with the predefined symbols of the Hack
+	 * platform.
+	 */
+	public HackAssembler() {
+		for (int i = 0; i < 16; i++) {
+			symbols.put("R" + i, i);
+		}
+		symbols.put("SP", 0);
+		symbols.put("LCL", 1);
+		symbols.put("ARG", 2);
+		symbols.put("THIS", 3);
+		symbols.put("THAT", 4);
+		symbols.put("SCREEN", SCREEN);
+		symbols.put("KBD", 24576);
+	}
+	
+	/**
+	 * Adds an A or C instruction, without any whitespace or comment.
+	 * @param instruction	The instruction to add.
+	 */
+	public void addInstruction(String instruction) {
+		if (numInstructions == ROM_SIZE) {
+			throw new RuntimeException("Program is too large for the ROM");
+		}
+		if (numInstructions == instructions.length) {
+			instructions = Arrays.copyOf(instructions, numInstructions * 2);
+		}
+		instructions[numInstructions++] = instruction;
+	}
+	
+	/**
+	 * Declares a label for the address of the next instruction.
+	 * Throws an exception if the label has already been declared.
+	 * @param label		The label, without the enclosing brackets.
+	 */
+	public void addLabel(String label) {
+		if (symbols.contains(label)) {
+			throw new RuntimeException("Symbol " + label + " is declared twice");
+		}
+		symbols.put(label, numInstructions);
+	}
+	
+	/**
+	 * Adds a line of a .asm file, which may be a label declaration, an
+	 * instruction, or blank, and may contain whitespace and a comment.
+	 * @param line	The line to add.
+	 */
+	public void addLine(String line) {
+		int commentStart = line.indexOf("//");
+		if (commentStart >= 0) {
+			line = line.substring(0, commentStart);
+		}
+		
+		StringBuilder text = new StringBuilder(line.length());
+		for (int i = 0; i < line.length(); i++) {
+			if (!Character.isWhitespace(line.charAt(i))) {
+				text.append(line.charAt(i));
+			}
+		}
+		
+		if (text.length() == 0) {
+			return;
+		} else if (text.charAt(0) == '(' && text.charAt(text.length() - 1) == ')') {
+			addLabel(text.substring(1, text.length() - 1));
+		} else {
+			addInstruction(text.toString());
+		}
+	}
+	
+	/**
+	 * Encodes every instruction added, giving each symbol which is not a
+	 * label the next free RAM address.
+	 */
+	public void assemble() {
+		long start = System.nanoTime();
+		
+		rom = new short[numInstructions];
+		for (int i = 0; i < numInstructions; i++) {
+			String instruction = instructions[i];
+			if (instruction.charAt(0) == '@') {
+				rom[i] = (short) encodeA(instruction.substring(1));
+			} else {
+				rom[i] = (short) encodeC(instruction);
+			}
+		}
+		
+		nanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Returns the word for an A instruction with the given constant or
+	 * symbol.
+	 */
+	private int encodeA(String operand) {
+		if (Character.isDigit(operand.charAt(0))) {
+			int value = Integer.parseInt(operand);
+			if (value >= ROM_SIZE) {
+				throw new RuntimeException("Constant " + value + " is too large");
+			}
+			return value;
+		}
+		
+		int address = symbols.get(operand);
+		if (address == HackSymbolMap.MISSING) {
+			if (nextVariable == SCREEN) {
+				throw new RuntimeException("Too many variables");
+			}
+			address = nextVariable++;
+			symbols.put(operand, address);
+		}
+		return address;
+	}
+	
+	/**
+	 * Returns the word for the given C instruction.
+	 */
+	private int encodeC(String instruction) {
+		int word = words.get(instruction);
+		if (word != HackSymbolMap.MISSING) {
+			return word;
+		}
+		
+		int equals = instruction.indexOf('=');
+		int semicolon = instruction.indexOf(';');
+		int compEnd = semicolon < 0 ? instruction.length() : semicolon;
+		
+		int dest = DEST_TABLE.get(equals < 0 ? "" : instruction.substring(0, equals));
+		int comp = COMP_TABLE.get(instruction.substring(equals + 1, compEnd));
+		int jump = JUMP_TABLE.get(semicolon < 0 ? "" : instruction.substring(semicolon + 1));
+		
+		if (dest == HackSymbolMap.MISSING || comp == HackSymbolMap.MISSING
+				|| jump == HackSymbolMap.MISSING) {
+			throw new RuntimeException("Invalid instruction " + instruction);
+		}
+		
+		word = 0b111 << 13 | comp << 6 | dest << 3 | jump;
+		words.put(instruction, word);
+		return word;
+	}
+	
+	/**
+	 * Returns the number of instructions, which is the size of the ROM
+	 * used by the program.
+	 */
+	public int size() {
+		return numInstructions;
+	}
+	
+	/**
+	 * Returns the words of the assembled program.
+	 * Should only be called once the program has been assembled.
+	 */
+	public short[] getRom() {
+		return rom;
+	}
+	
+	/**
+	 * Writes the assembled program in the .hack format, with each word
+	 * on its own line as 16 binary digits.
+	 * Should only be called once the program has been assembled.
+	 * @param hackFile	The file to write.
+	 * @throws IOException
+	 */
+	public void writeHack(File hackFile) throws IOException {
+		long start = System.nanoTime();
+		
+		Writer out = new BufferedWriter(new FileWriter(hackFile));
+		char[] line = new char[17];
+		line[16] = '\n';
+		for (short word: rom) {
+			for (int bit = 0; bit < 16; bit++) {
+				line[bit] = (word & 1 << (15 - bit)) == 0 ? '0' : '1';
+			}
+			out.write(line);
+		}
+		out.close();
+		
+		nanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Writes the assembled program as a raw ROM image, with each word in
+	 * two bytes, high byte first.
+	 * Should only be called once the program has been assembled.
+	 * @param romFile	The file to write.
+	 * @throws IOException
+	 */
+	public void writeRom(File romFile) throws IOException {
+		long start = System.nanoTime();
+		
+		DataOutputStream out = new DataOutputStream(
+									new BufferedOutputStream(new FileOutputStream(romFile)));
+		for (short word: rom) {
+			out.writeShort(word);
+		}
+		out.close();
+		
+		nanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Prints the size of the program, the number of symbols and the time
+	 * taken to assemble and write it.
+	 * @param out	The stream to print the report to.
+	 */
+	public void report(PrintStream out) {
+		out.println(String.format("Assembled %d instructions, %d symbols in %.3f ms",
+									numInstructions, symbols.size(), nanos / 1e6));
+	}
+	
+	/**
+	 * Takes the name of a .asm file, and assembles it into a file with
+	 * the same name in the same directory.
+	 * The name may be preceded by the following options:
+	 * - -rom		writes a raw ROM image to xxx.rom instead of xxx.hack
+	 * - -stats		prints a report of the assembly
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			throw new RuntimeException("Argument must be a .asm file");
+		}
+		
+		boolean raw = false;
+		boolean printStats = false;
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-rom")) {
+				raw = true;
+			} else if (args[i].equals("-stats")) {
+				printStats = true;
+			} else {
+				throw new RuntimeException("Unknown option " + args[i]);
+			}
+		}
+		
+		String asmFilename = args[args.length - 1];
+		HackAssembler assembler = new HackAssembler();
+		
+		try {
+			long start = System.nanoTime();
+			BufferedReader reader = new BufferedReader(new FileReader(asmFilename));
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				assembler.addLine(line);
+			}
+			reader.close();
+			assembler.nanos += System.nanoTime() - start;
+			
+			assembler.assemble();
+			if (raw) {
+				assembler.writeRom(new File(asmFilename.replace(".asm", ".rom")));
+			} else {
+				assembler.writeHack(new File(asmFilename.replace(".asm", ".hack")));
+			}
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		if (printStats) {
+			assembler.report(System.out);
+		}
+	}
+	
+}
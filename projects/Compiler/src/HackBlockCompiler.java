@@ -0,0 +1,353 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Translates a straight-line block of Hack instructions into a hidden
+ * JVM class implementing HackEmulator.Block, so that HotSpot compiles the
+ * hot code of an emulated program to machine code.
+ *
+ * The block keeps A and D in JVM locals, which are loaded from and stored
+ * back to the registers array, and computes each C instruction with the
+ * ALU of the Hack CPU, its six control bits turned into constant
+ * operations for the JIT to fold. Only the last instruction of a block
+ * may jump. run returns the address of the next instruction.
+ *
+ * The class file is written directly, as version 49 so that the verifier
+ * needs no stack map frames for the jumps.
+ */
+public class HackBlockCompiler {
+	
+	private static final int CLASS_VERSION = 49;
+	
+	/** Constant pool indices. */
+	private static final int THIS_CLASS = 2;
+	private static final int OBJECT_CLASS = 4;
+	private static final int BLOCK_CLASS = 6;
+	private static final int INIT_NAME = 7;
+	private static final int VOID_DESCRIPTOR = 8;
+	private static final int OBJECT_INIT = 10;
+	private static final int RUN_NAME = 11;
+	private static final int RUN_DESCRIPTOR = 12;
+	private static final int CODE_NAME = 13;
+	private static final int ROM_END = 14;
+	private static final int POOL_SIZE = 15;
+	
+	/** Local variables of run. */
+	private static final int RAM = 1;
+	private static final int REGISTERS = 2;
+	private static final int A = 3;
+	private static final int D = 4;
+	private static final int OLD_A = 5;
+	private static final int RESULT = 6;
+	
+	private static final int ILOAD = 0x15;
+	private static final int ISTORE = 0x36;
+	private static final int ALOAD = 0x19;
+	private static final int IALOAD = 0x2e;
+	private static final int IASTORE = 0x4f;
+	private static final int IADD = 0x60;
+	private static final int IAND = 0x7e;
+	private static final int IXOR = 0x82;
+	private static final int I2S = 0x93;
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC = 0x12;
+	private static final int IRETURN = 0xac;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int IFEQ = 0x99;
+	private static final int IFNE = 0x9a;
+	private static final int IFLT = 0x9b;
+	private static final int IFGE = 0x9c;
+	private static final int IFGT = 0x9d;
+	private static final int IFLE = 0x9e;
+	
+	/** The branch opcode for each jump condition, by jump bits. */
+	private static final int[] BRANCHES = { 0, IFGT, IFEQ, IFGE, IFLT, IFNE, IFLE, 0 };
+	
+	private static final int ADDRESS_MASK = 0x7FFF;
+	
+	private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+	
+	private ByteArrayOutputStream code;
+	
+	/**
+	 * Translates the instructions from start to end, inclusive, into a
+	 * new Block. Only the instruction at end may jump.
+	 * @param rom		The program.
+	 * @param start		The address of the first instruction of the block.
+	 * @param end		The address of the last instruction of the block.
+	 * @return			The translated block.
+	 */
+	public HackEmulator.Block compile(short[] rom, int start, int end) {
+		code = new ByteArrayOutputStream();
+		
+		load(REGISTERS);
+		pushInt(0);
+		code.write(IALOAD);
+		store(A);
+		load(REGISTERS);
+		pushInt(1);
+		code.write(IALOAD);
+		store(D);
+		
+		for (int pc = start; pc <= end; pc++) {
+			int word = rom[pc];
+			if (word >= 0) {
+				pushInt(word);
+				store(A);
+			} else {
+				writeInstruction(word, pc == end);
+			}
+		}
+		
+		writeRegisters();
+		int last = rom[end];
+		int jump = last < 0 ? last & 7 : 0;
+		
+		if (jump == 7) {
+			pushJumpTarget();
+			code.write(IRETURN);
+			
+		} else if (jump != 0) {
+			int[] fallThrough = nextAddress(end);
+			load(RESULT);
+			code.write(BRANCHES[jump]);
+			writeShort(3 + fallThrough.length + 1);
+			for (int b: fallThrough) {
+				code.write(b);
+			}
+			code.write(IRETURN);
+			pushJumpTarget();
+			code.write(IRETURN);
+			
+		} else {
+			for (int b: nextAddress(end)) {
+				code.write(b);
+			}
+			code.write(IRETURN);
+		}
+		
+		return define(code.toByteArray());
+	}
+	
+	/**
+	 * Writes the code for a C instruction, which leaves its result in the
+	 * RESULT local. A jump saves the old value of A, which is its target.
+	 */
+	private void writeInstruction(int word, boolean last) {
+		int comp = word >> 6 & 63;
+		
+		// x
+		if ((comp & 32) != 0) {
+			pushInt(0);
+		} else {
+			load(D);
+		}
+		if ((comp & 16) != 0) {
+			pushInt(-1);
+			code.write(IXOR);
+		}
+		
+		// y
+		if ((comp & 8) != 0) {
+			pushInt(0);
+		} else if ((word & 0x1000) != 0) {
+			load(RAM);
+			pushAddress();
+			code.write(IALOAD);
+		} else {
+			load(A);
+		}
+		if ((comp & 4) != 0) {
+			pushInt(-1);
+			code.write(IXOR);
+		}
+		
+		code.write((comp & 2) != 0 ? IADD : IAND);
+		if ((comp & 1) != 0) {
+			pushInt(-1);
+			code.write(IXOR);
+		}
+		code.write(I2S);
+		store(RESULT);
+		
+		if (last && (word & 7) != 0) {
+			load(A);
+			store(OLD_A);
+		}
+		if ((word & 8) != 0) {
+			load(RAM);
+			pushAddress();
+			load(RESULT);
+			code.write(IASTORE);
+		}
+		if ((word & 32) != 0) {
+			load(RESULT);
+			store(A);
+		}
+		if ((word & 16) != 0) {
+			load(RESULT);
+			store(D);
+		}
+	}
+	
+	/**
+	 * Writes the code to store A and D back into the registers array.
+	 */
+	private void writeRegisters() {
+		load(REGISTERS);
+		pushInt(0);
+		load(A);
+		code.write(IASTORE);
+		load(REGISTERS);
+		pushInt(1);
+		load(D);
+		code.write(IASTORE);
+	}
+	
+	/**
+	 * Pushes the RAM address in A.
+	 */
+	private void pushAddress() {
+		load(A);
+		pushInt(ADDRESS_MASK);
+		code.write(IAND);
+	}
+	
+	/**
+	 * Pushes the ROM address in the old value of A.
+	 */
+	private void pushJumpTarget() {
+		load(OLD_A);
+		pushInt(ADDRESS_MASK);
+		code.write(IAND);
+	}
+	
+	/**
+	 * Returns the code which pushes the address after the given one.
+	 */
+	private int[] nextAddress(int pc) {
+		if (pc + 1 > Short.MAX_VALUE) {
+			return new int[] { LDC, ROM_END };
+		}
+		return new int[] { SIPUSH, (pc + 1) >> 8 & 0xFF, (pc + 1) & 0xFF };
+	}
+	
+	private void load(int local) {
+		code.write(local == RAM || local == REGISTERS ? ALOAD : ILOAD);
+		code.write(local);
+	}
+	
+	private void store(int local) {
+		code.write(ISTORE);
+		code.write(local);
+	}
+	
+	/**
+	 * Pushes a constant which fits in a short.
+	 */
+	private void pushInt(int value) {
+		if (value >= -1 && value <= 5) {
+			code.write(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			code.write(BIPUSH);
+			code.write(value);
+		} else {
+			code.write(SIPUSH);
+			writeShort(value);
+		}
+	}
+	
+	private void writeShort(int value) {
+		code.write(value >> 8 & 0xFF);
+		code.write(value & 0xFF);
+	}
+	
+	/**
+	 * Writes a class file with the given code for run, defines it as a
+	 * hidden class, and returns a new instance of it.
+	 */
+	private HackEmulator.Block define(byte[] runCode) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(CLASS_VERSION);
+			
+			out.writeShort(POOL_SIZE);
+			writeUtf8(out, "HackBlock");
+			writeClass(out, THIS_CLASS - 1);
+			writeUtf8(out, "java/lang/Object");
+			writeClass(out, OBJECT_CLASS - 1);
+			writeUtf8(out, "HackEmulator$Block");
+			writeClass(out, BLOCK_CLASS - 1);
+			writeUtf8(out, "<init>");
+			writeUtf8(out, "()V");
+			out.writeByte(12);	// name and type
+			out.writeShort(INIT_NAME);
+			out.writeShort(VOID_DESCRIPTOR);
+			out.writeByte(10);	// method reference
+			out.writeShort(OBJECT_CLASS);
+			out.writeShort(OBJECT_INIT - 1);
+			writeUtf8(out, "run");
+			writeUtf8(out, "([I[I)I");
+			writeUtf8(out, "Code");
+			out.writeByte(3);	// integer
+			out.writeInt(Short.MAX_VALUE + 1);
+			
+			out.writeShort(0x0031);	// public final super
+			out.writeShort(THIS_CLASS);
+			out.writeShort(OBJECT_CLASS);
+			out.writeShort(1);
+			out.writeShort(BLOCK_CLASS);
+			out.writeShort(0);
+			
+			out.writeShort(2);
+			byte[] initCode = { 0x2a, (byte) INVOKESPECIAL, 0, OBJECT_INIT, (byte) RETURN };
+			writeMethod(out, INIT_NAME, VOID_DESCRIPTOR, 1, 1, initCode);
+			writeMethod(out, RUN_NAME, RUN_DESCRIPTOR, 8, RESULT + 1, runCode);
+			out.writeShort(0);
+			
+			MethodHandles.Lookup hidden = lookup.defineHiddenClass(bytes.toByteArray(), true);
+			return (HackEmulator.Block) hidden.findConstructor(hidden.lookupClass(),
+													MethodType.methodType(void.class)).invoke();
+			
+		} catch (Throwable e) {
+			throw new RuntimeException("Could not translate block: " + e, e);
+		}
+	}
+	
+	private static void writeUtf8(DataOutputStream out, String value) throws IOException {
+		out.writeByte(1);
+		out.writeUTF(value);
+	}
+	
+	private static void writeClass(DataOutputStream out, int nameIndex) throws IOException {
+		out.writeByte(7);
+		out.writeShort(nameIndex);
+	}
+	
+	private static void writeMethod(DataOutputStream out, int name, int descriptor,
+									int maxStack, int maxLocals, byte[] code) throws IOException {
+		out.writeShort(0x0001);	// public
+		out.writeShort(name);
+		out.writeShort(descriptor);
+		out.writeShort(1);
+		out.writeShort(CODE_NAME);
+		out.writeInt(12 + code.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(0);
+		out.writeShort(0);
+	}
+	
+}
@@ -0,0 +1,563 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Emulates the Hack CPU running a program in ROM, with the screen memory
+ * mapped at 16384 and the keyboard at 24576, counting one cycle per
+ * instruction.
+ *
+ * The program is run a basic block at a time: the straight-line
+ * instructions from an address up to the first which may jump, or at most
+ * MAX_BLOCK instructions. Each block is interpreted until it has been
+ * entered HOT_BLOCK times, after which it is translated to JVM bytecode
+ * by the HackBlockCompiler and run as compiled code. The cycle limit and
+ * the keyboard are only checked between blocks.
+ *
+ * The program stops when it reaches the usual infinite loop at the end of
+ * a Hack program, @L followed by an unconditional jump, where L is the
+ * address of the @L, or runs off the end of the ROM. It also stops in
+ * any other loop which changes nothing, such as Sys.halt compiled from
+ * while (true) {}, once the keyboard stub has no more keys to press:
+ * every CHECK_CYCLES cycles the registers and RAM are saved, and the
+ * program stops if they are the same when it next reaches the same
+ * address.
+ * The keyboard is a stub which presses each key of a given string in
+ * turn, holding it for KEY_CYCLES cycles and then releasing it for as
+ * many.
+ */
+public class HackEmulator {
+	
+	public static final int RAM_SIZE = 32768;
+	public static final int SCREEN = 16384;
+	public static final int KEYBOARD = 24576;
+	
+	/** The number of cycles a key is held or released for. */
+	public static final int KEY_CYCLES = 1 << 20;
+	
+	/** The number of times a block is interpreted before it is translated. */
+	public static final int HOT_BLOCK = 1000;
+	
+	/** The largest number of instructions in a block. */
+	public static final int MAX_BLOCK = 256;
+	
+	/** The number of cycles between checks for a loop which changes nothing. */
+	public static final int CHECK_CYCLES = 1 << 20;
+	
+	private static final int ADDRESS_MASK = 0x7FFF;
+	
+	/**
+	 * A translated block, which runs its instructions on the given RAM and
+	 * the A and D registers, and returns the address of the next
+	 * instruction.
+	 */
+	public static interface Block {
+		public int run(int[] ram, int[] registers);
+	}
+	
+	/**
+	 * Follows the blocks the program runs, e.g. for the Profiler, which
+	 * is told the first and last address of each block after it has run.
+	 */
+	public static interface Tracer {
+		public void block(int start, int end);
+	}
+	
+	private short[] rom;
+	private int[] ram = new int[RAM_SIZE];
+	
+	/** A and D, shared with the translated blocks. */
+	private int[] registers = new int[2];
+	private int pc = 0;
+	private boolean halted = false;
+	
+	/** The last instruction of the block starting at each address, or -1. */
+	private int[] blockEnds;
+	private int[] heat;
+	private Block[] blocks;
+	private HackBlockCompiler compiler = null;
+	private int numBlocks = 0;
+	
+	private Tracer tracer = null;
+	
+	private int[] keys = new int[0];
+	
+	/** The state saved to check for a loop which changes nothing, at savedPc, or -1. */
+	private int[] savedRam = null;
+	private int[] savedRegisters = new int[2];
+	private int savedPc = -1;
+	private long nextCheck = CHECK_CYCLES;
+	
+	private long cycles = 0;
+	private long compiledCycles = 0;
+	private long nanos = 0;
+	
+	/**
+	 * Creates a new emulator running the given program from address 0,
+	 * with the RAM cleared.
+	 * @param rom		The words of the program.
+	 * @param translate	Whether to translate hot blocks to bytecode.
+	 */
+	public HackEmulator(short[] rom, boolean translate) {
+		this.rom = rom;
+		blockEnds = new int[rom.length];
+		heat = new int[rom.length];
+		blocks = new Block[rom.length];
+		for (int i = 0; i < rom.length; i++) {
+			blockEnds[i] = -1;
+		}
+		if (translate) {
+			compiler = new HackBlockCompiler();
+		}
+	}
+	
+	/**
+	 * Sets the keys which the keyboard stub presses in turn, using the
+	 * Jack key codes, e.g. 128 for newline.
+	 * @param keys	The key codes.
+	 */
+	public void setKeys(int[] keys) {
+		this.keys = keys;
+	}
+	
+	/**
+	 * Sets the tracer told of each block run, or null for none.
+	 * @param tracer	The tracer.
+	 */
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+	}
+	
+	/**
+	 * Runs the program until it stops, or until it has run for about the
+	 * given number of cycles, finishing the block it is in.
+	 * @param maxCycles		The number of cycles to run.
+	 * @return				true if the program has stopped.
+	 */
+	public boolean run(long maxCycles) {
+		long start = System.nanoTime();
+		long end = cycles + maxCycles;
+		
+		while (!halted && cycles < end) {
+			long slice = cycles / KEY_CYCLES;
+			ram[KEYBOARD] = slice / 2 < keys.length && slice % 2 == 0 ? keys[(int) (slice / 2)] : 0;
+			runUntil(Math.min(end, (slice + 1) * KEY_CYCLES));
+		}
+		
+		nanos += System.nanoTime() - start;
+		return halted;
+	}
+	
+	/**
+	 * Runs whole blocks until the given cycle count is reached.
+	 */
+	private void runUntil(long end) {
+		while (!halted && cycles < end) {
+			int start = pc;
+			if (start >= rom.length) {
+				halted = true;
+				break;
+			}
+			
+			Block block = blocks[start];
+			if (block == null && compiler != null && ++heat[start] == HOT_BLOCK) {
+				block = compiler.compile(rom, start, blockEnd(start));
+				blocks[start] = block;
+				numBlocks++;
+			}
+			
+			if (block != null) {
+				pc = block.run(ram, registers);
+				int length = blockEnd(start) - start + 1;
+				cycles += length;
+				compiledCycles += length;
+			} else {
+				interpretBlock();
+			}
+			if (tracer != null) {
+				tracer.block(start, blockEnd(start));
+			}
+			
+			if (pc == start && isHaltLoop(start)) {
+				halted = true;
+			} else if (pc == savedPc) {
+				halted = isUnchanged();
+				savedPc = -1;
+			} else if (cycles >= nextCheck) {
+				saveState();
+			}
+		}
+	}
+	
+	/**
+	 * Saves the registers and RAM before the block at pc, unless the
+	 * keyboard stub has more keys to press, so that the program can be
+	 * stopped if it comes back to pc without changing them.
+	 */
+	private void saveState() {
+		nextCheck = cycles + CHECK_CYCLES;
+		if (cycles / KEY_CYCLES / 2 < keys.length) {
+			return;
+		}
+		
+		if (savedRam == null) {
+			savedRam = new int[RAM_SIZE];
+		}
+		System.arraycopy(ram, 0, savedRam, 0, RAM_SIZE);
+		savedRegisters[0] = registers[0];
+		savedRegisters[1] = registers[1];
+		savedPc = pc;
+	}
+	
+	/**
+	 * Returns true if the registers and RAM are the same as when they
+	 * were saved.
+	 */
+	private boolean isUnchanged() {
+		return registers[0] == savedRegisters[0] && registers[1] == savedRegisters[1]
+				&& Arrays.equals(ram, savedRam);
+	}
+	
+	/**
+	 * Returns the address of the last instruction of the block starting
+	 * at the given address.
+	 */
+	private int blockEnd(int start) {
+		if (blockEnds[start] < 0) {
+			int end = start;
+			while (end < rom.length - 1 && end - start < MAX_BLOCK - 1
+					&& (rom[end] >= 0 || (rom[end] & 7) == 0)) {
+				end++;
+			}
+			blockEnds[start] = end;
+		}
+		return blockEnds[start];
+	}
+	
+	/**
+	 * Returns true if the instructions at the given address are @address
+	 * followed by an unconditional jump which changes nothing.
+	 */
+	private boolean isHaltLoop(int address) {
+		return address + 1 < rom.length && rom[address] == address
+				&& (rom[address + 1] & 0xE03F) == 0xE007;
+	}
+	
+	/**
+	 * Interprets the block starting at pc.
+	 */
+	private void interpretBlock() {
+		interpret(blockEnd(pc));
+	}
+	
+	/**
+	 * Runs a single instruction, so that a test script can stop the program
+	 * at any cycle. Unlike run, this carries on past the end of the program,
+	 * as the ROM is empty there, and does not stop at the final loop.
+	 */
+	public void step() {
+		if (pc >= rom.length) {
+			registers[0] = 0;
+			pc = (pc + 1) & ADDRESS_MASK;
+			cycles++;
+		} else {
+			interpret(pc);
+		}
+	}
+	
+	/**
+	 * Interprets the straight-line instructions from pc to the given
+	 * address, of which only the last may jump.
+	 */
+	private void interpret(int end) {
+		int a = registers[0];
+		int d = registers[1];
+		int next = end + 1;
+		
+		for (int p = pc; p <= end; p++) {
+			int word = rom[p];
+			if (word >= 0) {
+				a = word;
+				continue;
+			}
+			
+			int y = (word & 0x1000) != 0 ? ram[a & ADDRESS_MASK] : a;
+			int result = alu(word >> 6 & 63, d, y);
+			int oldA = a;
+			if ((word & 8) != 0) {
+				ram[oldA & ADDRESS_MASK] = result;
+			}
+			if ((word & 32) != 0) {
+				a = result;
+			}
+			if ((word & 16) != 0) {
+				d = result;
+			}
+			if (jumps(word & 7, result)) {
+				next = oldA & ADDRESS_MASK;
+			}
+		}
+		
+		cycles += end - pc + 1;
+		registers[0] = a;
+		registers[1] = d;
+		pc = next;
+	}
+	
+	/**
+	 * Computes the output of the ALU for the given control bits, zx, nx,
+	 * zy, ny, f and no from the highest bit.
+	 */
+	private static int alu(int control, int x, int y) {
+		if ((control & 32) != 0) {
+			x = 0;
+		}
+		if ((control & 16) != 0) {
+			x = ~x;
+		}
+		if ((control & 8) != 0) {
+			y = 0;
+		}
+		if ((control & 4) != 0) {
+			y = ~y;
+		}
+		int out = (control & 2) != 0 ? x + y : x & y;
+		if ((control & 1) != 0) {
+			out = ~out;
+		}
+		return (short) out;
+	}
+	
+	/**
+	 * Returns true if the given jump bits jump on the given ALU output.
+	 */
+	private static boolean jumps(int jump, int out) {
+		return (out < 0 && (jump & 4) != 0) || (out == 0 && (jump & 2) != 0)
+				|| (out > 0 && (jump & 1) != 0);
+	}
+	
+	public boolean isHalted() {
+		return halted;
+	}
+	
+	public int[] getRam() {
+		return ram;
+	}
+	
+	public long getCycles() {
+		return cycles;
+	}
+	
+	public int getPc() {
+		return pc;
+	}
+	
+	public void setPc(int pc) {
+		this.pc = pc;
+	}
+	
+	public int getA() {
+		return registers[0];
+	}
+	
+	public int getD() {
+		return registers[1];
+	}
+	
+	/**
+	 * Prints the number of cycles run, the time taken and the rate, and
+	 * how many of the cycles were in translated blocks.
+	 * @param out	The stream to print the report to.
+	 */
+	public void report(PrintStream out) {
+		out.println(String.format("Ran %d cycles in %.3f ms (%.1f MHz)",
+									cycles, nanos / 1e6, cycles * 1e3 / Math.max(nanos, 1)));
+		out.println(String.format("Translated %d blocks, which ran %.1f%% of cycles",
+									numBlocks, compiledCycles * 100.0 / Math.max(cycles, 1)));
+	}
+	
+	/**
+	 * Reads a program in the .hack format, one word per line as 16 binary
+	 * digits.
+	 * @param hackFile	The file to read.
+	 * @return			The words of the program.
+	 * @throws IOException
+	 */
+	public static short[] readHack(File hackFile) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(hackFile));
+		String line = null;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (!line.isEmpty()) {
+				lines.add(line);
+			}
+		}
+		reader.close();
+		
+		short[] rom = new short[lines.size()];
+		for (int i = 0; i < rom.length; i++) {
+			rom[i] = (short) Integer.parseInt(lines.get(i), 2);
+		}
+		return rom;
+	}
+	
+	/**
+	 * Reads a program from a .hack file, a raw .rom image, or a .asm file,
+	 * which is assembled first.
+	 * @param programFile	The file to read.
+	 * @return				The words of the program.
+	 * @throws IOException
+	 */
+	public static short[] readProgram(File programFile) throws IOException {
+		if (programFile.getName().endsWith(".rom")) {
+			return readRom(programFile);
+			
+		} else if (programFile.getName().endsWith(".asm")) {
+			HackAssembler assembler = new HackAssembler();
+			BufferedReader reader = new BufferedReader(new FileReader(programFile));
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				assembler.addLine(line);
+			}
+			reader.close();
+			assembler.assemble();
+			return assembler.getRom();
+			
+		} else {
+			return readHack(programFile);
+		}
+	}
+	
+	/**
+	 * Reads a raw ROM image, as written by HackAssembler.writeRom.
+	 * @param romFile	The file to read.
+	 * @return			The words of the program.
+	 * @throws IOException
+	 */
+	public static short[] readRom(File romFile) throws IOException {
+		short[] rom = new short[(int) (romFile.length() / 2)];
+		DataInputStream in = new DataInputStream(new FileInputStream(romFile));
+		byte[] bytes = new byte[rom.length * 2];
+		in.readFully(bytes);
+		in.close();
+		
+		for (int i = 0; i < rom.length; i++) {
+			rom[i] = (short) ((bytes[2 * i] & 0xFF) << 8 | (bytes[2 * i + 1] & 0xFF));
+		}
+		return rom;
+	}
+	
+	/**
+	 * Takes the name of a .hack file, a raw .rom image or a .asm file,
+	 * which is assembled first, and runs it.
+	 * The name may be preceded by the following options:
+	 * - -limit n			stops after about n cycles
+	 * - -keys text			presses the keys of the text in turn, with \n
+	 * 						for newline
+	 * - -set a=v,b=w		sets the given RAM addresses before running
+	 * - -ram a,b-c			prints the values of the given RAM addresses
+	 * 						once the program stops
+	 * - -screen file		writes the screen to a .pbm image once the
+	 * 						program stops
+	 * - -nojit				only interprets, without translating blocks
+	 * - -stats				prints the number of cycles run and the time
+	 * 						taken
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		long limit = Long.MAX_VALUE;
+		String keys = "";
+		String settings = null;
+		String addresses = null;
+		File screenFile = null;
+		boolean translate = true;
+		boolean printStats = false;
+		
+		int i = 0;
+		while (i < args.length - 1) {
+			if (args[i].equals("-limit")) {
+				limit = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-keys")) {
+				keys = args[++i].replace("\\n", "\n");
+			} else if (args[i].equals("-set")) {
+				settings = args[++i];
+			} else if (args[i].equals("-ram")) {
+				addresses = args[++i];
+			} else if (args[i].equals("-screen")) {
+				screenFile = new File(args[++i]);
+			} else if (args[i].equals("-nojit")) {
+				translate = false;
+			} else if (args[i].equals("-stats")) {
+				printStats = true;
+			} else {
+				throw new RuntimeException("Unknown option " + args[i]);
+			}
+			i++;
+		}
+		
+		if (i != args.length - 1) {
+			throw new RuntimeException("Argument must be a .hack, .rom or .asm file");
+		}
+		
+		File programFile = new File(args[i]);
+		short[] rom;
+		
+		try {
+			rom = readProgram(programFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		HackEmulator emulator = new HackEmulator(rom, translate);
+		
+		int[] keyCodes = new int[keys.length()];
+		for (int k = 0; k < keyCodes.length; k++) {
+			keyCodes[k] = keys.charAt(k) == '\n' ? 128 : keys.charAt(k);
+		}
+		emulator.setKeys(keyCodes);
+		
+		if (settings != null) {
+			for (String setting: settings.split(",")) {
+				String[] parts = setting.split("=");
+				emulator.getRam()[Integer.parseInt(parts[0])] = Integer.parseInt(parts[1]);
+			}
+		}
+		
+		if (!emulator.run(limit)) {
+			System.out.println("Stopped after " + emulator.getCycles() + " cycles");
+		}
+		
+		if (addresses != null) {
+			for (String range: addresses.split(",")) {
+				String[] bounds = range.split("-");
+				int first = Integer.parseInt(bounds[0]);
+				int last = Integer.parseInt(bounds[bounds.length - 1]);
+				for (int address = first; address <= last; address++) {
+					System.out.println(String.format("RAM[%d] = %d", address,
+														emulator.getRam()[address]));
+				}
+			}
+		}
+		
+		if (screenFile != null) {
+			try {
+				VMInterpreter.writeScreen(emulator.getRam(), screenFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if (printStats) {
+			emulator.report(System.out);
+		}
+	}
+	
+}
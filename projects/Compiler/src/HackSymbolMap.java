@@ -0,0 +1,102 @@
+/**
+ * Maps strings to int values, for the symbols and instruction tables of
+ * the HackAssembler.
+ * Entries are kept in parallel arrays with open addressing and linear
+ * probing, keyed by the hash code of the string, so a lookup compares
+ * ints until it finds a matching hash and only then compares the
+ * strings, and no objects are allocated per entry.
+ */
+public class HackSymbolMap {
+	
+	/** The value returned by get for a missing string. */
+	public static final int MISSING = Integer.MIN_VALUE;
+	
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private int[] hashes = new int[INITIAL_CAPACITY];
+	private String[] keys = new String[INITIAL_CAPACITY];
+	private int[] values = new int[INITIAL_CAPACITY];
+	private int size = 0;
+	
+	/**
+	 * Returns the slot holding the given string, or the empty slot where
+	 * it should be added.
+	 */
+	private int slot(String key, int hash) {
+		int mask = keys.length - 1;
+		int slot = mix(hash) & mask;
+		while (keys[slot] != null
+				&& (hashes[slot] != hash || !keys[slot].equals(key))) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	/**
+	 * Spreads the high bits of the hash code into the low bits used to
+	 * pick the first slot.
+	 */
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+	
+	/**
+	 * Returns the value of the given string, or MISSING if it has none.
+	 */
+	public int get(String key) {
+		int hash = key.hashCode();
+		int slot = slot(key, hash);
+		return keys[slot] == null ? MISSING : values[slot];
+	}
+	
+	public boolean contains(String key) {
+		return get(key) != MISSING;
+	}
+	
+	/**
+	 * Sets the value of the given string, replacing any value it has.
+	 */
+	public void put(String key, int value) {
+		int hash = key.hashCode();
+		int slot = slot(key, hash);
+		
+		if (keys[slot] == null) {
+			hashes[slot] = hash;
+			keys[slot] = key;
+			size++;
+		}
+		values[slot] = value;
+		
+		if (size * 2 > keys.length) {
+			grow();
+		}
+	}
+	
+	/**
+	 * Doubles the number of slots, so that at most half are used.
+	 */
+	private void grow() {
+		int[] oldHashes = hashes;
+		String[] oldKeys = keys;
+		int[] oldValues = values;
+		
+		hashes = new int[oldKeys.length * 2];
+		keys = new String[oldKeys.length * 2];
+		values = new int[oldKeys.length * 2];
+		
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = slot(oldKeys[i], oldHashes[i]);
+				hashes[slot] = oldHashes[i];
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+}
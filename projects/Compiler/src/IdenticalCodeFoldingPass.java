@@ -0,0 +1,123 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Removes functions whose bodies are identical to that of an earlier
+ * function of the program, such as getters of different classes which
+ * return the same field, and redirects calls to them to the earlier one.
+ *
+ * Each function is reduced to a key made up of its number of locals and
+ * its commands, with its labels renamed in the order they first occur
+ * and calls to itself written as calls to a placeholder, so recursive
+ * functions which only differ in name are also found. Functions are
+ * looked up by their key in a hash table, so each function is only
+ * compared with those which have the same key.
+ * Since redirecting calls can make more functions identical, this is
+ * repeated until no more functions are removed.
+ * The first function of a group of identical functions is kept, so the
+ * first function of the program, which is the entry function for a
+ * program linked by the VMLinker, is never removed. Native functions,
+ * such as Sys.halt, are never folded or folded into, since their VM
+ * definitions are not what is run.
+ */
+public class IdenticalCodeFoldingPass implements ProgramPass {
+	
+	public String getName() {
+		return "identical-code-folding";
+	}
+	
+	public void run(ArrayList<VMFunction> program, PrintStream log) {
+		boolean changed = true;
+		while (changed) {
+			HashMap<String, VMFunction> functionsByKey = new HashMap<String, VMFunction>();
+			HashMap<String, String> replacements = new HashMap<String, String>();
+			ArrayList<VMFunction> kept = new ArrayList<VMFunction>();
+			
+			for (VMFunction function: program) {
+				if (VMInterpreter.isNative(function.getName())) {
+					kept.add(function);
+					continue;
+				}
+				
+				String key = normalize(function);
+				VMFunction original = functionsByKey.get(key);
+				
+				if (original == null) {
+					functionsByKey.put(key, function);
+					kept.add(function);
+				} else {
+					replacements.put(function.getName(), original.getName());
+					if (log != null) {
+						log.println(String.format("%s: folded into %s",
+													function.getName(), original.getName()));
+					}
+				}
+			}
+			
+			changed = !replacements.isEmpty();
+			if (changed) {
+				program.clear();
+				program.addAll(kept);
+				redirectCalls(program, replacements);
+			}
+		}
+	}
+	
+	/**
+	 * Returns a string which is the same for two functions if and only if
+	 * they behave the same, ignoring the names of their labels and of
+	 * the function itself.
+	 */
+	private String normalize(VMFunction function) {
+		HashMap<String, Integer> labels = new HashMap<String, Integer>();
+		StringBuilder key = new StringBuilder();
+		key.append(function.getNumLocals());
+		
+		for (int i = 0; i < function.size(); i++) {
+			Opcode opcode = function.opcode(i);
+			key.append('\n');
+			
+			if (opcode == Opcode.LABEL || opcode == Opcode.GOTO
+					|| opcode == Opcode.IF_GOTO) {
+				Integer label = labels.get(function.symbol(i));
+				if (label == null) {
+					label = labels.size();
+					labels.put(function.symbol(i), label);
+				}
+				key.append(opcode).append(" L").append(label);
+				
+			} else if (opcode == Opcode.CALL
+					&& function.symbol(i).equals(function.getName())) {
+				key.append("call $self ").append(function.index(i));
+				
+			} else {
+				key.append(function.toString(i));
+			}
+		}
+		
+		return key.toString();
+	}
+	
+	/**
+	 * Changes every call to a function which has been removed into a call
+	 * to the function it was folded into.
+	 * @param program		The functions which were kept.
+	 * @param replacements	The function each removed function was folded
+	 * 						into, by name.
+	 */
+	private void redirectCalls(ArrayList<VMFunction> program,
+								HashMap<String, String> replacements) {
+		for (VMFunction function: program) {
+			for (int i = 0; i < function.size(); i++) {
+				if (function.opcode(i) == Opcode.CALL) {
+					String replacement = replacements.get(function.symbol(i));
+					if (replacement != null) {
+						function.set(i, Opcode.CALL, 0, function.index(i), replacement);
+					}
+				}
+			}
+		}
+	}
+	
+}
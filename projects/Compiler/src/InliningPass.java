@@ -0,0 +1,255 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Replaces calls to small leaf functions, such as getters and setters,
+ * with a copy of the body of the function, saving the cost of the VM
+ * call and return protocol.
+ * A function can be inlined if it calls no other functions, its only
+ * return is its last command, and it has at most MAX_INLINE_SIZE
+ * commands. The total number of commands added to the program is limited
+ * to a fraction of its original size. Native functions, such as
+ * Sys.halt, are never inlined, since their VM definitions are not what
+ * is run.
+ *
+ * At each inlined call, the arguments already pushed are popped into
+ * new locals of the caller, the locals of the callee get new locals of
+ * the caller initialized to 0, and the labels of the callee are renamed.
+ * If the callee sets pointer 0, as methods and constructors do, and the
+ * caller uses this, pointer 0 is saved in another new local and restored
+ * after the body. As in the rest of the compiler, pointer 1 and temp are
+ * assumed not to hold values across a call.
+ * The LocalAllocationPass later lets the new locals share slots.
+ *
+ * Given a Profile, functions which were never called are not inlined,
+ * and hot functions may have up to HOT_INLINE_SIZE commands.
+ */
+public class InliningPass implements ProgramPass {
+	
+	/**
+	 * The largest number of commands a function can have (including its
+	 * return) and be inlined.
+	 */
+	public static final int MAX_INLINE_SIZE = 16;
+	
+	/**
+	 * The largest number of commands a function which the profile shows
+	 * to be hot can have and be inlined.
+	 */
+	public static final int HOT_INLINE_SIZE = 32;
+	
+	private double growthBudget;
+	private Profile profile;
+	
+	/**
+	 * Creates a new inlining pass.
+	 * @param growthBudget	The largest number of commands inlining may add to
+	 * 						the program, as a fraction of its original size.
+	 */
+	public InliningPass(double growthBudget) {
+		this.growthBudget = growthBudget;
+	}
+	
+	/**
+	 * Sets the profile used to decide which functions to inline.
+	 * @param profile	The profile, or null to inline without one.
+	 */
+	public void setProfile(Profile profile) {
+		this.profile = profile;
+	}
+	
+	public String getName() {
+		return "inlining";
+	}
+	
+	public void run(ArrayList<VMFunction> program, PrintStream log) {
+		HashMap<String, VMFunction> candidates = new HashMap<String, VMFunction>();
+		int programSize = 0;
+		
+		for (VMFunction function: program) {
+			programSize += function.size();
+			if (isInlinable(function)) {
+				candidates.put(function.getName(), function);
+			}
+		}
+		
+		int budget = (int) (programSize * growthBudget);
+		
+		for (VMFunction caller: program) {
+			VMFunction inlined = null;
+			int inlineCount = 0;
+			boolean usesThis = usesThis(caller);
+			
+			for (int i = 0; i < caller.size(); i++) {
+				VMFunction callee = caller.opcode(i) == Opcode.CALL
+									? candidates.get(caller.symbol(i))
+									: null;
+				
+				if (callee != null && callee != caller) {
+					int cost = inlineSize(callee, caller.index(i), usesThis) - 1;
+					if (cost <= budget) {
+						if (inlined == null) {
+							inlined = new VMFunction(caller.getName(), caller.getNumLocals());
+							for (int j = 0; j < i; j++) {
+								inlined.add(caller, j);
+							}
+						}
+						
+						inlined.setPosition(caller, i);
+						inline(inlined, callee, caller.index(i), usesThis, inlineCount++);
+						budget -= cost;
+						if (log != null) {
+							log.println(String.format("%s: inlined %s (%+d commands)",
+														caller.getName(), callee.getName(), cost));
+						}
+						continue;
+					}
+					
+					if (log != null) {
+						log.println(String.format("%s: not inlined %s, over budget",
+													caller.getName(), callee.getName()));
+					}
+				}
+				
+				if (inlined != null) {
+					inlined.add(caller, i);
+				}
+			}
+			
+			if (inlined != null) {
+				caller.replaceBody(inlined);
+				caller.setNumLocals(inlined.getNumLocals());
+			}
+		}
+	}
+	
+	/**
+	 * Returns true if the given function is small enough to be inlined,
+	 * calls no other functions, only returns at its last command, and is
+	 * not native.
+	 */
+	private boolean isInlinable(VMFunction function) {
+		int size = function.size();
+		int maxSize = MAX_INLINE_SIZE;
+		if (VMInterpreter.isNative(function.getName())) {
+			return false;
+		} else if (profile != null && profile.isCold(function.getName())) {
+			return false;
+		} else if (profile != null && profile.isHot(function.getName())) {
+			maxSize = HOT_INLINE_SIZE;
+		}
+		
+		if (size == 0 || size > maxSize
+				|| function.opcode(size - 1) != Opcode.RETURN) {
+			return false;
+		}
+		
+		for (int i = 0; i < size - 1; i++) {
+			if (function.opcode(i) == Opcode.CALL
+					|| function.opcode(i) == Opcode.RETURN) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Returns true if the function reads or writes the this segment or
+	 * pointer 0, so must keep its own pointer 0 across an inlined call.
+	 */
+	private boolean usesThis(VMFunction function) {
+		for (int i = 0; i < function.size(); i++) {
+			if (function.accesses(i, Segment.THIS)
+					|| function.accesses(i, Segment.POINTER, 0)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns true if the function pops to pointer 0.
+	 */
+	private boolean setsThis(VMFunction function) {
+		for (int i = 0; i < function.size(); i++) {
+			if (function.opcode(i) == Opcode.POP
+					&& function.accesses(i, Segment.POINTER, 0)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the number of commands which inlining the callee at a
+	 * call with the given number of arguments takes.
+	 */
+	private int inlineSize(VMFunction callee, int numArgs, boolean callerUsesThis) {
+		int size = numArgs + 2 * callee.getNumLocals() + callee.size() - 1;
+		if (callerUsesThis && setsThis(callee)) {
+			size += 4;
+		}
+		return size;
+	}
+	
+	/**
+	 * Appends a copy of the body of the callee to the caller, in place of
+	 * a call to it with the given number of arguments, adding new locals
+	 * to the caller for the arguments and locals of the callee.
+	 * @param caller			The new body of the calling function.
+	 * @param callee			The function being inlined.
+	 * @param numArgs			The number of arguments of the call.
+	 * @param callerUsesThis	Whether pointer 0 must be saved and restored.
+	 * @param count				The number of calls already inlined into
+	 * 							the caller, used to make labels unique.
+	 */
+	private void inline(VMFunction caller, VMFunction callee, int numArgs,
+						boolean callerUsesThis, int count) {
+		int argBase = caller.getNumLocals();
+		int localBase = argBase + numArgs;
+		int saveLocal = localBase + callee.getNumLocals();
+		boolean saveThis = callerUsesThis && setsThis(callee);
+		caller.setNumLocals(saveLocal + (saveThis ? 1 : 0));
+		
+		if (saveThis) {
+			caller.addPush(Segment.POINTER, 0);
+			caller.addPop(Segment.LOCAL, saveLocal);
+		}
+		
+		for (int arg = numArgs - 1; arg >= 0; arg--) {
+			caller.addPop(Segment.LOCAL, argBase + arg);
+		}
+		for (int local = 0; local < callee.getNumLocals(); local++) {
+			caller.addPush(Segment.CONSTANT, 0);
+			caller.addPop(Segment.LOCAL, localBase + local);
+		}
+		
+		String suffix = "$" + callee.getName() + "$" + count;
+		for (int i = 0; i < callee.size() - 1; i++) {
+			Opcode opcode = callee.opcode(i);
+			caller.setPosition(callee, i);
+			
+			if (callee.accesses(i, Segment.ARGUMENT)) {
+				caller.add(opcode, Segment.LOCAL.ordinal(), argBase + callee.index(i), null);
+				
+			} else if (callee.accesses(i, Segment.LOCAL)) {
+				caller.add(opcode, Segment.LOCAL.ordinal(), localBase + callee.index(i), null);
+				
+			} else if (opcode == Opcode.LABEL || opcode == Opcode.GOTO
+					|| opcode == Opcode.IF_GOTO) {
+				caller.add(opcode, 0, 0, callee.symbol(i) + suffix);
+				
+			} else {
+				caller.add(callee, i);
+			}
+		}
+		
+		if (saveThis) {
+			caller.addPush(Segment.LOCAL, saveLocal);
+			caller.addPop(Segment.POINTER, 0);
+		}
+	}
+	
+}
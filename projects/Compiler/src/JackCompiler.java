@@ -5,6 +5,44 @@ import java.util.ArrayList;
 
 public class JackCompiler {
 	
+	/**
+	 * Whether calls to the intrinsics in CodeGenerator.INTRINSICS are
+	 * expanded inline, or folded by the optimization passes. Disabled
+	 * with the -nointrinsics option, which should be used when compiling
+	 * the OS classes.
+	 */
+	private static boolean useIntrinsics = true;
+	
+	/**
+	 * The pass manager used to optimize the generated VM code, for the
+	 * level given by the -O option.
+	 */
+	private static PassManager passManager = new PassManager(0);
+	
+	/**
+	 * Whether to print a report of the optimization passes run,
+	 * set with the -stats option.
+	 */
+	private static boolean printStats = false;
+	
+	/**
+	 * Whether to print the savings of each optimization pass in each
+	 * function as it is optimized, set with the -verbose option.
+	 */
+	private static boolean verbose = false;
+	
+	/**
+	 * The translator which translates the compiled code to Hack assembly,
+	 * if the -asm, -hack or -rom option is given, otherwise null.
+	 */
+	private static VMTranslator translator = null;
+	
+	/**
+	 * The source map which records the source positions of the VM code
+	 * of every class, if the -g option is given, otherwise null.
+	 */
+	private static SourceMap sourceMap = null;
+	
 	/**
 	 * Takes a File object representing a single xxx.jack file, creates a
 	 * JackTokenizer from the file, and outputs all the tokens into a
@@ -36,7 +74,7 @@ public class JackCompiler {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-				
+		
 	}
 	
 	/**
@@ -76,6 +114,13 @@ public class JackCompiler {
 			File outputFile = new File(jackFile.getParentFile(), outputFilename);
 			
 			CompilationEngine compilationEngine = new CompilationEngine(tokenizer, outputFile);
+			compilationEngine.setIntrinsicsEnabled(useIntrinsics);
+			compilationEngine.setPassManager(passManager);
+			compilationEngine.setSourceMap(sourceMap);
+			if (translator != null) {
+				translator.setClassName(jackFile.getName().replace(".jack", ""));
+				compilationEngine.setTranslator(translator);
+			}
 			compilationEngine.compileClass();
 			compilationEngine.close();
 			
@@ -94,19 +139,103 @@ public class JackCompiler {
 	 * - creates and uses a CompilationEngine to compile the
 	 * 		input from the tokenizer into the output .xml file. 
 	 * 
+	 * The file or directory name may be preceded by the following options:
+	 * - -nointrinsics	disables inline expansion of Math.multiply,
+	 * 					Math.divide, Memory.peek and Memory.poke
+	 * - -O0, -O1, -O2	sets the optimization level, which is 0 by default
+	 * - -stats			prints the time taken by each optimization pass
+	 * 					and the number of commands it saved
+	 * - -verbose		prints the commands saved by each optimization pass
+	 * 					in each subroutine
+	 * - -instrument map	adds profile counters to the generated code, and
+	 * 					writes the counter map needed to build a profile
+	 * 					from their values to the given file
+	 * - -profile file	uses the given profile of an instrumented run to
+	 * 					guide optimization
+	 * - -asm			also translates the compiled code to Hack assembly,
+	 * 					written to xxx.asm for a single file, or for a
+	 * 					directory to a file named after it in the directory,
+	 * 					starting with bootstrap code which calls Sys.init
+	 * - -hack			also assembles the translated code into xxx.hack,
+	 * 					named in the same way as with -asm
+	 * - -rom			also assembles the translated code into a raw ROM
+	 * 					image, xxx.rom
+	 * - -registers		translates with the RegisterTranslator, which keeps
+	 * 					the top of the stack in D, for -asm, -hack and -rom
+	 * - -g				writes the source position of each VM command to
+	 * 					a debug info file, xxx.dbg, named in the same way
+	 * 					as with -asm
+	 * 
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		if (args.length != 1) {
+		if (args.length < 1) {
 			throw new RuntimeException("Argument must be a single file or directory name");
 		}
 		
-		String fileOrDirectory = args[0];
+		File mapFile = null;
+		File profileFile = null;
+		boolean translate = false;
+		boolean assemble = false;
+		boolean raw = false;
+		boolean registers = false;
+		
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("-nointrinsics")) {
+				useIntrinsics = false;
+			} else if (args[i].matches("-O[0-9]")) {
+				passManager = new PassManager(args[i].charAt(2) - '0');
+			} else if (args[i].equals("-stats")) {
+				printStats = true;
+			} else if (args[i].equals("-verbose")) {
+				verbose = true;
+			} else if (args[i].equals("-instrument") && i < args.length - 2) {
+				mapFile = new File(args[++i]);
+			} else if (args[i].equals("-profile") && i < args.length - 2) {
+				profileFile = new File(args[++i]);
+			} else if (args[i].equals("-asm")) {
+				translate = true;
+			} else if (args[i].equals("-hack")) {
+				assemble = true;
+			} else if (args[i].equals("-rom")) {
+				assemble = true;
+				raw = true;
+			} else if (args[i].equals("-registers")) {
+				registers = true;
+			} else if (args[i].equals("-g")) {
+				sourceMap = new SourceMap();
+			} else {
+				throw new RuntimeException("Unknown option " + args[i]);
+			}
+		}
+		
+		passManager.setIntrinsicsEnabled(useIntrinsics);
+		if (verbose) {
+			passManager.setLog(System.out);
+		}
+		
+		ProfileInstrumentationPass instrumentation = null;
+		try {
+			if (profileFile != null) {
+				passManager.setProfile(Profile.read(profileFile));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		if (mapFile != null) {
+			instrumentation = new ProfileInstrumentationPass();
+			passManager.setInstrumentation(instrumentation);
+		}
+		
+		String fileOrDirectory = args[args.length - 1];
 		ArrayList<File> jackFiles = new ArrayList<File>();
+		String programPath = null;
 		
 		if (fileOrDirectory.endsWith(".jack")) {
 			String filename = fileOrDirectory;
 			jackFiles.add(new File(filename));
+			programPath = filename.replace(".jack", "");
 			
 		} else {
 			File directory = new File(fileOrDirectory);
@@ -117,10 +246,85 @@ public class JackCompiler {
 			}
 		}
 		
+		if (programPath == null) {
+			try {
+				File directory = new File(fileOrDirectory).getCanonicalFile();
+				programPath = new File(directory, directory.getName()).getPath();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+		
+		HackAssembler assembler = null;
+		if (translate || assemble) {
+			try {
+				File asmFile = new File(programPath + ".asm");
+				if (registers) {
+					translator = translate ? new RegisterTranslator(asmFile) : new RegisterTranslator();
+				} else {
+					translator = translate ? new VMTranslator(asmFile) : new VMTranslator();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			if (assemble) {
+				assembler = new HackAssembler();
+				translator.setAssembler(assembler);
+			}
+			if (!fileOrDirectory.endsWith(".jack")) {
+				translator.writeBootstrap("Sys.init");
+			}
+		}
+		
 		for (File jackFile: jackFiles) {
 			generateVMFile(jackFile);
 		}
-
+		
+		if (translator != null) {
+			translator.close();
+		}
+		
+		if (assembler != null) {
+			try {
+				assembler.assemble();
+				if (raw) {
+					assembler.writeRom(new File(programPath + ".rom"));
+				} else {
+					assembler.writeHack(new File(programPath + ".hack"));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if (sourceMap != null) {
+			try {
+				sourceMap.write(new File(programPath + ".dbg"));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if (instrumentation != null) {
+			try {
+				instrumentation.writeMap(mapFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if (printStats) {
+			passManager.report(System.out);
+			if (translator != null) {
+				translator.report(System.out);
+			}
+			if (assembler != null) {
+				assembler.report(System.out);
+			}
+		}
+		
 	}
 	
 	
@@ -0,0 +1,292 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Runs a program translated into JVM classes by the VMClassWriter, and
+ * provides the RAM and native functions which those classes use.
+ *
+ * As with the VMInterpreter, some functions are provided natively, in
+ * place of any VM definition:
+ *  - Sys.halt		stops the program
+ *  - Sys.wait		returns at once
+ *  - Sys.error		stops the program, recording the error code
+ *  - Profile.count	increments a counter
+ *  - Keyboard.keyPressed	returns each key of a given string in turn,
+ *  				for KEY_POLLS calls, and then 0 for as many
+ *
+ * The state is static, so only one program can be run at a time.
+ */
+public class JackRuntime {
+	
+	public static final int RAM_SIZE = 32768;
+	public static final int KEYBOARD = 24576;
+	
+	/** The package of the translated classes. */
+	public static final String PACKAGE = "jack";
+	
+	/** The number of calls of Keyboard.keyPressed a key is held or released for. */
+	public static final int KEY_POLLS = 64;
+	
+	/** The size of the stack of the thread which runs the program. */
+	private static final long STACK_SIZE = 1L << 28;
+	
+	/** The RAM, holding the statics, temp and the heap. */
+	public static final int[] RAM = new int[RAM_SIZE];
+	
+	/** The native functions: their names, methods and numbers of arguments. */
+	private static final String[] NATIVE_FUNCTIONS = {
+		"Sys.halt", "Sys.wait", "Sys.error", ProfileInstrumentationPass.COUNTER_FUNCTION,
+		"Keyboard.keyPressed"
+	};
+	private static final String[] NATIVE_METHODS = {
+		"sysHalt", "sysWait", "sysError", "profileCount", "keyPressed"
+	};
+	private static final int[] NATIVE_ARGS = { 0, 1, 1, 1, 0 };
+	
+	/** Thrown to unwind the program when it stops. */
+	public static class Halt extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+	
+	private static int errorCode = -1;
+	private static long[] counters = new long[ProfileInstrumentationPass.MAX_COUNTERS];
+	private static int[] keys = new int[0];
+	private static long polls = 0;
+	private static long nanos = 0;
+	
+	public static int sysHalt() {
+		throw new Halt();
+	}
+	
+	public static int sysWait(int duration) {
+		return 0;
+	}
+	
+	public static int sysError(int code) {
+		errorCode = code;
+		throw new Halt();
+	}
+	
+	public static int profileCount(int counter) {
+		counters[counter]++;
+		return 0;
+	}
+	
+	public static int keyPressed() {
+		long slice = polls++ / KEY_POLLS;
+		int key = slice / 2 < keys.length && slice % 2 == 0 ? keys[(int) (slice / 2)] : 0;
+		RAM[KEYBOARD] = key;
+		return key;
+	}
+	
+	/**
+	 * Returns the number of the native function with the given name, or
+	 * -1 if it is not native.
+	 */
+	private static int nativeIndex(String function) {
+		for (int i = 0; i < NATIVE_FUNCTIONS.length; i++) {
+			if (NATIVE_FUNCTIONS[i].equals(function)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the name of the method of JackRuntime which implements the
+	 * given function, or null if it is not native.
+	 * @param function	The full name of the function.
+	 */
+	public static String nativeMethod(String function) {
+		int index = nativeIndex(function);
+		return index < 0 ? null : NATIVE_METHODS[index];
+	}
+	
+	/**
+	 * Returns the number of arguments of the given native function.
+	 * @param function	The full name of the native function.
+	 */
+	public static int nativeArgs(String function) {
+		return NATIVE_ARGS[nativeIndex(function)];
+	}
+	
+	/**
+	 * Sets the keys which Keyboard.keyPressed returns in turn, using the
+	 * Jack key codes, e.g. 128 for newline.
+	 * @param keyCodes	The key codes.
+	 */
+	public static void setKeys(int[] keyCodes) {
+		keys = keyCodes;
+	}
+	
+	/**
+	 * Returns the code passed to Sys.error, or -1 if it was not called.
+	 */
+	public static int getErrorCode() {
+		return errorCode;
+	}
+	
+	public static long[] getCounters() {
+		return counters;
+	}
+	
+	/**
+	 * Loads the translated classes from the given directory and calls the
+	 * entry function, on a thread with a large stack, until it returns
+	 * or the program stops.
+	 * @param classDirectory	The directory the classes were written to.
+	 * @param entry				The full name of the function to call.
+	 * @throws IOException
+	 */
+	public static void run(File classDirectory, String entry) throws IOException {
+		URLClassLoader loader = new URLClassLoader(new URL[] {classDirectory.toURI().toURL()},
+													JackRuntime.class.getClassLoader());
+		final MethodHandle handle;
+		try {
+			String className = entry.substring(0, entry.indexOf('.'));
+			String method = entry.substring(entry.indexOf('.') + 1);
+			Class<?> entryClass = loader.loadClass(PACKAGE + "." + className);
+			handle = MethodHandles.publicLookup().findStatic(entryClass, method,
+															MethodType.methodType(int.class));
+		} catch (ReflectiveOperationException e) {
+			loader.close();
+			throw new RuntimeException("Entry function not found: " + entry, e);
+		}
+		
+		final Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(null, new Runnable() {
+			public void run() {
+				try {
+					handle.invoke();
+				} catch (Halt e) {
+					return;
+				} catch (Throwable e) {
+					failure[0] = e;
+				}
+			}
+		}, "jack", STACK_SIZE);
+		
+		long start = System.nanoTime();
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		nanos += System.nanoTime() - start;
+		loader.close();
+		
+		if (failure[0] != null) {
+			throw new RuntimeException("Program failed: " + failure[0], failure[0]);
+		}
+	}
+	
+	/**
+	 * Takes a directory of classes written by the VMClassWriter, and runs
+	 * them, starting at Sys.init if it is defined, or Main.main otherwise.
+	 * The directory may be preceded by the following options:
+	 * - -keys text			presses the keys of the text in turn, with \n
+	 * 						for newline
+	 * - -set a=v,b=w		sets the given RAM addresses before running
+	 * - -ram a,b-c			prints the values of the given RAM addresses
+	 * 						once the program stops
+	 * - -screen file		writes the screen to a .pbm image once the
+	 * 						program stops
+	 * - -profile map file	builds a profile of the run of a program
+	 * 						instrumented with the given counter map, and
+	 * 						writes it to the given file
+	 * - -stats				prints the time taken
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String keyText = "";
+		String settings = null;
+		String addresses = null;
+		File screenFile = null;
+		File mapFile = null;
+		File profileFile = null;
+		boolean printStats = false;
+		
+		int i = 0;
+		while (i < args.length - 1) {
+			if (args[i].equals("-keys")) {
+				keyText = args[++i].replace("\\n", "\n");
+			} else if (args[i].equals("-set")) {
+				settings = args[++i];
+			} else if (args[i].equals("-ram")) {
+				addresses = args[++i];
+			} else if (args[i].equals("-screen")) {
+				screenFile = new File(args[++i]);
+			} else if (args[i].equals("-profile")) {
+				mapFile = new File(args[++i]);
+				profileFile = new File(args[++i]);
+			} else if (args[i].equals("-stats")) {
+				printStats = true;
+			} else {
+				throw new RuntimeException("Unknown option " + args[i]);
+			}
+			i++;
+		}
+		
+		if (i != args.length - 1) {
+			throw new RuntimeException("Argument must be a directory of translated classes");
+		}
+		
+		File classDirectory = new File(args[i]);
+		String entry = new File(classDirectory, PACKAGE + "/Sys.class").exists()
+						? "Sys.init" : "Main.main";
+		
+		int[] keyCodes = new int[keyText.length()];
+		for (int k = 0; k < keyCodes.length; k++) {
+			keyCodes[k] = keyText.charAt(k) == '\n' ? 128 : keyText.charAt(k);
+		}
+		setKeys(keyCodes);
+		
+		if (settings != null) {
+			for (String setting: settings.split(",")) {
+				String[] parts = setting.split("=");
+				RAM[Integer.parseInt(parts[0])] = Integer.parseInt(parts[1]);
+			}
+		}
+		
+		try {
+			run(classDirectory, entry);
+			
+			if (errorCode >= 0) {
+				System.out.println("Sys.error " + errorCode);
+			}
+			
+			if (addresses != null) {
+				for (String range: addresses.split(",")) {
+					String[] bounds = range.split("-");
+					int first = Integer.parseInt(bounds[0]);
+					int last = Integer.parseInt(bounds[bounds.length - 1]);
+					for (int address = first; address <= last; address++) {
+						System.out.println(String.format("RAM[%d] = %d", address, RAM[address]));
+					}
+				}
+			}
+			
+			if (screenFile != null) {
+				VMInterpreter.writeScreen(RAM, screenFile);
+			}
+			if (mapFile != null) {
+				Profile.fromCounters(mapFile, counters).write(profileFile);
+			}
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		if (printStats) {
+			System.out.println(String.format("Ran in %.3f ms", nanos / 1e6));
+		}
+	}
+	
+}
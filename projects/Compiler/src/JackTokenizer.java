@@ -3,18 +3,46 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 
+/**
+ * Splits jack source code into tokens.
+ * The input is never copied: the tokenizer keeps the position of the
+ * next character to read, and the line and column of the current token,
+ * which it counts as it passes over newlines.
+ */
 public class JackTokenizer {
 	
-	private final ArrayList<Character> SYMBOLS = new ArrayList<Character>(Arrays.asList(
-									'{', '}', '(', ')', '[', ']', '.', ',', ';',
-									'+', '-', '*', '/', '&', '|', '<', '>', '=', '~'));
+	private static final String SYMBOLS = "{}()[].,;+-*/&|<>=~";
 	
-	private HashMap<String, String> SPECIAL_SYMBOLS = new HashMap<String, String>();
+	private static final HashMap<String, String> SPECIAL_SYMBOLS = new HashMap<String, String>();
+	
+	private static final HashMap<String, Keyword> KEYWORDS = new HashMap<String, Keyword>();
+	
+	static {
+		SPECIAL_SYMBOLS.put("<", "&lt;");
+		SPECIAL_SYMBOLS.put(">", "&gt;");
+		SPECIAL_SYMBOLS.put("\"", "&quot;");
+		SPECIAL_SYMBOLS.put("&", "&amp;");
 		
-	private String input;
+		for (Keyword keyword: Keyword.values()) {
+			KEYWORDS.put(keyword.name().toLowerCase(), keyword);
+		}
+	}
+	
+	private final String input;
+	
+	/** The position of the next character to read. */
+	private int position = 0;
+	
+	/** The line of the next character to read, and the position its line starts at. */
+	private int line = 1;
+	private int lineStart = 0;
+	
+	/** The position, line and column of the current token. */
+	private int tokenStart;
+	private int tokenLine;
+	private int tokenColumn;
 	
 	/**
 	 * The type of the current token.
@@ -34,22 +62,48 @@ public class JackTokenizer {
 	 * @throws IOException 
 	 */
 	public JackTokenizer(File inputFile) throws IOException {
-		SPECIAL_SYMBOLS.put("<", "&lt;");
-		SPECIAL_SYMBOLS.put(">", "&gt;");
-		SPECIAL_SYMBOLS.put("\"", "&quot;");
-		SPECIAL_SYMBOLS.put("&", "&amp;");
+		this(readFile(inputFile));
+	}
+	
+	/**
+	 * Gets ready to tokenize the given jack source code.
+	 * @param input		The source code to be tokenized.
+	 */
+	public JackTokenizer(String input) {
+		this.input = input;
 		
+		passWhiteSpace();
+	}
+	
+	/**
+	 * Creates a tokenizer which reads the same input as the given one,
+	 * starting from its next character.
+	 * @param other		The tokenizer to start from.
+	 */
+	private JackTokenizer(JackTokenizer other) {
+		this.input = other.input;
+		this.position = other.position;
+		this.line = other.line;
+		this.lineStart = other.lineStart;
+	}
+	
+	/**
+	 * Reads the contents of the given file.
+	 * @param inputFile		The file to read.
+	 * @return				The contents of the file.
+	 * @throws IOException
+	 */
+	private static String readFile(File inputFile) throws IOException {
 		BufferedReader reader = new BufferedReader(new FileReader(inputFile));
 		
-		input = "";
+		StringBuilder input = new StringBuilder();
 		String line = null;
 		while ((line = reader.readLine()) != null) {
-			input += line + "\n";
+			input.append(line).append("\n");
 		}
 		
 		reader.close();
-		
-		passWhiteSpace();
+		return input.toString();
 	}
 	
 	/**
@@ -59,7 +113,7 @@ public class JackTokenizer {
 	 */
 	public boolean hasMoreTokens() {
 		passWhiteSpace();
-		return input.length() > 0;
+		return position < input.length();
 	}
 	
 	/**
@@ -72,9 +126,12 @@ public class JackTokenizer {
 	public void advance() {
 		passWhiteSpace();
 		
-		char firstChar = input.charAt(0);
+		tokenStart = position;
+		tokenLine = line;
+		tokenColumn = position - lineStart + 1;
+		char firstChar = input.charAt(position);
 		
-		if (SYMBOLS.contains(firstChar)) {
+		if (SYMBOLS.indexOf(firstChar) >= 0) {
 			readSymbol();
 			
 		} else if (firstChar == '"') {
@@ -91,22 +148,112 @@ public class JackTokenizer {
 		}
 	}
 	
+	/**
+	 * Splits the rest of the input, starting with the current token, into
+	 * the subroutine declarations, so that they can be tokenized
+	 * separately. Afterwards the current token is the first one after the
+	 * subroutine declarations, which should be the } closing the class.
+	 * Should only be called when the current token is the keyword starting
+	 * the first subroutine declaration.
+	 * @return	A tokenizer for each subroutine declaration, in order,
+	 * 			which starts at the declaration and reads on to the end
+	 * 			of the input, so that its lines and columns are those of
+	 * 			the whole input.
+	 */
+	public ArrayList<JackTokenizer> splitSubroutines() {
+		ArrayList<JackTokenizer> subroutines = new ArrayList<JackTokenizer>();
+		position = tokenStart;
+		line = tokenLine;
+		lineStart = tokenStart - tokenColumn + 1;
+		subroutines.add(new JackTokenizer(this));
+		
+		int depth = 0;
+		int i = position;
+		
+		while (i < input.length()) {
+			char c = input.charAt(i);
+			
+			if (c == '"') {
+				i = indexAfter("\"", i + 1);
+				
+			} else if (input.startsWith("//", i)) {
+				i = indexAfter("\n", i);
+				
+			} else if (input.startsWith("/*", i)) {
+				i = indexAfter("*/", i + 2);
+				
+			} else if (c == '}' && depth == 0) {
+				// the end of the class
+				break;
+				
+			} else {
+				if (c == '{') {
+					depth++;
+				} else if (c == '}') {
+					depth--;
+					if (depth == 0) {
+						moveTo(i + 1);
+						subroutines.add(new JackTokenizer(this));
+					}
+				}
+				i++;
+			}
+		}
+		
+		// the last tokenizer would start after the last subroutine
+		subroutines.remove(subroutines.size() - 1);
+		advance();
+		return subroutines;
+	}
+	
+	/**
+	 * Returns the index just after the first occurrence of the given
+	 * string in the input at or after the given index, or the length of
+	 * the input if there is none.
+	 */
+	private int indexAfter(String string, int from) {
+		int index = input.indexOf(string, from);
+		return index < 0 ? input.length() : index + string.length();
+	}
+	
+	/**
+	 * Moves forward to the given position, counting the lines passed.
+	 */
+	private void moveTo(int end) {
+		for (int i = position; i < end; i++) {
+			if (input.charAt(i) == '\n') {
+				line++;
+				lineStart = i + 1;
+			}
+		}
+		position = end;
+	}
+	
 	/**
 	 * Reads past any leading whitespace and comments in the input stream.
 	 */
 	private void passWhiteSpace() {
-		boolean done = false;
+		int length = input.length();
 		
-		while (!done) {
-			input = input.trim();
-			if (input.startsWith("//")) {
-				input = input.substring(input.indexOf("\n") + 1);
+		while (position < length) {
+			char c = input.charAt(position);
+			if (c == '\n') {
+				position++;
+				line++;
+				lineStart = position;
+				
+			} else if (c <= ' ') {
+				position++;
 				
-			} else if (input.startsWith("/**")) {
-				input = input.substring(input.indexOf("*/") + 2);
+			} else if (input.startsWith("//", position)) {
+				int end = input.indexOf('\n', position);
+				position = end < 0 ? length : end;
+				
+			} else if (input.startsWith("/*", position)) {
+				moveTo(indexAfter("*/", position + 2));
 				
 			} else {
-				done = true;
+				return;
 			}
 		}
 	}
@@ -120,8 +267,8 @@ public class JackTokenizer {
 	 */
 	private void readSymbol() {
 		currentTokenType = TokenType.SYMBOL;
-		String symbol = input.substring(0, 1);
-		input = input.substring(1);
+		String symbol = input.substring(position, position + 1);
+		position++;
 		
 		if (SPECIAL_SYMBOLS.containsKey(symbol)) {
 			symbol = SPECIAL_SYMBOLS.get(symbol);
@@ -139,9 +286,9 @@ public class JackTokenizer {
 	 */
 	private void readStringConstant() {
 		currentTokenType = TokenType.STRING_CONSTANT;
-		int closingQuoteIndex = input.indexOf("\"", 1);
-		currentStringValue = input.substring(1, closingQuoteIndex);
-		input = input.substring(closingQuoteIndex + 1);
+		int closingQuoteIndex = input.indexOf('"', position + 1);
+		currentStringValue = input.substring(position + 1, closingQuoteIndex);
+		position = closingQuoteIndex + 1;
 	}
 	
 	/**
@@ -151,15 +298,14 @@ public class JackTokenizer {
 	 * a digit.
 	 */
 	private void readIntConstant() {
-		int i = 0;
+		int i = position;
 		while (i < input.length() && Character.isDigit(input.charAt(i))) {
 			i++;
 		}
 		
 		currentTokenType = TokenType.INT_CONSTANT;
-		currentIntValue = Integer.parseInt(input.substring(0, i));
-		input = input.substring(i);
-		
+		currentIntValue = Integer.parseInt(input.substring(position, i));
+		position = i;
 	}
 	
 	/**
@@ -171,24 +317,42 @@ public class JackTokenizer {
 	 * letter or an _.
 	 */
 	private void readKeywordOrIdentifier() {
-		int i = 0;
+		int i = position;
 		while (i < input.length()
 			   && (Character.isLetterOrDigit(input.charAt(i))
 			       || input.charAt(i) == '_')) {
 			i++;
 		}
 		
-		String token = input.substring(0, i);
-		input = input.substring(i);
+		String token = input.substring(position, i);
+		position = i;
 		
-		try {
-			currentKeyword = Keyword.valueOf(token.toUpperCase());
+		Keyword keyword = KEYWORDS.get(token);
+		if (keyword != null) {
+			currentKeyword = keyword;
 			currentTokenType = TokenType.KEYWORD;
 			
-		} catch (IllegalArgumentException e) {
+		} else {
 			currentIdentifier = token;
 			currentTokenType = TokenType.IDENTIFIER;
-		}		
+		}
+	}
+	
+	/**
+	 * Returns the line of the current token, starting from 1.
+	 * @return	The line of the current token.
+	 */
+	public int line() {
+		return tokenLine;
+	}
+	
+	/**
+	 * Returns the column of the first character of the current token,
+	 * starting from 1. A tab counts as a single column.
+	 * @return	The column of the current token.
+	 */
+	public int column() {
+		return tokenColumn;
 	}
 	
 	/**
@@ -0,0 +1,78 @@
+/**
+ * Retargets jumps to a label which is immediately followed by a goto,
+ * so that they jump straight to the final destination, and removes
+ * gotos to the label which immediately follows them.
+ * These patterns occur when an if statement ends a while loop body,
+ * or when one if statement ends the clause of another.
+ */
+public class JumpThreadingPass implements OptimizationPass {
+	
+	public String getName() {
+		return "jump-threading";
+	}
+	
+	public void run(VMFunction function) {
+		ControlFlowGraph cfg = new ControlFlowGraph(function);
+		
+		for (int i = 0; i < function.size(); i++) {
+			Opcode opcode = function.opcode(i);
+			if (opcode == Opcode.GOTO || opcode == Opcode.IF_GOTO) {
+				String target = finalTarget(cfg, function.symbol(i));
+				function.set(i, opcode, 0, 0, target);
+			}
+		}
+		
+		boolean[] keep = new boolean[function.size()];
+		for (int i = 0; i < function.size(); i++) {
+			keep[i] = !(function.opcode(i) == Opcode.GOTO
+						&& jumpsToNext(function, i));
+		}
+		function.retain(keep);
+	}
+	
+	/**
+	 * Follows the chain of blocks which consist only of labels and a
+	 * goto, starting at the given label, and returns the label at the
+	 * end of the chain. Stops if the chain loops back on itself.
+	 * @param cfg		The control flow graph of the function.
+	 * @param label		The label jumped to.
+	 * @return			The label control finally ends up at.
+	 */
+	private String finalTarget(ControlFlowGraph cfg, String label) {
+		VMFunction function = cfg.getFunction();
+		String target = label;
+		
+		for (int steps = 0; steps < cfg.numBlocks(); steps++) {
+			int block = cfg.blockOfLabel(target);
+			int i = cfg.firstCommand(block);
+			while (i < cfg.lastCommand(block) && function.opcode(i) == Opcode.LABEL) {
+				i++;
+			}
+			
+			if (i != cfg.lastCommand(block) || function.opcode(i) != Opcode.GOTO) {
+				break;
+			}
+			target = function.symbol(i);
+			if (target.equals(label)) {
+				break;
+			}
+		}
+		
+		return target;
+	}
+	
+	/**
+	 * Returns true if the i'th command jumps to a label which is
+	 * defined directly after it, possibly among other labels.
+	 */
+	private boolean jumpsToNext(VMFunction function, int i) {
+		for (int j = i + 1; j < function.size()
+				&& function.opcode(j) == Opcode.LABEL; j++) {
+			if (function.symbol(j).equals(function.symbol(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+}
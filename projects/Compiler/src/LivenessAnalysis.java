@@ -0,0 +1,68 @@
+import java.util.BitSet;
+
+/**
+ * Finds the entries of a segment, normally local or temp, which are live
+ * at the start and end of each basic block of a function, that is, whose
+ * current value may still be read by a later push before it is
+ * overwritten by a pop.
+ * Bit i of each set of facts represents entry i of the segment.
+ * Calls are assumed not to read or write the segment, which holds for
+ * local, and for temp in the code generated by the CodeGenerator.
+ */
+public class LivenessAnalysis extends DataflowAnalysis {
+	
+	private Segment segment;
+	
+	/**
+	 * Creates a new liveness analysis over the given control flow graph.
+	 * solve() must be called before the results are used.
+	 * @param cfg		The control flow graph of the function to analyze.
+	 * @param segment	The segment whose entries are analyzed.
+	 */
+	public LivenessAnalysis(ControlFlowGraph cfg, Segment segment) {
+		super(cfg, false, true);
+		this.segment = segment;
+	}
+	
+	/**
+	 * Nothing is live after the function returns.
+	 */
+	protected BitSet boundary() {
+		return new BitSet();
+	}
+	
+	protected BitSet initial() {
+		return new BitSet();
+	}
+	
+	protected BitSet transfer(int block, BitSet input) {
+		BitSet live = (BitSet) input.clone();
+		VMFunction function = cfg.getFunction();
+		
+		for (int i = cfg.lastCommand(block); i >= cfg.firstCommand(block); i--) {
+			step(function, i, segment, live);
+		}
+		
+		return live;
+	}
+	
+	/**
+	 * Updates the set of live entries after the i'th command to give
+	 * the set of live entries before it.
+	 * @param function	The function being analyzed.
+	 * @param i			The index of the command.
+	 * @param segment	The segment whose entries are tracked.
+	 * @param live		The entries live after the command, which is
+	 * 					updated to those live before it.
+	 */
+	public static void step(VMFunction function, int i, Segment segment, BitSet live) {
+		if (function.accesses(i, segment)) {
+			if (function.opcode(i) == Opcode.POP) {
+				live.clear(function.index(i));
+			} else {
+				live.set(function.index(i));
+			}
+		}
+	}
+	
+}
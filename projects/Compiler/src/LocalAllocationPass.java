@@ -0,0 +1,96 @@
+import java.util.BitSet;
+
+/**
+ * Shrinks the frame of a function by letting local variables whose
+ * lifetimes do not overlap share the same local segment index, and by
+ * dropping locals which are never used.
+ * Two locals interfere if one is written while the other is live.
+ * Every local is treated as written with 0 on entry to the function, so
+ * that a local which is read before it is assigned still reads 0.
+ * Locals are then greedily given the lowest index not already given to
+ * a local they interfere with.
+ */
+public class LocalAllocationPass implements OptimizationPass {
+	
+	public String getName() {
+		return "local-allocation";
+	}
+	
+	public void run(VMFunction function) {
+		int numLocals = function.getNumLocals();
+		if (numLocals == 0) {
+			return;
+		}
+		
+		ControlFlowGraph cfg = new ControlFlowGraph(function);
+		LivenessAnalysis liveness = new LivenessAnalysis(cfg, Segment.LOCAL);
+		liveness.solve();
+		
+		BitSet[] interference = new BitSet[numLocals];
+		for (int local = 0; local < numLocals; local++) {
+			interference[local] = new BitSet(numLocals);
+		}
+		BitSet used = new BitSet(numLocals);
+		
+		for (int block = 0; block < cfg.numBlocks(); block++) {
+			BitSet live = (BitSet) liveness.getOut(block).clone();
+			
+			for (int i = cfg.lastCommand(block); i >= cfg.firstCommand(block); i--) {
+				if (function.accesses(i, Segment.LOCAL)) {
+					used.set(function.index(i));
+					if (function.opcode(i) == Opcode.POP) {
+						addInterference(interference, function.index(i), live);
+					}
+				}
+				LivenessAnalysis.step(function, i, Segment.LOCAL, live);
+			}
+		}
+		
+		// every local is initialized to 0 on entry to the function
+		BitSet liveOnEntry = liveness.getIn(0);
+		for (int local = 0; local < numLocals; local++) {
+			addInterference(interference, local, liveOnEntry);
+		}
+		
+		int[] newIndex = new int[numLocals];
+		int newNumLocals = 0;
+		for (int local = 0; local < numLocals; local++) {
+			if (!used.get(local)) {
+				continue;
+			}
+			
+			BitSet taken = new BitSet();
+			for (int other = 0; other < local; other++) {
+				if (used.get(other) && interference[local].get(other)) {
+					taken.set(newIndex[other]);
+				}
+			}
+			
+			newIndex[local] = taken.nextClearBit(0);
+			newNumLocals = Math.max(newNumLocals, newIndex[local] + 1);
+		}
+		
+		for (int i = 0; i < function.size(); i++) {
+			if (function.accesses(i, Segment.LOCAL)) {
+				function.set(i, function.opcode(i), Segment.LOCAL.ordinal(),
+								newIndex[function.index(i)], null);
+			}
+		}
+		
+		function.setNumLocals(newNumLocals);
+	}
+	
+	/**
+	 * Records that the given local interferes with every other local
+	 * in the given live set, in both directions.
+	 */
+	private void addInterference(BitSet[] interference, int local, BitSet live) {
+		for (int other = live.nextSetBit(0); other >= 0; other = live.nextSetBit(other + 1)) {
+			if (other != local) {
+				interference[local].set(other);
+				interference[other].set(local);
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,526 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Moves values computed in every iteration of a loop, but which are the
+ * same in every iteration, such as the address of a row of the screen or
+ * width * 16, out of the loop into a preheader just before its first
+ * command, saving each value in a new local which the loop pushes instead.
+ *
+ * A loop is the range of commands from a label to the last goto or if-goto
+ * which jumps back to it, such as those generated for a while statement.
+ * Loops which can be entered other than by falling into their label are
+ * left alone.
+ * A value is invariant if the commands computing it are contiguous, have
+ * no side effects other than setting temp 0 while computing it, and only
+ * read:
+ *  - constants
+ *  - locals and arguments which the loop never pops to
+ *  - static and this variables, if the loop has no calls and never pops
+ *    to static, this or that (nor to pointer 0, for this)
+ *  - the result of calling a pure function on two invariant values, if
+ *    the loop only calls pure functions and never pops to static,
+ *    this or that, and the call is made every time the loop is entered,
+ *    before its first jump, so is never made when it would not have been
+ * Values which only negate constants are left alone, as they are as
+ * cheap to compute as a local is to push.
+ * That variables are never invariant, since the pointer may be to the
+ * screen or keyboard, which change without the program writing them.
+ * A function is pure if its body in the program never pops to static,
+ * this or that, never pushes that, and only calls pure functions, as
+ * found by findPureFunctions for a whole program. Without a program, as
+ * when optimizing one class at a time, no function is pure.
+ * Locals and arguments are not treated as changed by popping to that,
+ * since arrays never point into the stack.
+ * Each value moved is saved in a new local, unless the loop pops it to
+ * a local which is popped nowhere else, is not read before the pop, and
+ * is dead when the loop exits, such as the local a value moved out of an
+ * inner loop was saved in. Then the pop moves with the value. Inner loops
+ * are handled first, so a value invariant in several nested loops ends
+ * up before the outermost of them, in the local it was first saved in.
+ * The LocalAllocationPass later lets the new locals share slots.
+ */
+public class LoopInvariantCodeMotionPass implements OptimizationPass {
+	
+	/**
+	 * The functions which compute a value without writing memory, so
+	 * calls to them can be moved out of a loop.
+	 */
+	private HashSet<String> pureFunctions = new HashSet<String>();
+	
+	private VMFunction function;
+	
+	/**
+	 * The first command computing the value pushed by each command, or -1
+	 * if the value is not invariant or computed by contiguous commands.
+	 */
+	private int[] starts;
+	
+	public String getName() {
+		return "loop-invariant-code-motion";
+	}
+	
+	/**
+	 * Sets the functions which are pure, so calls to them can be moved out
+	 * of loops.
+	 * @param pureFunctions		The names of the pure functions.
+	 */
+	public void setPureFunctions(HashSet<String> pureFunctions) {
+		this.pureFunctions = pureFunctions;
+	}
+	
+	/**
+	 * Finds the functions of the program which never pop to static, this
+	 * or that, never push that, and only call other such functions. Native functions, and
+	 * functions not defined in the program, are never pure.
+	 * @param program	Every function of the program.
+	 * @return			The names of the pure functions.
+	 */
+	public static HashSet<String> findPureFunctions(ArrayList<VMFunction> program) {
+		HashSet<String> pure = new HashSet<String>();
+		for (VMFunction function: program) {
+			if (!VMInterpreter.isNative(function.getName())) {
+				pure.add(function.getName());
+			}
+		}
+		
+		// removing a function can make its callers impure, so repeat until none are removed
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (VMFunction function: program) {
+				if (pure.contains(function.getName()) && !isPureBody(function, pure)) {
+					pure.remove(function.getName());
+					changed = true;
+				}
+			}
+		}
+		
+		return pure;
+	}
+	
+	/**
+	 * Returns true if the given function never pops to static, this or
+	 * that, never pushes that, and only calls the given pure functions.
+	 */
+	private static boolean isPureBody(VMFunction function, HashSet<String> pure) {
+		for (int i = 0; i < function.size(); i++) {
+			if (function.opcode(i) == Opcode.CALL && !pure.contains(function.symbol(i))) {
+				return false;
+			}
+			if (function.opcode(i) == Opcode.POP
+					&& (function.segment(i) == Segment.STATIC
+						|| function.segment(i) == Segment.THIS
+						|| function.segment(i) == Segment.THAT)) {
+				return false;
+			}
+			if (function.accesses(i, Segment.THAT)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public void run(VMFunction function) {
+		this.function = function;
+		
+		// each change hoists at least one command out of a loop, so this ends
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int[] loop: findLoops()) {
+				if (hoist(loop[0], loop[1])) {
+					changed = true;
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Finds the loops of the function which can only be entered by
+	 * falling into their first label.
+	 * @return	The first and last command of each loop, from the
+	 * 			smallest loop to the largest.
+	 */
+	private ArrayList<int[]> findLoops() {
+		HashMap<String, Integer> labels = new HashMap<String, Integer>();
+		for (int i = 0; i < function.size(); i++) {
+			if (function.opcode(i) == Opcode.LABEL) {
+				labels.put(function.symbol(i), i);
+			}
+		}
+		
+		HashMap<Integer, Integer> loopEnds = new HashMap<Integer, Integer>();
+		for (int i = 0; i < function.size(); i++) {
+			Opcode opcode = function.opcode(i);
+			if (opcode == Opcode.GOTO || opcode == Opcode.IF_GOTO) {
+				int target = labels.get(function.symbol(i));
+				if (target < i) {
+					loopEnds.put(target, i);
+				}
+			}
+		}
+		
+		ArrayList<int[]> loops = new ArrayList<int[]>();
+		for (int first: loopEnds.keySet()) {
+			int last = loopEnds.get(first);
+			if (first > 0 && function.opcode(first - 1).isJump()) {
+				continue;
+			}
+			
+			boolean singleEntry = true;
+			for (int i = 0; i < function.size(); i++) {
+				Opcode opcode = function.opcode(i);
+				if ((i < first || i > last)
+						&& (opcode == Opcode.GOTO || opcode == Opcode.IF_GOTO)) {
+					int target = labels.get(function.symbol(i));
+					singleEntry &= target < first || target > last;
+				}
+			}
+			
+			if (singleEntry) {
+				int position = 0;
+				while (position < loops.size()
+						&& loops.get(position)[1] - loops.get(position)[0] < last - first) {
+					position++;
+				}
+				loops.add(position, new int[] {first, last});
+			}
+		}
+		
+		return loops;
+	}
+	
+	/**
+	 * Moves each largest invariant value computed in the given loop
+	 * out of the loop, if there are any.
+	 * @param first		The index of the label starting the loop.
+	 * @param last		The index of the jump back to the label.
+	 * @return			true if any commands were moved.
+	 */
+	private boolean hoist(int first, int last) {
+		BitSet writtenLocals = new BitSet();
+		BitSet writtenArguments = new BitSet();
+		boolean writesMemory = false;
+		boolean writesThis = false;
+		int firstJump = last;
+		
+		for (int i = first; i <= last; i++) {
+			if (function.opcode(i).isJump() && i < firstJump) {
+				firstJump = i;
+			}
+			if (function.opcode(i) == Opcode.POP) {
+				switch (function.segment(i)) {
+					case LOCAL:
+						writtenLocals.set(function.index(i));
+						break;
+					case ARGUMENT:
+						writtenArguments.set(function.index(i));
+						break;
+					case STATIC:
+					case THIS:
+					case THAT:
+						writesMemory = true;
+						break;
+					case POINTER:
+						writesThis |= function.index(i) == 0;
+						break;
+					default:
+				}
+			} else if (function.opcode(i) == Opcode.CALL && !isPure(function.symbol(i))) {
+				writesMemory = true;
+			}
+		}
+		
+		starts = new int[function.size()];
+		ControlFlowGraph cfg = new ControlFlowGraph(function);
+		ArrayList<Integer> hoisted = new ArrayList<Integer>();
+		
+		for (int block = cfg.blockOf(first); block <= cfg.blockOf(last); block++) {
+			ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+			int blockFirst = cfg.firstCommand(block);
+			int blockLast = cfg.lastCommand(block);
+			
+			for (int i = blockFirst; i <= blockLast; i++) {
+				starts[i] = -1;
+				Opcode opcode = function.opcode(i);
+				
+				if (opcode == Opcode.PUSH) {
+					int index = function.index(i);
+					boolean invariant = false;
+					
+					switch (function.segment(i)) {
+						case CONSTANT:
+							invariant = true;
+							break;
+						case LOCAL:
+							invariant = !writtenLocals.get(index);
+							break;
+						case ARGUMENT:
+							invariant = !writtenArguments.get(index);
+							break;
+						case STATIC:
+							invariant = !writesMemory;
+							break;
+						case THIS:
+							invariant = !writesMemory && !writesThis;
+							break;
+						default:
+					}
+					
+					if (invariant) {
+						starts[i] = i;
+					}
+					stack.push(i);
+					
+				} else if (opcode == Opcode.POP) {
+					pop(stack);
+					
+				} else if (opcode == Opcode.ARITHMETIC) {
+					Command command = function.command(i);
+					
+					if (command == Command.NEG || command == Command.NOT) {
+						int operand = pop(stack);
+						if (operand == i - 1 && starts[operand] >= 0) {
+							starts[i] = starts[operand];
+						}
+						
+					} else if (isDoubling(i, blockFirst)) {
+						// pop temp 0, push temp 0, push temp 0, add
+						pop(stack);
+						pop(stack);
+						if (starts[i - 4] >= 0) {
+							starts[i] = starts[i - 4];
+						}
+						
+					} else {
+						starts[i] = binaryStart(i, pop(stack), pop(stack));
+					}
+					stack.push(i);
+					
+				} else if (opcode == Opcode.CALL) {
+					int numArgs = function.index(i);
+					if (numArgs == 2 && !writesMemory && isPure(function.symbol(i))) {
+						starts[i] = binaryStart(i, pop(stack), pop(stack));
+						if (i > firstJump) {
+							starts[i] = -1;
+						}
+					} else {
+						for (int arg = 0; arg < numArgs; arg++) {
+							pop(stack);
+						}
+					}
+					stack.push(i);
+					
+				} else if (opcode == Opcode.IF_GOTO) {
+					pop(stack);
+				}
+			}
+			
+			// take the largest invariant values, which end last
+			int i = blockLast;
+			while (i >= blockFirst) {
+				if (starts[i] >= 0 && starts[i] < i && !isConstant(starts[i], i)
+						&& sideEffectsDeadAfter(starts[i], i, blockLast)) {
+					hoisted.add(i);
+					i = starts[i];
+				}
+				i--;
+			}
+		}
+		
+		if (hoisted.isEmpty()) {
+			return false;
+		}
+		
+		VMFunction optimized = new VMFunction(function.getName(), function.getNumLocals());
+		int[] locals = new int[function.size()];
+		boolean[] reused = new boolean[function.size()];
+		for (int i = 0; i < function.size(); i++) {
+			locals[i] = -1;
+		}
+		
+		for (int i = 0; i < first; i++) {
+			optimized.add(function, i);
+		}
+		
+		LivenessAnalysis liveness = new LivenessAnalysis(cfg, Segment.LOCAL);
+		liveness.solve();
+		
+		for (int k = hoisted.size() - 1; k >= 0; k--) {
+			int end = hoisted.get(k);
+			for (int j = starts[end]; j <= end; j++) {
+				optimized.add(function, j);
+			}
+			
+			int local = savedLocal(end, first, last, cfg, liveness);
+			reused[starts[end]] = local >= 0;
+			if (local < 0) {
+				local = optimized.getNumLocals();
+				optimized.setNumLocals(local + 1);
+			}
+			locals[starts[end]] = local;
+			optimized.addPop(Segment.LOCAL, local);
+		}
+		
+		for (int i = first; i < function.size(); i++) {
+			if (reused[i]) {
+				// the local is now set before the loop
+				i = findEnd(hoisted, i) + 1;
+			} else if (locals[i] >= 0) {
+				optimized.addPush(Segment.LOCAL, locals[i]);
+				i = findEnd(hoisted, i);
+			} else {
+				optimized.add(function, i);
+			}
+		}
+		
+		function.replaceBody(optimized);
+		function.setNumLocals(optimized.getNumLocals());
+		return true;
+	}
+	
+	/**
+	 * Returns the first command computing the value of the binary command
+	 * at i, or -1 if it is not invariant.
+	 * @param i		The index of the command.
+	 * @param right	The index of the command which pushed its right operand.
+	 * @param left	The index of the command which pushed its left operand.
+	 */
+	private int binaryStart(int i, int right, int left) {
+		if (right == i - 1 && left >= 0 && starts[left] >= 0
+				&& starts[right] == left + 1) {
+			return starts[left];
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns true if the add command at i doubles a value using temp 0,
+	 * as an inline multiplication by a power of 2 does.
+	 */
+	private boolean isDoubling(int i, int blockFirst) {
+		return function.command(i) == Command.ADD && i >= blockFirst + 4
+				&& function.opcode(i - 3) == Opcode.POP
+				&& function.accesses(i - 3, Segment.TEMP, 0)
+				&& function.opcode(i - 2) == Opcode.PUSH
+				&& function.accesses(i - 2, Segment.TEMP, 0)
+				&& function.opcode(i - 1) == Opcode.PUSH
+				&& function.accesses(i - 1, Segment.TEMP, 0);
+	}
+	
+	/**
+	 * Returns true if the commands from start to end only push constants
+	 * and negate them, so are no more expensive than pushing a local.
+	 */
+	private boolean isConstant(int start, int end) {
+		for (int i = start; i <= end; i++) {
+			if (!function.accesses(i, Segment.CONSTANT)
+					&& !(function.opcode(i) == Opcode.ARITHMETIC
+						&& (function.command(i) == Command.NEG
+							|| function.command(i) == Command.NOT))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private boolean isPure(String name) {
+		return pureFunctions.contains(name);
+	}
+	
+	/**
+	 * Returns the local which the value ending at end is saved in by the
+	 * next command, if that is the only pop to the local, comes before
+	 * every push of it, and the local is dead on every exit from the loop,
+	 * so the pop can be moved out of the loop even if the loop would not
+	 * have run it, or -1 if there is no such local.
+	 * @param end		The last command of the value.
+	 * @param first		The index of the label starting the loop.
+	 * @param last		The index of the jump back to the label.
+	 * @param cfg		The control flow graph of the function.
+	 * @param liveness	The solved liveness of the locals of the function.
+	 */
+	private int savedLocal(int end, int first, int last, ControlFlowGraph cfg,
+							LivenessAnalysis liveness) {
+		if (end + 1 >= function.size() || function.opcode(end + 1) != Opcode.POP
+				|| function.segment(end + 1) != Segment.LOCAL) {
+			return -1;
+		}
+		
+		int local = function.index(end + 1);
+		for (int i = 0; i < function.size(); i++) {
+			if (i != end + 1 && function.accesses(i, Segment.LOCAL, local)
+					&& (function.opcode(i) == Opcode.POP || i < end + 1)) {
+				return -1;
+			}
+		}
+		
+		int firstBlock = cfg.blockOf(first);
+		int lastBlock = cfg.blockOf(last);
+		for (int block = firstBlock; block <= lastBlock; block++) {
+			for (int successor: cfg.successors(block)) {
+				if ((successor < firstBlock || successor > lastBlock)
+						&& liveness.getIn(successor).get(local)) {
+					return -1;
+				}
+			}
+		}
+		return local;
+	}
+	
+	/**
+	 * Pops the index of the command which pushed the top value of the
+	 * stack, or returns -1 if the value was pushed before the block.
+	 */
+	private int pop(ArrayDeque<Integer> stack) {
+		return stack.isEmpty() ? -1 : stack.pop();
+	}
+	
+	/**
+	 * Returns the last command of the hoisted value starting at start.
+	 */
+	private int findEnd(ArrayList<Integer> hoisted, int start) {
+		for (int end: hoisted) {
+			if (starts[end] == start) {
+				return end;
+			}
+		}
+		throw new RuntimeException("No hoisted value starts at " + start);
+	}
+	
+	/**
+	 * Returns true if the commands from start to end can be removed without
+	 * changing the value of temp 0 seen by a later command of the block.
+	 */
+	private boolean sideEffectsDeadAfter(int start, int end, int last) {
+		for (int i = start; i <= end; i++) {
+			if (function.opcode(i) == Opcode.POP
+					&& !isDeadAfter(function.segment(i), function.index(i), end, last)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns true if the given variable is written before it is read after
+	 * the given command, or is not read again before the end of the block.
+	 */
+	private boolean isDeadAfter(Segment segment, int index, int end, int last) {
+		for (int i = end + 1; i <= last; i++) {
+			if (function.opcode(i) == Opcode.POP && function.accesses(i, segment, index)) {
+				return true;
+			}
+			if (function.accesses(i, segment, index)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+}
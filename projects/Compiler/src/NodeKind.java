@@ -0,0 +1,47 @@
+/**
+ * The kinds of node in the abstract syntax tree of a subroutine.
+ * The fields of a node in a SubroutineAst are used as follows,
+ * where unused fields are NONE and statements and argument lists
+ * are linked together through their next field:
+ *  - INT_CONST:		value is the integer value
+ *  - STRING_CONST:		value is the index of the string in the string pool
+ *  - KEYWORD_CONST:	value is the ordinal of TRUE, FALSE, NULL or THIS
+ *  - VARIABLE:			value is the ordinal of the segment, first is the index
+ *  - ARRAY_ENTRY:		first is the VARIABLE array, second the index expression
+ *  - CALL:				value is the index of the full subroutine name in the
+ *  					string pool, first is the first argument and second
+ *  					is the number of arguments (including any object
+ *  					the method is called on)
+ *  - BINARY:			value is the operator character, first and second
+ *  					are the left and right operands
+ *  - UNARY:			value is the operator character, first is the operand
+ *  - LET:				first is the VARIABLE or ARRAY_ENTRY assigned to,
+ *  					second is the expression assigned
+ *  - IF:				first is the condition, second the first statement
+ *  					of the if clause, third the first statement of the
+ *  					else clause, and value is 1 if there is an else clause
+ *  - WHILE:			first is the condition, second the first statement
+ *  					of the body
+ *  - DO:				first is the CALL
+ *  - RETURN:			first is the expression returned, or NONE
+ */
+public enum NodeKind {
+	INT_CONST, STRING_CONST, KEYWORD_CONST, VARIABLE, ARRAY_ENTRY, CALL,
+	BINARY, UNARY, LET, IF, WHILE, DO, RETURN;
+	
+	private static final NodeKind[] VALUES = values();
+	
+	/**
+	 * Returns the node kind with the given ordinal, without
+	 * allocating a new array as values() does.
+	 * @param ordinal	The ordinal of the node kind.
+	 * @return			The node kind with the given ordinal.
+	 */
+	public static NodeKind fromOrdinal(int ordinal) {
+		return VALUES[ordinal];
+	}
+	
+	public String toString() {
+		return this.name().toLowerCase();
+	}
+}
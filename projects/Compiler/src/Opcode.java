@@ -0,0 +1,33 @@
+/**
+ * The kinds of VM command which can appear in the body of a VMFunction.
+ * The function command itself is represented by the VMFunction.
+ */
+public enum Opcode {
+	PUSH, POP, ARITHMETIC, LABEL, GOTO, IF_GOTO, CALL, RETURN;
+	
+	private static final Opcode[] VALUES = values();
+	
+	/**
+	 * Returns the opcode with the given ordinal, without
+	 * allocating a new array as values() does.
+	 * @param ordinal	The ordinal of the opcode.
+	 * @return			The opcode with the given ordinal.
+	 */
+	public static Opcode fromOrdinal(int ordinal) {
+		return VALUES[ordinal];
+	}
+	
+	/**
+	 * Returns true if the opcode always or conditionally transfers
+	 * control somewhere other than the following command, and so ends
+	 * a basic block. Calls return to the following command, so do not.
+	 * @return	true if the opcode ends a basic block.
+	 */
+	public boolean isJump() {
+		return this == GOTO || this == IF_GOTO || this == RETURN;
+	}
+	
+	public String toString() {
+		return this.name().toLowerCase().replace('_', '-');
+	}
+}
@@ -0,0 +1,20 @@
+/**
+ * An optimization which rewrites the commands of a single VMFunction,
+ * run by the PassManager.
+ */
+public interface OptimizationPass {
+	
+	/**
+	 * Returns the name of the pass, as used in reports.
+	 * @return	The name of the pass.
+	 */
+	public String getName();
+	
+	/**
+	 * Optimizes the given function in place. The function must behave
+	 * exactly as it did before the pass was run.
+	 * @param function	The function to optimize.
+	 */
+	public void run(VMFunction function);
+	
+}
@@ -0,0 +1,251 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * Runs the optimization passes for an optimization level over each
+ * VMFunction written by a VMWriter, or over a whole program linked by
+ * the VMLinker. Records the total time taken by each pass, and the
+ * number of commands and local variables it saved, over all the
+ * functions it has been run on.
+ * Passes can also add profile counters to the code, or use a Profile of
+ * an earlier run to guide optimizations.
+ * The optimization levels are:
+ *  - 0: no optimization
+ *  - 1: cheap optimizations which only look at one function at a time
+ *  - 2: all optimizations, including those which look at the whole
+ *       program, which are only run on linked programs
+ */
+public class PassManager {
+	
+	public static final int MAX_LEVEL = 2;
+	
+	/**
+	 * The largest number of commands the InliningPass may add to a
+	 * program, as a fraction of its size.
+	 */
+	public static final double INLINING_BUDGET = 0.1;
+	
+	private ArrayList<OptimizationPass> passes = new ArrayList<OptimizationPass>();
+	private ArrayList<ProgramPass> programPasses = new ArrayList<ProgramPass>();
+	
+	private long[] nanos;
+	private long[] saved;
+	private long[] localsSaved;
+	private long[] programNanos;
+	private long[] programSaved;
+	private int numFunctions = 0;
+	
+	private PrintStream log;
+	
+	private InliningPass inliningPass;
+	private ConstantFoldingPass constantFoldingPass;
+	private LoopInvariantCodeMotionPass loopInvariantCodeMotionPass;
+	
+	/**
+	 * Creates a new pass manager which runs the passes for the given
+	 * optimization level.
+	 * @param level		The optimization level, from 0 to MAX_LEVEL.
+	 */
+	public PassManager(int level) {
+		if (level < 0 || level > MAX_LEVEL) {
+			throw new RuntimeException("Invalid optimization level " + level);
+		}
+		
+		if (level >= 1) {
+			passes.add(new JumpThreadingPass());
+		}
+		if (level >= 2) {
+			constantFoldingPass = new ConstantFoldingPass();
+			passes.add(constantFoldingPass);
+		}
+		if (level >= 1) {
+			passes.add(new DeadCodeEliminationPass());
+		}
+		if (level >= 2) {
+			loopInvariantCodeMotionPass = new LoopInvariantCodeMotionPass();
+			passes.add(loopInvariantCodeMotionPass);
+			passes.add(new CommonSubexpressionPass());
+		}
+		if (level >= 1) {
+			passes.add(new LocalAllocationPass());
+		}
+		
+		if (level >= 2) {
+			programPasses.add(new IdenticalCodeFoldingPass());
+			programPasses.add(new StaticConstantPropagationPass());
+			inliningPass = new InliningPass(INLINING_BUDGET);
+			programPasses.add(inliningPass);
+		}
+		
+		resetStats();
+	}
+	
+	/**
+	 * Clears the statistics recorded for each pass, which must be done
+	 * whenever passes are added.
+	 */
+	private void resetStats() {
+		nanos = new long[passes.size()];
+		saved = new long[passes.size()];
+		localsSaved = new long[passes.size()];
+		programNanos = new long[programPasses.size()];
+		programSaved = new long[programPasses.size()];
+	}
+	
+	/**
+	 * Uses the given profile to guide the optimizations for the
+	 * optimization level: adds the BranchLayoutPass at level 1 and above,
+	 * and the FunctionOrderingPass and profile guided inlining at level 2.
+	 * Should be called before anything is optimized.
+	 * @param profile	The profile of a run of the program.
+	 */
+	public void setProfile(Profile profile) {
+		if (!passes.isEmpty()) {
+			passes.add(0, new BranchLayoutPass(profile));
+		}
+		if (inliningPass != null) {
+			inliningPass.setProfile(profile);
+			programPasses.add(new FunctionOrderingPass(profile));
+		}
+		resetStats();
+	}
+	
+	/**
+	 * Runs the given instrumentation pass on each function before any
+	 * other pass. Should be called before anything is optimized.
+	 * @param instrumentation	The pass which adds profile counters.
+	 */
+	public void setInstrumentation(ProfileInstrumentationPass instrumentation) {
+		passes.add(0, instrumentation);
+		resetStats();
+	}
+	
+	/**
+	 * Enables or disables folding of calls to the given intrinsic by the
+	 * passes, which should match the intrinsics the CodeGenerator expands,
+	 * so that disabled intrinsics always call the OS.
+	 * @param name		The full name of the intrinsic, e.g. Math.multiply.
+	 * @param enabled	Whether calls to the intrinsic may be folded.
+	 */
+	public void setIntrinsicEnabled(String name, boolean enabled) {
+		if (constantFoldingPass != null) {
+			constantFoldingPass.setIntrinsicEnabled(name, enabled);
+		}
+	}
+	
+	/**
+	 * Enables or disables folding of calls to all the intrinsics.
+	 * @param enabled	Whether calls to intrinsics may be folded.
+	 */
+	public void setIntrinsicsEnabled(boolean enabled) {
+		for (String name: CodeGenerator.INTRINSICS) {
+			setIntrinsicEnabled(name, enabled);
+		}
+	}
+	
+	/**
+	 * Returns true if there are no passes to run, so functions can be
+	 * written without being optimized.
+	 * @return	true if the pass manager does nothing.
+	 */
+	public boolean isEmpty() {
+		return passes.isEmpty();
+	}
+	
+	/**
+	 * Sets a stream to which the number of commands and locals saved by
+	 * each pass in each function is printed as the function is optimized.
+	 * @param log	The stream to print to, or null to print nothing.
+	 */
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+	
+	/**
+	 * Runs each pass over the given function in turn.
+	 * @param function	The function to optimize.
+	 */
+	public void optimize(VMFunction function) {
+		for (int i = 0; i < passes.size(); i++) {
+			int before = function.size();
+			int localsBefore = function.getNumLocals();
+			long start = System.nanoTime();
+			
+			passes.get(i).run(function);
+			
+			nanos[i] += System.nanoTime() - start;
+			saved[i] += before - function.size();
+			localsSaved[i] += localsBefore - function.getNumLocals();
+			
+			if (log != null && (before != function.size()
+					|| localsBefore != function.getNumLocals())) {
+				log.println(String.format("%s: %s saved %d commands, %d locals",
+											function.getName(),
+											passes.get(i).getName(),
+											before - function.size(),
+											localsBefore - function.getNumLocals()));
+			}
+		}
+		numFunctions++;
+	}
+	
+	/**
+	 * Runs each whole program pass over the given program in turn, then
+	 * optimizes each of its functions, knowing which of them are pure.
+	 * @param program	Every function of the program.
+	 */
+	public void optimizeProgram(ArrayList<VMFunction> program) {
+		for (int i = 0; i < programPasses.size(); i++) {
+			int before = programSize(program);
+			long start = System.nanoTime();
+			
+			programPasses.get(i).run(program, log);
+			
+			programNanos[i] += System.nanoTime() - start;
+			programSaved[i] += before - programSize(program);
+		}
+		
+		if (loopInvariantCodeMotionPass != null) {
+			loopInvariantCodeMotionPass.setPureFunctions(
+					LoopInvariantCodeMotionPass.findPureFunctions(program));
+		}
+		for (VMFunction function: program) {
+			optimize(function);
+		}
+	}
+	
+	/**
+	 * Returns the total number of commands in the given functions.
+	 */
+	private static int programSize(ArrayList<VMFunction> program) {
+		int size = 0;
+		for (VMFunction function: program) {
+			size += function.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Prints the time taken by each pass and the number of
+	 * commands and locals it saved to the given stream.
+	 * @param out	The stream to print the report to.
+	 */
+	public void report(PrintStream out) {
+		for (int i = 0; i < programPasses.size(); i++) {
+			out.println(String.format("%-34s %10.3f ms %8d commands saved",
+										programPasses.get(i).getName(),
+										programNanos[i] / 1e6,
+										programSaved[i]));
+		}
+		
+		out.println(String.format("Optimized %d functions", numFunctions));
+		for (int i = 0; i < passes.size(); i++) {
+			out.println(String.format("%-34s %10.3f ms %8d commands saved %6d locals saved",
+										passes.get(i).getName(),
+										nanos[i] / 1e6,
+										saved[i],
+										localsSaved[i]));
+		}
+	}
+	
+}
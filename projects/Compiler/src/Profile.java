@@ -0,0 +1,222 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * The number of times each function was called, and each if-goto was
+ * executed and taken, in a run of a program instrumented by the
+ * ProfileInstrumentationPass. Used to guide optimizations such as
+ * inlining, function ordering and branch layout.
+ *
+ * A profile file starts with the line "jackprofile VERSION", followed by
+ * lines of the form
+ *   function NAME CALLS SHAPE
+ *   branch NAME LABEL EXECUTED TAKEN
+ * Blank lines, lines starting with # and lines with an unknown first word
+ * are ignored, so that later versions can add information.
+ *
+ * The shape of a function is a hash of its control flow commands as
+ * generated, before optimization. Branch counts are only used if the
+ * function still has the same shape, so a profile stays usable after
+ * small changes to the source, such as changing an expression: the
+ * branches of changed functions are ignored, but their call counts,
+ * which are looked up by name, are still used.
+ */
+public class Profile {
+	
+	public static final String HEADER = "jackprofile";
+	public static final String MAP_HEADER = "jackprofile-map";
+	public static final int VERSION = 1;
+	
+	/**
+	 * The fraction of all calls a function must receive to be hot.
+	 */
+	public static final double HOT_FRACTION = 0.01;
+	
+	private HashMap<String, Long> calls = new HashMap<String, Long>();
+	private HashMap<String, Integer> shapes = new HashMap<String, Integer>();
+	private HashMap<String, long[]> branches = new HashMap<String, long[]>();
+	private long totalCalls = 0;
+	
+	/**
+	 * Returns a hash of the labels, jumps, calls and returns of the given
+	 * function, which identifies the layout of its branches.
+	 * @param function	The function, as generated.
+	 * @return			The shape of the function.
+	 */
+	public static int shape(VMFunction function) {
+		int hash = function.getNumLocals();
+		for (int i = 0; i < function.size(); i++) {
+			Opcode opcode = function.opcode(i);
+			if (opcode == Opcode.LABEL || opcode.isJump() || opcode == Opcode.CALL) {
+				hash = 31 * hash + function.toString(i).hashCode();
+			}
+		}
+		return hash;
+	}
+	
+	/**
+	 * Reads a profile file.
+	 * Throws an exception if the file is not a profile, or was written
+	 * by a later version.
+	 * @param profileFile	The file to read.
+	 * @return				The profile.
+	 * @throws IOException
+	 */
+	public static Profile read(File profileFile) throws IOException {
+		Profile profile = new Profile();
+		
+		for (String[] parts: readLines(profileFile, HEADER)) {
+			if (parts[0].equals("function") && parts.length >= 4) {
+				profile.addFunction(parts[1], Long.parseLong(parts[2]),
+									Integer.parseInt(parts[3]));
+				
+			} else if (parts[0].equals("branch") && parts.length >= 5) {
+				profile.addBranch(parts[1], parts[2], Long.parseLong(parts[3]),
+									Long.parseLong(parts[4]));
+			}
+		}
+		
+		return profile;
+	}
+	
+	/**
+	 * Builds a profile from the counter map written by the
+	 * ProfileInstrumentationPass and the final value of each counter.
+	 * @param mapFile	The counter map of the instrumented program.
+	 * @param counts	The value of each counter, by number.
+	 * @return			The profile of the run.
+	 * @throws IOException
+	 */
+	public static Profile fromCounters(File mapFile, long[] counts) throws IOException {
+		Profile profile = new Profile();
+		
+		for (String[] parts: readLines(mapFile, MAP_HEADER)) {
+			if (parts[0].equals("function") && parts.length >= 4) {
+				profile.addFunction(parts[1], counts[Integer.parseInt(parts[3])],
+									Integer.parseInt(parts[2]));
+				
+			} else if (parts[0].equals("branch") && parts.length >= 5) {
+				long executed = counts[Integer.parseInt(parts[3])];
+				long fallenThrough = counts[Integer.parseInt(parts[4])];
+				profile.addBranch(parts[1], parts[2], executed, executed - fallenThrough);
+			}
+		}
+		
+		return profile;
+	}
+	
+	/**
+	 * Reads the lines of a file with the given header, split into words,
+	 * skipping blank lines and comments.
+	 */
+	private static ArrayList<String[]> readLines(File file, String header) throws IOException {
+		ArrayList<String[]> lines = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		
+		String line = reader.readLine();
+		String[] parts = line == null ? new String[0] : line.trim().split("\\s+");
+		if (parts.length != 2 || !parts[0].equals(header)) {
+			reader.close();
+			throw new RuntimeException(file.getName() + " is not a " + header + " file");
+		}
+		if (Integer.parseInt(parts[1]) > VERSION) {
+			reader.close();
+			throw new RuntimeException(file.getName() + " has unsupported version " + parts[1]);
+		}
+		
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (!line.isEmpty() && !line.startsWith("#")) {
+				lines.add(line.split("\\s+"));
+			}
+		}
+		
+		reader.close();
+		return lines;
+	}
+	
+	private void addFunction(String name, long count, int shape) {
+		calls.put(name, count);
+		shapes.put(name, shape);
+		totalCalls += count;
+	}
+	
+	private void addBranch(String function, String label, long executed, long taken) {
+		branches.put(function + " " + label, new long[] {executed, taken});
+	}
+	
+	/**
+	 * Writes the profile to the given file, with functions in name order.
+	 * @param profileFile	The file to write.
+	 * @throws IOException
+	 */
+	public void write(File profileFile) throws IOException {
+		PrintWriter out = new PrintWriter(profileFile);
+		out.println(HEADER + " " + VERSION);
+		
+		ArrayList<String> names = new ArrayList<String>(calls.keySet());
+		Collections.sort(names);
+		for (String name: names) {
+			out.println(String.format("function %s %d %d", name, calls.get(name), shapes.get(name)));
+		}
+		
+		ArrayList<String> keys = new ArrayList<String>(branches.keySet());
+		Collections.sort(keys);
+		for (String key: keys) {
+			long[] counts = branches.get(key);
+			out.println(String.format("branch %s %d %d", key, counts[0], counts[1]));
+		}
+		
+		out.close();
+	}
+	
+	/**
+	 * Returns the number of times the given function was called, or -1
+	 * if it is not in the profile.
+	 */
+	public long getCalls(String function) {
+		Long count = calls.get(function);
+		return count == null ? -1 : count;
+	}
+	
+	/**
+	 * Returns true if the given function received at least HOT_FRACTION
+	 * of all calls.
+	 */
+	public boolean isHot(String function) {
+		long count = getCalls(function);
+		return count > 0 && count >= totalCalls * HOT_FRACTION;
+	}
+	
+	/**
+	 * Returns true if the given function is in the profile, but was
+	 * never called.
+	 */
+	public boolean isCold(String function) {
+		return getCalls(function) == 0;
+	}
+	
+	/**
+	 * Returns the number of times the if-goto to the given label in the
+	 * given function was executed and taken, or null if the branch is not
+	 * in the profile or the function has changed shape since.
+	 * @param function	The function, as generated.
+	 * @param label		The label the if-goto jumps to.
+	 * @return			The number of executions and the number of those
+	 * 					which jumped, or null.
+	 */
+	public long[] getBranch(VMFunction function, String label) {
+		Integer shape = shapes.get(function.getName());
+		if (shape == null || shape != shape(function)) {
+			return null;
+		}
+		return branches.get(function.getName() + " " + label);
+	}
+	
+}
@@ -0,0 +1,90 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Adds counters to each function, which a VM emulator can use to build
+ * a Profile of a run of the program: one counting calls to the function,
+ * and two for each if-goto, counting the times it is executed and the
+ * times it falls through.
+ * A counter is incremented by calling COUNTER_FUNCTION with the number
+ * of the counter, which the emulator must provide. Its return value is
+ * popped to temp 0, which is never live at those points.
+ * The counters are numbered across every function this pass is run on,
+ * so the whole program should be compiled in one run, after which
+ * writeMap writes the counter map needed to build the profile.
+ * Must run before any other pass, so that the shape of each function is
+ * that of the code as generated.
+ */
+public class ProfileInstrumentationPass implements OptimizationPass {
+	
+	public static final String COUNTER_FUNCTION = "Profile.count";
+	
+	/** The largest number of counters, limited by push constant. */
+	public static final int MAX_COUNTERS = 32768;
+	
+	private ArrayList<String> mapLines = new ArrayList<String>();
+	private int numCounters = 0;
+	
+	public String getName() {
+		return "profile-instrumentation";
+	}
+	
+	public void run(VMFunction function) {
+		int shape = Profile.shape(function);
+		VMFunction instrumented = new VMFunction(function.getName(), function.getNumLocals());
+		
+		int entry = addCounter(instrumented);
+		mapLines.add(String.format("function %s %d %d", function.getName(), shape, entry));
+		
+		for (int i = 0; i < function.size(); i++) {
+			if (function.opcode(i) == Opcode.IF_GOTO) {
+				int executed = addCounter(instrumented);
+				instrumented.add(function, i);
+				int fallenThrough = addCounter(instrumented);
+				mapLines.add(String.format("branch %s %s %d %d", function.getName(),
+											function.symbol(i), executed, fallenThrough));
+			} else {
+				instrumented.add(function, i);
+			}
+		}
+		
+		function.replaceBody(instrumented);
+	}
+	
+	/**
+	 * Adds the commands to increment a new counter to the function.
+	 * @return	The number of the counter.
+	 */
+	private int addCounter(VMFunction function) {
+		if (numCounters == MAX_COUNTERS) {
+			throw new RuntimeException("Too many profile counters");
+		}
+		
+		function.addPush(Segment.CONSTANT, numCounters);
+		function.add(Opcode.CALL, 0, 1, COUNTER_FUNCTION);
+		function.addPop(Segment.TEMP, 0);
+		return numCounters++;
+	}
+	
+	public int getNumCounters() {
+		return numCounters;
+	}
+	
+	/**
+	 * Writes the function or branch each counter belongs to, to be read
+	 * by Profile.fromCounters.
+	 * @param mapFile	The file to write.
+	 * @throws IOException
+	 */
+	public void writeMap(File mapFile) throws IOException {
+		PrintWriter out = new PrintWriter(mapFile);
+		out.println(Profile.MAP_HEADER + " " + Profile.VERSION);
+		for (String line: mapLines) {
+			out.println(line);
+		}
+		out.close();
+	}
+	
+}
@@ -0,0 +1,661 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * Profiles a linked VM program, either run by the VMInterpreter, counting
+ * one per VM operation, or translated to Hack and run by the HackEmulator,
+ * counting one per Hack cycle.
+ *
+ * The cost of each command is recorded in a calling context tree, which
+ * has a node for each chain of calls from the entry function, and is then
+ * added up per function, and with the source maps written by the
+ * JackCompiler's -g option, per Jack subroutine and source line. For
+ * inlined code these are the subroutine and line the code came from, not
+ * the function it was inlined into.
+ * The cost of a function command, or in Hack the code which starts a
+ * function, is given to the function's first command. In Hack, the
+ * bootstrap code and the shared $CALL, $RETURN and comparison subroutines
+ * come from no command, so their cycles are given to the last command run
+ * before them, and a call or return is recognised by the command before
+ * such code being a call or return.
+ *
+ * Three reports can be written:
+ *  - a flat profile, of the self cost of each subroutine and source line
+ *  - a call graph profile, of the inclusive and self cost of each
+ *  		function, and the calls to it and from it
+ *  - the collapsed stacks of the calling context tree, one line for each
+ *  		node with a self cost, as the functions called from the entry
+ *  		separated by semicolons and then the cost, as read by flame
+ *  		graph tools such as flamegraph.pl
+ */
+public class Profiler {
+	
+	private static final String BOOTSTRAP = "bootstrap";
+	
+	private ArrayList<VMFunction> program;
+	private String entry;
+	private SourceMap sourceMap = null;
+	private ArrayList<File> sourceDirectories = new ArrayList<File>();
+	
+	/** The cost of each command of each function, with the function command first. */
+	private long[][] commandCosts;
+	private long total = 0;
+	private String unit = "operations";
+	
+	/**
+	 * The calling context tree, in which node 0 is the bootstrap code, and
+	 * the node for each function called from a node, keyed by the parent
+	 * node in the top half and the function in the bottom half.
+	 */
+	private int[] nodeFunctions = new int[256];
+	private int[] nodeParents = new int[256];
+	private long[] nodeCosts = new long[256];
+	private long[] nodeCalls = new long[256];
+	private int numNodes = 1;
+	private HashMap<Long, Integer> children = new HashMap<Long, Integer>();
+	private int node = 0;
+	
+	/** The last command run by the HackEmulator, and if it was a call or return. */
+	private int lastFunction = -1;
+	private int lastCommand = -1;
+	private boolean lastMapped = false;
+	private boolean calling = true;
+	private boolean returning = false;
+	
+	/** The lines of each source file read so far, or null if not found. */
+	private HashMap<String, ArrayList<String>> sources = new HashMap<String, ArrayList<String>>();
+	
+	/**
+	 * Prepares to profile a linked program, as returned by VMLinker.link.
+	 * @param program	The functions of the program.
+	 * @param entry		The name of the function to call first.
+	 */
+	public Profiler(ArrayList<VMFunction> program, String entry) {
+		this.program = program;
+		this.entry = entry;
+		commandCosts = new long[program.size()][];
+		for (int f = 0; f < program.size(); f++) {
+			commandCosts[f] = new long[program.get(f).size() + 1];
+		}
+		nodeFunctions[0] = -1;
+		nodeParents[0] = -1;
+	}
+	
+	/**
+	 * Sets the source map used to find the subroutine and line of each
+	 * command. Functions not in the map are reported by name only.
+	 * @param sourceMap		The map.
+	 */
+	public void setSourceMap(SourceMap sourceMap) {
+		this.sourceMap = sourceMap;
+	}
+	
+	/**
+	 * Adds a directory searched for the .jack files named by the source
+	 * map, so the flat profile can show the text of each line.
+	 * @param directory		The directory.
+	 */
+	public void addSourceDirectory(File directory) {
+		sourceDirectories.add(directory);
+	}
+	
+	/**
+	 * Runs the program in the VMInterpreter until it stops, or for at most
+	 * the given number of operations, costing one per operation.
+	 * @param maxOperations		The most operations to run.
+	 * @param keys				The keys for the keyboard stub to press.
+	 * @return					true if the program has stopped.
+	 */
+	public boolean profileOperations(long maxOperations, int[] keys) {
+		VMInterpreter interpreter = new VMInterpreter(program, entry);
+		interpreter.setKeys(keys);
+		unit = "operations";
+		
+		while (!interpreter.isHalted() && interpreter.getOperations() < maxOperations) {
+			int pc = interpreter.step();
+			int function = interpreter.functionIndexAt(pc);
+			int command = interpreter.commandAt(pc);
+			charge(function, command, 1);
+			
+			if (command >= 0 && program.get(function).opcode(command) == Opcode.RETURN) {
+				exit();
+			}
+			int next = interpreter.getPc();
+			if (interpreter.commandAt(next) < 0 && interpreter.functionIndexAt(next) >= 0) {
+				enter(interpreter.functionIndexAt(next));
+			}
+		}
+		return interpreter.isHalted();
+	}
+	
+	/**
+	 * Translates the program to Hack and runs it in the HackEmulator until
+	 * it stops, or for about the given number of cycles, costing one per
+	 * cycle.
+	 * @param maxCycles		The number of cycles to run.
+	 * @param keys			The keys for the keyboard stub to press.
+	 * @param translate		Whether the emulator translates hot blocks.
+	 * @param registers		Whether to translate with the RegisterTranslator.
+	 * @return				true if the program has stopped.
+	 */
+	public boolean profileCycles(long maxCycles, int[] keys, boolean translate, boolean registers) {
+		VMTranslator translator = registers ? new RegisterTranslator() : new VMTranslator();
+		HackAssembler assembler = new HackAssembler();
+		translator.setAssembler(assembler);
+		translator.recordOrigins();
+		translator.setClassName(entry.substring(0, entry.indexOf('.')));
+		translator.writeBootstrap(entry);
+		for (VMFunction function: program) {
+			translator.translate(function);
+		}
+		translator.close();
+		assembler.assemble();
+		
+		final int[] romFunctions = translator.getRomFunctions();
+		final int[] romCommands = translator.getRomCommands();
+		unit = "cycles";
+		
+		HackEmulator emulator = new HackEmulator(assembler.getRom(), translate);
+		emulator.setKeys(keys);
+		emulator.setTracer(new HackEmulator.Tracer() {
+			public void block(int start, int end) {
+				for (int address = start; address <= end; address++) {
+					traceInstruction(romFunctions[address], romCommands[address]);
+				}
+			}
+		});
+		return emulator.run(maxCycles);
+	}
+	
+	/**
+	 * Costs a Hack instruction which was translated from the given command,
+	 * or from no command if the function is -1, following the calls and
+	 * returns made through the shared subroutines.
+	 */
+	private void traceInstruction(int function, int command) {
+		if (function >= 0) {
+			if (!lastMapped && calling) {
+				enter(function);
+			} else if (!lastMapped && returning) {
+				exit();
+			}
+			
+			lastFunction = function;
+			lastCommand = command;
+			lastMapped = true;
+			Opcode opcode = command >= 0 ? program.get(function).opcode(command) : null;
+			calling = opcode == Opcode.CALL;
+			returning = opcode == Opcode.RETURN;
+		} else {
+			lastMapped = false;
+		}
+		charge(lastFunction, lastCommand, 1);
+	}
+	
+	/**
+	 * Adds the given cost to the given command, or to the bootstrap code
+	 * if the function is -1, in the current context.
+	 */
+	private void charge(int function, int command, long cost) {
+		if (function >= 0) {
+			commandCosts[function][command + 1] += cost;
+		}
+		nodeCosts[node] += cost;
+		total += cost;
+	}
+	
+	/**
+	 * Moves to the context of a call to the given function from the
+	 * current context, adding it to the tree if it is new.
+	 */
+	private void enter(int function) {
+		long key = (long) node << 32 | function;
+		Integer child = children.get(key);
+		if (child == null) {
+			if (numNodes == nodeFunctions.length) {
+				nodeFunctions = Arrays.copyOf(nodeFunctions, numNodes * 2);
+				nodeParents = Arrays.copyOf(nodeParents, numNodes * 2);
+				nodeCosts = Arrays.copyOf(nodeCosts, numNodes * 2);
+				nodeCalls = Arrays.copyOf(nodeCalls, numNodes * 2);
+			}
+			child = numNodes++;
+			nodeFunctions[child] = function;
+			nodeParents[child] = node;
+			children.put(key, child);
+		}
+		nodeCalls[child]++;
+		node = child;
+	}
+	
+	/**
+	 * Moves back to the context the current function was called from.
+	 */
+	private void exit() {
+		if (node != 0) {
+			node = nodeParents[node];
+		}
+	}
+	
+	public long getTotal() {
+		return total;
+	}
+	
+	/**
+	 * Returns the inclusive cost of each node: its own cost and that of
+	 * all the nodes below it. Children always come after their parents.
+	 */
+	private long[] nodeTotals() {
+		long[] totals = Arrays.copyOf(nodeCosts, numNodes);
+		for (int n = numNodes - 1; n > 0; n--) {
+			totals[nodeParents[n]] += totals[n];
+		}
+		return totals;
+	}
+	
+	/**
+	 * Returns true if the function of the given node is also the function
+	 * of one of the nodes above it, i.e. the node is a recursive call whose
+	 * cost is already included in that of the outer call.
+	 */
+	private boolean isRecursive(int n) {
+		for (int p = nodeParents[n]; p > 0; p = nodeParents[p]) {
+			if (nodeFunctions[p] == nodeFunctions[n]) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private String functionName(int function) {
+		return function < 0 ? BOOTSTRAP : program.get(function).getName();
+	}
+	
+	private String percent(long cost) {
+		return String.format("%6.2f%%", total == 0 ? 0.0 : cost * 100.0 / total);
+	}
+	
+	/**
+	 * Returns the position in the source map of the given command, with a
+	 * function command at the first command, as the subroutine, file and
+	 * line, or null if it is not known.
+	 */
+	private Object[] position(int function, int command) {
+		VMFunction vmFunction = program.get(function);
+		if (sourceMap == null || !sourceMap.contains(vmFunction.getName()) || vmFunction.size() == 0) {
+			return null;
+		}
+		
+		command = Math.max(command, 0);
+		String subroutine = sourceMap.subroutine(vmFunction.getName(), command);
+		int line = sourceMap.line(vmFunction.getName(), command);
+		if (subroutine == null || line == 0) {
+			return null;
+		}
+		return new Object[] {subroutine, SourceMap.fileOf(subroutine), line};
+	}
+	
+	/**
+	 * Returns the text of the given line of a source file, found in one of
+	 * the source directories, or null if the file cannot be read.
+	 */
+	private String sourceLine(String file, int line) {
+		if (!sources.containsKey(file)) {
+			ArrayList<String> lines = null;
+			for (File directory: sourceDirectories) {
+				File source = new File(directory, file);
+				if (source.isFile()) {
+					lines = new ArrayList<String>();
+					try {
+						BufferedReader in = new BufferedReader(new FileReader(source));
+						try {
+							for (String text = in.readLine(); text != null; text = in.readLine()) {
+								lines.add(text);
+							}
+						} finally {
+							in.close();
+						}
+					} catch (IOException e) {
+						lines = null;
+					}
+					break;
+				}
+			}
+			sources.put(file, lines);
+		}
+		
+		ArrayList<String> lines = sources.get(file);
+		return lines == null || line > lines.size() ? null : lines.get(line - 1).trim();
+	}
+	
+	/**
+	 * Sorts the keys of the given costs by decreasing first cost.
+	 */
+	private static ArrayList<String> byCost(final HashMap<String, long[]> costs) {
+		ArrayList<String> keys = new ArrayList<String>(costs.keySet());
+		Collections.sort(keys, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return Long.compare(costs.get(b)[0], costs.get(a)[0]);
+			}
+		});
+		return keys;
+	}
+	
+	/**
+	 * Prints the self cost of each subroutine, and of each source line,
+	 * most costly first. Commands with no known position are counted
+	 * under their function, and in Hack mode the bootstrap code under
+	 * bootstrap.
+	 * @param out		The stream to print the profile to.
+	 * @param limit		The most subroutines and lines to print.
+	 */
+	public void writeFlat(PrintStream out, int limit) {
+		LinkedHashMap<String, long[]> subroutineCosts = new LinkedHashMap<String, long[]>();
+		LinkedHashMap<String, long[]> lineCosts = new LinkedHashMap<String, long[]>();
+		HashMap<String, Object[]> linePositions = new HashMap<String, Object[]>();
+		
+		long bootstrap = total;
+		for (int f = 0; f < program.size(); f++) {
+			for (int c = 0; c < commandCosts[f].length; c++) {
+				long cost = commandCosts[f][c];
+				if (cost == 0) {
+					continue;
+				}
+				bootstrap -= cost;
+				
+				Object[] position = position(f, c - 1);
+				String subroutine = position == null ? functionName(f) : (String) position[0];
+				String line = position == null ? functionName(f) + " (no source)"
+												: position[1] + ":" + position[2];
+				addCost(subroutineCosts, subroutine, cost);
+				addCost(lineCosts, line, cost);
+				if (position != null) {
+					linePositions.put(line, position);
+				}
+			}
+		}
+		if (bootstrap > 0) {
+			addCost(subroutineCosts, BOOTSTRAP, bootstrap);
+			addCost(lineCosts, BOOTSTRAP, bootstrap);
+		}
+		
+		out.println("Flat profile by subroutine, " + total + " " + unit);
+		out.println(String.format("%12s %8s %8s  %s", "self", "%", "cumul.", "subroutine"));
+		long cumulative = 0;
+		ArrayList<String> subroutines = byCost(subroutineCosts);
+		for (int i = 0; i < subroutines.size() && i < limit; i++) {
+			long cost = subroutineCosts.get(subroutines.get(i))[0];
+			cumulative += cost;
+			out.println(String.format("%12d %s %s  %s", cost, percent(cost), percent(cumulative),
+										subroutines.get(i)));
+		}
+		
+		out.println();
+		out.println("Flat profile by line, " + total + " " + unit);
+		out.println(String.format("%12s %8s  %-24s %s", "self", "%", "line", "subroutine"));
+		ArrayList<String> lines = byCost(lineCosts);
+		for (int i = 0; i < lines.size() && i < limit; i++) {
+			String line = lines.get(i);
+			long cost = lineCosts.get(line)[0];
+			Object[] position = linePositions.get(line);
+			if (position == null) {
+				out.println(String.format("%12d %s  %s", cost, percent(cost), line));
+				continue;
+			}
+			
+			String text = sourceLine((String) position[1], (Integer) position[2]);
+			out.println(String.format("%12d %s  %-24s %s", cost, percent(cost), line, position[0]));
+			if (text != null) {
+				out.println(String.format("%23s  %s", "", text));
+			}
+		}
+	}
+	
+	private static void addCost(HashMap<String, long[]> costs, String key, long cost) {
+		long[] sum = costs.get(key);
+		if (sum == null) {
+			sum = new long[2];
+			costs.put(key, sum);
+		}
+		sum[0] += cost;
+		sum[1]++;
+	}
+	
+	/**
+	 * Prints the inclusive and self cost and number of calls of each
+	 * function, most costly first, followed by the functions which call it
+	 * and which it calls, each with the number of calls and the inclusive
+	 * cost of those calls. The cost of recursive calls is only counted
+	 * once, in the outermost call.
+	 * @param out		The stream to print the profile to.
+	 * @param limit		The most functions to print.
+	 */
+	public void writeCallGraph(PrintStream out, int limit) {
+		long[] totals = nodeTotals();
+		int numFunctions = program.size();
+		long[] inclusive = new long[numFunctions];
+		long[] self = new long[numFunctions];
+		long[] calls = new long[numFunctions];
+		
+		// the calls and cost of the calls from one function to another
+		LinkedHashMap<Long, long[]> edges = new LinkedHashMap<Long, long[]>();
+		
+		for (int n = 1; n < numNodes; n++) {
+			int function = nodeFunctions[n];
+			boolean recursive = isRecursive(n);
+			self[function] += nodeCosts[n];
+			calls[function] += nodeCalls[n];
+			if (!recursive) {
+				inclusive[function] += totals[n];
+			}
+			
+			int caller = nodeFunctions[nodeParents[n]];
+			long key = (long) (caller + 1) << 32 | function;
+			long[] edge = edges.get(key);
+			if (edge == null) {
+				edge = new long[2];
+				edges.put(key, edge);
+			}
+			edge[0] += nodeCalls[n];
+			if (!recursive) {
+				edge[1] += totals[n];
+			}
+		}
+		
+		Integer[] order = new Integer[numFunctions];
+		for (int f = 0; f < numFunctions; f++) {
+			order[f] = f;
+		}
+		final long[] sortCosts = inclusive;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(sortCosts[b], sortCosts[a]);
+			}
+		});
+		
+		out.println("Call graph profile, " + total + " " + unit);
+		out.println(String.format("%12s %8s %12s %8s %10s  %s",
+									"inclusive", "%", "self", "%", "calls", "function"));
+		for (int i = 0; i < numFunctions && i < limit; i++) {
+			int f = order[i];
+			if (calls[f] == 0) {
+				break;
+			}
+			
+			out.println();
+			for (Long key: edges.keySet()) {
+				if ((int) (long) key == f) {
+					long[] edge = edges.get(key);
+					out.println(String.format("%12d %8s %12s %8s %10d      from %s",
+												edge[1], "", "", "", edge[0],
+												functionName((int) (key >>> 32) - 1)));
+				}
+			}
+			out.println(String.format("%12d %s %12d %s %10d  %s", inclusive[f], percent(inclusive[f]),
+										self[f], percent(self[f]), calls[f], functionName(f)));
+			for (Long key: edges.keySet()) {
+				if ((int) (key >>> 32) - 1 == f) {
+					long[] edge = edges.get(key);
+					out.println(String.format("%12d %8s %12s %8s %10d      to %s",
+												edge[1], "", "", "", edge[0],
+												functionName((int) (long) key)));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the collapsed stacks of the calling context tree, one line per
+	 * context with a self cost, e.g. Sys.init;Main.main;Game.run 1234.
+	 * @param out	The writer to write the stacks to.
+	 */
+	public void writeCollapsed(PrintWriter out) {
+		String[] stacks = new String[numNodes];
+		stacks[0] = BOOTSTRAP;
+		for (int n = 1; n < numNodes; n++) {
+			String name = functionName(nodeFunctions[n]);
+			stacks[n] = nodeParents[n] == 0 ? name : stacks[nodeParents[n]] + ";" + name;
+		}
+		
+		for (int n = 0; n < numNodes; n++) {
+			if (nodeCosts[n] > 0) {
+				out.println(stacks[n] + " " + nodeCosts[n]);
+			}
+		}
+	}
+	
+	/**
+	 * Takes one or more .vm files or directories containing .vm files, and
+	 * profiles them as a single program, as for the VMInterpreter, printing
+	 * the flat profile and the call graph profile.
+	 * The source maps are read from the .dbg files in the directories, or
+	 * given as arguments, and the .jack files are looked for in the same
+	 * directories.
+	 * The files may be preceded by the following options:
+	 * - -hack				profiles the Hack cycles of the translated program,
+	 * 						instead of the VM operations
+	 * - -registers			profiles the Hack cycles of the program translated
+	 * 						by the RegisterTranslator
+	 * - -nojit				only interprets the Hack program, without
+	 * 						translating blocks
+	 * - -limit n			stops after n operations or cycles
+	 * - -keys text			presses the keys of the text in turn, with \n
+	 * 						for newline
+	 * - -top n				prints only the n most costly subroutines, lines
+	 * 						and functions, 20 by default
+	 * - -collapsed file	writes the collapsed stacks to the given file
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		boolean hack = false;
+		boolean translate = true;
+		boolean registers = false;
+		long limit = Long.MAX_VALUE;
+		String keys = "";
+		int top = 20;
+		File collapsedFile = null;
+		
+		int i = 0;
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-hack")) {
+				hack = true;
+			} else if (args[i].equals("-registers")) {
+				hack = true;
+				registers = true;
+			} else if (args[i].equals("-nojit")) {
+				translate = false;
+			} else if (args[i].equals("-limit")) {
+				limit = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-keys")) {
+				keys = args[++i].replace("\\n", "\n");
+			} else if (args[i].equals("-top")) {
+				top = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-collapsed")) {
+				collapsedFile = new File(args[++i]);
+			} else {
+				throw new RuntimeException("Unknown option " + args[i]);
+			}
+			i++;
+		}
+		
+		if (i == args.length) {
+			throw new RuntimeException("Arguments must be one or more .vm files or directories");
+		}
+		
+		VMLinker linker = new VMLinker();
+		HashSet<String> classes = new HashSet<String>();
+		ArrayList<File> mapFiles = new ArrayList<File>();
+		ArrayList<File> directories = new ArrayList<File>();
+		Profiler profiler;
+		
+		try {
+			for (; i < args.length; i++) {
+				File input = new File(args[i]);
+				File[] files = input.isDirectory() ? input.listFiles() : new File[] {input};
+				directories.add(input.isDirectory() ? input : input.getAbsoluteFile().getParentFile());
+				
+				for (File file: files) {
+					if (file.getName().endsWith(".vm") && classes.add(file.getName())) {
+						linker.addFile(file);
+					} else if (file.getName().endsWith(".dbg")) {
+						mapFiles.add(file);
+					}
+				}
+			}
+			
+			String entry = linker.defines("Sys.init") ? "Sys.init" : "Main.main";
+			profiler = new Profiler(linker.link(entry), entry);
+			
+			// read the maps in reverse, so the first map with a function is kept
+			SourceMap sourceMap = new SourceMap();
+			for (int m = mapFiles.size() - 1; m >= 0; m--) {
+				sourceMap.read(mapFiles.get(m));
+			}
+			profiler.setSourceMap(sourceMap);
+			for (File directory: directories) {
+				profiler.addSourceDirectory(directory);
+			}
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		int[] keyCodes = new int[keys.length()];
+		for (int k = 0; k < keyCodes.length; k++) {
+			keyCodes[k] = keys.charAt(k) == '\n' ? 128 : keys.charAt(k);
+		}
+		
+		boolean halted = hack ? profiler.profileCycles(limit, keyCodes, translate, registers)
+								: profiler.profileOperations(limit, keyCodes);
+		if (!halted) {
+			System.out.println("Stopped after " + profiler.getTotal() + " " + profiler.unit);
+			System.out.println();
+		}
+		
+		profiler.writeFlat(System.out, top);
+		System.out.println();
+		profiler.writeCallGraph(System.out, top);
+		
+		if (collapsedFile != null) {
+			try {
+				PrintWriter out = new PrintWriter(collapsedFile);
+				profiler.writeCollapsed(out);
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+}
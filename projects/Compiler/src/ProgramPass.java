@@ -0,0 +1,26 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * An optimization which needs to see every function of a linked
+ * program at once, run by the PassManager.
+ */
+public interface ProgramPass {
+	
+	/**
+	 * Returns the name of the pass, as used in reports.
+	 * @return	The name of the pass.
+	 */
+	public String getName();
+	
+	/**
+	 * Optimizes the functions of the given program in place, possibly
+	 * removing some of them. The program must behave exactly as it did
+	 * before the pass was run.
+	 * @param program	Every function of the program.
+	 * @param log		A stream to print each decision made by the pass
+	 * 					to, or null to print nothing.
+	 */
+	public void run(ArrayList<VMFunction> program, PrintStream log);
+	
+}
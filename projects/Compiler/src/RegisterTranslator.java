@@ -0,0 +1,575 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Translates VMFunctions into Hack assembly like the VMTranslator, but
+ * keeps the top of the stack in the D register rather than in memory
+ * wherever it can, instead of lowering every command through the stack.
+ *
+ * While a function is translated, the top value of the stack is either in
+ * memory, or cached in D with SP pointing to where it would be stored.
+ * Every push leaves its value in D, writing the value before it to memory
+ * first, and pops, arithmetic commands, if-goto and return take the top
+ * value from D. So push local 0, push constant 1, add, pop local 0 takes 8
+ * instructions rather than 23. The top value is written to memory before
+ * each label, goto and call, so the whole stack is in memory wherever
+ * control flow joins.
+ *
+ * A push of a constant, a static, temp or pointer variable, or one of the
+ * first few variables of a segment, followed by a binary command, is not
+ * pushed at all, but used as the operand of the command in A or M.
+ * A comparison followed by an if-goto, possibly through not commands, is
+ * translated to a single conditional jump on the difference of the
+ * compared values, rather than first computing -1 or 0; other comparisons
+ * are written inline rather than through the shared subroutines.
+ *
+ * Calls use the same shared $CALL subroutine as the VMTranslator, but the
+ * shared $RETURN subroutine returns with the return value in D, so that
+ * it is cached in the caller. R13 to R15 are used as scratch registers.
+ */
+public class RegisterTranslator extends VMTranslator {
+	
+	/**
+	 * The largest index of a local, argument, this or that variable which
+	 * is popped from D by incrementing the segment address in A, rather
+	 * than by saving D and computing the address into R14 first.
+	 */
+	private static final int MAX_POP_INCREMENTS = 8;
+	
+	/**
+	 * The largest index of a local, argument, this or that variable which
+	 * is used directly as the operand of a binary command.
+	 */
+	private static final int MAX_OPERAND_INCREMENTS = 3;
+	
+	/** Whether the top value of the stack is in D rather than in memory. */
+	private boolean cached = false;
+	private int comparisonCounter = 0;
+	
+	/**
+	 * Creates a new RegisterTranslator which writes Hack assembly to the
+	 * given .asm file.
+	 * @param asmFile	The file to write the assembly to.
+	 * @throws FileNotFoundException
+	 */
+	public RegisterTranslator(File asmFile) throws FileNotFoundException {
+		super(asmFile);
+	}
+	
+	/**
+	 * Creates a new RegisterTranslator which writes no assembly text, for
+	 * use with an assembler.
+	 */
+	public RegisterTranslator() {
+		super();
+	}
+	
+	/**
+	 * Writes the top value of the stack to memory, if it is in D.
+	 */
+	private void spill() {
+		if (cached) {
+			pushD();
+			cached = false;
+		}
+	}
+	
+	/**
+	 * Makes sure the top value of the stack is in D, popping it from
+	 * memory if it is not.
+	 */
+	private void top() {
+		if (!cached) {
+			popD();
+			cached = true;
+		}
+	}
+	
+	/**
+	 * Writes the instructions to load the given variable into D.
+	 */
+	private void load(Segment segment, int index) {
+		String base = baseRegister(segment);
+		
+		if (segment == Segment.CONSTANT && (index == 0 || index == 1)) {
+			emit("D=" + index);
+			
+		} else if (segment == Segment.CONSTANT) {
+			emit("@" + index);
+			emit("D=A");
+			
+		} else if (base != null && index <= 1) {
+			emit("@" + base);
+			emit(index == 0 ? "A=M" : "A=M+1");
+			emit("D=M");
+			
+		} else if (base != null) {
+			emit("@" + index);
+			emit("D=A");
+			emit("@" + base);
+			emit("A=D+M");
+			emit("D=M");
+			
+		} else {
+			emit("@" + fixedAddress(segment, index));
+			emit("D=M");
+		}
+	}
+	
+	/**
+	 * Writes the instructions to store D in the given variable.
+	 */
+	private void store(Segment segment, int index) {
+		String base = baseRegister(segment);
+		
+		if (segment == Segment.CONSTANT) {
+			throw new RuntimeException("Cannot pop to the constant segment");
+			
+		} else if (base != null && index <= MAX_POP_INCREMENTS) {
+			emit("@" + base);
+			emit(index == 0 ? "A=M" : "A=M+1");
+			for (int i = 1; i < index; i++) {
+				emit("A=A+1");
+			}
+			emit("M=D");
+			
+		} else if (base != null) {
+			emit("@R13");
+			emit("M=D");
+			emit("@" + index);
+			emit("D=A");
+			emit("@" + base);
+			emit("D=D+M");
+			emit("@R14");
+			emit("M=D");
+			emit("@R13");
+			emit("D=M");
+			emit("@R14");
+			emit("A=M");
+			emit("M=D");
+			
+		} else {
+			emit("@" + fixedAddress(segment, index));
+			emit("M=D");
+		}
+	}
+	
+	/**
+	 * Returns true if the i'th command of the function is a push whose
+	 * value can be used directly as the operand of the binary command
+	 * which follows it.
+	 */
+	private boolean isOperand(VMFunction function, int i) {
+		if (i + 1 >= function.size() || function.opcode(i + 1) != Opcode.ARITHMETIC
+				|| function.command(i + 1) == Command.NEG || function.command(i + 1) == Command.NOT) {
+			return false;
+		}
+		return baseRegister(function.segment(i)) == null
+				|| function.index(i) <= MAX_OPERAND_INCREMENTS;
+	}
+	
+	/**
+	 * Writes the instructions which put the given variable in A, for a
+	 * constant, or its address in A otherwise.
+	 * @return	The register holding the operand, A or M.
+	 */
+	private String operand(Segment segment, int index) {
+		String base = baseRegister(segment);
+		
+		if (segment == Segment.CONSTANT) {
+			emit("@" + index);
+			return "A";
+			
+		} else if (base != null) {
+			emit("@" + base);
+			emit(index == 0 ? "A=M" : "A=M+1");
+			for (int i = 1; i < index; i++) {
+				emit("A=A+1");
+			}
+			return "M";
+			
+		} else {
+			emit("@" + fixedAddress(segment, index));
+			return "M";
+		}
+	}
+	
+	/**
+	 * Writes the instructions for the arithmetic command at index i, and
+	 * any if-goto a comparison is merged with.
+	 * If segment is not null, the command is binary, and its second operand
+	 * is the given variable rather than the top of the stack.
+	 * @return	The index of the last command translated.
+	 */
+	private int writeArithmetic(VMFunction function, int i, Segment segment, int index) {
+		Command command = function.command(i);
+		top();
+		
+		if (command == Command.NEG || command == Command.NOT) {
+			emit(command == Command.NEG ? "D=-D" : "D=!D");
+			return i;
+		}
+		
+		// D is the first operand x, and src the second y; or D is y, and src x
+		boolean direct = segment != null;
+		String src;
+		if (!direct) {
+			emit("@SP");
+			emit("AM=M-1");
+			src = "M";
+		} else if (segment == Segment.CONSTANT && (index == 0 || index == 1
+					&& command != Command.AND && command != Command.OR)) {
+			src = String.valueOf(index);
+		} else {
+			src = operand(segment, index);
+		}
+		
+		switch (command) {
+			case ADD:
+				if (!src.equals("0")) {
+					emit("D=D+" + src);
+				}
+				return i;
+			case AND:
+				emit(src.equals("0") ? "D=0" : "D=D&" + src);
+				return i;
+			case OR:
+				if (!src.equals("0")) {
+					emit("D=D|" + src);
+				}
+				return i;
+			default:
+				break;
+		}
+		
+		// sub and the comparisons compute x - y
+		if (!direct) {
+			emit("D=M-D");
+		} else if (!src.equals("0")) {
+			emit("D=D-" + src);
+		}
+		if (command == Command.SUB) {
+			return i;
+		}
+		
+		String jump;
+		String inverse;
+		switch (command) {
+			case EQ:	jump = "JEQ";	inverse = "JNE";	break;
+			case GT:	jump = "JGT";	inverse = "JLE";	break;
+			default:	jump = "JLT";	inverse = "JGE";	break;
+		}
+		
+		int last = writeBranch(function, i, jump, inverse);
+		if (last >= 0) {
+			return last;
+		}
+		
+		String trueLabel = functionName + "$cmp." + comparisonCounter++;
+		String endLabel = functionName + "$cmp." + comparisonCounter++;
+		emit("@" + trueLabel);
+		emit("D;" + jump);
+		emit("D=0");
+		emit("@" + endLabel);
+		emit("0;JMP");
+		label(trueLabel);
+		emit("D=-1");
+		label(endLabel);
+		return i;
+	}
+	
+	/**
+	 * If the comparison at index i is followed by an if-goto, possibly
+	 * through not commands, writes a single jump on the difference in D
+	 * for them. Since a comparison is -1 or 0, each not just inverts it.
+	 * @param i			The index of the comparison.
+	 * @param jump		The jump taken on D when the comparison is true.
+	 * @param inverse	The jump taken on D when it is false.
+	 * @return			The index of the if-goto, or -1 if there is none.
+	 */
+	private int writeBranch(VMFunction function, int i, String jump, String inverse) {
+		int j = i + 1;
+		boolean negated = false;
+		while (j < function.size() && function.opcode(j) == Opcode.ARITHMETIC
+				&& function.command(j) == Command.NOT) {
+			negated = !negated;
+			j++;
+		}
+		if (j >= function.size() || function.opcode(j) != Opcode.IF_GOTO) {
+			return -1;
+		}
+		
+		emit("@" + functionName + "$" + function.symbol(j));
+		emit("D;" + (negated ? inverse : jump));
+		cached = false;
+		return j;
+	}
+	
+	/**
+	 * Translates a complete function into Hack assembly.
+	 * @param function	The function to translate.
+	 */
+	public void translate(VMFunction function) {
+		long start = System.nanoTime();
+		writeFunction(function);
+		cached = false;
+		comparisonCounter = 0;
+		
+		for (int i = 0; i < function.size(); i++) {
+			currentCommand = i;
+			switch (function.opcode(i)) {
+				case PUSH:
+					if (isOperand(function, i)) {
+						i = writeArithmetic(function, i + 1, function.segment(i), function.index(i));
+					} else {
+						spill();
+						load(function.segment(i), function.index(i));
+						cached = true;
+					}
+					break;
+				
+				case POP:
+					top();
+					store(function.segment(i), function.index(i));
+					cached = false;
+					break;
+				
+				case ARITHMETIC:
+					i = writeArithmetic(function, i, null, 0);
+					break;
+				
+				case LABEL:
+					spill();
+					label(functionName + "$" + function.symbol(i));
+					break;
+				
+				case GOTO:
+					spill();
+					emit("@" + functionName + "$" + function.symbol(i));
+					emit("0;JMP");
+					break;
+				
+				case IF_GOTO:
+					top();
+					emit("@" + functionName + "$" + function.symbol(i));
+					emit("D;JNE");
+					cached = false;
+					break;
+				
+				case CALL:
+					spill();
+					writeCall(function.symbol(i), function.index(i));
+					cached = true;
+					break;
+				
+				case RETURN:
+					top();
+					subroutines.add(RETURN);
+					emit("@" + RETURN);
+					emit("0;JMP");
+					cached = false;
+					break;
+			}
+		}
+		
+		endFunction(function, start);
+	}
+	
+	/**
+	 * Writes the shared $RETURN subroutine, which is entered with the
+	 * return value in D, and returns with it in D and SP pointing to where
+	 * it would be on the caller's stack.
+	 */
+	protected void writeReturnSubroutine() {
+		label(RETURN);
+		emit("@R15");
+		emit("M=D");
+		
+		// R13 = return address
+		emit("@5");
+		emit("D=A");
+		emit("@LCL");
+		emit("A=M-D");
+		emit("D=M");
+		emit("@R13");
+		emit("M=D");
+		
+		// SP = ARG
+		emit("@ARG");
+		emit("D=M");
+		emit("@SP");
+		emit("M=D");
+		
+		// restore THAT, THIS and ARG, walking LCL down the frame
+		for (String register: new String[] {"THAT", "THIS", "ARG"}) {
+			emit("@LCL");
+			emit("AM=M-1");
+			emit("D=M");
+			emit("@" + register);
+			emit("M=D");
+		}
+		emit("@LCL");
+		emit("A=M-1");
+		emit("D=M");
+		emit("@LCL");
+		emit("M=D");
+		
+		emit("@R15");
+		emit("D=M");
+		emit("@R13");
+		emit("A=M");
+		emit("0;JMP");
+	}
+	
+	/**
+	 * Translates and assembles the given program with the given translator,
+	 * returning the ROM.
+	 */
+	private static short[] assemble(VMTranslator translator, ArrayList<VMFunction> program,
+										String entry) {
+		HackAssembler assembler = new HackAssembler();
+		translator.setAssembler(assembler);
+		translator.setClassName(entry.substring(0, entry.indexOf('.')));
+		translator.writeBootstrap(entry);
+		for (VMFunction function: program) {
+			translator.translate(function);
+		}
+		translator.close();
+		assembler.assemble();
+		return assembler.getRom();
+	}
+	
+	/**
+	 * Links the given files into a program. Each run needs its own copy,
+	 * since linking relocates the statics of the functions read.
+	 */
+	private static ArrayList<VMFunction> link(ArrayList<File> vmFiles) throws IOException {
+		VMLinker linker = new VMLinker();
+		for (File vmFile: vmFiles) {
+			linker.addFile(vmFile);
+		}
+		return linker.link(linker.defines("Sys.init") ? "Sys.init" : "Main.main");
+	}
+	
+	/**
+	 * Returns the entry function of the program linked from the given files.
+	 */
+	private static String entry(ArrayList<File> vmFiles) {
+		for (File vmFile: vmFiles) {
+			if (vmFile.getName().equals("Sys.vm")) {
+				return "Sys.init";
+			}
+		}
+		return "Main.main";
+	}
+	
+	/**
+	 * Takes one or more .vm files or directories containing .vm files, and
+	 * translates them as a single program, as for the VMInterpreter, with
+	 * both the VMTranslator and the RegisterTranslator. Each translation is
+	 * run in the HackEmulator until it stops, and the size of its ROM, the
+	 * cycles it ran for, and the cycles per VM command run by the
+	 * VMInterpreter are printed, followed by the first address at which the
+	 * statics, heap or screen of the two runs differ, if any. The last two
+	 * are only printed if the runs stop.
+	 * The files may be preceded by the following options:
+	 * - -limit n			stops each run after about n cycles
+	 * - -keys text			presses the keys of the text in turn, with \n
+	 * 						for newline
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		long limit = Long.MAX_VALUE;
+		String keys = "";
+		
+		int i = 0;
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-limit")) {
+				limit = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-keys")) {
+				keys = args[++i].replace("\\n", "\n");
+			} else {
+				throw new RuntimeException("Unknown option " + args[i]);
+			}
+			i++;
+		}
+		
+		if (i == args.length) {
+			throw new RuntimeException("Arguments must be one or more .vm files or directories");
+		}
+		
+		ArrayList<File> vmFiles = new ArrayList<File>();
+		HashSet<String> classes = new HashSet<String>();
+		for (; i < args.length; i++) {
+			File input = new File(args[i]);
+			File[] files = input.isDirectory() ? input.listFiles() : new File[] {input};
+			for (File file: files) {
+				if (file.getName().endsWith(".vm") && classes.add(file.getName())) {
+					vmFiles.add(file);
+				}
+			}
+		}
+		
+		int[] keyCodes = new int[keys.length()];
+		for (int k = 0; k < keyCodes.length; k++) {
+			keyCodes[k] = keys.charAt(k) == '\n' ? 128 : keys.charAt(k);
+		}
+		
+		long[] cycles = new long[2];
+		int[][] rams = new int[2][];
+		long operations = 0;
+		boolean halted = true;
+		try {
+			for (int run = 0; run < 2; run++) {
+				VMTranslator translator = run == 0 ? new VMTranslator() : new RegisterTranslator();
+				short[] rom = assemble(translator, link(vmFiles), entry(vmFiles));
+				HackEmulator emulator = new HackEmulator(rom, true);
+				emulator.setKeys(keyCodes);
+				boolean finished = emulator.run(limit);
+				halted &= finished;
+				cycles[run] = emulator.getCycles();
+				rams[run] = emulator.getRam();
+				
+				System.out.println(String.format("%-10s %6d instructions %12d cycles%s",
+													run == 0 ? "stack" : "registers", rom.length,
+													cycles[run], finished ? "" : " (stopped)"));
+			}
+			
+			VMInterpreter interpreter = new VMInterpreter(link(vmFiles), entry(vmFiles));
+			interpreter.setKeys(keyCodes);
+			if (interpreter.run(limit)) {
+				operations = interpreter.getOperations();
+			}
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		if (!halted) {
+			return;
+		}
+		if (operations > 0) {
+			System.out.println(String.format("%d VM commands: %.2f cycles per command on the stack, "
+												+ "%.2f in registers (%.1f%% fewer)", operations,
+												(double) cycles[0] / operations,
+												(double) cycles[1] / operations,
+												100.0 - cycles[1] * 100.0 / cycles[0]));
+		}
+		
+		for (int address = VMInterpreter.STATIC_BASE; address < HackEmulator.KEYBOARD; address++) {
+			if (address == VMInterpreter.STACK_BASE) {
+				address = VMInterpreter.HEAP_BASE;
+			}
+			if (rams[0][address] != rams[1][address]) {
+				System.out.println("RAM differs at " + address + ": " + rams[0][address]
+									+ " on the stack, " + rams[1][address] + " in registers");
+				break;
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,375 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * Maps each command of the compiled VM functions back to the source
+ * position it was generated from: the file, line and column, and the
+ * subroutine the line belongs to, which for inlined code is not the
+ * function the command is in. Commands are numbered from 0 within their
+ * function, leaving out the function command, as in VMFunction.
+ *
+ * The map is kept compact by storing only the runs of commands with the
+ * same position. A debug info file holds:
+ *  - the bytes JSM and the version, 1
+ *  - a table of strings, the function and subroutine names
+ *  - for each function, its name, its number of commands, and its runs
+ * Each run holds the number of commands since the start of the last run,
+ * the subroutine (as one more than its index in the table, or 0 if
+ * unknown), the change in line since the last run, and the column. All
+ * numbers are written as unsigned LEB128 varints, with the line changes
+ * zigzag encoded first, so that most runs take four or five bytes.
+ * The file of a subroutine is that of its class, e.g. Main.jack for
+ * Main.main.
+ */
+public class SourceMap {
+	
+	private static final int MAGIC = 0x4A534D01;
+	
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	/** The string table, and the index of each string in it. */
+	private ArrayList<String> strings = new ArrayList<String>();
+	private HashMap<String, Integer> stringIndices = new HashMap<String, Integer>();
+	
+	/** The encoded entries of the functions added. */
+	private byte[] functions = new byte[INITIAL_CAPACITY];
+	private int length = 0;
+	private int numFunctions = 0;
+	
+	/** The runs of each function, once the map has been read. */
+	private LinkedHashMap<String, Runs> runs = new LinkedHashMap<String, Runs>();
+	
+	/**
+	 * The runs of commands with the same position in a single function.
+	 */
+	private static class Runs {
+		
+		final int size;
+		final int[] starts;
+		final int[] lines;
+		final int[] columns;
+		final String[] origins;
+		
+		Runs(int size, int numRuns) {
+			this.size = size;
+			starts = new int[numRuns];
+			lines = new int[numRuns];
+			columns = new int[numRuns];
+			origins = new String[numRuns];
+		}
+		
+		/**
+		 * Returns the run which the given command is in.
+		 */
+		int find(int command) {
+			if (command < 0 || command >= size) {
+				throw new RuntimeException("No command " + command);
+			}
+			
+			int low = 0;
+			int high = starts.length - 1;
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (starts[middle] <= command) {
+					low = middle;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return low;
+		}
+		
+	}
+	
+	/**
+	 * Returns one more than the index of the given string in the string
+	 * table, adding it if it is not there yet, or 0 for null.
+	 */
+	private int stringNumber(String string) {
+		if (string == null) {
+			return 0;
+		}
+		
+		Integer index = stringIndices.get(string);
+		if (index == null) {
+			index = strings.size();
+			strings.add(string);
+			stringIndices.put(string, index);
+		}
+		return index + 1;
+	}
+	
+	/**
+	 * Adds the positions of the commands of the given function, as it
+	 * is written out.
+	 * @param function	The function to add.
+	 */
+	public void addFunction(VMFunction function) {
+		int numRuns = 0;
+		for (int i = 0; i < function.size(); i++) {
+			if (startsRun(function, i)) {
+				numRuns++;
+			}
+		}
+		
+		writeVarint(stringNumber(function.getName()));
+		writeVarint(function.size());
+		writeVarint(numRuns);
+		
+		int lastStart = 0;
+		int lastLine = 0;
+		String lastOrigin = null;
+		int lastNumber = 0;
+		
+		for (int i = 0; i < function.size(); i++) {
+			if (!startsRun(function, i)) {
+				continue;
+			}
+			
+			String origin = function.origin(i);
+			if (origin != lastOrigin) {
+				lastOrigin = origin;
+				lastNumber = stringNumber(origin);
+			}
+			
+			int lineChange = function.line(i) - lastLine;
+			writeVarint(i - lastStart);
+			writeVarint(lastNumber);
+			writeVarint(lineChange << 1 ^ lineChange >> 31);
+			writeVarint(function.column(i));
+			
+			lastStart = i;
+			lastLine = function.line(i);
+		}
+		numFunctions++;
+	}
+	
+	/**
+	 * Returns true if the i'th command of the function is at a different
+	 * position to the one before it.
+	 */
+	private static boolean startsRun(VMFunction function, int i) {
+		return i == 0 || function.line(i) != function.line(i - 1)
+				|| function.column(i) != function.column(i - 1)
+				|| !Objects.equals(function.origin(i), function.origin(i - 1));
+	}
+	
+	/**
+	 * Writes the map of the functions added to the given file.
+	 * @param file	The file to write.
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			bytes.write(MAGIC >> shift);
+		}
+		
+		writeVarint(bytes, strings.size());
+		for (String string: strings) {
+			byte[] utf8 = string.getBytes("UTF-8");
+			writeVarint(bytes, utf8.length);
+			bytes.write(utf8, 0, utf8.length);
+		}
+		
+		writeVarint(bytes, numFunctions);
+		bytes.write(functions, 0, length);
+		
+		OutputStream out = new FileOutputStream(file);
+		try {
+			bytes.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Reads a map written by write, adding its functions to this map.
+	 * @param file	The file to read.
+	 * @throws IOException
+	 */
+	public void read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new RuntimeException(file + " is not a source map");
+			}
+			
+			String[] table = new String[readVarint(in) + 1];
+			for (int i = 1; i < table.length; i++) {
+				byte[] utf8 = new byte[readVarint(in)];
+				in.readFully(utf8);
+				table[i] = new String(utf8, "UTF-8");
+			}
+			
+			int count = readVarint(in);
+			for (int f = 0; f < count; f++) {
+				String name = table[readVarint(in)];
+				int size = readVarint(in);
+				Runs function = new Runs(size, readVarint(in));
+				
+				int start = 0;
+				int line = 0;
+				for (int r = 0; r < function.starts.length; r++) {
+					start += readVarint(in);
+					function.origins[r] = table[readVarint(in)];
+					int zigzag = readVarint(in);
+					line += zigzag >>> 1 ^ -(zigzag & 1);
+					function.columns[r] = readVarint(in);
+					function.starts[r] = start;
+					function.lines[r] = line;
+				}
+				runs.put(name, function);
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Returns true if the map has the positions of the given function.
+	 */
+	public boolean contains(String function) {
+		return runs.containsKey(function);
+	}
+	
+	/**
+	 * Returns the runs of the given function, which must have been read.
+	 */
+	private Runs runsOf(String function) {
+		Runs functionRuns = runs.get(function);
+		if (functionRuns == null) {
+			throw new RuntimeException("No source positions for " + function);
+		}
+		return functionRuns;
+	}
+	
+	/**
+	 * Returns the source line of the given command, or 0 if unknown.
+	 * @param function	The full name of the function.
+	 * @param command	The index of the command within the function.
+	 */
+	public int line(String function, int command) {
+		Runs functionRuns = runsOf(function);
+		return functionRuns.lines[functionRuns.find(command)];
+	}
+	
+	public int column(String function, int command) {
+		Runs functionRuns = runsOf(function);
+		return functionRuns.columns[functionRuns.find(command)];
+	}
+	
+	/**
+	 * Returns the full name of the subroutine whose source the given
+	 * command was generated from, or null if unknown.
+	 * @param function	The full name of the function.
+	 * @param command	The index of the command within the function.
+	 */
+	public String subroutine(String function, int command) {
+		Runs functionRuns = runsOf(function);
+		return functionRuns.origins[functionRuns.find(command)];
+	}
+	
+	/**
+	 * Returns the name of the source file of the given command, such as
+	 * Main.jack, or null if unknown.
+	 * @param function	The full name of the function.
+	 * @param command	The index of the command within the function.
+	 */
+	public String file(String function, int command) {
+		return fileOf(subroutine(function, command));
+	}
+	
+	/**
+	 * Returns the name of the source file of the given subroutine, or
+	 * null for null.
+	 * @param subroutine	The full name of the subroutine, e.g. Main.main.
+	 */
+	public static String fileOf(String subroutine) {
+		if (subroutine == null) {
+			return null;
+		}
+		return subroutine.substring(0, subroutine.indexOf('.')) + ".jack";
+	}
+	
+	/**
+	 * Appends the given value to the encoded functions as a varint.
+	 */
+	private void writeVarint(int value) {
+		if (length + 5 > functions.length) {
+			functions = Arrays.copyOf(functions, functions.length * 2);
+		}
+		
+		while ((value & ~0x7F) != 0) {
+			functions[length++] = (byte) (value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		functions[length++] = (byte) value;
+	}
+	
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write(value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+	
+	private static int readVarint(InputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (b & 0x7F) << shift;
+			if (b < 0x80) {
+				return value;
+			}
+		}
+	}
+	
+	/**
+	 * Takes one or more debug info files, and prints the runs of each
+	 * function in them, one per line, as
+	 * function first-last file:line:column subroutine
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		SourceMap map = new SourceMap();
+		try {
+			for (String filename: args) {
+				map.read(new File(filename));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		for (String function: map.runs.keySet()) {
+			Runs functionRuns = map.runs.get(function);
+			for (int r = 0; r < functionRuns.starts.length; r++) {
+				int last = r + 1 < functionRuns.starts.length
+							? functionRuns.starts[r + 1] - 1 : functionRuns.size - 1;
+				System.out.println(String.format("%s %d-%d %s:%d:%d %s", function,
+									functionRuns.starts[r], last,
+									fileOf(functionRuns.origins[r]), functionRuns.lines[r],
+									functionRuns.columns[r], functionRuns.origins[r]));
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,275 @@
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Replaces reads of static variables which are only ever assigned one
+ * constant, such as constants set up by an init function, with pushes of
+ * the constant, and removes the assignment. The ConstantFoldingPass can
+ * then evaluate expressions using them.
+ *
+ * A static is replaced if the program pops to it exactly once, the value
+ * popped is constant, and the assignment is certain to run before the
+ * static is first read. This is the case if the assignment is reached
+ * from the start of the entry function (the first function of the
+ * program) by straight line code, following calls, without a read of
+ * the static or a call to a function which may read it on the way. So
+ * flags such as an initialized static which is set to true the first
+ * time a function is called are left alone.
+ * The decision made for each static assigned once is printed to the log,
+ * so that it can be checked.
+ */
+public class StaticConstantPropagationPass implements ProgramPass {
+	
+	/** The results of looking for the assignment of a static. */
+	private enum Search { NOT_FOUND, FOUND, READ_FIRST }
+	
+	private HashMap<String, VMFunction> functions;
+	
+	/** The functions which may read the static being replaced. */
+	private HashSet<VMFunction> readers;
+	
+	public String getName() {
+		return "static-constant-propagation";
+	}
+	
+	public void run(ArrayList<VMFunction> program, PrintStream log) {
+		if (program.isEmpty()) {
+			return;
+		}
+		
+		functions = new HashMap<String, VMFunction>();
+		for (VMFunction function: program) {
+			functions.put(function.getName(), function);
+		}
+		
+		// the functions which call each function
+		HashMap<VMFunction, ArrayList<VMFunction>> callers = new HashMap<VMFunction, ArrayList<VMFunction>>();
+		HashMap<Integer, ArrayList<VMFunction>> readersOf = new HashMap<Integer, ArrayList<VMFunction>>();
+		HashMap<Integer, Integer> writeCounts = new HashMap<Integer, Integer>();
+		HashMap<Integer, VMFunction> writers = new HashMap<Integer, VMFunction>();
+		
+		for (VMFunction function: program) {
+			callers.put(function, new ArrayList<VMFunction>());
+		}
+		
+		for (VMFunction function: program) {
+			for (int i = 0; i < function.size(); i++) {
+				if (function.opcode(i) == Opcode.CALL) {
+					VMFunction callee = functions.get(function.symbol(i));
+					if (callee != null) {
+						callers.get(callee).add(function);
+					}
+					
+				} else if (function.accesses(i, Segment.STATIC)) {
+					int index = function.index(i);
+					if (function.opcode(i) == Opcode.POP) {
+						Integer count = writeCounts.get(index);
+						writeCounts.put(index, count == null ? 1 : count + 1);
+						writers.put(index, function);
+						
+					} else {
+						ArrayList<VMFunction> list = readersOf.get(index);
+						if (list == null) {
+							list = new ArrayList<VMFunction>();
+							readersOf.put(index, list);
+						}
+						list.add(function);
+					}
+				}
+			}
+		}
+		
+		for (int index: writeCounts.keySet()) {
+			if (writeCounts.get(index) != 1) {
+				continue;
+			}
+			
+			VMFunction writer = writers.get(index);
+			int write = findWrite(writer, index);
+			int start = constantStart(writer, write);
+			String decision;
+			
+			if (start < 0) {
+				decision = "not constant";
+				
+			} else {
+				findReaders(readersOf.get(index), callers);
+				Search result = search(program.get(0), index, new HashSet<VMFunction>());
+				
+				if (result != Search.FOUND) {
+					decision = "may be read before it is assigned";
+				} else {
+					int value = constantValue(writer, start, write);
+					int reads = replaceReads(program, index, value, writer, start, write);
+					decision = String.format("replaced %d reads with %d", reads, value);
+				}
+			}
+			
+			if (log != null) {
+				log.println(String.format("%s: static %d %s",
+											writer.getName(), index, decision));
+			}
+		}
+	}
+	
+	/**
+	 * Returns the index of the command of the function which pops to the
+	 * given static.
+	 */
+	private int findWrite(VMFunction function, int index) {
+		for (int i = 0; i < function.size(); i++) {
+			if (function.opcode(i) == Opcode.POP
+					&& function.accesses(i, Segment.STATIC, index)) {
+				return i;
+			}
+		}
+		throw new RuntimeException("Static " + index + " is not written");
+	}
+	
+	/**
+	 * Returns the index of the push constant whose value, possibly negated
+	 * by following neg and not commands, is popped by the command at i,
+	 * or -1 if the value popped is not a constant.
+	 */
+	private int constantStart(VMFunction function, int i) {
+		int start = i - 1;
+		while (start >= 0 && function.opcode(start) == Opcode.ARITHMETIC
+				&& (function.command(start) == Command.NEG
+					|| function.command(start) == Command.NOT)) {
+			start--;
+		}
+		
+		if (start < 0 || function.opcode(start) != Opcode.PUSH
+				|| !function.accesses(start, Segment.CONSTANT)) {
+			return -1;
+		}
+		return start;
+	}
+	
+	/**
+	 * Returns the value pushed by the commands from start to end, which
+	 * are a push constant followed by neg and not commands.
+	 */
+	private int constantValue(VMFunction function, int start, int end) {
+		int value = function.index(start);
+		for (int i = start + 1; i < end; i++) {
+			value = function.command(i) == Command.NOT ? ~value : -value;
+		}
+		return (short) value;
+	}
+	
+	/**
+	 * Finds every function which may read the static, either directly or
+	 * through the functions it calls.
+	 * @param direct	The functions which push the static themselves.
+	 * @param callers	The functions which call each function.
+	 */
+	private void findReaders(ArrayList<VMFunction> direct,
+								HashMap<VMFunction, ArrayList<VMFunction>> callers) {
+		readers = new HashSet<VMFunction>();
+		if (direct == null) {
+			return;
+		}
+		
+		ArrayDeque<VMFunction> worklist = new ArrayDeque<VMFunction>();
+		for (VMFunction function: direct) {
+			if (readers.add(function)) {
+				worklist.add(function);
+			}
+		}
+		
+		while (!worklist.isEmpty()) {
+			for (VMFunction caller: callers.get(worklist.poll())) {
+				if (readers.add(caller)) {
+					worklist.add(caller);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Follows the straight line code at the start of the given function,
+	 * and of the functions it calls, looking for the assignment of the
+	 * static.
+	 * @param function	The function to search.
+	 * @param index		The index of the static.
+	 * @param visiting	The functions already being searched, to stop at
+	 * 					recursive calls.
+	 * @return			FOUND if the static is assigned before it can be
+	 * 					read, READ_FIRST if it may be read first, or
+	 * 					NOT_FOUND if the straight line code ends first.
+	 */
+	private Search search(VMFunction function, int index, HashSet<VMFunction> visiting) {
+		visiting.add(function);
+		
+		for (int i = 0; i < function.size(); i++) {
+			Opcode opcode = function.opcode(i);
+			if (opcode == Opcode.LABEL || opcode.isJump()) {
+				break;
+			}
+			
+			if (function.accesses(i, Segment.STATIC, index)) {
+				return opcode == Opcode.POP ? Search.FOUND : Search.READ_FIRST;
+			}
+			
+			if (opcode == Opcode.CALL) {
+				VMFunction callee = functions.get(function.symbol(i));
+				if (callee == null) {
+					// functions outside the program cannot use its statics
+					continue;
+				}
+				
+				if (!visiting.contains(callee)) {
+					Search result = search(callee, index, visiting);
+					if (result != Search.NOT_FOUND) {
+						return result;
+					}
+				}
+				if (readers.contains(callee)) {
+					return Search.READ_FIRST;
+				}
+			}
+		}
+		
+		return Search.NOT_FOUND;
+	}
+	
+	/**
+	 * Replaces every push of the static with a push of its value, and
+	 * removes the commands from start to write which assign it.
+	 * @return	The number of pushes replaced.
+	 */
+	private int replaceReads(ArrayList<VMFunction> program, int index, int value,
+								VMFunction writer, int start, int write) {
+		int reads = 0;
+		
+		for (VMFunction function: program) {
+			VMFunction replaced = new VMFunction(function.getName(), function.getNumLocals());
+			boolean changed = false;
+			
+			for (int i = 0; i < function.size(); i++) {
+				if (function == writer && i >= start && i <= write) {
+					changed = true;
+					
+				} else if (function.accesses(i, Segment.STATIC, index)) {
+					ConstantFoldingPass.pushConstant(replaced, value);
+					changed = true;
+					reads++;
+					
+				} else {
+					replaced.add(function, i);
+				}
+			}
+			
+			if (changed) {
+				function.replaceBody(replaced);
+			}
+		}
+		
+		return reads;
+	}
+	
+}
@@ -0,0 +1,256 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The abstract syntax tree of a single subroutine.
+ * Rather than creating one object per node, the nodes are allocated
+ * in parallel int arrays, and a node is referred to by its index into
+ * these arrays. The meaning of the fields of each node depends on its
+ * NodeKind, as described there. Strings, such as string constants and
+ * subroutine names, are stored once in a string pool, however many
+ * times they occur.
+ * Each node also records the line and column in the source code of the
+ * construct it came from, which is set with setPosition before the node
+ * is added, or 0 if unknown.
+ */
+public class SubroutineAst {
+	
+	/**
+	 * The index used to represent a missing node or unused field.
+	 */
+	public static final int NONE = -1;
+	
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private String name;
+	private Keyword subroutineType;
+	private int numArgs;
+	private int numLocals;
+	private int body = NONE;
+	private int declarationLine;
+	private int declarationColumn;
+	
+	private int size = 0;
+	private byte[] kinds = new byte[INITIAL_CAPACITY];
+	private int[] values = new int[INITIAL_CAPACITY];
+	private int[] firsts = new int[INITIAL_CAPACITY];
+	private int[] seconds = new int[INITIAL_CAPACITY];
+	private int[] thirds = new int[INITIAL_CAPACITY];
+	private int[] nexts = new int[INITIAL_CAPACITY];
+	private int[] lines = new int[INITIAL_CAPACITY];
+	private int[] columns = new int[INITIAL_CAPACITY];
+	
+	/** The position given to the nodes added next. */
+	private int line;
+	private int column;
+	
+	private ArrayList<String> strings = new ArrayList<String>();
+	private HashMap<String, Integer> stringIndices = new HashMap<String, Integer>();
+	
+	/**
+	 * Creates a new empty AST for the subroutine with the given name.
+	 * @param name				The name of the subroutine, excluding the class name.
+	 * @param subroutineType	One of FUNCTION, METHOD or CONSTRUCTOR.
+	 */
+	public SubroutineAst(String name, Keyword subroutineType) {
+		this.name = name;
+		this.subroutineType = subroutineType;
+	}
+	
+	/**
+	 * Allocates a new node with the given kind and fields, and
+	 * returns its index.
+	 * @param kind		The kind of the new node.
+	 * @param value		The value field of the new node.
+	 * @param first		The first field of the new node.
+	 * @param second	The second field of the new node.
+	 * @param third		The third field of the new node.
+	 * @return			The index of the new node.
+	 */
+	public int addNode(NodeKind kind, int value, int first, int second, int third) {
+		if (size == kinds.length) {
+			int capacity = Math.max(size * 2, INITIAL_CAPACITY);
+			kinds = Arrays.copyOf(kinds, capacity);
+			values = Arrays.copyOf(values, capacity);
+			firsts = Arrays.copyOf(firsts, capacity);
+			seconds = Arrays.copyOf(seconds, capacity);
+			thirds = Arrays.copyOf(thirds, capacity);
+			nexts = Arrays.copyOf(nexts, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+			columns = Arrays.copyOf(columns, capacity);
+		}
+		
+		kinds[size] = (byte) kind.ordinal();
+		values[size] = value;
+		firsts[size] = first;
+		seconds[size] = second;
+		thirds[size] = third;
+		nexts[size] = NONE;
+		lines[size] = line;
+		columns[size] = column;
+		
+		return size++;
+	}
+	
+	/**
+	 * Adds the given string to the string pool if it is not already
+	 * there, and returns its index.
+	 * @param string	The string to add.
+	 * @return			The index of the string in the pool.
+	 */
+	public int addString(String string) {
+		Integer index = stringIndices.get(string);
+		if (index == null) {
+			index = strings.size();
+			strings.add(string);
+			stringIndices.put(string, index);
+		}
+		return index;
+	}
+	
+	/**
+	 * Shrinks the node arrays to the number of nodes allocated.
+	 * Should be called once the subroutine has been completely parsed.
+	 */
+	public void trim() {
+		kinds = Arrays.copyOf(kinds, size);
+		values = Arrays.copyOf(values, size);
+		firsts = Arrays.copyOf(firsts, size);
+		seconds = Arrays.copyOf(seconds, size);
+		thirds = Arrays.copyOf(thirds, size);
+		nexts = Arrays.copyOf(nexts, size);
+		lines = Arrays.copyOf(lines, size);
+		columns = Arrays.copyOf(columns, size);
+		strings.trimToSize();
+	}
+	
+	/**
+	 * Links the node after into a list directly after the node before.
+	 * @param before	The node already in the list, or NONE.
+	 * @param after		The node to be linked in after it.
+	 */
+	public void setNext(int before, int after) {
+		if (before != NONE) {
+			nexts[before] = after;
+		}
+	}
+	
+	/**
+	 * Sets the source position given to the nodes added from now on.
+	 * @param line		The line, starting from 1.
+	 * @param column	The column, starting from 1.
+	 */
+	public void setPosition(int line, int column) {
+		this.line = line;
+		this.column = column;
+	}
+	
+	/**
+	 * Sets the source position of a node which has already been added.
+	 * @param node		The node.
+	 * @param line		The line, starting from 1.
+	 * @param column	The column, starting from 1.
+	 */
+	public void setNodePosition(int node, int line, int column) {
+		lines[node] = line;
+		columns[node] = column;
+	}
+	
+	public NodeKind kind(int node) {
+		return NodeKind.fromOrdinal(kinds[node]);
+	}
+	
+	public int value(int node) {
+		return values[node];
+	}
+	
+	public int first(int node) {
+		return firsts[node];
+	}
+	
+	public int second(int node) {
+		return seconds[node];
+	}
+	
+	public int third(int node) {
+		return thirds[node];
+	}
+	
+	public int next(int node) {
+		return nexts[node];
+	}
+	
+	public int line(int node) {
+		return lines[node];
+	}
+	
+	public int column(int node) {
+		return columns[node];
+	}
+	
+	public String string(int index) {
+		return strings.get(index);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public Keyword getSubroutineType() {
+		return subroutineType;
+	}
+	
+	public int getNumArgs() {
+		return numArgs;
+	}
+	
+	/**
+	 * Sets the number of arguments the subroutine takes, including the
+	 * object a method is called on.
+	 * @param numArgs	The number of arguments.
+	 */
+	public void setNumArgs(int numArgs) {
+		this.numArgs = numArgs;
+	}
+	
+	public int getNumLocals() {
+		return numLocals;
+	}
+	
+	public void setNumLocals(int numLocals) {
+		this.numLocals = numLocals;
+	}
+	
+	public int getDeclarationLine() {
+		return declarationLine;
+	}
+	
+	public int getDeclarationColumn() {
+		return declarationColumn;
+	}
+	
+	/**
+	 * Sets the source position of the keyword which starts the
+	 * subroutine declaration.
+	 * @param line		The line, starting from 1.
+	 * @param column	The column, starting from 1.
+	 */
+	public void setDeclarationPosition(int line, int column) {
+		this.declarationLine = line;
+		this.declarationColumn = column;
+	}
+	
+	public int getBody() {
+		return body;
+	}
+	
+	public void setBody(int body) {
+		this.body = body;
+	}
+	
+}
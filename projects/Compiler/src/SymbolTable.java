@@ -8,6 +8,12 @@ public class SymbolTable {
 	
 	private HashMap<String, Entry> subroutineTable = new HashMap<String, Entry>();
 	
+	/**
+	 * Whether the class level symbol table is shared with other
+	 * SymbolTables, in which case it must not change.
+	 */
+	private boolean classTableShared = false;
+	
 	/**
 	 * Creates a new SymbolTable which manages all the identifiers
 	 * for one jack class.
@@ -31,6 +37,25 @@ public class SymbolTable {
 		subroutineTable.clear();
 	}
 	
+	/**
+	 * Returns a new SymbolTable for compiling a single subroutine, which
+	 * shares the class level symbol table of this one. Tables for different
+	 * subroutines can then be used by different threads, so from then on
+	 * defining a static or field variable in either table throws an
+	 * exception.
+	 * @return	A new SymbolTable with the same class scope.
+	 */
+	public SymbolTable subroutineScope() {
+		classTableShared = true;
+		
+		SymbolTable scope = new SymbolTable();
+		scope.classTable = classTable;
+		scope.classTableShared = true;
+		scope.counts.put(Kind.STATIC, counts.get(Kind.STATIC));
+		scope.counts.put(Kind.FIELD, counts.get(Kind.FIELD));
+		return scope;
+	}
+	
 	/**
 	 * Adds a new variable with the given name, type and kind to
 	 * the symbol table, and assigns it a running index, based on its
@@ -47,6 +72,10 @@ public class SymbolTable {
 	 * @param kind	One of the values STATIC, FIELD, ARG and VAR.
 	 */
 	public void define(String name, String type, Kind kind) {
+		if (classTableShared && (kind == Kind.STATIC || kind == Kind.FIELD)) {
+			throw new RuntimeException("Cannot define " + name + " once the class scope is shared");
+		}
+		
 		int index = counts.get(kind);
 		counts.put(kind, index + 1);
 		
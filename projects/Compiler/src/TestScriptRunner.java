@@ -0,0 +1,1031 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the .tst test scripts of the projects without the GUI emulators,
+ * comparing their output with the .cmp files.
+ *
+ * The scripts are run on the CPU, by the HackEmulator one instruction at
+ * a time, if they load a .hack or .asm file, or on the VM, by the
+ * VMInterpreter one operation at a time, if they load .vm files or a
+ * directory, or on the HDLSimulator if they load a .hdl file. The commands
+ * understood are load, output-file, compare-to, output-list, set, repeat,
+ * eval, vmstep, ticktock, tick, tock, output, echo, clear-echo, and
+ * ROM32K load for a built in ROM.
+ *
+ * Each line of output is compared with the .cmp file, in which * matches
+ * any character, so a script fails at the first line which differs. The
+ * lines are written in batches, so that a chip without a clock can be
+ * evaluated for up to 64 sets of inputs at once. Like the VM emulator,
+ * the VM starts in Sys.init if it is loaded, and otherwise in the first
+ * function loaded, without calling it; commands outside of a function, as
+ * in the tests of the VM translator, form a function of their own which
+ * comes first and halts at its end. Labels take no steps, unlike in the VM
+ * emulator, which the tests allow for, since their step counts only have
+ * to be large enough. Classes the VM files call but do not define, such as
+ * the OS classes, may be taken from a directory of compiled OS classes,
+ * and the parts of a chip which are not in its directory or built in are
+ * taken from the other directories of the scripts run.
+ *
+ * The scripts of each directory are run in turn, as they may share output
+ * files, while the directories are run in parallel.
+ */
+public class TestScriptRunner {
+	
+	private static final Pattern INDEXED = Pattern.compile("(\\w+)\\[(\\d+)\\]");
+	private static final Pattern WORD = Pattern.compile("(\\w+)\\[(\\d*)\\]");
+	
+	private static final String PASSED = "PASS";
+	private static final String FAILED = "FAIL";
+	private static final String ERROR = "ERROR";
+	private static final String SKIPPED = "SKIP";
+	
+	/** The directory of compiled OS classes, or null for none. */
+	private static File osDirectory = null;
+	
+	/** Whether the output files named by the scripts are written. */
+	private static boolean writeOutput = false;
+	
+	/** The directories searched for the parts of chips. */
+	private static File[] library = new File[0];
+	
+	/**
+	 * The result of running one script.
+	 */
+	private static class Result {
+		
+		final File script;
+		final String status;
+		final String message;
+		final long nanos;
+		
+		Result(File script, String status, String message, long nanos) {
+			this.script = script;
+			this.status = status;
+			this.message = message;
+			this.nanos = nanos;
+		}
+		
+	}
+	
+	/** Thrown when a line of output differs from the compare file. */
+	private static class ComparisonFailure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		ComparisonFailure(String message) {
+			super(message);
+		}
+	}
+	
+	/** Thrown when a script needs a simulator which is not available. */
+	private static class Unsupported extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		Unsupported(String message) {
+			super(message);
+		}
+	}
+	
+	/**
+	 * A repeat command, and the commands it repeats.
+	 */
+	private static class Repeat {
+		
+		final int count;
+		final ArrayList<Object> body = new ArrayList<Object>();
+		
+		Repeat(int count) {
+			this.count = count;
+		}
+		
+	}
+	
+	/**
+	 * A variable of an output list, with its format, e.g. RAM[0]%D2.6.2 is
+	 * written in decimal, right aligned in 6 characters with 2 spaces before
+	 * and 2 after.
+	 */
+	private static class Column {
+		
+		final String variable;
+		final char format;
+		final int left;
+		final int width;
+		final int right;
+		
+		Column(String spec) {
+			int percent = spec.indexOf('%');
+			if (percent < 0) {
+				spec = spec + "%D1.6.1";
+				percent = spec.indexOf('%');
+			}
+			variable = spec.substring(0, percent);
+			format = spec.charAt(percent + 1);
+			String[] sizes = spec.substring(percent + 2).split("\\.");
+			left = Integer.parseInt(sizes[0]);
+			width = Integer.parseInt(sizes[1]);
+			right = Integer.parseInt(sizes[2]);
+		}
+		
+		String header() {
+			int size = left + width + right;
+			String name = variable.length() > size ? variable.substring(0, size) : variable;
+			int before = (size - name.length()) / 2;
+			return spaces(before) + name + spaces(size - name.length() - before);
+		}
+		
+		/**
+		 * Returns the cell of a sample, which is an int[] holding the value
+		 * or a String for the time.
+		 */
+		String cell(Object sample) {
+			if (sample instanceof String) {
+				String text = (String) sample;
+				return spaces(left) + text + spaces(width - text.length()) + spaces(right);
+			}
+			
+			int value = ((int[]) sample)[0];
+			String text;
+			switch (format) {
+				case 'B':
+					text = pad(Integer.toBinaryString(value & 0xFFFF), 16, '0');
+					text = text.substring(Math.max(0, text.length() - width));
+					break;
+				case 'X':
+					text = pad(Integer.toHexString(value & 0xFFFF).toUpperCase(), 4, '0');
+					text = text.substring(Math.max(0, text.length() - width));
+					break;
+				default:
+					text = Integer.toString(value);
+					break;
+			}
+			return spaces(left) + pad(text, width, ' ') + spaces(right);
+		}
+		
+		private static String pad(String text, int width, char fill) {
+			StringBuilder padded = new StringBuilder();
+			for (int i = text.length(); i < width; i++) {
+				padded.append(fill);
+			}
+			return padded.append(text).toString();
+		}
+		
+		private static String spaces(int count) {
+			return pad("", count, ' ');
+		}
+		
+	}
+	
+	/**
+	 * The simulator a script runs on, chosen by its load command.
+	 */
+	private static interface Machine {
+		
+		/** Updates the outputs from the inputs, without the clock. */
+		public void eval();
+		
+		/** Starts a clock cycle. */
+		public void tick();
+		
+		/** Ends a clock cycle, or runs one instruction or VM operation. */
+		public void tock();
+		
+		/**
+		 * Returns the value of the given variable, in an array which may
+		 * only be filled in once finish is called.
+		 */
+		public int[] sample(String variable);
+		
+		public void set(String variable, int value);
+		
+		/** Fills in the values of the variables sampled. */
+		public void finish();
+		
+	}
+	
+	/**
+	 * The Hack CPU, with the variables PC, A, D and RAM[i].
+	 */
+	private static class Cpu implements Machine {
+		
+		private final HackEmulator emulator;
+		
+		Cpu(File programFile) throws IOException {
+			emulator = new HackEmulator(HackEmulator.readProgram(programFile), false);
+		}
+		
+		public void eval() {
+		}
+		
+		public void tick() {
+		}
+		
+		public void tock() {
+			emulator.step();
+		}
+		
+		public int[] sample(String variable) {
+			return new int[] {get(variable)};
+		}
+		
+		public void finish() {
+		}
+		
+		private int get(String variable) {
+			switch (variable) {
+				case "PC":	return emulator.getPc();
+				case "A":	return emulator.getA();
+				case "D":	return emulator.getD();
+				default:	return emulator.getRam()[ramAddress(variable)];
+			}
+		}
+		
+		public void set(String variable, int value) {
+			if (variable.equals("PC")) {
+				emulator.setPc(value);
+			} else {
+				emulator.getRam()[ramAddress(variable)] = value;
+			}
+		}
+		
+		private static int ramAddress(String variable) {
+			Matcher matcher = INDEXED.matcher(variable);
+			if (!matcher.matches() || !matcher.group(1).equals("RAM")) {
+				throw new RuntimeException("Unknown variable " + variable);
+			}
+			return Integer.parseInt(matcher.group(2));
+		}
+		
+	}
+	
+	/**
+	 * The VM, with the variables sp, local, argument, this and that for the
+	 * segment pointers, the segment variables such as local[i], temp[i] and
+	 * RAM[i].
+	 */
+	private static class Vm implements Machine {
+		
+		private final VMInterpreter interpreter;
+		
+		Vm(ArrayList<File> vmFiles) throws IOException {
+			VMLinker linker = new VMLinker();
+			HashSet<String> classes = new HashSet<String>();
+			String first = null;
+			boolean mainDefined = false;
+			
+			for (File vmFile: vmFiles) {
+				String className = vmFile.getName().replace(".vm", "");
+				classes.add(className);
+				for (VMFunction function: VMParser.parse(vmFile, className + ".$top")) {
+					if (function.getName().equals(className + ".$top")) {
+						function.add(Opcode.CALL, 0, 0, "Sys.halt");
+					}
+					linker.addFunction(function, className);
+					if (first == null) {
+						first = function.getName();
+					}
+					mainDefined |= function.getName().equals("Main.main");
+				}
+			}
+			if (first == null) {
+				throw new RuntimeException("No VM code to load");
+			}
+			
+			String entry = linker.defines("Sys.init") ? "Sys.init" : null;
+			if (osDirectory != null) {
+				File[] osFiles = osDirectory.listFiles();
+				Arrays.sort(osFiles);
+				for (File osFile: osFiles) {
+					String className = osFile.getName().replace(".vm", "");
+					if (osFile.getName().endsWith(".vm") && classes.add(className)) {
+						linker.addFile(osFile);
+					}
+				}
+			}
+			if (entry == null) {
+				entry = mainDefined && linker.defines("Sys.init") ? "Sys.init" : first;
+			}
+			
+			interpreter = new VMInterpreter(linker.link(entry), entry);
+			interpreter.startIn(entry);
+			if (entry.endsWith(".$top")) {
+				// the function command was not in the file, so takes no step
+				interpreter.step();
+			}
+		}
+		
+		public void eval() {
+		}
+		
+		public void tick() {
+		}
+		
+		public void tock() {
+			if (!interpreter.isHalted()) {
+				interpreter.step();
+			}
+		}
+		
+		public int[] sample(String variable) {
+			return new int[] {interpreter.getRam()[address(variable)]};
+		}
+		
+		public void finish() {
+		}
+		
+		public void set(String variable, int value) {
+			interpreter.getRam()[address(variable)] = value;
+		}
+		
+		/**
+		 * Returns the RAM address of the given variable.
+		 */
+		private int address(String variable) {
+			int[] ram = interpreter.getRam();
+			switch (variable) {
+				case "sp":			return 0;
+				case "local":		return 1;
+				case "argument":	return 2;
+				case "this":		return 3;
+				case "that":		return 4;
+				default:			break;
+			}
+			
+			Matcher matcher = INDEXED.matcher(variable);
+			if (!matcher.matches()) {
+				throw new RuntimeException("Unknown variable " + variable);
+			}
+			int index = Integer.parseInt(matcher.group(2));
+			switch (matcher.group(1)) {
+				case "RAM":			return index;
+				case "local":		return ram[1] + index;
+				case "argument":	return ram[2] + index;
+				case "this":		return ram[3] + index;
+				case "that":		return ram[4] + index;
+				case "temp":		return 5 + index;
+				default:
+					throw new RuntimeException("Unknown variable " + variable);
+			}
+		}
+		
+	}
+	
+	/**
+	 * A chip, with its pins as variables, and the words of its built in
+	 * parts, e.g. RAM16K[3] or DRegister[].
+	 *
+	 * A chip without a clock is given the inputs set after each eval in
+	 * the next lane, and its outputs are only read once the lanes are full
+	 * or the output is written, so that it is evaluated once for up to 64
+	 * evals. A chip with a clock only uses lane 0.
+	 */
+	private static class Hardware implements Machine {
+		
+		private final HDLSimulator simulator;
+		private final boolean parallel;
+		
+		/** The lane the inputs are set in, and the last lane evaluated. */
+		private int lane = 0;
+		private int evaluated = 0;
+		
+		/** The samples of output pins to fill in, and their pins and lanes. */
+		private ArrayList<int[]> samples = new ArrayList<int[]>();
+		private ArrayList<String> samplePins = new ArrayList<String>();
+		private ArrayList<Integer> sampleLanes = new ArrayList<Integer>();
+		
+		Hardware(File hdlFile) throws IOException {
+			simulator = new HDLSimulator(hdlFile, library);
+			parallel = !simulator.isClocked();
+		}
+		
+		public void eval() {
+			if (parallel) {
+				evaluated = lane;
+			} else {
+				simulator.evaluate();
+			}
+		}
+		
+		public void tick() {
+			if (parallel) {
+				eval();
+			} else {
+				simulator.tick();
+			}
+		}
+		
+		public void tock() {
+			if (parallel) {
+				eval();
+			} else {
+				simulator.tock();
+			}
+		}
+		
+		public int[] sample(String variable) {
+			Matcher matcher = WORD.matcher(variable);
+			if (matcher.matches()) {
+				return new int[] {simulator.getWord(matcher.group(1), index(matcher))};
+			} else if (!parallel || simulator.isInput(variable)) {
+				return new int[] {simulator.get(variable, lane)};
+			} else if (!simulator.hasPin(variable)) {
+				throw new RuntimeException("Unknown variable " + variable);
+			}
+			
+			int[] sample = new int[1];
+			samples.add(sample);
+			samplePins.add(variable);
+			sampleLanes.add(evaluated);
+			return sample;
+		}
+		
+		public void set(String variable, int value) {
+			Matcher matcher = WORD.matcher(variable);
+			if (matcher.matches()) {
+				simulator.setWord(matcher.group(1), index(matcher), value);
+				return;
+			}
+			
+			if (parallel && evaluated == lane) {
+				if (lane == HDLSimulator.LANES - 1) {
+					finish();
+					simulator.copyLane(lane, 0, false);
+					lane = 0;
+					evaluated = 0;
+				} else {
+					simulator.copyLane(lane, lane + 1, true);
+					lane++;
+				}
+			}
+			simulator.set(variable, lane, value);
+		}
+		
+		public void finish() {
+			if (!parallel) {
+				return;
+			}
+			
+			simulator.evaluate();
+			for (int i = 0; i < samples.size(); i++) {
+				samples.get(i)[0] = simulator.get(samplePins.get(i), sampleLanes.get(i));
+			}
+			samples.clear();
+			samplePins.clear();
+			sampleLanes.clear();
+		}
+		
+		/**
+		 * Loads a program into a built in ROM32K part.
+		 */
+		void loadRom(String part, File programFile) throws IOException {
+			simulator.loadRom(part, HackEmulator.readProgram(programFile));
+		}
+		
+		private static int index(Matcher matcher) {
+			return matcher.group(2).isEmpty() ? 0 : Integer.parseInt(matcher.group(2));
+		}
+		
+	}
+	
+	private final File script;
+	private final File directory;
+	private Machine machine = null;
+	private PrintWriter out = null;
+	private ArrayList<String> expected = null;
+	private ArrayList<Column> columns = new ArrayList<Column>();
+	private int outputLines = 0;
+	
+	/** The lines of output waiting for the machine to fill in their samples. */
+	private ArrayList<Object[]> rows = new ArrayList<Object[]>();
+	
+	/** The number of clock cycles, and whether the current one has ticked. */
+	private int time = 0;
+	private boolean ticked = false;
+	
+	private TestScriptRunner(File script) {
+		this.script = script;
+		this.directory = script.getAbsoluteFile().getParentFile();
+	}
+	
+	/**
+	 * Reads a script into a list of commands, each either the words of a
+	 * command or a Repeat.
+	 */
+	private static ArrayList<Object> parse(File script) throws IOException {
+		StringBuilder text = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(script));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				text.append(line).append('\n');
+			}
+		} finally {
+			reader.close();
+		}
+		String source = text.toString().replaceAll("(?s)/\\*.*?\\*/", " ").replaceAll("//[^\n]*", " ");
+		
+		ArrayList<Object> commands = new ArrayList<Object>();
+		ArrayDeque<ArrayList<Object>> outer = new ArrayDeque<ArrayList<Object>>();
+		StringBuilder command = new StringBuilder();
+		
+		boolean quoted = false;
+		for (int i = 0; i < source.length(); i++) {
+			char c = source.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+				command.append(c);
+				
+			} else if (quoted) {
+				command.append(c);
+				
+			} else if (c == ',' || c == ';') {
+				addCommand(commands, command);
+				
+			} else if (c == '{') {
+				String[] words = command.toString().trim().split("\\s+");
+				if (words.length == 1 && words[0].equals("repeat")) {
+					throw new Unsupported("Interactive scripts, which repeat forever, are not supported");
+				} else if (words[0].equals("while")) {
+					throw new Unsupported("Interactive scripts, which wait in a while loop, are not supported");
+				} else if (words.length != 2 || !words[0].equals("repeat")) {
+					throw new Unsupported("Only repeat n { ... } blocks are supported");
+				}
+				Repeat repeat = new Repeat(Integer.parseInt(words[1]));
+				commands.add(repeat);
+				outer.push(commands);
+				commands = repeat.body;
+				command.setLength(0);
+				
+			} else if (c == '}') {
+				addCommand(commands, command);
+				if (outer.isEmpty()) {
+					throw new RuntimeException("Unmatched }");
+				}
+				commands = outer.pop();
+				
+			} else {
+				command.append(c);
+			}
+		}
+		
+		addCommand(commands, command);
+		if (!outer.isEmpty()) {
+			throw new RuntimeException("Missing }");
+		}
+		return commands;
+	}
+	
+	/**
+	 * Adds the words of the given command, if it is not empty, and clears it.
+	 */
+	private static void addCommand(ArrayList<Object> commands, StringBuilder command) {
+		String words = command.toString().trim();
+		if (words.startsWith("echo") || words.startsWith("clear-echo")) {
+			commands.add(new String[] {"echo"});
+		} else if (!words.isEmpty()) {
+			commands.add(words.split("\\s+"));
+		}
+		command.setLength(0);
+	}
+	
+	/**
+	 * Runs the given commands in order.
+	 */
+	private void execute(ArrayList<Object> commands) throws IOException {
+		for (Object command: commands) {
+			if (command instanceof Repeat) {
+				Repeat repeat = (Repeat) command;
+				for (int i = 0; i < repeat.count; i++) {
+					execute(repeat.body);
+				}
+			} else {
+				execute((String[]) command);
+			}
+		}
+	}
+	
+	/**
+	 * Runs a single command.
+	 */
+	private void execute(String[] words) throws IOException {
+		switch (words[0]) {
+			case "load":
+				machine = load(words.length > 1 ? file(words[1]) : directory);
+				break;
+			
+			case "output-file":
+				if (writeOutput) {
+					out = new PrintWriter(new File(directory, words[1]));
+				}
+				break;
+			
+			case "compare-to":
+				expected = new ArrayList<String>();
+				BufferedReader reader = new BufferedReader(new FileReader(file(words[1])));
+				try {
+					for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+						expected.add(line);
+					}
+				} finally {
+					reader.close();
+				}
+				break;
+			
+			case "output-list":
+				writeRows();
+				columns.clear();
+				StringBuilder header = new StringBuilder("|");
+				for (int i = 1; i < words.length; i++) {
+					Column column = new Column(words[i]);
+					columns.add(column);
+					header.append(column.header()).append('|');
+				}
+				output(header.toString());
+				break;
+			
+			case "output":
+				Object[] row = new Object[columns.size()];
+				for (int i = 0; i < row.length; i++) {
+					String variable = columns.get(i).variable;
+					row[i] = variable.equals("time") ? time + (ticked ? "+" : "")
+								: machine().sample(variable);
+				}
+				rows.add(row);
+				if (rows.size() >= HDLSimulator.LANES) {
+					writeRows();
+				}
+				break;
+			
+			case "set":
+				machine().set(words[1], parseValue(words[2]));
+				break;
+			
+			case "eval":
+				machine().eval();
+				break;
+			
+			case "tick":
+				machine().tick();
+				ticked = true;
+				break;
+			
+			case "tock":
+			case "ticktock":
+				if (words[0].equals("ticktock")) {
+					machine().tick();
+				}
+				machine().tock();
+				time++;
+				ticked = false;
+				break;
+			
+			case "vmstep":
+				machine().tock();
+				break;
+			
+			case "echo":
+				break;
+			
+			default:
+				if (words.length == 3 && words[1].equals("load") && machine instanceof Hardware) {
+					((Hardware) machine).loadRom(words[0], file(words[2]));
+					break;
+				}
+				throw new RuntimeException("Unknown command " + words[0]);
+		}
+	}
+	
+	/**
+	 * Returns the named file in the directory of the script, ignoring the
+	 * case of the name if there is no file with exactly that name, as the
+	 * scripts were written for case insensitive file systems.
+	 */
+	private File file(String name) {
+		File file = new File(directory, name);
+		if (!file.exists()) {
+			for (File other: directory.listFiles()) {
+				if (other.getName().equalsIgnoreCase(name)) {
+					return other;
+				}
+			}
+		}
+		return file;
+	}
+	
+	private Machine machine() {
+		if (machine == null) {
+			throw new RuntimeException("No program loaded");
+		}
+		return machine;
+	}
+	
+	/**
+	 * Returns the machine for the given file or directory to load.
+	 */
+	private static Machine load(File file) throws IOException {
+		String name = file.getName();
+		if (name.endsWith(".hdl")) {
+			return new Hardware(file);
+		} else if (name.endsWith(".hack") || name.endsWith(".asm") || name.endsWith(".rom")) {
+			return new Cpu(file);
+		}
+		
+		ArrayList<File> vmFiles = new ArrayList<File>();
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			Arrays.sort(files);
+			for (File vmFile: files) {
+				if (vmFile.getName().endsWith(".vm")) {
+					vmFiles.add(vmFile);
+				}
+			}
+		} else {
+			vmFiles.add(file);
+		}
+		return new Vm(vmFiles);
+	}
+	
+	/**
+	 * Parses a value of a set command, in decimal, or in binary or hex if
+	 * it starts with %B or %X.
+	 */
+	private static int parseValue(String value) {
+		if (value.startsWith("%B")) {
+			return (short) Integer.parseInt(value.substring(2), 2);
+		} else if (value.startsWith("%X")) {
+			return (short) Integer.parseInt(value.substring(2), 16);
+		} else if (value.startsWith("%D")) {
+			value = value.substring(2);
+		}
+		return Integer.parseInt(value);
+	}
+	
+	/**
+	 * Writes the lines of output waiting for their samples.
+	 */
+	private void writeRows() {
+		if (rows.isEmpty()) {
+			return;
+		}
+		
+		machine().finish();
+		for (Object[] row: rows) {
+			StringBuilder line = new StringBuilder("|");
+			for (int i = 0; i < row.length; i++) {
+				line.append(columns.get(i).cell(row[i])).append('|');
+			}
+			output(line.toString());
+		}
+		rows.clear();
+	}
+	
+	/**
+	 * Writes a line of output, and compares it with the compare file.
+	 */
+	private void output(String line) {
+		outputLines++;
+		if (out != null) {
+			out.println(line);
+		}
+		if (expected == null) {
+			return;
+		}
+		
+		String want = outputLines <= expected.size() ? expected.get(outputLines - 1).trim() : null;
+		if (!matches(want, line.trim())) {
+			throw new ComparisonFailure(String.format(
+						"Comparison failure at line %d: expected %s but was %s",
+						outputLines, want, line.trim()));
+		}
+	}
+	
+	/**
+	 * Returns true if the line is the line expected, where * matches any
+	 * character.
+	 */
+	private static boolean matches(String expected, String line) {
+		if (expected == null || expected.length() != line.length()) {
+			return false;
+		}
+		for (int i = 0; i < line.length(); i++) {
+			if (expected.charAt(i) != '*' && expected.charAt(i) != line.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Runs the script, returning its result.
+	 */
+	private Result run() {
+		long start = System.nanoTime();
+		String status = PASSED;
+		String message = null;
+		
+		try {
+			execute(parse(script));
+			writeRows();
+		} catch (ComparisonFailure e) {
+			status = FAILED;
+			message = e.getMessage();
+		} catch (Unsupported e) {
+			status = SKIPPED;
+			message = e.getMessage();
+		} catch (IOException e) {
+			status = ERROR;
+			message = e.toString();
+		} catch (RuntimeException e) {
+			status = ERROR;
+			message = e.getMessage() != null ? e.getMessage() : e.toString();
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+		
+		return new Result(script, status, message, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Runs the scripts of one directory in turn.
+	 */
+	private static class DirectoryRun extends RecursiveTask<ArrayList<Result>> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final ArrayList<File> scripts;
+		
+		DirectoryRun(ArrayList<File> scripts) {
+			this.scripts = scripts;
+		}
+		
+		protected ArrayList<Result> compute() {
+			ArrayList<Result> results = new ArrayList<Result>();
+			for (File script: scripts) {
+				results.add(new TestScriptRunner(script).run());
+			}
+			return results;
+		}
+		
+	}
+	
+	/**
+	 * Adds the .tst files in the given file or directory, and in all the
+	 * directories below it, to the scripts of their directories.
+	 */
+	private static void findScripts(File file, TreeMap<String, ArrayList<File>> scripts) {
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			Arrays.sort(files);
+			for (File child: files) {
+				findScripts(child, scripts);
+			}
+		} else if (file.getName().endsWith(".tst")) {
+			String directory = file.getAbsoluteFile().getParent();
+			if (!scripts.containsKey(directory)) {
+				scripts.put(directory, new ArrayList<File>());
+			}
+			scripts.get(directory).add(file);
+		}
+	}
+	
+	/**
+	 * Escapes a string for an XML attribute.
+	 */
+	private static String xml(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+					.replace("\"", "&quot;");
+	}
+	
+	/**
+	 * Writes the results as a JUnit XML report, as read by build servers.
+	 */
+	private static void writeReport(File reportFile, ArrayList<Result> results, int[] counts,
+										long nanos) throws IOException {
+		PrintWriter out = new PrintWriter(reportFile);
+		out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		out.println(String.format("<testsuite name=\"TestScriptRunner\" tests=\"%d\" failures=\"%d\" "
+									+ "errors=\"%d\" skipped=\"%d\" time=\"%.3f\">",
+									results.size(), counts[1], counts[2], counts[3], nanos / 1e9));
+		for (Result result: results) {
+			String name = result.script.getName().replace(".tst", "");
+			out.print(String.format("  <testcase classname=\"%s\" name=\"%s\" time=\"%.3f\"",
+									xml(result.script.getParent()), xml(name), result.nanos / 1e9));
+			if (result.status == PASSED) {
+				out.println("/>");
+				continue;
+			}
+			
+			out.println(">");
+			String element = result.status == FAILED ? "failure"
+								: result.status == ERROR ? "error" : "skipped";
+			out.println(String.format("    <%s message=\"%s\"/>", element, xml(result.message)));
+			out.println("  </testcase>");
+		}
+		out.println("</testsuite>");
+		out.close();
+	}
+	
+	/**
+	 * Takes one or more .tst files or directories, which are searched for
+	 * .tst files, and runs the scripts, printing the result and time of
+	 * each and a summary of them all. Exits with status 1 if any failed.
+	 * The files may be preceded by the following options:
+	 * - -os dir		takes the classes the VM files do not define from the
+	 * 					.vm files in the given directory
+	 * - -out			writes the output files the scripts name, as the
+	 * 					emulators do
+	 * - -xml file		writes a JUnit XML report of the results
+	 * - -lib dir		searches the given directory for the parts of chips
+	 * 					before the directories of the scripts
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		File reportFile = null;
+		ArrayList<File> libraryDirectories = new ArrayList<File>();
+		
+		int i = 0;
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-os")) {
+				osDirectory = new File(args[++i]);
+			} else if (args[i].equals("-out")) {
+				writeOutput = true;
+			} else if (args[i].equals("-xml")) {
+				reportFile = new File(args[++i]);
+			} else if (args[i].equals("-lib")) {
+				libraryDirectories.add(new File(args[++i]));
+			} else {
+				throw new RuntimeException("Unknown option " + args[i]);
+			}
+			i++;
+		}
+		
+		if (i == args.length) {
+			throw new RuntimeException("Arguments must be one or more .tst files or directories");
+		}
+		
+		TreeMap<String, ArrayList<File>> scripts = new TreeMap<String, ArrayList<File>>();
+		for (; i < args.length; i++) {
+			findScripts(new File(args[i]), scripts);
+		}
+		for (String directory: scripts.keySet()) {
+			libraryDirectories.add(new File(directory));
+		}
+		library = libraryDirectories.toArray(new File[libraryDirectories.size()]);
+		
+		long start = System.nanoTime();
+		ArrayList<DirectoryRun> runs = new ArrayList<DirectoryRun>();
+		for (ArrayList<File> directoryScripts: scripts.values()) {
+			DirectoryRun run = new DirectoryRun(directoryScripts);
+			run.fork();
+			runs.add(run);
+		}
+		
+		ArrayList<Result> results = new ArrayList<Result>();
+		for (DirectoryRun run: runs) {
+			results.addAll(run.join());
+		}
+		long nanos = System.nanoTime() - start;
+		
+		// passed, failed, errors, skipped
+		int[] counts = new int[4];
+		for (Result result: results) {
+			int kind = result.status == PASSED ? 0 : result.status == FAILED ? 1
+						: result.status == ERROR ? 2 : 3;
+			counts[kind]++;
+			System.out.println(String.format("%-5s %-60s %9.3f ms%s", result.status,
+												result.script.getPath(), result.nanos / 1e6,
+												result.message == null ? "" : "  " + result.message));
+		}
+		
+		System.out.println();
+		System.out.println(String.format("Tests run: %d, Passed: %d, Failures: %d, Errors: %d, "
+											+ "Skipped: %d, Time elapsed: %.3f s",
+											results.size(), counts[0], counts[1], counts[2],
+											counts[3], nanos / 1e9));
+		
+		if (reportFile != null) {
+			try {
+				writeReport(reportFile, results, counts, nanos);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if (counts[1] + counts[2] > 0) {
+			System.exit(1);
+		}
+	}
+	
+}
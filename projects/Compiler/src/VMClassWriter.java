@@ -0,0 +1,573 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * Translates the VM functions of a whole program ahead of time into JVM
+ * classes, a backend alongside the VMWriter for running large programs
+ * at the speed of the JVM.
+ *
+ * Each Jack class becomes a class of the package JackRuntime.PACKAGE,
+ * with one static method per function, taking its arguments as ints and
+ * returning an int, and calls become invokestatic. The arguments, locals
+ * and the THIS and THAT pointers of a function are JVM locals, and the VM
+ * stack is the JVM operand stack, while the static, temp, this and that
+ * segments use the RAM of the JackRuntime, as in the Hack platform. The
+ * only difference from running on Hack is that the stack frames are not
+ * in RAM, and a function does not see the THIS and THAT of its caller,
+ * which the code the compiler generates never relies on.
+ *
+ * The number of arguments of a function is taken from its calls, so the
+ * whole program, including the OS, must be translated at once.
+ */
+public class VMClassWriter {
+	
+	private static final String RUNTIME = "JackRuntime";
+	private static final int STATIC_BASE = 16;
+	private static final int STACK_BASE = 256;
+	
+	private static final int ILOAD = 0x15;
+	private static final int ISTORE = 0x36;
+	private static final int IALOAD = 0x2e;
+	private static final int IASTORE = 0x4f;
+	private static final int IADD = 0x60;
+	private static final int ISUB = 0x64;
+	private static final int INEG = 0x74;
+	private static final int IAND = 0x7e;
+	private static final int IOR = 0x80;
+	private static final int IXOR = 0x82;
+	private static final int I2S = 0x93;
+	private static final int ICONST_M1 = 0x02;
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int IFNE = 0x9a;
+	private static final int IF_ICMPEQ = 0x9f;
+	private static final int IF_ICMPLT = 0xa1;
+	private static final int IF_ICMPGT = 0xa3;
+	private static final int GOTO = 0xa7;
+	private static final int IRETURN = 0xac;
+	private static final int GETSTATIC = 0xb2;
+	private static final int INVOKESTATIC = 0xb8;
+	
+	/** The functions of each class, in the order they were added. */
+	private LinkedHashMap<String, ArrayList<VMFunction>> classes =
+			new LinkedHashMap<String, ArrayList<VMFunction>>();
+	private HashMap<String, Integer> staticBases = new HashMap<String, Integer>();
+	private HashMap<String, String> functionFiles = new HashMap<String, String>();
+	private HashMap<String, Integer> arities;
+	
+	private int numMethods = 0;
+	private long outputBytes = 0;
+	private long nanos = 0;
+	
+	/**
+	 * Reads the functions of the given .vm file, whose name without the
+	 * extension is the class whose static segment its functions use.
+	 * @param vmFile	The .vm file to add to the program.
+	 * @throws IOException
+	 */
+	public void addFile(File vmFile) throws IOException {
+		String fileClass = vmFile.getName().replace(".vm", "");
+		for (VMFunction function: VMParser.parse(vmFile)) {
+			addFunction(function, fileClass);
+		}
+	}
+	
+	/**
+	 * Adds a single function to the program.
+	 * Throws an exception if a function is defined more than once.
+	 * @param function	The function to add.
+	 * @param fileClass	The class whose static segment the function uses.
+	 */
+	public void addFunction(VMFunction function, String fileClass) {
+		String name = function.getName();
+		if (functionFiles.containsKey(name)) {
+			throw new RuntimeException("Function defined more than once: " + name);
+		}
+		functionFiles.put(name, fileClass);
+		
+		String className = name.substring(0, name.indexOf('.'));
+		if (!classes.containsKey(className)) {
+			classes.put(className, new ArrayList<VMFunction>());
+		}
+		classes.get(className).add(function);
+	}
+	
+	/**
+	 * Returns true if the program defines a function with the given name.
+	 */
+	public boolean defines(String name) {
+		return functionFiles.containsKey(name);
+	}
+	
+	/**
+	 * Translates every class of the program, and writes each to a .class
+	 * file in the package directory under the given directory.
+	 * Throws an exception if a function called is neither defined nor
+	 * native, or is called with different numbers of arguments.
+	 * @param outputDirectory	The root directory of the classes.
+	 * @throws IOException
+	 */
+	public void write(File outputDirectory) throws IOException {
+		long start = System.nanoTime();
+		
+		assignStatics();
+		findArities();
+		
+		File packageDirectory = new File(outputDirectory, JackRuntime.PACKAGE);
+		packageDirectory.mkdirs();
+		
+		for (String className: classes.keySet()) {
+			ClassFileWriter classFile = new ClassFileWriter();
+			for (VMFunction function: classes.get(className)) {
+				translate(function, classFile);
+				numMethods++;
+			}
+			
+			byte[] bytes = classFile.toByteArray(JackRuntime.PACKAGE + "/" + className,
+					ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_FINAL | ClassFileWriter.ACC_SUPER);
+			FileOutputStream out = new FileOutputStream(new File(packageDirectory, className + ".class"));
+			out.write(bytes);
+			out.close();
+			outputBytes += bytes.length;
+		}
+		
+		nanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Gives the static variables of each .vm file their own range of RAM,
+	 * in the order the files were added.
+	 * Throws an exception if there are too many to fit below the stack.
+	 */
+	private void assignStatics() {
+		LinkedHashMap<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for (ArrayList<VMFunction> functions: classes.values()) {
+			for (VMFunction function: functions) {
+				String fileClass = functionFiles.get(function.getName());
+				int count = counts.containsKey(fileClass) ? counts.get(fileClass) : 0;
+				for (int i = 0; i < function.size(); i++) {
+					if (function.accesses(i, Segment.STATIC)) {
+						count = Math.max(count, function.index(i) + 1);
+					}
+				}
+				counts.put(fileClass, count);
+			}
+		}
+		
+		int base = 0;
+		for (String fileClass: counts.keySet()) {
+			staticBases.put(fileClass, base);
+			base += counts.get(fileClass);
+		}
+		if (STATIC_BASE + base > STACK_BASE) {
+			throw new RuntimeException("Too many static variables");
+		}
+	}
+	
+	/**
+	 * Finds the number of arguments of each function, from the numbers
+	 * passed by its calls and the arguments it uses.
+	 */
+	private void findArities() {
+		arities = new HashMap<String, Integer>();
+		
+		for (ArrayList<VMFunction> functions: classes.values()) {
+			for (VMFunction function: functions) {
+				for (int i = 0; i < function.size(); i++) {
+					if (function.opcode(i) != Opcode.CALL) {
+						continue;
+					}
+					
+					String callee = function.symbol(i);
+					int numArgs = function.index(i);
+					if (JackRuntime.nativeMethod(callee) != null) {
+						if (JackRuntime.nativeArgs(callee) != numArgs) {
+							throw new RuntimeException(callee + " called with " + numArgs + " arguments");
+						}
+					} else if (!defines(callee)) {
+						throw new RuntimeException("Function not defined: " + callee);
+					} else if (arities.containsKey(callee) && arities.get(callee) != numArgs) {
+						throw new RuntimeException(callee + " called with different numbers of arguments");
+					} else {
+						arities.put(callee, numArgs);
+					}
+				}
+			}
+		}
+		
+		for (ArrayList<VMFunction> functions: classes.values()) {
+			for (VMFunction function: functions) {
+				int used = 0;
+				for (int i = 0; i < function.size(); i++) {
+					if (function.accesses(i, Segment.ARGUMENT)) {
+						used = Math.max(used, function.index(i) + 1);
+					}
+				}
+				
+				Integer arity = arities.get(function.getName());
+				if (arity == null) {
+					arities.put(function.getName(), used);
+				} else if (arity < used) {
+					throw new RuntimeException(function.getName() + " uses argument " + (used - 1)
+												+ " but is called with " + arity);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the descriptor of a method taking the given number of ints
+	 * and returning an int.
+	 */
+	private static String descriptor(int numArgs) {
+		StringBuilder descriptor = new StringBuilder("(");
+		for (int i = 0; i < numArgs; i++) {
+			descriptor.append('I');
+		}
+		return descriptor.append(")I").toString();
+	}
+	
+	/**
+	 * Returns the number of values on the stack before each command of
+	 * the function, or -1 for unreachable commands.
+	 * Throws an exception if two paths reach a label with different
+	 * numbers of values, which the JVM does not allow.
+	 */
+	private int[] stackDepths(VMFunction function) {
+		HashMap<String, Integer> labels = new HashMap<String, Integer>();
+		for (int i = 0; i < function.size(); i++) {
+			if (function.opcode(i) == Opcode.LABEL) {
+				labels.put(function.symbol(i), i);
+			}
+		}
+		
+		int[] depths = new int[function.size() + 1];
+		for (int i = 0; i < depths.length; i++) {
+			depths[i] = -1;
+		}
+		int[] worklist = new int[depths.length];
+		int numPending = 0;
+		depths[0] = 0;
+		worklist[numPending++] = 0;
+		
+		while (numPending > 0) {
+			int i = worklist[--numPending];
+			if (i == function.size()) {
+				continue;
+			}
+			
+			int depth = depths[i];
+			int next = i + 1;
+			int target = -1;
+			switch (function.opcode(i)) {
+				case PUSH:		depth++;		break;
+				case POP:		depth--;		break;
+				case ARITHMETIC:
+					Command command = function.command(i);
+					if (command != Command.NEG && command != Command.NOT) {
+						depth--;
+					}
+					break;
+				case LABEL:		break;
+				case GOTO:
+					next = -1;
+					target = labels.get(function.symbol(i));
+					break;
+				case IF_GOTO:
+					depth--;
+					target = labels.get(function.symbol(i));
+					break;
+				case CALL:		depth += 1 - function.index(i);	break;
+				case RETURN:	next = -1;		break;
+			}
+			
+			if (depth < 0) {
+				throw new RuntimeException("Stack underflow in " + function.getName());
+			}
+			for (int successor: new int[] {next, target}) {
+				if (successor < 0) {
+					continue;
+				}
+				if (depths[successor] < 0) {
+					depths[successor] = depth;
+					worklist[numPending++] = successor;
+				} else if (depths[successor] != depth) {
+					throw new RuntimeException("Inconsistent stack depth in " + function.getName());
+				}
+			}
+		}
+		
+		return depths;
+	}
+	
+	/**
+	 * Translates a function into a method of the given class.
+	 */
+	private void translate(VMFunction function, ClassFileWriter classFile) {
+		int numArgs = arities.get(function.getName());
+		int thisLocal = numArgs + function.getNumLocals();
+		int scratch = thisLocal + 2;
+		if (scratch > 255) {
+			throw new RuntimeException("Too many locals in " + function.getName());
+		}
+		int staticBase = STATIC_BASE + staticBases.get(functionFiles.get(function.getName()));
+		int ram = classFile.fieldRef(RUNTIME, "RAM", "[I");
+		
+		int maxDepth = 0;
+		for (int depth: stackDepths(function)) {
+			maxDepth = Math.max(maxDepth, depth);
+		}
+		
+		ByteArrayOutputStream code = new ByteArrayOutputStream();
+		HashMap<String, Integer> labels = new HashMap<String, Integer>();
+		ArrayList<Integer> jumps = new ArrayList<Integer>();
+		ArrayList<String> jumpLabels = new ArrayList<String>();
+		
+		for (int local = numArgs; local < scratch; local++) {
+			code.write(ICONST_0);
+			code.write(ISTORE);
+			code.write(local);
+		}
+		
+		for (int i = 0; i < function.size(); i++) {
+			int index = function.index(i);
+			switch (function.opcode(i)) {
+				case PUSH:
+					switch (function.segment(i)) {
+						case CONSTANT:	pushInt(code, index);						break;
+						case ARGUMENT:	local(code, ILOAD, index);					break;
+						case LOCAL:		local(code, ILOAD, numArgs + index);		break;
+						case POINTER:	local(code, ILOAD, thisLocal + index);		break;
+						case THIS:
+						case THAT:
+							getField(code, GETSTATIC, ram);
+							local(code, ILOAD, thisLocal + (function.segment(i) == Segment.THIS ? 0 : 1));
+							if (index != 0) {
+								pushInt(code, index);
+								code.write(IADD);
+							}
+							code.write(IALOAD);
+							break;
+						default:
+							getField(code, GETSTATIC, ram);
+							pushInt(code, fixedAddress(function.segment(i), index, staticBase));
+							code.write(IALOAD);
+							break;
+					}
+					break;
+				
+				case POP:
+					switch (function.segment(i)) {
+						case ARGUMENT:	local(code, ISTORE, index);					break;
+						case LOCAL:		local(code, ISTORE, numArgs + index);		break;
+						case POINTER:	local(code, ISTORE, thisLocal + index);		break;
+						case CONSTANT:
+							throw new RuntimeException("Cannot pop to the constant segment in "
+														+ function.getName());
+						case THIS:
+						case THAT:
+							local(code, ISTORE, scratch);
+							getField(code, GETSTATIC, ram);
+							local(code, ILOAD, thisLocal + (function.segment(i) == Segment.THIS ? 0 : 1));
+							if (index != 0) {
+								pushInt(code, index);
+								code.write(IADD);
+							}
+							local(code, ILOAD, scratch);
+							code.write(IASTORE);
+							break;
+						default:
+							local(code, ISTORE, scratch);
+							getField(code, GETSTATIC, ram);
+							pushInt(code, fixedAddress(function.segment(i), index, staticBase));
+							local(code, ILOAD, scratch);
+							code.write(IASTORE);
+							break;
+					}
+					break;
+				
+				case ARITHMETIC:
+					writeArithmetic(code, function.command(i));
+					break;
+				
+				case LABEL:
+					labels.put(function.symbol(i), code.size());
+					break;
+				
+				case GOTO:
+				case IF_GOTO:
+					jumps.add(code.size());
+					jumpLabels.add(function.symbol(i));
+					code.write(function.opcode(i) == Opcode.GOTO ? GOTO : IFNE);
+					code.write(0);
+					code.write(0);
+					break;
+				
+				case CALL:
+					String callee = function.symbol(i);
+					String nativeMethod = JackRuntime.nativeMethod(callee);
+					int method;
+					if (nativeMethod != null) {
+						method = classFile.methodRef(RUNTIME, nativeMethod, descriptor(index));
+					} else {
+						method = classFile.methodRef(
+									JackRuntime.PACKAGE + "/" + callee.substring(0, callee.indexOf('.')),
+									callee.substring(callee.indexOf('.') + 1),
+									descriptor(arities.get(callee)));
+					}
+					getField(code, INVOKESTATIC, method);
+					break;
+				
+				case RETURN:
+					code.write(IRETURN);
+					break;
+			}
+		}
+		
+		Opcode last = function.size() == 0 ? null : function.opcode(function.size() - 1);
+		if (last != Opcode.RETURN && last != Opcode.GOTO) {
+			code.write(ICONST_0);
+			code.write(IRETURN);
+		}
+		
+		byte[] bytes = code.toByteArray();
+		for (int j = 0; j < jumps.size(); j++) {
+			int offset = labels.get(jumpLabels.get(j)) - jumps.get(j);
+			if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+				throw new RuntimeException("Jump too far in " + function.getName());
+			}
+			bytes[jumps.get(j) + 1] = (byte) (offset >> 8);
+			bytes[jumps.get(j) + 2] = (byte) offset;
+		}
+		
+		String name = function.getName();
+		classFile.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC,
+							name.substring(name.indexOf('.') + 1), descriptor(numArgs),
+							maxDepth + 3, scratch + 1, bytes);
+	}
+	
+	/**
+	 * Returns the RAM address of the given variable of the static or temp
+	 * segment.
+	 */
+	private static int fixedAddress(Segment segment, int index, int staticBase) {
+		return segment == Segment.STATIC ? staticBase + index : 5 + index;
+	}
+	
+	/**
+	 * Writes the code for an arithmetic or logical command, wrapping the
+	 * results of arithmetic to 16 bits.
+	 */
+	private static void writeArithmetic(ByteArrayOutputStream code, Command command) {
+		switch (command) {
+			case ADD:	code.write(IADD);	code.write(I2S);	break;
+			case SUB:	code.write(ISUB);	code.write(I2S);	break;
+			case NEG:	code.write(INEG);	code.write(I2S);	break;
+			case AND:	code.write(IAND);	break;
+			case OR:	code.write(IOR);	break;
+			case NOT:	code.write(ICONST_M1);	code.write(IXOR);	break;
+			default:
+				// if true push -1, else push 0
+				code.write(command == Command.EQ ? IF_ICMPEQ
+							: command == Command.GT ? IF_ICMPGT : IF_ICMPLT);
+				code.write(0);
+				code.write(7);
+				code.write(ICONST_0);
+				code.write(GOTO);
+				code.write(0);
+				code.write(4);
+				code.write(ICONST_M1);
+				break;
+		}
+	}
+	
+	private static void local(ByteArrayOutputStream code, int opcode, int local) {
+		code.write(opcode);
+		code.write(local);
+	}
+	
+	private static void getField(ByteArrayOutputStream code, int opcode, int constant) {
+		code.write(opcode);
+		code.write(constant >> 8);
+		code.write(constant & 0xFF);
+	}
+	
+	private static void pushInt(ByteArrayOutputStream code, int value) {
+		if (value >= -1 && value <= 5) {
+			code.write(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			code.write(BIPUSH);
+			code.write(value);
+		} else {
+			code.write(SIPUSH);
+			code.write(value >> 8 & 0xFF);
+			code.write(value & 0xFF);
+		}
+	}
+	
+	/**
+	 * Prints the number of classes and methods written, their size and
+	 * the time taken.
+	 * @param out	The stream to print the report to.
+	 */
+	public void report(PrintStream out) {
+		out.println(String.format("Wrote %d classes, %d methods, %d bytes in %.3f ms",
+									classes.size(), numMethods, outputBytes, nanos / 1e6));
+	}
+	
+	/**
+	 * Takes the directory to write the classes to, followed by one or more
+	 * .vm files or directories containing .vm files, which together make
+	 * up a whole program including the OS, and translates them into JVM
+	 * classes, which the JackRuntime can run.
+	 * If more than one file defines the same class, the first is used, as
+	 * for the VMInterpreter.
+	 * The output directory may be preceded by -stats, which prints a
+	 * report of the translation.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		boolean printStats = args.length > 0 && args[0].equals("-stats");
+		int i = printStats ? 1 : 0;
+		
+		if (args.length - i < 2) {
+			throw new RuntimeException("Arguments must be an output directory and one or more .vm files or directories");
+		}
+		
+		File outputDirectory = new File(args[i++]);
+		VMClassWriter writer = new VMClassWriter();
+		HashSet<String> files = new HashSet<String>();
+		
+		try {
+			for (; i < args.length; i++) {
+				File input = new File(args[i]);
+				File[] inputs = input.isDirectory() ? input.listFiles() : new File[] {input};
+				
+				for (File file: inputs) {
+					if (file.getName().endsWith(".vm") && files.add(file.getName())) {
+						writer.addFile(file);
+					}
+				}
+			}
+			
+			writer.write(outputDirectory);
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		if (printStats) {
+			writer.report(System.out);
+		}
+	}
+	
+}
@@ -0,0 +1,311 @@
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * The VM commands of a single function, held in parallel arrays so that
+ * optimization passes can analyze and rewrite them before they are written.
+ * The fields of each command are used as follows, depending on its Opcode:
+ *  - PUSH, POP:				arg is the ordinal of the segment, index the index
+ *  - ARITHMETIC:				arg is the ordinal of the command
+ *  - LABEL, GOTO, IF_GOTO:		symbol is the label
+ *  - CALL:						symbol is the function called, index the
+ *  							number of arguments
+ *  - RETURN:					no fields are used
+ *
+ * Each command also records the source position it was generated for:
+ * a line and column, and the origin, the full name of the subroutine the
+ * line belongs to, which differs from the name of the function for
+ * inlined code. A line of 0 means the position is unknown. Commands take
+ * the position set by setPosition, or the position of the last command
+ * copied from another function, so passes which rewrite a function keep
+ * the positions of the commands they copy.
+ */
+public class VMFunction {
+	
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private static final Segment[] SEGMENTS = Segment.values();
+	private static final Command[] COMMANDS = Command.values();
+	
+	private String name;
+	private int numLocals;
+	
+	private int size = 0;
+	private byte[] opcodes = new byte[INITIAL_CAPACITY];
+	private int[] args = new int[INITIAL_CAPACITY];
+	private int[] indices = new int[INITIAL_CAPACITY];
+	private String[] symbols = new String[INITIAL_CAPACITY];
+	private int[] lines = new int[INITIAL_CAPACITY];
+	private int[] columns = new int[INITIAL_CAPACITY];
+	private String[] origins = new String[INITIAL_CAPACITY];
+	
+	/** The position given to the commands added next. */
+	private int line;
+	private int column;
+	private String origin;
+	
+	/**
+	 * Creates a new function with the given name and number of
+	 * local variables, and no commands.
+	 * @param name		The full name of the function, e.g. Main.main.
+	 * @param numLocals	The number of local variables of the function.
+	 */
+	public VMFunction(String name, int numLocals) {
+		this.name = name;
+		this.numLocals = numLocals;
+	}
+	
+	/**
+	 * Appends a command with the given fields to the function.
+	 * @param opcode	The opcode of the command.
+	 * @param arg		The segment or command ordinal, or 0 if unused.
+	 * @param index		The index or number of arguments, or 0 if unused.
+	 * @param symbol	The label or function name, or null if unused.
+	 */
+	public void add(Opcode opcode, int arg, int index, String symbol) {
+		if (size == opcodes.length) {
+			int capacity = Math.max(size * 2, INITIAL_CAPACITY);
+			opcodes = Arrays.copyOf(opcodes, capacity);
+			args = Arrays.copyOf(args, capacity);
+			indices = Arrays.copyOf(indices, capacity);
+			symbols = Arrays.copyOf(symbols, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+			columns = Arrays.copyOf(columns, capacity);
+			origins = Arrays.copyOf(origins, capacity);
+		}
+		
+		opcodes[size] = (byte) opcode.ordinal();
+		args[size] = arg;
+		indices[size] = index;
+		symbols[size] = symbol;
+		lines[size] = line;
+		columns[size] = column;
+		origins[size] = origin;
+		size++;
+	}
+	
+	/**
+	 * Appends the i'th command of another function to this function,
+	 * with its source position if it is known.
+	 * @param other		The function to copy the command from.
+	 * @param i			The index of the command in the other function.
+	 */
+	public void add(VMFunction other, int i) {
+		setPosition(other, i);
+		add(other.opcode(i), other.args[i], other.indices[i], other.symbols[i]);
+	}
+	
+	/**
+	 * Sets the source position given to the commands added from now on,
+	 * in the source of this function.
+	 * @param line		The line, starting from 1.
+	 * @param column	The column, starting from 1.
+	 */
+	public void setPosition(int line, int column) {
+		this.line = line;
+		this.column = column;
+		this.origin = name;
+	}
+	
+	/**
+	 * Sets the source position given to the commands added from now on
+	 * to that of the i'th command of another function, unless it is
+	 * unknown, in which case the position is left as it is.
+	 * @param other		The function with the command.
+	 * @param i			The index of the command in the other function.
+	 */
+	public void setPosition(VMFunction other, int i) {
+		if (other.lines[i] != 0) {
+			this.line = other.lines[i];
+			this.column = other.columns[i];
+			this.origin = other.origins[i];
+		}
+	}
+	
+	public void addPush(Segment segment, int index) {
+		add(Opcode.PUSH, segment.ordinal(), index, null);
+	}
+	
+	public void addPop(Segment segment, int index) {
+		add(Opcode.POP, segment.ordinal(), index, null);
+	}
+	
+	public void addArithmetic(Command command) {
+		add(Opcode.ARITHMETIC, command.ordinal(), 0, null);
+	}
+	
+	/**
+	 * Replaces the fields of the i'th command with the given fields.
+	 * @param i			The index of the command to replace.
+	 * @param opcode	The new opcode of the command.
+	 * @param arg		The new segment or command ordinal.
+	 * @param index		The new index or number of arguments.
+	 * @param symbol	The new label or function name.
+	 */
+	public void set(int i, Opcode opcode, int arg, int index, String symbol) {
+		opcodes[i] = (byte) opcode.ordinal();
+		args[i] = arg;
+		indices[i] = index;
+		symbols[i] = symbol;
+	}
+	
+	/**
+	 * Removes every command whose entry in keep is false, preserving
+	 * the order of the remaining commands.
+	 * @param keep	For each command, whether it should be kept.
+	 * @return		The number of commands removed.
+	 */
+	public int retain(boolean[] keep) {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			if (keep[i]) {
+				opcodes[kept] = opcodes[i];
+				args[kept] = args[i];
+				indices[kept] = indices[i];
+				symbols[kept] = symbols[i];
+				lines[kept] = lines[i];
+				columns[kept] = columns[i];
+				origins[kept] = origins[i];
+				kept++;
+			}
+		}
+		
+		Arrays.fill(symbols, kept, size, null);
+		Arrays.fill(origins, kept, size, null);
+		int removed = size - kept;
+		size = kept;
+		return removed;
+	}
+	
+	/**
+	 * Replaces all the commands of this function with those of
+	 * another function, keeping the name and number of locals.
+	 * @param other		The function whose commands are taken.
+	 */
+	public void replaceBody(VMFunction other) {
+		this.size = other.size;
+		this.opcodes = other.opcodes;
+		this.args = other.args;
+		this.indices = other.indices;
+		this.symbols = other.symbols;
+		this.lines = other.lines;
+		this.columns = other.columns;
+		this.origins = other.origins;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getNumLocals() {
+		return numLocals;
+	}
+	
+	public void setNumLocals(int numLocals) {
+		this.numLocals = numLocals;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public Opcode opcode(int i) {
+		return Opcode.fromOrdinal(opcodes[i]);
+	}
+	
+	public Segment segment(int i) {
+		return SEGMENTS[args[i]];
+	}
+	
+	public Command command(int i) {
+		return COMMANDS[args[i]];
+	}
+	
+	public int index(int i) {
+		return indices[i];
+	}
+	
+	public String symbol(int i) {
+		return symbols[i];
+	}
+	
+	/**
+	 * Returns the source line of the i'th command, or 0 if it is unknown.
+	 */
+	public int line(int i) {
+		return lines[i];
+	}
+	
+	public int column(int i) {
+		return columns[i];
+	}
+	
+	/**
+	 * Returns the full name of the subroutine whose source the i'th
+	 * command was generated from, or null if it is unknown.
+	 */
+	public String origin(int i) {
+		return origins[i];
+	}
+	
+	/**
+	 * Returns true if the i'th command is a push or pop using the
+	 * given segment.
+	 * @param i			The index of the command.
+	 * @param segment	The segment of interest.
+	 * @return			true if the command accesses the segment.
+	 */
+	public boolean accesses(int i, Segment segment) {
+		Opcode opcode = opcode(i);
+		return (opcode == Opcode.PUSH || opcode == Opcode.POP)
+				&& args[i] == segment.ordinal();
+	}
+	
+	/**
+	 * Returns true if the i'th command is a push or pop using the
+	 * given segment and index.
+	 * @param i			The index of the command.
+	 * @param segment	The segment of interest.
+	 * @param index		The index of interest.
+	 * @return			true if the command accesses segment index.
+	 */
+	public boolean accesses(int i, Segment segment, int index) {
+		Opcode opcode = opcode(i);
+		return (opcode == Opcode.PUSH || opcode == Opcode.POP)
+				&& args[i] == segment.ordinal() && indices[i] == index;
+	}
+	
+	/**
+	 * Returns the i'th command in the VM language.
+	 * @param i		The index of the command.
+	 * @return		The text of the command.
+	 */
+	public String toString(int i) {
+		switch (opcode(i)) {
+			case PUSH:
+			case POP:			return String.format("%s %s %s", opcode(i),
+														segment(i), indices[i]);
+			case ARITHMETIC:	return command(i).toString();
+			case LABEL:
+			case GOTO:
+			case IF_GOTO:		return String.format("%s %s", opcode(i), symbols[i]);
+			case CALL:			return String.format("call %s %s", symbols[i], indices[i]);
+			case RETURN:		return "return";
+			default:
+				throw new RuntimeException("Invalid opcode");
+		}
+	}
+	
+	/**
+	 * Writes the function command followed by the commands of
+	 * the function to the given output stream.
+	 * @param out	The output stream to write to.
+	 */
+	public void write(PrintWriter out) {
+		out.println(String.format("function %s %s", name, numLocals));
+		for (int i = 0; i < size; i++) {
+			out.println(toString(i));
+		}
+	}
+	
+}
@@ -0,0 +1,790 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Runs a linked VM program in the same process, so that the code the
+ * compiler generates can be tested and timed without an external
+ * emulator.
+ *
+ * The functions are decoded once into flat int arrays, one entry per
+ * command: an opcode which already includes the segment, and operands
+ * which are the resolved address of a static, temp or pointer variable,
+ * the index in the code of a jump or call target, or the number of
+ * arguments of a call. Labels take no space. The dispatch loop then runs
+ * over a simulated 32K-word RAM with the standard layout: SP, LCL, ARG,
+ * THIS and THAT in RAM[0..4], temp in RAM[5..12], statics from RAM[16],
+ * the stack from 256 and the heap from 2048, with the screen at 16384 and
+ * the keyboard at 24576. SP, LCL and ARG are kept in local variables
+ * while running, and are only written back to RAM when the program stops
+ * or a native function is called.
+ *
+ * Some functions are provided natively, in place of any VM definition:
+ *  - Sys.halt		stops the program
+ *  - Sys.wait		returns at once
+ *  - Sys.error		stops the program, recording the error code
+ *  - Profile.count	increments a counter, for programs instrumented by
+ *  				the ProfileInstrumentationPass
+ * The keyboard is a stub which presses each key of a given string in
+ * turn, holding it for one slice of KEY_OPERATIONS operations and then
+ * releasing it for another. The screen is only memory, which can be
+ * written out as an image once the program stops.
+ */
+public class VMInterpreter {
+	
+	public static final int RAM_SIZE = 32768;
+	public static final int STATIC_BASE = 16;
+	public static final int STACK_BASE = 256;
+	public static final int HEAP_BASE = 2048;
+	public static final int SCREEN = 16384;
+	public static final int KEYBOARD = 24576;
+	
+	public static final int SCREEN_WIDTH = 512;
+	public static final int SCREEN_HEIGHT = 256;
+	
+	/** The number of operations a key is held or released for. */
+	public static final int KEY_OPERATIONS = 65536;
+	
+	/** The largest number of operations run between checks of the keyboard. */
+	private static final int SLICE = KEY_OPERATIONS;
+	
+	private static final int PUSH_CONSTANT = 0;
+	private static final int PUSH_LOCAL = 1;
+	private static final int PUSH_ARGUMENT = 2;
+	private static final int PUSH_THIS = 3;
+	private static final int PUSH_THAT = 4;
+	private static final int PUSH_ADDRESS = 5;
+	private static final int POP_LOCAL = 6;
+	private static final int POP_ARGUMENT = 7;
+	private static final int POP_THIS = 8;
+	private static final int POP_THAT = 9;
+	private static final int POP_ADDRESS = 10;
+	private static final int ADD = 11;
+	private static final int SUB = 12;
+	private static final int NEG = 13;
+	private static final int EQ = 14;
+	private static final int GT = 15;
+	private static final int LT = 16;
+	private static final int AND = 17;
+	private static final int OR = 18;
+	private static final int NOT = 19;
+	private static final int GOTO = 20;
+	private static final int IF_GOTO = 21;
+	private static final int CALL = 22;
+	private static final int NATIVE = 23;
+	private static final int FUNCTION = 24;
+	private static final int RETURN = 25;
+	private static final int HALT = 26;
+	
+	private static final String[] NATIVE_NAMES = {
+		"Sys.halt", "Sys.wait", "Sys.error", ProfileInstrumentationPass.COUNTER_FUNCTION
+	};
+	private static final int SYS_HALT = 0;
+	private static final int SYS_WAIT = 1;
+	private static final int SYS_ERROR = 2;
+	private static final int PROFILE_COUNT = 3;
+	
+	private int[] ops;
+	private int[] args;
+	private int[] args2;
+	
+	/** The index within its function of the command each operation was decoded from, or -1. */
+	private int[] commands;
+	
+	/** The name and first command of each function, in code order. */
+	private String[] functionNames;
+	private int[] functionStarts;
+	
+	private int[] ram = new int[RAM_SIZE];
+	private int pc = 0;
+	private boolean halted = false;
+	private int errorCode = -1;
+	
+	private long[] counters = new long[ProfileInstrumentationPass.MAX_COUNTERS];
+	
+	private int[] keys = new int[0];
+	private long slices = 0;
+	
+	private long operations = 0;
+	private long nanos = 0;
+	
+	/**
+	 * Decodes a linked program, in which each static variable has its own
+	 * index, as returned by VMLinker.link, and prepares to run it from the
+	 * given entry function with an empty stack.
+	 * Throws an exception if a function called is neither defined nor
+	 * native, a label is not defined, or there are too many statics.
+	 * @param program	The functions of the program.
+	 * @param entry		The name of the function to call first.
+	 */
+	public VMInterpreter(ArrayList<VMFunction> program, String entry) {
+		HashMap<String, Integer> natives = new HashMap<String, Integer>();
+		for (int i = 0; i < NATIVE_NAMES.length; i++) {
+			natives.put(NATIVE_NAMES[i], i);
+		}
+		
+		// the first two commands call the entry function, then halt
+		int size = 2;
+		HashMap<String, Integer> starts = new HashMap<String, Integer>();
+		functionNames = new String[program.size()];
+		functionStarts = new int[program.size()];
+		for (int f = 0; f < program.size(); f++) {
+			VMFunction function = program.get(f);
+			functionNames[f] = function.getName();
+			functionStarts[f] = size;
+			starts.put(function.getName(), size);
+			size++;
+			for (int i = 0; i < function.size(); i++) {
+				if (function.opcode(i) != Opcode.LABEL) {
+					size++;
+				}
+			}
+		}
+		
+		ops = new int[size];
+		args = new int[size];
+		args2 = new int[size];
+		commands = new int[size];
+		commands[0] = -1;
+		commands[1] = -1;
+		
+		if (!starts.containsKey(entry)) {
+			throw new RuntimeException("Entry function not defined: " + entry);
+		}
+		ops[0] = CALL;
+		args[0] = starts.get(entry);
+		ops[1] = HALT;
+		
+		for (int f = 0; f < program.size(); f++) {
+			decode(program.get(f), functionStarts[f], starts, natives);
+		}
+		
+		ram[0] = STACK_BASE;
+		ram[1] = STACK_BASE;
+		ram[2] = STACK_BASE;
+	}
+	
+	/**
+	 * Decodes the commands of a function into the code arrays, starting
+	 * with the function command at the given index.
+	 */
+	private void decode(VMFunction function, int start, HashMap<String, Integer> starts,
+							HashMap<String, Integer> natives) {
+		HashMap<String, Integer> labels = new HashMap<String, Integer>();
+		int pc = start + 1;
+		for (int i = 0; i < function.size(); i++) {
+			if (function.opcode(i) == Opcode.LABEL) {
+				labels.put(function.symbol(i), pc);
+			} else {
+				pc++;
+			}
+		}
+		
+		ops[start] = FUNCTION;
+		args[start] = function.getNumLocals();
+		commands[start] = -1;
+		
+		pc = start + 1;
+		for (int i = 0; i < function.size(); i++) {
+			int index = function.index(i);
+			commands[pc] = i;
+			
+			switch (function.opcode(i)) {
+				case PUSH:
+				case POP:
+					boolean push = function.opcode(i) == Opcode.PUSH;
+					args[pc] = index;
+					switch (function.segment(i)) {
+						case CONSTANT:
+							if (!push) {
+								throw new RuntimeException("Cannot pop to the constant segment in "
+															+ function.getName());
+							}
+							ops[pc] = PUSH_CONSTANT;
+							break;
+						case LOCAL:		ops[pc] = push ? PUSH_LOCAL : POP_LOCAL;		break;
+						case ARGUMENT:	ops[pc] = push ? PUSH_ARGUMENT : POP_ARGUMENT;	break;
+						case THIS:		ops[pc] = push ? PUSH_THIS : POP_THIS;			break;
+						case THAT:		ops[pc] = push ? PUSH_THAT : POP_THAT;			break;
+						default:
+							ops[pc] = push ? PUSH_ADDRESS : POP_ADDRESS;
+							args[pc] = fixedAddress(function.segment(i), index);
+							break;
+					}
+					break;
+				
+				case ARITHMETIC:
+					ops[pc] = ADD + function.command(i).ordinal();
+					break;
+				
+				case LABEL:
+					continue;
+				
+				case GOTO:
+				case IF_GOTO:
+					Integer target = labels.get(function.symbol(i));
+					if (target == null) {
+						throw new RuntimeException("Label " + function.symbol(i)
+													+ " not defined in " + function.getName());
+					}
+					ops[pc] = function.opcode(i) == Opcode.GOTO ? GOTO : IF_GOTO;
+					args[pc] = target;
+					break;
+				
+				case CALL:
+					String callee = function.symbol(i);
+					if (natives.containsKey(callee)) {
+						ops[pc] = NATIVE;
+						args[pc] = natives.get(callee);
+					} else if (starts.containsKey(callee)) {
+						ops[pc] = CALL;
+						args[pc] = starts.get(callee);
+					} else {
+						throw new RuntimeException("Function not defined: " + callee);
+					}
+					args2[pc] = index;
+					break;
+				
+				case RETURN:
+					ops[pc] = RETURN;
+					break;
+			}
+			pc++;
+		}
+	}
+	
+	/**
+	 * Returns the RAM address of the given variable of the static, temp
+	 * or pointer segment.
+	 */
+	private int fixedAddress(Segment segment, int index) {
+		switch (segment) {
+			case STATIC:
+				if (STATIC_BASE + index >= STACK_BASE) {
+					throw new RuntimeException("Too many static variables");
+				}
+				return STATIC_BASE + index;
+			case TEMP:		return 5 + index;
+			default:		return 3 + index;
+		}
+	}
+	
+	/**
+	 * Starts the program in the given function without calling it, as the
+	 * VM emulator does, so that it runs in whatever frame SP, LCL and ARG
+	 * have been set to, e.g. by a test script.
+	 * @param function	The full name of the function.
+	 */
+	public void startIn(String function) {
+		for (int f = 0; f < functionNames.length; f++) {
+			if (functionNames[f].equals(function)) {
+				pc = functionStarts[f];
+				return;
+			}
+		}
+		throw new RuntimeException("Function not defined: " + function);
+	}
+	
+	/**
+	 * Sets the keys which the keyboard stub presses in turn, using the
+	 * Jack key codes, e.g. 128 for newline.
+	 * @param keys	The key codes.
+	 */
+	public void setKeys(int[] keys) {
+		this.keys = keys;
+	}
+	
+	/**
+	 * Runs the program until it stops, or until it has run the given
+	 * number of operations.
+	 * Throws an exception if the program accesses memory outside the RAM,
+	 * or overflows the stack.
+	 * @param maxOperations		The most operations to run.
+	 * @return					true if the program has stopped.
+	 */
+	public boolean run(long maxOperations) {
+		long start = System.nanoTime();
+		long end = operations + maxOperations;
+		
+		while (!halted && operations < end) {
+			runKeyed(end - operations);
+		}
+		
+		nanos += System.nanoTime() - start;
+		return halted;
+	}
+	
+	/**
+	 * Runs a single operation, so that tools such as the Profiler can
+	 * follow the program as it runs. The program must not have stopped.
+	 * @return	The index in the code of the operation run.
+	 */
+	public int step() {
+		int ran = pc;
+		runKeyed(1);
+		return ran;
+	}
+	
+	/**
+	 * Sets the keyboard for the current slice, and runs at most the given
+	 * number of operations without leaving it.
+	 */
+	private void runKeyed(long maxOperations) {
+		int key = (int) (slices / 2);
+		ram[KEYBOARD] = key < keys.length && slices % 2 == 0 ? keys[key] : 0;
+		
+		int budget = (int) Math.min(SLICE - operations % SLICE, maxOperations);
+		int ran = runSlice(budget);
+		operations += ran;
+		if (operations % SLICE == 0) {
+			slices++;
+		}
+	}
+	
+	/**
+	 * The dispatch loop, which runs at most the given number of operations.
+	 * @return	The number of operations run.
+	 */
+	private int runSlice(int budget) {
+		final int[] ops = this.ops;
+		final int[] args = this.args;
+		final int[] ram = this.ram;
+		
+		int pc = this.pc;
+		int sp = ram[0];
+		int lcl = ram[1];
+		int arg = ram[2];
+		int count = 0;
+		
+		try {
+			while (count < budget) {
+				count++;
+				
+				switch (ops[pc]) {
+					case PUSH_CONSTANT:
+						ram[sp++] = args[pc++];
+						break;
+					case PUSH_LOCAL:
+						ram[sp++] = ram[lcl + args[pc++]];
+						break;
+					case PUSH_ARGUMENT:
+						ram[sp++] = ram[arg + args[pc++]];
+						break;
+					case PUSH_THIS:
+						ram[sp++] = ram[ram[3] + args[pc++]];
+						break;
+					case PUSH_THAT:
+						ram[sp++] = ram[ram[4] + args[pc++]];
+						break;
+					case PUSH_ADDRESS:
+						ram[sp++] = ram[args[pc++]];
+						break;
+					case POP_LOCAL:
+						ram[lcl + args[pc++]] = ram[--sp];
+						break;
+					case POP_ARGUMENT:
+						ram[arg + args[pc++]] = ram[--sp];
+						break;
+					case POP_THIS:
+						ram[ram[3] + args[pc++]] = ram[--sp];
+						break;
+					case POP_THAT:
+						ram[ram[4] + args[pc++]] = ram[--sp];
+						break;
+					case POP_ADDRESS:
+						ram[args[pc++]] = ram[--sp];
+						break;
+					
+					case ADD:
+						sp--;
+						ram[sp - 1] = (short) (ram[sp - 1] + ram[sp]);
+						pc++;
+						break;
+					case SUB:
+						sp--;
+						ram[sp - 1] = (short) (ram[sp - 1] - ram[sp]);
+						pc++;
+						break;
+					case NEG:
+						ram[sp - 1] = (short) -ram[sp - 1];
+						pc++;
+						break;
+					case EQ:
+						sp--;
+						ram[sp - 1] = ram[sp - 1] == ram[sp] ? -1 : 0;
+						pc++;
+						break;
+					case GT:
+						sp--;
+						ram[sp - 1] = ram[sp - 1] > ram[sp] ? -1 : 0;
+						pc++;
+						break;
+					case LT:
+						sp--;
+						ram[sp - 1] = ram[sp - 1] < ram[sp] ? -1 : 0;
+						pc++;
+						break;
+					case AND:
+						sp--;
+						ram[sp - 1] &= ram[sp];
+						pc++;
+						break;
+					case OR:
+						sp--;
+						ram[sp - 1] |= ram[sp];
+						pc++;
+						break;
+					case NOT:
+						ram[sp - 1] = ~ram[sp - 1];
+						pc++;
+						break;
+					
+					case GOTO:
+						pc = args[pc];
+						break;
+					case IF_GOTO:
+						pc = ram[--sp] != 0 ? args[pc] : pc + 1;
+						break;
+					
+					case CALL:
+						ram[sp] = pc + 1;
+						ram[sp + 1] = lcl;
+						ram[sp + 2] = arg;
+						ram[sp + 3] = ram[3];
+						ram[sp + 4] = ram[4];
+						arg = sp - args2[pc];
+						sp += 5;
+						lcl = sp;
+						pc = args[pc];
+						break;
+					
+					case FUNCTION:
+						int numLocals = args[pc++];
+						if (sp + numLocals >= HEAP_BASE) {
+							throw new RuntimeException("Stack overflow in " + functionAt(pc - 1));
+						}
+						for (int i = 0; i < numLocals; i++) {
+							ram[sp++] = 0;
+						}
+						break;
+					
+					case RETURN:
+						int frame = lcl;
+						int returnAddress = ram[frame - 5];
+						ram[arg] = ram[sp - 1];
+						sp = arg + 1;
+						ram[4] = ram[frame - 1];
+						ram[3] = ram[frame - 2];
+						arg = ram[frame - 3];
+						lcl = ram[frame - 4];
+						pc = returnAddress;
+						break;
+					
+					case NATIVE:
+						ram[0] = sp;
+						ram[1] = lcl;
+						ram[2] = arg;
+						int numArgs = args2[pc];
+						int result = callNative(args[pc], sp - numArgs, numArgs);
+						if (halted) {
+							break;
+						}
+						sp -= numArgs;
+						ram[sp++] = result;
+						pc++;
+						break;
+					
+					default:
+						halted = true;
+						break;
+				}
+				
+				if (halted) {
+					break;
+				}
+			}
+			
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new RuntimeException("Invalid memory access in " + functionAt(pc));
+			
+		} finally {
+			this.pc = pc;
+			ram[0] = sp;
+			ram[1] = lcl;
+			ram[2] = arg;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Returns true if the given function is provided natively, by the
+	 * VMInterpreter or the JackRuntime, in place of its VM definition,
+	 * so optimizations must keep the calls to it and its definition.
+	 * @param function	The full name of the function, e.g. Sys.halt.
+	 * @return			true if the function is native.
+	 */
+	public static boolean isNative(String function) {
+		for (String name: NATIVE_NAMES) {
+			if (name.equals(function)) {
+				return true;
+			}
+		}
+		return JackRuntime.nativeMethod(function) != null;
+	}
+	
+	/**
+	 * Runs a native function, whose arguments start at the given address.
+	 * @return	The return value of the function.
+	 */
+	private int callNative(int function, int arguments, int numArgs) {
+		switch (function) {
+			case SYS_HALT:
+				halted = true;
+				return 0;
+			
+			case SYS_ERROR:
+				errorCode = numArgs > 0 ? ram[arguments] : 0;
+				halted = true;
+				return 0;
+			
+			case PROFILE_COUNT:
+				counters[ram[arguments]]++;
+				return 0;
+			
+			default:
+				return 0;
+		}
+	}
+	
+	/**
+	 * Returns the name of the function containing the given command.
+	 */
+	private String functionAt(int pc) {
+		int f = functionIndexAt(pc);
+		return f < 0 ? "bootstrap" : functionNames[f];
+	}
+	
+	/**
+	 * Returns the index in the program of the function containing the
+	 * given operation, or -1 for the bootstrap code.
+	 * @param pc	The index of the operation in the code.
+	 */
+	public int functionIndexAt(int pc) {
+		int f = Arrays.binarySearch(functionStarts, pc);
+		return f < 0 ? -f - 2 : f;
+	}
+	
+	/**
+	 * Returns the index within its function of the VM command the given
+	 * operation was decoded from, or -1 for a function command or the
+	 * bootstrap code.
+	 * @param pc	The index of the operation in the code.
+	 */
+	public int commandAt(int pc) {
+		return commands[pc];
+	}
+	
+	/**
+	 * Returns the index in the code of the next operation to run.
+	 */
+	public int getPc() {
+		return pc;
+	}
+	
+	public boolean isHalted() {
+		return halted;
+	}
+	
+	/**
+	 * Returns the code passed to Sys.error, or -1 if it was not called.
+	 */
+	public int getErrorCode() {
+		return errorCode;
+	}
+	
+	public int[] getRam() {
+		return ram;
+	}
+	
+	/**
+	 * Returns the value of each Profile.count counter.
+	 */
+	public long[] getCounters() {
+		return counters;
+	}
+	
+	public long getOperations() {
+		return operations;
+	}
+	
+	/**
+	 * Writes the screen memory of the given RAM as a plain PBM image.
+	 * @param ram			The RAM of a Hack computer.
+	 * @param imageFile		The file to write.
+	 * @throws IOException
+	 */
+	public static void writeScreen(int[] ram, File imageFile) throws IOException {
+		PrintWriter out = new PrintWriter(imageFile);
+		out.println("P1");
+		out.println(SCREEN_WIDTH + " " + SCREEN_HEIGHT);
+		
+		StringBuilder line = new StringBuilder(SCREEN_WIDTH * 2);
+		for (int y = 0; y < SCREEN_HEIGHT; y++) {
+			line.setLength(0);
+			for (int x = 0; x < SCREEN_WIDTH; x++) {
+				int word = ram[SCREEN + y * SCREEN_WIDTH / 16 + x / 16];
+				line.append((word >> (x % 16) & 1) == 0 ? "0 " : "1 ");
+			}
+			out.println(line.toString().trim());
+		}
+		out.close();
+	}
+	
+	/**
+	 * Prints the number of operations run, the time taken and the rate.
+	 * @param out	The stream to print the report to.
+	 */
+	public void report(PrintStream out) {
+		out.println(String.format("Ran %d operations in %.3f ms (%.1f million per second)",
+									operations, nanos / 1e6, operations * 1e3 / Math.max(nanos, 1)));
+	}
+	
+	/**
+	 * Takes one or more .vm files or directories containing .vm files,
+	 * and runs them as a single program, starting at Sys.init if it is
+	 * defined, or Main.main otherwise.
+	 * If more than one file defines the same class, the first is used, so
+	 * a program can be given before a directory of OS classes to override
+	 * some of them.
+	 * The files may be preceded by the following options:
+	 * - -limit n			stops after n operations
+	 * - -keys text			presses the keys of the text in turn, with \n
+	 * 						for newline
+	 * - -set a=v,b=w		sets the given RAM addresses before running
+	 * - -ram a,b-c			prints the values of the given RAM addresses
+	 * 						once the program stops
+	 * - -screen file		writes the screen to a .pbm image once the
+	 * 						program stops
+	 * - -profile map file	builds a profile of the run of a program
+	 * 						instrumented with the given counter map, and
+	 * 						writes it to the given file
+	 * - -stats				prints the number of operations run and the
+	 * 						time taken
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		long limit = Long.MAX_VALUE;
+		String keys = "";
+		String settings = null;
+		String addresses = null;
+		File screenFile = null;
+		File mapFile = null;
+		File profileFile = null;
+		boolean printStats = false;
+		
+		int i = 0;
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-limit")) {
+				limit = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-keys")) {
+				keys = args[++i].replace("\\n", "\n");
+			} else if (args[i].equals("-set")) {
+				settings = args[++i];
+			} else if (args[i].equals("-ram")) {
+				addresses = args[++i];
+			} else if (args[i].equals("-screen")) {
+				screenFile = new File(args[++i]);
+			} else if (args[i].equals("-profile")) {
+				mapFile = new File(args[++i]);
+				profileFile = new File(args[++i]);
+			} else if (args[i].equals("-stats")) {
+				printStats = true;
+			} else {
+				throw new RuntimeException("Unknown option " + args[i]);
+			}
+			i++;
+		}
+		
+		if (i == args.length) {
+			throw new RuntimeException("Arguments must be one or more .vm files or directories");
+		}
+		
+		VMLinker linker = new VMLinker();
+		HashSet<String> classes = new HashSet<String>();
+		VMInterpreter interpreter;
+		
+		try {
+			for (; i < args.length; i++) {
+				File input = new File(args[i]);
+				File[] files = input.isDirectory() ? input.listFiles() : new File[] {input};
+				
+				for (File file: files) {
+					if (file.getName().endsWith(".vm") && classes.add(file.getName())) {
+						linker.addFile(file);
+					}
+				}
+			}
+			
+			String entry = linker.defines("Sys.init") ? "Sys.init" : "Main.main";
+			interpreter = new VMInterpreter(linker.link(entry), entry);
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		int[] keyCodes = new int[keys.length()];
+		for (int k = 0; k < keyCodes.length; k++) {
+			keyCodes[k] = keys.charAt(k) == '\n' ? 128 : keys.charAt(k);
+		}
+		interpreter.setKeys(keyCodes);
+		
+		if (settings != null) {
+			for (String setting: settings.split(",")) {
+				String[] parts = setting.split("=");
+				interpreter.getRam()[Integer.parseInt(parts[0])] = Integer.parseInt(parts[1]);
+			}
+		}
+		
+		if (!interpreter.run(limit)) {
+			System.out.println("Stopped after " + interpreter.getOperations() + " operations");
+		}
+		if (interpreter.getErrorCode() >= 0) {
+			System.out.println("Sys.error " + interpreter.getErrorCode());
+		}
+		
+		if (addresses != null) {
+			for (String range: addresses.split(",")) {
+				String[] bounds = range.split("-");
+				int first = Integer.parseInt(bounds[0]);
+				int last = Integer.parseInt(bounds[bounds.length - 1]);
+				for (int address = first; address <= last; address++) {
+					System.out.println(String.format("RAM[%d] = %d", address,
+														interpreter.getRam()[address]));
+				}
+			}
+		}
+		
+		try {
+			if (screenFile != null) {
+				writeScreen(interpreter.getRam(), screenFile);
+			}
+			if (mapFile != null) {
+				Profile.fromCounters(mapFile, interpreter.getCounters()).write(profileFile);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		if (printStats) {
+			interpreter.report(System.out);
+		}
+	}
+	
+}
@@ -0,0 +1,400 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Links the .vm files of a whole program, including the OS classes, into
+ * a single .vm file, keeping only the functions which can be reached by
+ * calls from the entry function (Sys.init by default).
+ * Since each .vm file has its own static segment, the static variables
+ * of each class are moved to their own range of the static segment of
+ * the linked file.
+ */
+public class VMLinker {
+	
+	private ArrayList<VMFunction> functions = new ArrayList<VMFunction>();
+	private ArrayList<String> functionClasses = new ArrayList<String>();
+	private HashMap<String, Integer> functionIndices = new HashMap<String, Integer>();
+	
+	private boolean[] reachable;
+	private ArrayList<VMFunction> linked;
+	private ArrayList<String> externals = new ArrayList<String>();
+	private LinkedHashMap<String, Integer> staticBases = new LinkedHashMap<String, Integer>();
+	
+	private long inputBytes = 0;
+	private long outputBytes = 0;
+	private long readNanos = 0;
+	private long linkNanos = 0;
+	private long writeNanos = 0;
+	
+	/**
+	 * Reads the functions of the given .vm file, whose name without the
+	 * extension is the class whose static segment its functions use.
+	 * Throws an exception if a function is defined more than once.
+	 * @param vmFile	The .vm file to add to the program.
+	 * @throws IOException
+	 */
+	public void addFile(File vmFile) throws IOException {
+		long start = System.nanoTime();
+		String className = vmFile.getName().replace(".vm", "");
+		
+		for (VMFunction function: VMParser.parse(vmFile)) {
+			addFunction(function, className);
+		}
+		
+		inputBytes += vmFile.length();
+		readNanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Adds a single function to the program.
+	 * @param function	The function to add.
+	 * @param className	The class whose static segment the function uses.
+	 */
+	public void addFunction(VMFunction function, String className) {
+		if (functionIndices.containsKey(function.getName())) {
+			throw new RuntimeException("Function defined more than once: "
+										+ function.getName());
+		}
+		
+		functionIndices.put(function.getName(), functions.size());
+		functions.add(function);
+		functionClasses.add(className);
+	}
+	
+	/**
+	 * Returns true if the program defines a function with the given name.
+	 * @param name	The full name of the function.
+	 * @return		true if the function is defined.
+	 */
+	public boolean defines(String name) {
+		return functionIndices.containsKey(name);
+	}
+	
+	/**
+	 * Finds the functions reachable from the given entry function through
+	 * the call graph, and gives the static variables of each class a
+	 * separate range of the static segment.
+	 * Calls to functions which are not defined, such as those of a built in
+	 * OS, are recorded as external.
+	 * Since the statics of the functions added are relocated in place,
+	 * throws an exception if the program has already been linked.
+	 * @param entry		The name of the function the program starts at.
+	 * @return			The reachable functions, starting with the entry
+	 * 					function and then in the order they were added.
+	 */
+	public ArrayList<VMFunction> link(String entry) {
+		if (linked != null) {
+			throw new RuntimeException("Program already linked");
+		}
+		
+		long start = System.nanoTime();
+		
+		reachable = new boolean[functions.size()];
+		ArrayDeque<Integer> worklist = new ArrayDeque<Integer>();
+		HashMap<String, Boolean> seenExternals = new HashMap<String, Boolean>();
+		
+		Integer entryIndex = functionIndices.get(entry);
+		if (entryIndex == null) {
+			throw new RuntimeException("Entry function not defined: " + entry);
+		}
+		reachable[entryIndex] = true;
+		worklist.add(entryIndex);
+		
+		while (!worklist.isEmpty()) {
+			VMFunction function = functions.get(worklist.poll());
+			
+			for (int i = 0; i < function.size(); i++) {
+				if (function.opcode(i) != Opcode.CALL) {
+					continue;
+				}
+				
+				Integer callee = functionIndices.get(function.symbol(i));
+				if (callee == null) {
+					if (seenExternals.put(function.symbol(i), true) == null) {
+						externals.add(function.symbol(i));
+					}
+				} else if (!reachable[callee]) {
+					reachable[callee] = true;
+					worklist.add(callee);
+				}
+			}
+		}
+		
+		linked = new ArrayList<VMFunction>();
+		linked.add(functions.get(entryIndex));
+		HashMap<String, Integer> staticCounts = new HashMap<String, Integer>();
+		for (int f = 0; f < functions.size(); f++) {
+			if (reachable[f]) {
+				VMFunction function = functions.get(f);
+				String className = functionClasses.get(f);
+				if (f != entryIndex) {
+					linked.add(function);
+				}
+				
+				int count = staticCounts.containsKey(className) ? staticCounts.get(className) : 0;
+				for (int i = 0; i < function.size(); i++) {
+					if (function.accesses(i, Segment.STATIC)) {
+						count = Math.max(count, function.index(i) + 1);
+					}
+				}
+				staticCounts.put(className, count);
+			}
+		}
+		
+		int base = 0;
+		for (int f = 0; f < functions.size(); f++) {
+			String className = functionClasses.get(f);
+			if (reachable[f] && !staticBases.containsKey(className)) {
+				staticBases.put(className, base);
+				base += staticCounts.get(className);
+			}
+		}
+		
+		for (int f = 0; f < functions.size(); f++) {
+			if (reachable[f]) {
+				relocateStatics(functions.get(f), staticBases.get(functionClasses.get(f)));
+			}
+		}
+		
+		linkNanos += System.nanoTime() - start;
+		return linked;
+	}
+	
+	/**
+	 * Adds the given base to the index of every static variable
+	 * accessed by the function.
+	 */
+	private void relocateStatics(VMFunction function, int base) {
+		if (base == 0) {
+			return;
+		}
+		
+		for (int i = 0; i < function.size(); i++) {
+			if (function.accesses(i, Segment.STATIC)) {
+				function.set(i, function.opcode(i), Segment.STATIC.ordinal(),
+								function.index(i) + base, null);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the linked functions to the given .vm file.
+	 * Should only be called after link().
+	 * @param outputFile	The .vm file to write the linked program to.
+	 * @throws IOException
+	 */
+	public void write(File outputFile) throws IOException {
+		long start = System.nanoTime();
+		
+		PrintWriter out = new PrintWriter(outputFile);
+		for (VMFunction function: linked) {
+			function.write(out);
+		}
+		out.close();
+		
+		outputBytes = outputFile.length();
+		writeNanos += System.nanoTime() - start;
+	}
+	
+	public ArrayList<VMFunction> getLinkedFunctions() {
+		return linked;
+	}
+	
+	/**
+	 * Prints the time taken to link the program, the bytes saved, the
+	 * external functions called and the number of functions and
+	 * commands of each class which were kept.
+	 * @param out	The stream to print the report to.
+	 */
+	public void report(PrintStream out) {
+		out.println(String.format("Read %.3f ms, link %.3f ms, write %.3f ms",
+									readNanos / 1e6, linkNanos / 1e6, writeNanos / 1e6));
+		out.println(String.format("Kept %d of %d functions, %d of %d bytes (%d bytes saved)",
+									linked.size(), functions.size(),
+									outputBytes, inputBytes, inputBytes - outputBytes));
+		
+		LinkedHashMap<String, int[]> retention = new LinkedHashMap<String, int[]>();
+		for (int f = 0; f < functions.size(); f++) {
+			String className = functionClasses.get(f);
+			if (!retention.containsKey(className)) {
+				retention.put(className, new int[4]);
+			}
+			
+			int[] counts = retention.get(className);
+			VMFunction function = functions.get(f);
+			counts[1]++;
+			counts[3] += function.size();
+			if (reachable[f]) {
+				counts[0]++;
+				counts[2] += function.size();
+			}
+		}
+		
+		for (String className: retention.keySet()) {
+			int[] counts = retention.get(className);
+			out.println(String.format("%-20s %5d / %5d functions %8d / %8d commands",
+										className, counts[0], counts[1], counts[2], counts[3]));
+		}
+		
+		for (String external: externals) {
+			out.println("External: " + external);
+		}
+	}
+	
+	/**
+	 * Takes the name of the .vm file to write, followed by one or more
+	 * .vm files or directories containing .vm files, and links them
+	 * into the output file.
+	 * The output file may be preceded by the following options:
+	 * - -entry name	sets the entry function, which is Sys.init by default,
+	 * 					or Main.main if Sys.init is not defined
+	 * - -On			optimizes the linked program at level n, as for the
+	 * 					JackCompiler, which includes inlining at level 2
+	 * - -profile file	uses the given profile to guide optimization
+	 * - -nointrinsics	leaves calls to Math.multiply and Math.divide alone
+	 * 					when optimizing, as the JackCompiler option does,
+	 * 					so that the OS implementations are always called
+	 * - -asm			translates the linked program to Hack assembly,
+	 * 					written to the output file, instead of writing
+	 * 					VM code
+	 * - -hack			assembles the linked program into the .hack format,
+	 * 					written to the output file
+	 * - -rom			assembles the linked program into a raw ROM image,
+	 * 					written to the output file
+	 * - -registers		translates with the RegisterTranslator, which keeps
+	 * 					the top of the stack in D, for -asm, -hack and -rom
+	 * - -stats			prints a report of the link
+	 * - -verbose		prints each change made while optimizing
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String entry = null;
+		boolean printStats = false;
+		PassManager passManager = new PassManager(0);
+		boolean useIntrinsics = true;
+		boolean verbose = false;
+		File profileFile = null;
+		boolean translate = false;
+		VMTranslator translator = null;
+		boolean assemble = false;
+		boolean raw = false;
+		boolean registers = false;
+		HackAssembler assembler = null;
+		
+		int i = 0;
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-entry")) {
+				entry = args[++i];
+			} else if (args[i].matches("-O[0-9]")) {
+				passManager = new PassManager(args[i].charAt(2) - '0');
+			} else if (args[i].equals("-profile")) {
+				profileFile = new File(args[++i]);
+			} else if (args[i].equals("-nointrinsics")) {
+				useIntrinsics = false;
+			} else if (args[i].equals("-asm")) {
+				translate = true;
+			} else if (args[i].equals("-hack")) {
+				assemble = true;
+			} else if (args[i].equals("-rom")) {
+				assemble = true;
+				raw = true;
+			} else if (args[i].equals("-registers")) {
+				registers = true;
+			} else if (args[i].equals("-stats")) {
+				printStats = true;
+			} else if (args[i].equals("-verbose")) {
+				verbose = true;
+			} else {
+				throw new RuntimeException("Unknown option " + args[i]);
+			}
+			i++;
+		}
+		
+		if (args.length - i < 2) {
+			throw new RuntimeException("Arguments must be an output file and one or more .vm files or directories");
+		}
+		
+		File outputFile = new File(args[i++]);
+		VMLinker linker = new VMLinker();
+		
+		try {
+			for (; i < args.length; i++) {
+				File input = new File(args[i]);
+				File[] files = input.isDirectory() ? input.listFiles() : new File[] {input};
+				
+				for (File file: files) {
+					if (file.getName().endsWith(".vm")
+							&& !file.getAbsoluteFile().equals(outputFile.getAbsoluteFile())) {
+						linker.addFile(file);
+					}
+				}
+			}
+			
+			if (entry == null) {
+				entry = linker.defines("Sys.init") ? "Sys.init" : "Main.main";
+			}
+			
+			ArrayList<VMFunction> program = linker.link(entry);
+			passManager.setIntrinsicsEnabled(useIntrinsics);
+			if (verbose) {
+				passManager.setLog(System.out);
+			}
+			if (profileFile != null) {
+				passManager.setProfile(Profile.read(profileFile));
+			}
+			passManager.optimizeProgram(program);
+			
+			if (translate || assemble) {
+				if (registers) {
+					translator = assemble ? new RegisterTranslator() : new RegisterTranslator(outputFile);
+				} else {
+					translator = assemble ? new VMTranslator() : new VMTranslator(outputFile);
+				}
+				if (assemble) {
+					assembler = new HackAssembler();
+					translator.setAssembler(assembler);
+				}
+				translator.setClassName(outputFile.getName().replaceAll("\\..*$", ""));
+				translator.writeBootstrap(entry);
+				for (VMFunction function: program) {
+					translator.translate(function);
+				}
+				translator.close();
+				
+				if (assembler != null) {
+					assembler.assemble();
+					if (raw) {
+						assembler.writeRom(outputFile);
+					} else {
+						assembler.writeHack(outputFile);
+					}
+				}
+			} else {
+				linker.write(outputFile);
+			}
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		if (printStats) {
+			if (translator != null) {
+				translator.report(System.out);
+				if (assembler != null) {
+					assembler.report(System.out);
+				}
+			} else {
+				linker.report(System.out);
+			}
+			passManager.report(System.out);
+		}
+	}
+	
+}
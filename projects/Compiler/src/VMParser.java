@@ -0,0 +1,147 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Reads the functions of a .vm file into VMFunctions, so that VM code
+ * written earlier, such as the compiled OS classes, can be linked and
+ * optimized together with newly compiled code.
+ */
+public class VMParser {
+	
+	private static final Segment[] SEGMENTS = Segment.values();
+	private static final Command[] COMMANDS = Command.values();
+	
+	/**
+	 * Reads every function in the given .vm file.
+	 * Comments and blank lines are ignored.
+	 * Throws an exception if the file contains an invalid command, or
+	 * a command outside of a function.
+	 * @param vmFile	The .vm file to read.
+	 * @return			The functions of the file, in the order they occur.
+	 * @throws IOException
+	 */
+	public static ArrayList<VMFunction> parse(File vmFile) throws IOException {
+		return parse(vmFile, null);
+	}
+	
+	/**
+	 * Reads every function in the given .vm file, which may start with
+	 * commands outside of a function, as the test programs of the VM
+	 * translator do. These are read into a function with the given name
+	 * and no locals, which comes first.
+	 * @param vmFile		The .vm file to read.
+	 * @param outerName		The name of the function for the commands outside
+	 * 						of a function, or null if there may be none.
+	 * @return				The functions of the file, in the order they occur.
+	 * @throws IOException
+	 */
+	public static ArrayList<VMFunction> parse(File vmFile, String outerName) throws IOException {
+		ArrayList<VMFunction> functions = new ArrayList<VMFunction>();
+		VMFunction function = null;
+		
+		BufferedReader reader = new BufferedReader(new FileReader(vmFile));
+		String line = null;
+		int lineNumber = 0;
+		
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			
+			int commentStart = line.indexOf("//");
+			if (commentStart >= 0) {
+				line = line.substring(0, commentStart);
+			}
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			
+			String[] parts = line.split("\\s+");
+			
+			if (parts[0].equals("function")) {
+				function = new VMFunction(parts[1], Integer.parseInt(parts[2]));
+				functions.add(function);
+				
+			} else if (function == null && outerName == null) {
+				reader.close();
+				throw new RuntimeException(String.format(
+							"%s:%d: command outside of a function",
+							vmFile.getName(),
+							lineNumber));
+				
+			} else {
+				if (function == null) {
+					function = new VMFunction(outerName, 0);
+					functions.add(function);
+				}
+				try {
+					addCommand(function, parts);
+				} catch (RuntimeException e) {
+					reader.close();
+					throw new RuntimeException(String.format(
+								"%s:%d: invalid command %s",
+								vmFile.getName(),
+								lineNumber,
+								line));
+				}
+			}
+		}
+		
+		reader.close();
+		return functions;
+	}
+	
+	/**
+	 * Adds the command made up of the given words to the function.
+	 * @param function	The function to add the command to.
+	 * @param parts		The words of the command.
+	 */
+	private static void addCommand(VMFunction function, String[] parts) {
+		switch (parts[0]) {
+			case "push":
+				function.addPush(segment(parts[1]), Integer.parseInt(parts[2]));
+				break;
+			case "pop":
+				function.addPop(segment(parts[1]), Integer.parseInt(parts[2]));
+				break;
+			case "label":
+				function.add(Opcode.LABEL, 0, 0, parts[1]);
+				break;
+			case "goto":
+				function.add(Opcode.GOTO, 0, 0, parts[1]);
+				break;
+			case "if-goto":
+				function.add(Opcode.IF_GOTO, 0, 0, parts[1]);
+				break;
+			case "call":
+				function.add(Opcode.CALL, 0, Integer.parseInt(parts[2]), parts[1]);
+				break;
+			case "return":
+				function.add(Opcode.RETURN, 0, 0, null);
+				break;
+			default:
+				function.addArithmetic(command(parts[0]));
+		}
+	}
+	
+	private static Segment segment(String name) {
+		for (Segment segment: SEGMENTS) {
+			if (segment.toString().equals(name)) {
+				return segment;
+			}
+		}
+		throw new RuntimeException("Invalid segment " + name);
+	}
+	
+	private static Command command(String name) {
+		for (Command command: COMMANDS) {
+			if (command.toString().equals(name)) {
+				return command;
+			}
+		}
+		throw new RuntimeException("Invalid command " + name);
+	}
+	
+}
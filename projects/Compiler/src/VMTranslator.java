@@ -0,0 +1,685 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Translates VMFunctions into Hack assembly, in the same process as the
+ * compiler or linker which produced them, so the VM code never has to be
+ * written out and parsed again.
+ *
+ * To keep the ROM small, the call and return protocol and the eq, gt and
+ * lt commands are each written once, as shared subroutines at the end of
+ * the program, rather than being expanded at every use:
+ *  - $CALL		pushes the return address in D and the caller's LCL, ARG,
+ *  			THIS and THAT, sets up the new frame, and jumps to the
+ *  			function whose address is in R13, with the number of
+ *  			arguments in R14
+ *  - $RETURN	returns from the current function
+ *  - $EQ, $GT, $LT	compare the top two values of the stack, and jump
+ *  			back to the return address in D
+ * R13 to R15 are used as scratch registers.
+ * Push and pop commands use the shortest sequence for their segment and
+ * index, e.g. push constant 0 does not load the constant into D.
+ *
+ * Statics are named ClassName.index as in the standard VM translator,
+ * using the class name set by setClassName.
+ */
+public class VMTranslator {
+	
+	/**
+	 * The largest index of a local, argument, this or that variable which
+	 * is popped by incrementing the segment address in A, rather than by
+	 * computing it into R13 first.
+	 */
+	private static final int MAX_POP_INCREMENTS = 6;
+	
+	protected static final String CALL = "$CALL";
+	protected static final String RETURN = "$RETURN";
+	
+	private PrintWriter out;
+	private HackAssembler assembler;
+	
+	private String className = "";
+	protected String functionName = "";
+	private int returnCounter = 0;
+	
+	/** The shared subroutines used so far, in name order. */
+	protected TreeSet<String> subroutines = new TreeSet<String>();
+	
+	/**
+	 * The function and command each instruction was translated from, if
+	 * recorded, and those of the instructions being written now.
+	 */
+	private int[] romFunctions = null;
+	private int[] romCommands = null;
+	private int currentFunction = -1;
+	protected int currentCommand = -1;
+	private int numFunctions = 0;
+	
+	private long commands = 0;
+	private long instructions = 0;
+	private long nanos = 0;
+	
+	/**
+	 * Creates a new VMTranslator which writes Hack assembly to the given
+	 * .asm file.
+	 * @param asmFile	The file to write the assembly to.
+	 * @throws FileNotFoundException
+	 */
+	public VMTranslator(File asmFile) throws FileNotFoundException {
+		this.out = new PrintWriter(asmFile);
+	}
+	
+	/**
+	 * Creates a new VMTranslator which writes no assembly text, for use
+	 * with an assembler.
+	 */
+	public VMTranslator() {
+		this.out = null;
+	}
+	
+	/**
+	 * Sets the assembler which is given each instruction and label as
+	 * it is translated, as well as or instead of the .asm file.
+	 * @param assembler		The assembler to add the program to.
+	 */
+	public void setAssembler(HackAssembler assembler) {
+		this.assembler = assembler;
+	}
+	
+	/**
+	 * Sets the name of the class whose functions are translated next,
+	 * which names their static variables.
+	 * @param className		The name of the class.
+	 */
+	public void setClassName(String className) {
+		this.className = className;
+	}
+	
+	/**
+	 * Records the function and command each instruction is translated
+	 * from, so that tools such as the Profiler can map ROM addresses back
+	 * to VM commands. Must be called before anything is translated, and
+	 * assumes that every instruction goes into the same ROM.
+	 */
+	public void recordOrigins() {
+		romFunctions = new int[1024];
+		romCommands = new int[1024];
+	}
+	
+	/**
+	 * Writes an A instruction, or a C instruction, and counts it.
+	 */
+	protected void emit(String instruction) {
+		if (out != null) {
+			out.println(instruction);
+		}
+		if (assembler != null) {
+			assembler.addInstruction(instruction);
+		}
+		if (romFunctions != null) {
+			int address = (int) instructions;
+			if (address == romFunctions.length) {
+				romFunctions = Arrays.copyOf(romFunctions, address * 2);
+				romCommands = Arrays.copyOf(romCommands, address * 2);
+			}
+			romFunctions[address] = currentFunction;
+			romCommands[address] = currentCommand;
+		}
+		instructions++;
+	}
+	
+	/**
+	 * Writes a label declaration, which takes no space in the ROM.
+	 */
+	protected void label(String label) {
+		if (out != null) {
+			out.println("(" + label + ")");
+		}
+		if (assembler != null) {
+			assembler.addLabel(label);
+		}
+	}
+	
+	/**
+	 * Writes a comment to the .asm file, if there is one.
+	 */
+	protected void comment(String comment) {
+		if (out != null) {
+			out.println("// " + comment);
+		}
+	}
+	
+	/**
+	 * Writes the instructions to push the value in D.
+	 */
+	protected void pushD() {
+		emit("@SP");
+		emit("AM=M+1");
+		emit("A=A-1");
+		emit("M=D");
+	}
+	
+	/**
+	 * Writes the instructions to pop the top of the stack into D.
+	 */
+	protected void popD() {
+		emit("@SP");
+		emit("AM=M-1");
+		emit("D=M");
+	}
+	
+	/**
+	 * Returns the register holding the base address of the given segment,
+	 * or null if it does not have one.
+	 */
+	protected String baseRegister(Segment segment) {
+		switch (segment) {
+			case LOCAL:		return "LCL";
+			case ARGUMENT:	return "ARG";
+			case THIS:		return "THIS";
+			case THAT:		return "THAT";
+			default:		return null;
+		}
+	}
+	
+	/**
+	 * Returns the symbol of the fixed address of the given variable of
+	 * the static, temp or pointer segment.
+	 */
+	protected String fixedAddress(Segment segment, int index) {
+		switch (segment) {
+			case STATIC:	return className + "." + index;
+			case TEMP:		return "R" + (5 + index);
+			case POINTER:	return index == 0 ? "THIS" : "THAT";
+			default:
+				throw new RuntimeException("Segment " + segment + " has no fixed address");
+		}
+	}
+	
+	/**
+	 * Writes the instructions for a push command.
+	 */
+	private void writePush(Segment segment, int index) {
+		String base = baseRegister(segment);
+		
+		if (segment == Segment.CONSTANT && (index == 0 || index == 1)) {
+			emit("@SP");
+			emit("AM=M+1");
+			emit("A=A-1");
+			emit("M=" + index);
+			return;
+			
+		} else if (segment == Segment.CONSTANT) {
+			emit("@" + index);
+			emit("D=A");
+			
+		} else if (base != null && index <= 1) {
+			emit("@" + base);
+			emit(index == 0 ? "A=M" : "A=M+1");
+			emit("D=M");
+			
+		} else if (base != null) {
+			emit("@" + index);
+			emit("D=A");
+			emit("@" + base);
+			emit("A=D+M");
+			emit("D=M");
+			
+		} else {
+			emit("@" + fixedAddress(segment, index));
+			emit("D=M");
+		}
+		
+		pushD();
+	}
+	
+	/**
+	 * Writes the instructions for a pop command.
+	 */
+	private void writePop(Segment segment, int index) {
+		String base = baseRegister(segment);
+		
+		if (segment == Segment.CONSTANT) {
+			throw new RuntimeException("Cannot pop to the constant segment");
+			
+		} else if (base != null && index <= MAX_POP_INCREMENTS) {
+			popD();
+			emit("@" + base);
+			emit("A=M");
+			for (int i = 0; i < index; i++) {
+				emit("A=A+1");
+			}
+			emit("M=D");
+			
+		} else if (base != null) {
+			emit("@" + index);
+			emit("D=A");
+			emit("@" + base);
+			emit("D=D+M");
+			emit("@R13");
+			emit("M=D");
+			popD();
+			emit("@R13");
+			emit("A=M");
+			emit("M=D");
+			
+		} else {
+			popD();
+			emit("@" + fixedAddress(segment, index));
+			emit("M=D");
+		}
+	}
+	
+	/**
+	 * Writes the instructions for an arithmetic or logical command.
+	 */
+	private void writeArithmetic(Command command) {
+		switch (command) {
+			case NEG:
+			case NOT:
+				emit("@SP");
+				emit("A=M-1");
+				emit(command == Command.NEG ? "M=-M" : "M=!M");
+				break;
+			
+			case EQ:
+			case GT:
+			case LT:
+				String returnLabel = nextReturnLabel();
+				String subroutine = "$" + command.toString().toUpperCase();
+				subroutines.add(subroutine);
+				
+				emit("@" + returnLabel);
+				emit("D=A");
+				emit("@" + subroutine);
+				emit("0;JMP");
+				label(returnLabel);
+				break;
+			
+			default:
+				popD();
+				emit("A=A-1");
+				switch (command) {
+					case ADD:	emit("M=M+D");	break;
+					case SUB:	emit("M=M-D");	break;
+					case AND:	emit("M=M&D");	break;
+					default:	emit("M=M|D");	break;
+				}
+		}
+	}
+	
+	/**
+	 * Returns a new label for a return address in the current function.
+	 */
+	protected String nextReturnLabel() {
+		return functionName + "$ret." + returnCounter++;
+	}
+	
+	/**
+	 * Writes the instructions for a call of the given function, using
+	 * the shared $CALL subroutine.
+	 */
+	protected void writeCall(String function, int numArgs) {
+		subroutines.add(CALL);
+		String returnLabel = nextReturnLabel();
+		
+		if (numArgs <= 1) {
+			emit("@R14");
+			emit("M=" + numArgs);
+		} else {
+			emit("@" + numArgs);
+			emit("D=A");
+			emit("@R14");
+			emit("M=D");
+		}
+		
+		emit("@" + function);
+		emit("D=A");
+		emit("@R13");
+		emit("M=D");
+		emit("@" + returnLabel);
+		emit("D=A");
+		emit("@" + CALL);
+		emit("0;JMP");
+		label(returnLabel);
+	}
+	
+	/**
+	 * Writes the bootstrap code, which sets SP to 256 and calls the entry
+	 * function. Should be called before any function is translated, when
+	 * the program is complete.
+	 * @param entry		The entry function, usually Sys.init.
+	 */
+	public void writeBootstrap(String entry) {
+		comment("bootstrap");
+		emit("@256");
+		emit("D=A");
+		emit("@SP");
+		emit("M=D");
+		
+		functionName = "$bootstrap";
+		writeCall(entry, 0);
+	}
+	
+	/**
+	 * Translates a complete function into Hack assembly.
+	 * @param function	The function to translate.
+	 */
+	public void translate(VMFunction function) {
+		long start = System.nanoTime();
+		writeFunction(function);
+		
+		for (int i = 0; i < function.size(); i++) {
+			currentCommand = i;
+			switch (function.opcode(i)) {
+				case PUSH:
+					writePush(function.segment(i), function.index(i));
+					break;
+				
+				case POP:
+					writePop(function.segment(i), function.index(i));
+					break;
+				
+				case ARITHMETIC:
+					writeArithmetic(function.command(i));
+					break;
+				
+				case LABEL:
+					label(functionName + "$" + function.symbol(i));
+					break;
+				
+				case GOTO:
+					emit("@" + functionName + "$" + function.symbol(i));
+					emit("0;JMP");
+					break;
+				
+				case IF_GOTO:
+					popD();
+					emit("@" + functionName + "$" + function.symbol(i));
+					emit("D;JNE");
+					break;
+				
+				case CALL:
+					writeCall(function.symbol(i), function.index(i));
+					break;
+				
+				case RETURN:
+					subroutines.add(RETURN);
+					emit("@" + RETURN);
+					emit("0;JMP");
+					break;
+			}
+		}
+		
+		endFunction(function, start);
+	}
+	
+	/**
+	 * Starts the translation of the given function, writing its label and
+	 * the instructions which push its local variables.
+	 */
+	protected void writeFunction(VMFunction function) {
+		functionName = function.getName();
+		returnCounter = 0;
+		currentFunction = numFunctions++;
+		currentCommand = -1;
+		
+		comment("function " + functionName + " " + function.getNumLocals());
+		label(functionName);
+		
+		int numLocals = function.getNumLocals();
+		if (numLocals > 0) {
+			emit("@SP");
+			emit("A=M");
+			emit("M=0");
+			for (int i = 1; i < numLocals; i++) {
+				emit("A=A+1");
+				emit("M=0");
+			}
+			emit("D=A+1");
+			emit("@SP");
+			emit("M=D");
+		}
+	}
+	
+	/**
+	 * Finishes the translation of the given function, which was started
+	 * at the given time.
+	 */
+	protected void endFunction(VMFunction function, long start) {
+		currentFunction = -1;
+		currentCommand = -1;
+		commands += function.size();
+		nanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Writes the shared $CALL subroutine.
+	 */
+	private void writeCallSubroutine() {
+		label(CALL);
+		
+		// push the return address, LCL, ARG, THIS and THAT
+		emit("@SP");
+		emit("A=M");
+		emit("M=D");
+		for (String register: new String[] {"LCL", "ARG", "THIS", "THAT"}) {
+			emit("@" + register);
+			emit("D=M");
+			emit("@SP");
+			emit("AM=M+1");
+			emit("M=D");
+		}
+		
+		// LCL = SP, ARG = SP - 5 - numArgs
+		emit("@SP");
+		emit("MD=M+1");
+		emit("@LCL");
+		emit("M=D");
+		emit("@R14");
+		emit("D=D-M");
+		emit("@5");
+		emit("D=D-A");
+		emit("@ARG");
+		emit("M=D");
+		
+		emit("@R13");
+		emit("A=M");
+		emit("0;JMP");
+	}
+	
+	/**
+	 * Writes the shared $RETURN subroutine.
+	 */
+	protected void writeReturnSubroutine() {
+		label(RETURN);
+		
+		// R13 = return address, read before *ARG may overwrite it
+		emit("@5");
+		emit("D=A");
+		emit("@LCL");
+		emit("A=M-D");
+		emit("D=M");
+		emit("@R13");
+		emit("M=D");
+		
+		// *ARG = return value, SP = ARG + 1
+		popD();
+		emit("@ARG");
+		emit("A=M");
+		emit("M=D");
+		emit("D=A+1");
+		emit("@SP");
+		emit("M=D");
+		
+		// restore THAT, THIS and ARG, walking LCL down the frame
+		for (String register: new String[] {"THAT", "THIS", "ARG"}) {
+			emit("@LCL");
+			emit("AM=M-1");
+			emit("D=M");
+			emit("@" + register);
+			emit("M=D");
+		}
+		emit("@LCL");
+		emit("A=M-1");
+		emit("D=M");
+		emit("@LCL");
+		emit("M=D");
+		
+		emit("@R13");
+		emit("A=M");
+		emit("0;JMP");
+	}
+	
+	/**
+	 * Writes a shared comparison subroutine, which replaces the top two
+	 * values of the stack x and y with x - y compared to 0.
+	 * @param name		The name of the subroutine.
+	 * @param falseJump	The jump taken when the comparison is false.
+	 */
+	private void writeComparisonSubroutine(String name, String falseJump) {
+		label(name);
+		emit("@R15");
+		emit("M=D");
+		popD();
+		emit("A=A-1");
+		emit("D=M-D");
+		emit("M=0");
+		emit("@" + name + "$end");
+		emit("D;" + falseJump);
+		emit("@SP");
+		emit("A=M-1");
+		emit("M=-1");
+		label(name + "$end");
+		emit("@R15");
+		emit("A=M");
+		emit("0;JMP");
+	}
+	
+	/**
+	 * Writes the shared subroutines which have been used, and closes the
+	 * output file if there is one. Should be called once every function is
+	 * translated, and before the assembler assembles the program.
+	 */
+	public void close() {
+		long start = System.nanoTime();
+		
+		for (String subroutine: subroutines) {
+			comment(subroutine);
+			switch (subroutine) {
+				case CALL:		writeCallSubroutine();						break;
+				case RETURN:	writeReturnSubroutine();					break;
+				case "$EQ":		writeComparisonSubroutine(subroutine, "JNE");	break;
+				case "$GT":		writeComparisonSubroutine(subroutine, "JLE");	break;
+				default:		writeComparisonSubroutine(subroutine, "JGE");	break;
+			}
+		}
+		
+		if (out != null) {
+			out.close();
+		}
+		nanos += System.nanoTime() - start;
+	}
+	
+	public long getInstructions() {
+		return instructions;
+	}
+	
+	/**
+	 * Returns the index, in the order translated, of the function each
+	 * instruction was translated from, or -1 for the bootstrap code and
+	 * the shared subroutines. Only valid if recordOrigins was called.
+	 */
+	public int[] getRomFunctions() {
+		return Arrays.copyOf(romFunctions, (int) instructions);
+	}
+	
+	/**
+	 * Returns the index within its function of the command each
+	 * instruction was translated from, or -1 for the code which starts a
+	 * function, the bootstrap code and the shared subroutines. Only valid
+	 * if recordOrigins was called.
+	 */
+	public int[] getRomCommands() {
+		return Arrays.copyOf(romCommands, (int) instructions);
+	}
+	
+	/**
+	 * Prints the number of VM commands translated, the size of the ROM
+	 * they take and the time taken.
+	 * @param out	The stream to print the report to.
+	 */
+	public void report(PrintStream out) {
+		out.println(String.format("Translated %d commands to %d instructions in %.3f ms",
+									commands, instructions, nanos / 1e6));
+	}
+	
+	/**
+	 * Takes a .vm filename, or a directory containing .vm files, and
+	 * translates them into a single .asm file with the same name as the
+	 * file or directory, in the same directory. The program is started by
+	 * bootstrap code calling Sys.init if a directory is translated.
+	 * The name may be preceded by -stats, which prints a report of the
+	 * translation.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			throw new RuntimeException("Argument must be a single file or directory name");
+		}
+		
+		boolean printStats = args.length > 1 && args[0].equals("-stats");
+		File input = new File(args[args.length - 1]);
+		ArrayList<File> vmFiles = new ArrayList<File>();
+		File asmFile;
+		
+		try {
+			input = input.getCanonicalFile();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		if (input.isDirectory()) {
+			for (File file: input.listFiles()) {
+				if (file.getName().endsWith(".vm")) {
+					vmFiles.add(file);
+				}
+			}
+			asmFile = new File(input, input.getName() + ".asm");
+			
+		} else {
+			vmFiles.add(input);
+			asmFile = new File(input.getParentFile(), input.getName().replace(".vm", ".asm"));
+		}
+		
+		try {
+			VMTranslator translator = new VMTranslator(asmFile);
+			if (input.isDirectory()) {
+				translator.writeBootstrap("Sys.init");
+			}
+			
+			for (File vmFile: vmFiles) {
+				translator.setClassName(vmFile.getName().replace(".vm", ""));
+				for (VMFunction function: VMParser.parse(vmFile)) {
+					translator.translate(function);
+				}
+			}
+			translator.close();
+			
+			if (printStats) {
+				translator.report(System.out);
+			}
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+}
@@ -1,11 +1,31 @@
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 
+/**
+ * Writes VM commands to an output file.
+ * The commands of each function are collected in a VMFunction, which
+ * is optimized by the PassManager, if there is one, and written out
+ * once the function is complete.
+ * A VMWriter can also keep the functions in memory, to be passed on to
+ * the VMWriter for the output file later.
+ * Given a VMTranslator, each function is also translated to Hack
+ * assembly once it has been optimized, and given a SourceMap, the
+ * source positions of its commands are recorded.
+ */
 public class VMWriter {
 	
 	private PrintWriter out;
 	
+	private PassManager passManager;
+	private VMTranslator translator;
+	private SourceMap sourceMap;
+	private VMFunction function;
+	
+	/** The functions kept in memory, if there is no output file. */
+	private ArrayList<VMFunction> functions;
+	
 	/**
 	 * Creates a new VMWriter which writes VM code to the given
 	 * output file.
@@ -16,14 +36,98 @@ public class VMWriter {
 		this.out = new PrintWriter(outputFile);
 	}
 	
+	/**
+	 * Creates a new VMWriter which keeps the functions written in memory,
+	 * without optimizing them, until they are returned by getFunctions.
+	 */
+	public VMWriter() {
+		this.functions = new ArrayList<VMFunction>();
+	}
+	
+	/**
+	 * Sets the pass manager used to optimize each function before
+	 * it is written.
+	 * @param passManager	The pass manager to use, or null for none.
+	 */
+	public void setPassManager(PassManager passManager) {
+		this.passManager = passManager;
+	}
+	
+	/**
+	 * Sets the translator used to translate each function to Hack
+	 * assembly after it is optimized.
+	 * @param translator	The translator to use, or null for none.
+	 */
+	public void setTranslator(VMTranslator translator) {
+		this.translator = translator;
+	}
+	
+	/**
+	 * Sets the source map which records the source positions of the
+	 * commands of each function once it is optimized.
+	 * @param sourceMap		The source map to use, or null for none.
+	 */
+	public void setSourceMap(SourceMap sourceMap) {
+		this.sourceMap = sourceMap;
+	}
+	
 	/**
 	 * Closes the output stream used for writing output to the output
 	 * file. Should be called once the compilation of the class is complete.
 	 */
 	public void closeOutputFile() {
+		flushFunction();
 		out.close();
 	}
 	
+	/**
+	 * Optimizes and writes out the function currently being written,
+	 * if there is one.
+	 */
+	private void flushFunction() {
+		if (function != null && out == null) {
+			functions.add(function);
+			function = null;
+			
+		} else if (function != null) {
+			if (passManager != null && !passManager.isEmpty()) {
+				passManager.optimize(function);
+			}
+			function.write(out);
+			if (sourceMap != null) {
+				sourceMap.addFunction(function);
+			}
+			if (translator != null) {
+				translator.translate(function);
+			}
+			function = null;
+		}
+	}
+	
+	/**
+	 * Adds a command to the function currently being written.
+	 * Throws an exception if no function command has been written yet.
+	 */
+	private void add(Opcode opcode, int arg, int index, String symbol) {
+		if (function == null) {
+			throw new RuntimeException("VM command " + opcode + " outside of a function");
+		}
+		function.add(opcode, arg, index, symbol);
+	}
+	
+	/**
+	 * Sets the source position of the commands written next, in the
+	 * source of the function currently being written.
+	 * @param line		The line, starting from 1.
+	 * @param column	The column, starting from 1.
+	 */
+	public void setPosition(int line, int column) {
+		if (function == null) {
+			throw new RuntimeException("Source position outside of a function");
+		}
+		function.setPosition(line, column);
+	}
+	
 	/**
 	 * Writes a push command using the given memory segment and index
 	 * to the output file.
@@ -31,7 +135,7 @@ public class VMWriter {
 	 * @param index		The memory index to be used in the push command.
 	 */
 	public void writePush(Segment segment, int index) {
-		out.println(String.format("push %s %s", segment, index));
+		add(Opcode.PUSH, segment.ordinal(), index, null);
 	}
 	
 	/**
@@ -41,7 +145,7 @@ public class VMWriter {
 	 * @param index		The memory index to be used in the pop command.
 	 */
 	public void writePop(Segment segment, int index) {
-		out.println(String.format("pop %s %s", segment, index));
+		add(Opcode.POP, segment.ordinal(), index, null);
 	}
 	
 	/**
@@ -49,7 +153,7 @@ public class VMWriter {
 	 * @param command	The command to write.
 	 */
 	public void writeArithmetic(Command command) {
-		out.println(command);
+		add(Opcode.ARITHMETIC, command.ordinal(), 0, null);
 	}
 	
 	/**
@@ -57,7 +161,7 @@ public class VMWriter {
 	 * @param label	The label to be used in the label command.
 	 */
 	public void writeLabel(String label) {
-		out.println(String.format("label %s", label));
+		add(Opcode.LABEL, 0, 0, label);
 	}
 	
 	/**
@@ -65,7 +169,7 @@ public class VMWriter {
 	 * @param label		The label to be used in the goto command.
 	 */
 	public void writeGoto(String label) {
-		out.println(String.format("goto %s", label));
+		add(Opcode.GOTO, 0, 0, label);
 	}
 	
 	/**
@@ -73,7 +177,7 @@ public class VMWriter {
 	 * @param label		The label to be used in the if-goto command.
 	 */
 	public void writeIf(String label) {
-		out.println(String.format("if-goto %s", label));
+		add(Opcode.IF_GOTO, 0, 0, label);
 	}
 	
 	/**
@@ -83,7 +187,7 @@ public class VMWriter {
 	 * @param numArgs	The number of arguments being passed to the function.
 	 */
 	public void writeCall(String name, int numArgs) {
-		out.println(String.format("call %s %s", name, numArgs));
+		add(Opcode.CALL, 0, numArgs, name);
 	}
 	
 	/**
@@ -93,14 +197,37 @@ public class VMWriter {
 	 * @param numLocals	The number of local variables of the function.
 	 */
 	public void writeFunction(String name, int numLocals) {
-		out.println(String.format("function %s %s", name, numLocals));
+		flushFunction();
+		function = new VMFunction(name, numLocals);
 	}
 	
 	/**
 	 * Writes a VM return command.
 	 */
 	public void writeReturn() {
-		out.println("return");
+		add(Opcode.RETURN, 0, 0, null);
+	}
+	
+	/**
+	 * Writes the given complete functions in order, as written to another
+	 * VMWriter which kept them in memory.
+	 * @param functions		The functions to write.
+	 */
+	public void writeFunctions(ArrayList<VMFunction> functions) {
+		for (VMFunction next: functions) {
+			flushFunction();
+			function = next;
+		}
+	}
+	
+	/**
+	 * Returns the functions written to a VMWriter which keeps them in
+	 * memory, once they are all complete.
+	 * @return	The functions written, in order.
+	 */
+	public ArrayList<VMFunction> getFunctions() {
+		flushFunction();
+		return functions;
 	}
 	
 	